@@ -0,0 +1,211 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.benchmark;
+
+import dk.kb.lookup.api.MergedApi;
+import dk.kb.lookup.api.impl.MemoryImpl;
+import dk.kb.lookup.config.ServiceConfig;
+import dk.kb.lookup.model.EntryReplyDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the {@link MergedApi} operations of {@link MemoryImpl}, including conversion to reply objects and
+ * streaming of large results. The index is populated through {@link MemoryImpl#addFiles}.
+ * </p><p>
+ * The implementation is selected with the configuration {@code file-lookup-benchmark-<implementation>.yaml}.
+ * As the index in {@link MemoryImpl} is static, each parameter combination must run in its own fork.
+ * Use {@code -prof gc} to measure allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ApiBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(ApiBenchmark.class);
+
+    static final int QUERY_NAMES = 65536; // Power of 2
+    static final int BATCH_SIZE = 100;
+    static final int FILES_PER_FOLDER = SyntheticTree.DEFAULT_FILES_PER_FOLDER;
+
+    @Param({"1000000", "10000000", "100000000"})
+    public long entries;
+
+    @Param({"compact", "memory"})
+    public String implementation;
+
+    private MergedApi api;
+    private String[] queryNames;
+    private final AtomicInteger queryCounter = new AtomicInteger(0);
+    private long folders;
+    private long midTime; // lastSeen for the middle folder
+
+    @Setup
+    public void setup() throws IOException {
+        ServiceConfig.initialize("file-lookup-benchmark-" + implementation + ".yaml");
+        api = new MemoryImpl();
+        folders = SyntheticTree.getFolderCount(entries, FILES_PER_FOLDER);
+
+        final long startTime = System.currentTimeMillis();
+        for (long folder = 0 ; folder < folders ; folder++) {
+            if (folder == folders/2) {
+                midTime = System.currentTimeMillis();
+            }
+            api.addFiles(getFolderFiles(folder), false);
+        }
+        log.info(String.format(Locale.ENGLISH, "Added %d files through the API in %d ms",
+                               api.getFilecount(), System.currentTimeMillis()-startTime));
+        queryNames = SyntheticTree.randomFilenames(entries, QUERY_NAMES, 87);
+    }
+
+    private List<String> getFolderFiles(long folder) {
+        String path = SyntheticTree.getFolder(SyntheticTree.ROOT, folder);
+        List<String> files = new ArrayList<>(FILES_PER_FOLDER);
+        long end = Math.min(entries, (folder+1) * FILES_PER_FOLDER);
+        for (long id = folder * FILES_PER_FOLDER ; id < end ; id++) {
+            files.add(path + "/" + SyntheticTree.getFilename(id));
+        }
+        return files;
+    }
+
+    private String nextName() {
+        return queryNames[queryCounter.getAndIncrement() & (QUERY_NAMES-1)];
+    }
+
+    private long randomFolder() {
+        return ThreadLocalRandom.current().nextLong(folders);
+    }
+
+    /**
+     * Consumes the entity of a {@link MergedApi#getEntries} response, which is either a list or a stream.
+     */
+    private static void consume(Response response, Blackhole blackhole) throws IOException {
+        Object entity = response.getEntity();
+        if (entity instanceof StreamingOutput) {
+            ((StreamingOutput) entity).write(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    blackhole.consume(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    blackhole.consume(b);
+                }
+            });
+        } else {
+            blackhole.consume(entity);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public EntryReplyDto getEntryFromFilename() {
+        return api.getEntryFromFilename(nextName());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<EntryReplyDto> getEntriesFromFilenames() {
+        String[] filenames = new String[BATCH_SIZE];
+        for (int i = 0 ; i < BATCH_SIZE ; i++) {
+            filenames[i] = nextName();
+        }
+        return api.getEntriesFromFilenames(Arrays.asList(filenames));
+    }
+
+    /**
+     * Regexp with a literal prefix matching a single folder.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void getEntriesRegexpPrefix(Blackhole blackhole) throws IOException {
+        String regexp = SyntheticTree.getFolder(SyntheticTree.ROOT, randomFolder()) + "/file_[0-9]+[.]warc";
+        consume(api.getEntries(null, regexp, null, null, null, -1, false, null), blackhole);
+    }
+
+    /**
+     * Glob with a literal prefix matching a single folder.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void getEntriesGlobPrefix(Blackhole blackhole) throws IOException {
+        String glob = SyntheticTree.getFolder(SyntheticTree.ROOT, randomFolder()) + "/*.warc";
+        consume(api.getEntries(null, null, glob, null, null, -1, false, null), blackhole);
+    }
+
+    /**
+     * Regexp without a literal prefix, requiring a match against all entries. Limited to 1000 results.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, batchSize = 1)
+    public void getEntriesRegexpFull(Blackhole blackhole) throws IOException {
+        consume(api.getEntries(null, ".*/file_[0-9]*77[.]warc", null, null, null, 1000, false, null), blackhole);
+    }
+
+    /**
+     * The 1000 oldest entries since the middle of the population, ordered by lastSeen.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void getEntriesSinceOrdered(Blackhole blackhole) throws IOException {
+        consume(api.getEntries(null, null, null, null, midTime, 1000, true, null), blackhole);
+    }
+
+    /**
+     * Streaming of 100,000 entries since the middle of the population, unordered.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void getEntriesSinceStreamed(Blackhole blackhole) throws IOException {
+        consume(api.getEntries(null, null, null, null, midTime, 100000, false, null), blackhole);
+    }
+
+    /**
+     * Re-adds all files in a random folder, updating their lastSeen.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<String> addFiles() {
+        return api.addFiles(getFolderFiles(randomFolder()), false);
+    }
+}
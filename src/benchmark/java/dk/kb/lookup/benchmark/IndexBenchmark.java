@@ -0,0 +1,168 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.benchmark;
+
+import dk.kb.lookup.FileEntry;
+import dk.kb.lookup.index.CompactIndex;
+import dk.kb.lookup.index.FileIndex;
+import dk.kb.lookup.index.MapIndex;
+import dk.kb.lookup.index.StripedIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Measures the {@link FileIndex} operations behind the lookup, query and ingest endpoints, without the overhead of
+ * the web service layer. The index is a {@link StripedIndex}, as used by the in-memory implementations.
+ * </p><p>
+ * Use {@code -prof gc} to measure allocation rate. Note that 100M entries requires a heap of about 8GB for
+ * {@code compact} and 24GB for {@code memory}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class IndexBenchmark {
+    static final int QUERY_NAMES = 65536; // Power of 2
+    static final int BATCH_SIZE = 100;
+
+    @Param({"1000000", "10000000", "100000000"})
+    public long entries;
+
+    @Param({"compact", "memory"})
+    public String implementation;
+
+    @Param({"16"})
+    public int stripes;
+
+    private FileIndex index;
+    private String[] queryNames;
+    private final AtomicInteger queryCounter = new AtomicInteger(0);
+    private long baseTime;
+    private long folders;
+
+    @Setup
+    public void setup() {
+        switch (implementation) {
+            case "compact": index = new StripedIndex(stripes, CompactIndex::new); break;
+            case "memory":  index = new StripedIndex(stripes, MapIndex::new); break;
+            default: throw new IllegalArgumentException("Unknown implementation '" + implementation + "'");
+        }
+        baseTime = System.currentTimeMillis();
+        folders = SyntheticTree.getFolderCount(entries, SyntheticTree.DEFAULT_FILES_PER_FOLDER);
+        SyntheticTree.populate(index, entries, SyntheticTree.DEFAULT_FILES_PER_FOLDER, baseTime);
+        queryNames = SyntheticTree.randomFilenames(entries, QUERY_NAMES, 87);
+    }
+
+    private String nextName() {
+        return queryNames[queryCounter.getAndIncrement() & (QUERY_NAMES-1)];
+    }
+
+    private long randomFolder() {
+        return ThreadLocalRandom.current().nextLong(folders);
+    }
+
+    /**
+     * Single lookup, as performed by {@code getEntryFromFilename}.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public FileEntry getEntry() {
+        return index.get(nextName());
+    }
+
+    /**
+     * Batch lookup of {@link #BATCH_SIZE} filenames, as performed by {@code getEntriesFromFilenames}.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void getEntries(Blackhole blackhole) {
+        for (int i = 0 ; i < BATCH_SIZE ; i++) {
+            blackhole.consume(index.get(nextName()));
+        }
+    }
+
+    /**
+     * All entries in a single folder, as used by {@code getEntries} with a regexp or glob with a literal prefix.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long snapshotPrefix() {
+        try (Stream<FileEntry> entries =
+                     index.snapshot(SyntheticTree.getFolder(SyntheticTree.ROOT, randomFolder()) + "/", 0, false)) {
+            return entries.count();
+        }
+    }
+
+    /**
+     * The 1000 oldest entries since a random point in time, as used by {@code getEntries} with since and ordered.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long snapshotSinceOrdered() {
+        try (Stream<FileEntry> entries = index.snapshot(baseTime + randomFolder(), true)) {
+            return entries.limit(1000).count();
+        }
+    }
+
+    /**
+     * Full iteration of all entries, as used by {@code getEntries} without prefix or since.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, batchSize = 1)
+    public long stream() {
+        try (Stream<FileEntry> entries = index.stream()) {
+            return entries.count();
+        }
+    }
+
+    /**
+     * Re-adds all entries in a random folder with a new lastSeen, as performed for changed folders during a scan.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void putFolder() {
+        long folder = randomFolder();
+        index.putAll(SyntheticTree.createFolder(
+                entries, SyntheticTree.DEFAULT_FILES_PER_FOLDER, folder, System.currentTimeMillis()));
+    }
+
+    /**
+     * Updates lastSeen for all entries in a random folder, as performed for unchanged folders during a scan.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long touchFolder() {
+        return index.touchFolder(SyntheticTree.getFolder(SyntheticTree.ROOT, randomFolder()),
+                                 System.currentTimeMillis());
+    }
+}
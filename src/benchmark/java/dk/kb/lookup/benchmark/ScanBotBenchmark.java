@@ -0,0 +1,105 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.benchmark;
+
+import dk.kb.lookup.ScanBot;
+import dk.kb.lookup.index.CompactIndex;
+import dk.kb.lookup.index.FileIndex;
+import dk.kb.lookup.index.StripedIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ScanBot} scans of a generated directory tree, with ingest into a {@link StripedIndex} the same way
+ * as {@code MemoryImpl.acceptFolder}. The tree is created in the temporary folder and deleted after the run.
+ * </p><p>
+ * With {@code incremental=true} the first scan lists all folders and the following scans only refresh them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ScanBotBenchmark {
+
+    @Param({"1000"})
+    public int folders;
+
+    @Param({"100"})
+    public int filesPerFolder;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    private Path root;
+    private ScanBot scanBot;
+    private FileIndex index;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("file-lookup-benchmark");
+        SyntheticTree.createTree(root, folders, filesPerFolder);
+        scanBot = new ScanBot(parallelism, incremental);
+        index = new StripedIndex(StripedIndex.DEFAULT_STRIPES, CompactIndex::new);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticTree.deleteTree(root);
+    }
+
+    /**
+     * Performs a full scan of the tree and waits for it to finish.
+     * @return the number of entries in the index after the scan.
+     */
+    @Benchmark
+    public int scan() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        if (!scanBot.startScan(Collections.singletonList(root.toString()), this::acceptFolder, finished::countDown)) {
+            throw new IllegalStateException("Unable to start scan as a scan is already running");
+        }
+        finished.await();
+        return index.size();
+    }
+
+    private void acceptFolder(ScanBot.Folder folder) {
+        if (folder.unchanged) {
+            index.touchFolder(folder.folder, System.currentTimeMillis());
+        } else {
+            index.putAll(folder);
+        }
+    }
+}
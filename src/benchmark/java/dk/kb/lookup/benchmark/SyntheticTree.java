@@ -0,0 +1,168 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.benchmark;
+
+import dk.kb.lookup.FileEntry;
+import dk.kb.lookup.ScanBot;
+import dk.kb.lookup.index.FileIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates deterministic synthetic file trees, either as entries for an index or as folders and files on disk.
+ * </p><p>
+ * Entry {@code id} has the filename {@code file_<id>.warc} and is placed in folder {@code id/filesPerFolder}.
+ * Folders are distributed in 2 levels: {@code /synthetic/<folder/1000>/<folder%1000>}.
+ * The lastSeen for the entries in a folder is {@code baseTime + folder}, so that since-queries select a
+ * predictable fraction of the entries.
+ */
+public class SyntheticTree {
+    private static final Logger log = LoggerFactory.getLogger(SyntheticTree.class);
+
+    public static final String ROOT = "/synthetic";
+    public static final int DEFAULT_FILES_PER_FOLDER = 1000;
+    static final int FOLDERS_PER_LEVEL = 1000;
+
+    /**
+     * @param root the root for the tree.
+     * @param folder the id of a folder.
+     * @return the full path for the folder, without trailing separator.
+     */
+    public static String getFolder(String root, long folder) {
+        return root + "/" + (folder / FOLDERS_PER_LEVEL) + "/" + (folder % FOLDERS_PER_LEVEL);
+    }
+
+    /**
+     * @param id the id of an entry.
+     * @return the filename for the entry.
+     */
+    public static String getFilename(long id) {
+        return "file_" + id + ".warc";
+    }
+
+    /**
+     * @param entries        the total number of entries.
+     * @param filesPerFolder the number of entries in each folder.
+     * @return the number of folders needed to hold the entries.
+     */
+    public static long getFolderCount(long entries, int filesPerFolder) {
+        return (entries + filesPerFolder - 1) / filesPerFolder;
+    }
+
+    /**
+     * Creates the folder with the given id, as it would be delivered by {@link ScanBot}.
+     * @param entries        the total number of entries.
+     * @param filesPerFolder the number of entries in each folder.
+     * @param folder         the id of the folder.
+     * @param lastSeen       the lastSeen for all entries in the folder.
+     * @return the folder with entries.
+     */
+    public static ScanBot.Folder createFolder(long entries, int filesPerFolder, long folder, long lastSeen) {
+        String path = getFolder(ROOT, folder);
+        ScanBot.Folder result = new ScanBot.Folder(path);
+        long end = Math.min(entries, (folder+1) * filesPerFolder);
+        for (long id = folder * filesPerFolder ; id < end ; id++) {
+            result.add(new FileEntry(path, getFilename(id), lastSeen));
+        }
+        return result;
+    }
+
+    /**
+     * Adds the given number of synthetic entries to the index, one folder at a time.
+     * @param index          the destination for the entries.
+     * @param entries        the total number of entries.
+     * @param filesPerFolder the number of entries in each folder.
+     * @param baseTime       lastSeen for the first folder.
+     */
+    public static void populate(FileIndex index, long entries, int filesPerFolder, long baseTime) {
+        final long startTime = System.currentTimeMillis();
+        long folders = getFolderCount(entries, filesPerFolder);
+        for (long folder = 0 ; folder < folders ; folder++) {
+            index.putAll(createFolder(entries, filesPerFolder, folder, baseTime + folder));
+        }
+        log.info(String.format(Locale.ENGLISH, "Populated %s with %d entries in %d folders in %d ms",
+                               index, entries, folders, System.currentTimeMillis()-startTime));
+    }
+
+    /**
+     * @param entries the total number of entries.
+     * @param count   the number of filenames to generate.
+     * @param seed    seed for the random generator.
+     * @return filenames for randomly selected existing entries.
+     */
+    public static String[] randomFilenames(long entries, int count, long seed) {
+        Random random = new Random(seed);
+        String[] filenames = new String[count];
+        for (int i = 0 ; i < count ; i++) {
+            filenames[i] = getFilename((long) (random.nextDouble() * entries));
+        }
+        return filenames;
+    }
+
+    /**
+     * Creates empty files on disk in the structure described in the class documentation. The modification times of
+     * the folders are set to 1 hour in the past, so that incremental scans can skip them.
+     * @param root           the root for the tree.
+     * @param folders        the number of folders.
+     * @param filesPerFolder the number of files in each folder.
+     * @throws IOException if the tree could not be created.
+     */
+    public static void createTree(Path root, long folders, int filesPerFolder) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        for (long folder = 0 ; folder < folders ; folder++) {
+            Path path = Files.createDirectories(Paths.get(getFolder(root.toString(), folder)));
+            for (long id = folder * filesPerFolder ; id < (folder+1) * filesPerFolder ; id++) {
+                Files.createFile(path.resolve(getFilename(id)));
+            }
+        }
+        FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60*60*1000);
+        List<Path> paths;
+        try (Stream<Path> all = Files.walk(root)) {
+            paths = all.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        for (Path path: paths) {
+            Files.setLastModifiedTime(path, past);
+        }
+        log.info(String.format(Locale.ENGLISH, "Created tree at '%s' with %d folders and %d files in %d ms",
+                               root, folders, folders*filesPerFolder, System.currentTimeMillis()-startTime));
+    }
+
+    /**
+     * Deletes the given tree recursively.
+     * @param root the tree to delete.
+     * @throws IOException if the tree could not be deleted.
+     */
+    public static void deleteTree(Path root) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> all = Files.walk(root)) {
+            paths = all.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path: paths) {
+            Files.delete(path);
+        }
+    }
+}
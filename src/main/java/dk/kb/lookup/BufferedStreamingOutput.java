@@ -0,0 +1,293 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base for writing entries directly to the output stream, without creating intermediate reply objects or Strings.
+ * The entries are encoded from the {@link FileEntry} fields into a reusable byte buffer, which is written to the
+ * output when full. The lastSeen timestamps are formatted once per second.
+ */
+abstract class BufferedStreamingOutput implements StreamingOutput {
+    private static Log log = LogFactory.getLog(BufferedStreamingOutput.class);
+
+    static final int BUFFER_SIZE = 64*1024;
+    // Max bytes for the fixed parts of an entry: Field names, ISO-8601 timestamp and epoch milliseconds
+    static final int ENTRY_OVERHEAD = 100;
+    private static final byte[] PATH = "{\"path\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FILENAME = "\",\"filename\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LAST_SEEN = "\",\"lastSeen\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LAST_SEEN_MS = "\",\"lastSeenEpochMS\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The escaping of ASCII characters when writing Strings.
+     */
+    enum Escaping {
+        /** No escaping, used for length-prefixed values */
+        NONE("", false),
+        /** Escaping of JSON string content, as Jackson does it */
+        JSON("\"\\", true),
+        /** Escaping of quoted CSV fields: Quotes are doubled */
+        CSV("\"", false),
+        /** Backslash escaping of TSV fields: Tab, newline, carriage return and backslash */
+        TSV("\t\n\r\\", false);
+
+        private final boolean[] escapes = new boolean[0x80];
+
+        /**
+         * @param escaped        the ASCII characters to escape.
+         * @param controlEscaped if true, all control characters below 0x20 are escaped.
+         */
+        Escaping(String escaped, boolean controlEscaped) {
+            for (char c: escaped.toCharArray()) {
+                escapes[c] = true;
+            }
+            for (int c = 0 ; controlEscaped && c < 0x20 ; c++) {
+                escapes[c] = true;
+            }
+        }
+    }
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Metrics.Counter bytesStreamed = Metrics.instance().counter(
+            "filelookup_stream_bytes_total", "Bytes written by streaming responses",
+            "output", getClass().getSimpleName());
+    private final Metrics.Histogram streamDuration = Metrics.instance().histogram(
+            "filelookup_stream_duration_seconds", "Time spent writing streaming responses, including client waits",
+            Metrics.LATENCY_BUCKETS, "output", getClass().getSimpleName());
+    private int pos = 0;
+    private OutputStream out;
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedISO = null;
+
+    /**
+     * Writes the content to {@link #out} using the put-methods. Flushing is handled by the caller.
+     */
+    abstract void writeContent() throws IOException;
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        out = output;
+        final long startNS = System.nanoTime();
+        try {
+            writeContent();
+            flush();
+            out.flush();
+        } catch (IOException e) {
+            log.debug("IOException while writing " + this + ", probably due to client disconnect", e);
+            throw e;
+        } finally {
+            streamDuration.observeSince(startNS);
+        }
+    }
+
+    /**
+     * Writes the entry as a JSON object, matching the Jackson serialization of {@code EntryReplyDto}.
+     */
+    void writeEntry(FileEntry entry) throws IOException {
+        ensure(ENTRY_OVERHEAD);
+        put(PATH);
+        putEscaped(entry.path);
+        if (entry.filename != null) {
+            ensure(FILENAME.length);
+            put(FILENAME);
+            putEscaped(entry.filename);
+        }
+        ensure(ENTRY_OVERHEAD);
+        put(LAST_SEEN);
+        put(getISO8601(entry.lastSeen));
+        put(LAST_SEEN_MS);
+        putLong(entry.lastSeen);
+        put((byte) '}');
+    }
+
+    /**
+     * Time zone offsets are whole seconds, so the formatted timestamp can be reused for all lastSeen values within
+     * the same second. Ordered streams and entries from the same folder typically share the second.
+     * @return lastSeen as UTF-8 bytes in the format of {@link FileEntry#getLastSeenAsISO8601()}.
+     */
+    byte[] getISO8601(long lastSeen) {
+        long second = Math.floorDiv(lastSeen, 1000);
+        if (second != cachedSecond) {
+            cachedISO = FileEntry.formatISO8601(lastSeen).getBytes(StandardCharsets.UTF_8);
+            cachedSecond = second;
+        }
+        return cachedISO;
+    }
+
+    /**
+     * Writes the value as a JSON string content, encoded as UTF-8 and escaped as Jackson does it.
+     */
+    void putEscaped(String value) throws IOException {
+        putEscaped(value, Escaping.JSON);
+    }
+
+    /**
+     * Writes the value encoded as UTF-8, with ASCII characters escaped as stated.
+     * The number of written bytes for {@link Escaping#NONE} is {@link #utf8Length(String)}.
+     */
+    void putEscaped(String value, Escaping escaping) throws IOException {
+        final int length = value.length();
+        for (int i = 0 ; i < length ; i++) {
+            if (pos > BUFFER_SIZE-6) { // Largest encoding of a single char is \\u00XX
+                flush();
+            }
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (escaping.escapes[c]) {
+                    putEscapedASCII(c, escaping);
+                } else {
+                    buffer[pos++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(value.charAt(i+1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[pos++] = '?'; // Unpaired surrogate, same as String.getBytes
+            } else {
+                buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes for the value when written with {@link #putEscaped(String, Escaping)} using
+     *         {@link Escaping#NONE}.
+     */
+    static int utf8Length(String value) {
+        final int length = value.length();
+        int bytes = 0;
+        for (int i = 0 ; i < length ; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(value.charAt(i+1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void putEscapedASCII(char c, Escaping escaping) {
+        if (escaping == Escaping.CSV) {
+            buffer[pos++] = '"';
+            buffer[pos++] = '"';
+            return;
+        }
+        buffer[pos++] = '\\';
+        switch (c) {
+            case '"':  buffer[pos++] = '"'; break;
+            case '\\': buffer[pos++] = '\\'; break;
+            case '\n': buffer[pos++] = 'n'; break;
+            case '\r': buffer[pos++] = 'r'; break;
+            case '\t': buffer[pos++] = 't'; break;
+            case '\b': buffer[pos++] = 'b'; break;
+            case '\f': buffer[pos++] = 'f'; break;
+            default: {
+                buffer[pos++] = 'u';
+                buffer[pos++] = '0';
+                buffer[pos++] = '0';
+                buffer[pos++] = HEX[c >> 4];
+                buffer[pos++] = HEX[c & 0xF];
+            }
+        }
+    }
+
+    void putLong(long value) {
+        if (value == 0) {
+            buffer[pos++] = '0';
+            return;
+        }
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int digits = 0;
+        for (long v = value ; v != 0 ; v /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1 ; i >= pos ; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        pos += digits;
+    }
+
+    /**
+     * Writes the value as an unsigned LEB128 varint: 7 bits per byte, least significant first, with the high bit
+     * set on all bytes but the last. Callers must ensure that there is room for 10 bytes.
+     */
+    void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+    }
+
+    void put(byte b) throws IOException {
+        ensure(1);
+        buffer[pos++] = b;
+    }
+
+    /**
+     * Callers must ensure that there is room in the buffer, e.g. by calling {@link #ensure(int)}.
+     */
+    void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    void ensure(int needed) throws IOException {
+        if (pos + needed > BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            bytesStreamed.add(pos);
+            pos = 0;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import dk.kb.lookup.index.FolderDiff;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded in-memory log of changes to the index, where each change has a sequence number that is one higher than
+ * the previous change. Consumers tail the log by repeatedly requesting the changes from the sequence number
+ * following the last change they received, optionally waiting for new changes (long polling).
+ * </p><p>
+ * When the log is full, the oldest changes are overwritten. A consumer that requests changes that are no longer in
+ * the log gets a {@link Changes#gap} and must resynchronize, e.g. with a full {@code getEntries}. The log is not
+ * persistent, so the sequence numbers start over when the service is restarted, which is also reported as a gap
+ * for consumers requesting sequence numbers that have not been reached.
+ * </p><p>
+ * Refreshes of lastSeen for known files are not logged, as every scan refreshes all files.
+ */
+public class ChangeLog {
+    private static final Logger log = LoggerFactory.getLogger(ChangeLog.class);
+
+    public enum TYPE { added, updated, removed }
+
+    private final Change[] ring;
+    private long nextSequence = 1;                // Guarded by this
+    private final Map<TYPE, Metrics.Counter> changeCounters = new EnumMap<>(TYPE.class);
+
+    /**
+     * @param maxChanges the maximum number of changes to hold. When exceeded, the oldest changes are discarded.
+     */
+    public ChangeLog(int maxChanges) {
+        if (maxChanges < 1) {
+            throw new IllegalArgumentException("maxChanges must be positive but was " + maxChanges);
+        }
+        ring = new Change[maxChanges];
+        for (TYPE type: TYPE.values()) {
+            changeCounters.put(type, Metrics.instance().counter(
+                    "filelookup_changes_total", "Changes to the index recorded in the change log",
+                    "type", type.toString()));
+        }
+        Metrics.instance().gauge("filelookup_changes_next_sequence", "The sequence number for the next change",
+                                 this::getNextSequence);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Records the change for the entry and wakes consumers waiting for changes.
+     * @param type  the type of change.
+     * @param entry the added, updated or removed entry.
+     */
+    public void record(TYPE type, FileEntry entry) {
+        record(type, Collections.singletonList(entry));
+    }
+
+    /**
+     * Records the same type of change for all the entries with consecutive sequence numbers and wakes consumers
+     * waiting for changes.
+     * @param type    the type of change.
+     * @param entries the added, updated or removed entries.
+     */
+    public synchronized void record(TYPE type, Collection<FileEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (FileEntry entry: entries) {
+            ring[(int) (nextSequence % ring.length)] = new Change(nextSequence, type, entry);
+            nextSequence++;
+        }
+        changeCounters.get(type).add(entries.size());
+        notifyAll();
+    }
+
+    /**
+     * Records the added and removed entries from the diff. A file that moved to the folder is recorded as removed
+     * from the old folder and added to the new one.
+     * @param diff the changes for a scanned folder.
+     */
+    public synchronized void record(FolderDiff diff) {
+        record(TYPE.removed, diff.removed);
+        record(TYPE.added, diff.added);
+    }
+
+    /**
+     * Get the changes from the given sequence number, waiting up to timeoutMS for changes if there are none.
+     * @param from      the sequence number for the first change to deliver, normally {@link Changes#nextSequence}
+     *                  from the previous call. If negative, only changes recorded after the call are delivered.
+     * @param max       the maximum number of changes to deliver.
+     * @param timeoutMS the maximum time to wait for changes. 0 means no waiting.
+     * @return the changes, which might be empty if there were none before the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized Changes getChanges(long from, int max, long timeoutMS) throws InterruptedException {
+        if (from < 0) {
+            from = nextSequence;
+        }
+        boolean gap = false;
+        if (from < getFirstSequence() || from > nextSequence) {
+            log.debug("getChanges: Requested sequence " + from + " not in the log. Delivering from " +
+                      getFirstSequence());
+            gap = true;
+            from = getFirstSequence();
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMS;
+        long remainingMS = timeoutMS;
+        while (from == nextSequence && remainingMS > 0) {
+            wait(remainingMS);
+            remainingMS = deadline - System.currentTimeMillis();
+        }
+        if (from < getFirstSequence()) { // The log wrapped while waiting
+            gap = true;
+            from = getFirstSequence();
+        }
+        List<Change> changes = new ArrayList<>((int) Math.min(max, nextSequence - from));
+        for (long sequence = from ; sequence < nextSequence && changes.size() < max ; sequence++) {
+            changes.add(ring[(int) (sequence % ring.length)]);
+        }
+        return new Changes(changes, getFirstSequence(), from + changes.size(), gap);
+    }
+
+    /**
+     * @return the sequence number for the oldest change in the log. If the log is empty, this is the sequence number
+     *         for the next change.
+     */
+    public synchronized long getFirstSequence() {
+        return Math.max(1, nextSequence - ring.length);
+    }
+
+    /**
+     * @return the sequence number that will be given to the next recorded change.
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "ChangeLog(maxChanges=%d, firstSequence=%d, nextSequence=%d)",
+                             ring.length, getFirstSequence(), getNextSequence());
+    }
+
+    /**
+     * A single change to the index. The path, filename and lastSeen are copied from the entry at the time of the
+     * change.
+     */
+    public static class Change {
+        public final long sequence;
+        public final TYPE type;
+        public final String path;
+        public final String filename;
+        public final long lastSeen;
+
+        public Change(long sequence, TYPE type, FileEntry entry) {
+            this.sequence = sequence;
+            this.type = type;
+            this.path = entry.path;
+            this.filename = entry.filename;
+            this.lastSeen = entry.lastSeen;
+        }
+
+        @Override
+        public String toString() {
+            return "Change(#" + sequence + " " + type + " '" + path + "', '" + filename + "')";
+        }
+    }
+
+    /**
+     * The result of {@link #getChanges(long, int, long)}.
+     */
+    public static class Changes {
+        /**
+         * The changes in sequence order.
+         */
+        public final List<Change> changes;
+        /**
+         * The sequence number for the oldest change in the log.
+         */
+        public final long firstSequence;
+        /**
+         * The sequence number to request in the next call.
+         */
+        public final long nextSequence;
+        /**
+         * True if the requested sequence number was not in the log, meaning that changes might have been missed.
+         */
+        public final boolean gap;
+
+        public Changes(List<Change> changes, long firstSequence, long nextSequence, boolean gap) {
+            this.changes = changes;
+            this.firstSequence = firstSequence;
+            this.nextSequence = nextSequence;
+            this.gap = gap;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads entries in the binary format delivered by {@code getEntries} when requested with the Accept header
+ * {@link #MIME_TYPE}.
+ * </p><p>
+ * The format is the 4 bytes {@link #MAGIC} followed by records until the end of the stream. Each record starts with
+ * a type byte. Varints are unsigned LEB128: 7 bits per byte, least significant first, with the high bit set on all
+ * bytes but the last.
+ * <ul>
+ *   <li>{@link #RECORD_PATH} {@code 'P'}: varint byte length and the UTF-8 bytes for a path. The path is assigned the
+ *       next ID in the dictionary, starting at 0</li>
+ *   <li>{@link #RECORD_ENTRY} {@code 'E'}: varint path ID, varint byte length + 1 for the filename followed by the
+ *       UTF-8 bytes (0 means no filename) and lastSeen as a ZigZag varint delta to the lastSeen of the previous
+ *       entry (the first delta is to 0)</li>
+ *   <li>{@link #RECORD_RESET} {@code 'R'}: The path dictionary is cleared and IDs start from 0 again</li>
+ * </ul>
+ * Paths are only transferred once for each dictionary, making the format compact for entries grouped by folder.
+ */
+public class EntryBinaryReader implements Closeable {
+    public static final String MIME_TYPE = "application/vnd.kb.file-lookup.entries";
+    public static final byte[] MAGIC = "FLE1".getBytes(StandardCharsets.US_ASCII);
+    public static final byte RECORD_PATH = 'P';
+    public static final byte RECORD_ENTRY = 'E';
+    public static final byte RECORD_RESET = 'R';
+
+    private final InputStream in;
+    private final List<String> paths = new ArrayList<>();
+    private byte[] buffer = new byte[256];
+    private long lastSeen = 0;
+    private boolean magicChecked = false;
+
+    /**
+     * @param in binary entries, starting with {@link #MAGIC}.
+     */
+    public EntryBinaryReader(InputStream in) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * @return the next entry or null if there are no more entries.
+     * @throws IOException if the stream could not be read or was not in the expected format.
+     */
+    public FileEntry next() throws IOException {
+        if (!magicChecked) {
+            byte[] magic = readBytes(MAGIC.length);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("Expected the stream to start with " + Arrays.toString(MAGIC) +
+                                      " but got " + Arrays.toString(magic));
+            }
+            magicChecked = true;
+        }
+        while (true) {
+            int type = in.read();
+            switch (type) {
+                case -1: return null;
+                case RECORD_PATH: {
+                    paths.add(readString((int) readVarLong()));
+                    break;
+                }
+                case RECORD_RESET: {
+                    paths.clear();
+                    break;
+                }
+                case RECORD_ENTRY: {
+                    long pathID = readVarLong();
+                    if (pathID >= paths.size()) {
+                        throw new IOException("Unknown path ID " + pathID + " with " + paths.size() + " known paths");
+                    }
+                    long filenameLength = readVarLong();
+                    String filename = filenameLength == 0 ? null : readString((int) (filenameLength - 1));
+                    long zigzag = readVarLong();
+                    lastSeen += (zigzag >>> 1) ^ -(zigzag & 1);
+                    return new FileEntry(paths.get((int) pathID), filename, lastSeen);
+                }
+                default: throw new IOException("Unknown record type " + type);
+            }
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0 ; shift < 64 ; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("End of stream while reading varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 64 bits");
+    }
+
+    private String readString(int length) throws IOException {
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        readFully(buffer, length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        readFully(bytes, length);
+        return bytes;
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("End of stream after " + offset + "/" + length + " bytes");
+            }
+            offset += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
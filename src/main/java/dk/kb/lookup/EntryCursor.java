@@ -0,0 +1,149 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import dk.kb.lookup.index.FileIndex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Position in the total order of entries by {@code (lastSeen, filename)}, used for paging through large results.
+ * The position is delivered to clients as an opaque token, which is the URL-safe Base64 of {@code lastSeen} and
+ * {@code filename}. As the filename is unique in the index, the position is stable: A page continues exactly after
+ * the last entry of the previous page, no matter how many entries share the same lastSeen.
+ * </p><p>
+ * No state is kept on the server between pages. Entries that are updated while paging gets a newer lastSeen and
+ * will be delivered again on a later page.
+ */
+public class EntryCursor {
+    /**
+     * The token for the first page.
+     */
+    public static final String START = "*";
+
+    /**
+     * The order of entries for paging, which is the order of ordered index queries.
+     */
+    public static final Comparator<FileEntry> ORDER = FileIndex.ORDER;
+
+    private final long lastSeen;
+    private final String filename; // null for START
+
+    private EntryCursor(long lastSeen, String filename) {
+        this.lastSeen = lastSeen;
+        this.filename = filename;
+    }
+
+    /**
+     * @param token {@link #START} or a token from {@link #toToken()}.
+     * @return the cursor represented by the token.
+     * @throws IllegalArgumentException if the token could not be parsed.
+     */
+    public static EntryCursor fromToken(String token) {
+        if (START.equals(token)) {
+            return new EntryCursor(Long.MIN_VALUE, null);
+        }
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The cursor '" + token + "' is not valid", e);
+        }
+        int split = decoded.indexOf('\n');
+        if (split == -1) {
+            throw new IllegalArgumentException("The cursor '" + token + "' is not valid");
+        }
+        try {
+            return new EntryCursor(Long.parseLong(decoded.substring(0, split)), decoded.substring(split + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The cursor '" + token + "' is not valid", e);
+        }
+    }
+
+    /**
+     * @param entry the last entry that has been delivered.
+     * @return a cursor positioned directly after the entry.
+     */
+    public static EntryCursor after(FileEntry entry) {
+        return new EntryCursor(entry.lastSeen, entry.filename == null ? "" : entry.filename);
+    }
+
+    /**
+     * @return the opaque token for the cursor.
+     */
+    public String toToken() {
+        if (filename == null) {
+            return START;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                (lastSeen + "\n" + filename).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the lowest lastSeen for entries after the cursor, usable as {@code since} for index lookups.
+     */
+    public long getSince() {
+        return filename == null ? 0 : lastSeen;
+    }
+
+    /**
+     * @return the filename of the last entry before the cursor or null for {@link #START}. Together with
+     *         {@link #getSince()}, this is the position for index lookups, see
+     *         {@link dk.kb.lookup.index.StripedIndex#snapshotAfter(String, long, String)}.
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return true if the cursor is positioned before the entry.
+     */
+    public boolean precedes(FileEntry entry) {
+        if (filename == null || entry.lastSeen > lastSeen) {
+            return true;
+        }
+        return entry.lastSeen == lastSeen && filename.compareTo(entry.filename == null ? "" : entry.filename) < 0;
+    }
+
+    /**
+     * Collects the next page from entries in {@link #ORDER}. Entries at or before the cursor are skipped, so the
+     * entries can start anywhere before the cursor, but normally they start directly after the cursor, as delivered
+     * by {@link dk.kb.lookup.index.StripedIndex#snapshotAfter(String, long, String)}. At most pageSize entries after
+     * the cursor are read.
+     * @param ordered  entries in {@link #ORDER}, starting at or before the cursor. Will be closed.
+     * @param pageSize the maximum number of entries to return.
+     * @return up to pageSize entries after the cursor, in {@link #ORDER}.
+     * @throws IllegalArgumentException if pageSize is less than 1.
+     */
+    public List<FileEntry> page(Stream<FileEntry> ordered, int pageSize) {
+        if (pageSize < 1) {
+            ordered.close();
+            throw new IllegalArgumentException("The page size must be at least 1 but was " + pageSize);
+        }
+        try (Stream<FileEntry> closing = ordered) {
+            return closing.filter(this::precedes).limit(pageSize).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return filename == null ? "EntryCursor(start)" : "EntryCursor(lastSeen=" + lastSeen + ", " + filename + ")";
+    }
+}
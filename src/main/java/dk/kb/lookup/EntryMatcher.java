@@ -0,0 +1,320 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches the full path of entries against a regexp and/or a glob. Matchers are shared through a bounded cache,
+ * see {@link #get(String, String)}, so repeated queries does not compile their patterns again.
+ * </p><p>
+ * Globs are translated to regexps following the rules of {@link java.nio.file.FileSystem#getPathMatcher(String)}
+ * on a file system with {@code /} as separator. Matching is done directly on the path and filename of the entry
+ * through a reusable {@link CharSequence} view, so no full path Strings, {@link java.nio.file.Path}s or
+ * {@link Matcher}s are created for each entry.
+ * </p><p>
+ * Matchers are thread safe: Each thread uses its own view and Matchers.
+ */
+public class EntryMatcher implements Predicate<FileEntry> {
+    /**
+     * The maximum number of matchers to keep in the cache.
+     */
+    public static final int CACHE_SIZE = 1000;
+
+    private static final String REGEXP_META = ".^$+{[]|()";
+    private static final String GLOB_META = "\\*?[{";
+
+    private static final Map<List<String>, EntryMatcher> cache =
+            new LinkedHashMap<List<String>, EntryMatcher>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<String>, EntryMatcher> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final String regexp;
+    private final String glob;
+    private final Pattern regexpPattern;
+    private final Pattern globPattern;
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+    /**
+     * Resolve a matcher from the cache, creating it if it is not present.
+     * @param regexp a regular expression for the full path. Null or empty means no restriction.
+     * @param glob   a glob for the full path. Null or empty means no restriction.
+     * @return a matcher accepting the entries that matches both regexp and glob.
+     * @throws PatternSyntaxException if the regexp or the glob is invalid.
+     */
+    public static EntryMatcher get(String regexp, String glob) {
+        regexp = regexp == null || regexp.isEmpty() ? null : regexp;
+        glob = glob == null || glob.isEmpty() ? null : glob;
+        List<String> key = Arrays.asList(regexp, glob);
+        synchronized (cache) {
+            EntryMatcher matcher = cache.get(key);
+            if (matcher != null) {
+                return matcher;
+            }
+        }
+        // Compiling is done outside of the lock. Concurrent requests for the same matcher might compile it twice
+        EntryMatcher matcher = new EntryMatcher(regexp, glob);
+        synchronized (cache) {
+            cache.put(key, matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * Use {@link #get(String, String)} to benefit from caching.
+     * @param regexp a regular expression for the full path. Null means no restriction.
+     * @param glob   a glob for the full path. Null means no restriction.
+     * @throws PatternSyntaxException if the regexp or the glob is invalid.
+     */
+    public EntryMatcher(String regexp, String glob) {
+        this.regexp = regexp;
+        this.glob = glob;
+        regexpPattern = regexp == null ? null : Pattern.compile(regexp);
+        globPattern = glob == null ? null : Pattern.compile(globToRegexp(glob));
+    }
+
+    /**
+     * @return true if the matcher accepts all entries.
+     */
+    public boolean matchesAll() {
+        return regexpPattern == null && globPattern == null;
+    }
+
+    @Override
+    public boolean test(FileEntry entry) {
+        if (matchesAll()) {
+            return true;
+        }
+        State local = state.get();
+        local.fullpath.assign(entry);
+        return (regexpPattern == null || local.regexpMatcher.reset(local.fullpath).matches()) &&
+               (globPattern == null || local.globMatcher.reset(local.fullpath).matches());
+    }
+
+    /**
+     * Translates a glob to a regexp, as specified for {@link java.nio.file.FileSystem#getPathMatcher(String)} with
+     * {@code /} as separator:
+     * {@code *} matches any characters except {@code /}, {@code **} matches any characters, {@code ?} matches a single
+     * character except {@code /}, {@code [...]} matches a single character from a set, {@code {a,b}} matches one of
+     * the sub-patterns and {@code \} escapes the following character.
+     * @param glob a glob.
+     * @return a regexp for use with {@link Matcher#matches()}.
+     * @throws PatternSyntaxException if the glob is invalid.
+     */
+    public static String globToRegexp(String glob) {
+        StringBuilder regexp = new StringBuilder(glob.length() * 2);
+        boolean inGroup = false;
+        int pos = 0;
+        while (pos < glob.length()) {
+            char c = glob.charAt(pos++);
+            switch (c) {
+                case '\\': {
+                    if (pos == glob.length()) {
+                        throw new PatternSyntaxException("No character to escape", glob, pos-1);
+                    }
+                    char next = glob.charAt(pos++);
+                    if (GLOB_META.indexOf(next) != -1 || REGEXP_META.indexOf(next) != -1) {
+                        regexp.append('\\');
+                    }
+                    regexp.append(next);
+                    break;
+                }
+                case '[': {
+                    pos = appendBracket(glob, pos, regexp);
+                    break;
+                }
+                case '{': {
+                    if (inGroup) {
+                        throw new PatternSyntaxException("Cannot nest groups", glob, pos-1);
+                    }
+                    regexp.append("(?:(?:");
+                    inGroup = true;
+                    break;
+                }
+                case '}': {
+                    if (inGroup) {
+                        regexp.append("))");
+                        inGroup = false;
+                    } else {
+                        regexp.append('}');
+                    }
+                    break;
+                }
+                case ',': {
+                    regexp.append(inGroup ? ")|(?:" : ",");
+                    break;
+                }
+                case '*': {
+                    if (pos < glob.length() && glob.charAt(pos) == '*') {
+                        regexp.append(".*");
+                        pos++;
+                    } else {
+                        regexp.append("[^/]*");
+                    }
+                    break;
+                }
+                case '?': {
+                    regexp.append("[^/]");
+                    break;
+                }
+                default: {
+                    if (REGEXP_META.indexOf(c) != -1) {
+                        regexp.append('\\');
+                    }
+                    regexp.append(c);
+                }
+            }
+        }
+        if (inGroup) {
+            throw new PatternSyntaxException("Missing '}'", glob, pos-1);
+        }
+        return regexp.toString();
+    }
+
+    /**
+     * Appends the bracket expression starting after the {@code [} at pos.
+     * @return the position after the closing {@code ]}.
+     */
+    private static int appendBracket(String glob, int pos, StringBuilder regexp) {
+        regexp.append("[[^/]&&[");
+        if (pos < glob.length() && glob.charAt(pos) == '^') {
+            regexp.append("\\^");
+            pos++;
+        } else {
+            if (pos < glob.length() && glob.charAt(pos) == '!') {
+                regexp.append('^');
+                pos++;
+            }
+            if (pos < glob.length() && glob.charAt(pos) == '-') {
+                regexp.append('-');
+                pos++;
+            }
+        }
+        boolean hasRangeStart = false;
+        char last = 0;
+        char c = 0;
+        while (pos < glob.length()) {
+            c = glob.charAt(pos++);
+            if (c == ']') {
+                break;
+            }
+            if (c == '/') {
+                throw new PatternSyntaxException("Explicit 'name separator' in class", glob, pos-1);
+            }
+            if (c == '\\' || c == '[' || (c == '&' && pos < glob.length() && glob.charAt(pos) == '&')) {
+                regexp.append('\\');
+            }
+            regexp.append(c);
+            if (c == '-') {
+                if (!hasRangeStart) {
+                    throw new PatternSyntaxException("Invalid range", glob, pos-1);
+                }
+                if (pos == glob.length()) {
+                    break;
+                }
+                c = glob.charAt(pos++);
+                if (c == ']') {
+                    break;
+                }
+                if (c < last) {
+                    throw new PatternSyntaxException("Invalid range", glob, pos-3);
+                }
+                regexp.append(c);
+                hasRangeStart = false;
+            } else {
+                hasRangeStart = true;
+                last = c;
+            }
+        }
+        if (c != ']') {
+            throw new PatternSyntaxException("Missing ']'", glob, pos-1);
+        }
+        regexp.append("]]");
+        return pos;
+    }
+
+    @Override
+    public String toString() {
+        return "EntryMatcher(regexp=" + regexp + ", glob=" + glob + ")";
+    }
+
+    /**
+     * Per-thread view and Matchers, reused for all entries.
+     */
+    private class State {
+        final FullpathSequence fullpath = new FullpathSequence();
+        final Matcher regexpMatcher = regexpPattern == null ? null : regexpPattern.matcher("");
+        final Matcher globMatcher = globPattern == null ? null : globPattern.matcher("");
+    }
+
+    /**
+     * The full path of an entry, as returned by {@link FileEntry#getFullpath()}, without concatenating path and
+     * filename.
+     */
+    static class FullpathSequence implements CharSequence {
+        private static final char SEPARATOR = File.separatorChar;
+        private String path;
+        private String filename; // null if the entry has no filename
+        private int length;
+
+        FullpathSequence assign(FileEntry entry) {
+            path = entry.path;
+            filename = entry.filename;
+            length = path.length() + (filename == null ? 0 : 1 + filename.length());
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            final int pathLength = path.length();
+            if (index < pathLength) {
+                return path.charAt(index);
+            }
+            if (index == pathLength && filename != null) {
+                return SEPARATOR;
+            }
+            if (index >= length || index < 0) {
+                throw new IndexOutOfBoundsException("Index " + index + " is outside of length " + length);
+            }
+            return filename.charAt(index - pathLength - 1);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return filename == null ? path : path + SEPARATOR + filename;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Writes entries directly to the output stream in one of the {@link Format}s, see {@link BufferedStreamingOutput}.
+ * </p><p>
+ * The {@link Format#JSON} format matches the Jackson serialization of a list of {@code EntryReplyDto}, with each
+ * entry on its own line:
+ * <pre>
+ * [{"path":"/home/foo","filename":"bar.txt","lastSeen":"2020-12-04T15:01:13Z","lastSeenEpochMS":1607090473802},
+ * {"path":"/home/foo","filename":"zoo.txt","lastSeen":"2020-12-04T15:01:14Z","lastSeenEpochMS":1607090474011}]
+ * </pre>
+ * The entries stream is closed when it has been written or if the writing fails, e.g. due to client disconnect.
+ */
+public class EntryStreamingOutput extends BufferedStreamingOutput {
+    /**
+     * The number of paths in the dictionary for {@link Format#BINARY} before it is reset.
+     */
+    public static final int MAX_BINARY_PATHS = 65536;
+
+    /**
+     * The supported output formats, selected with {@link #fromAccept(String)}.
+     */
+    public enum Format {
+        /** A JSON array of EntryReply, one entry per line */
+        JSON("application/json"),
+        /** Newline delimited JSON: One EntryReply per line */
+        NDJSON("application/x-ndjson"),
+        /** A header line followed by lines with {@code path,filename,lastSeen,lastSeenEpochMS}, path and filename
+         * quoted. A missing filename is an empty unquoted field */
+        CSV("text/csv"),
+        /** A header line followed by lines with {@code path\tfilename\tlastSeen\tlastSeenEpochMS}. Tab, newline,
+         * carriage return and backslash are backslash escaped */
+        TSV("text/tab-separated-values"),
+        /** Length-prefixed binary records with a path dictionary, see {@link EntryBinaryReader} */
+        BINARY(EntryBinaryReader.MIME_TYPE);
+
+        public final String mimeType;
+
+        Format(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * Resolves the format from a HTTP Accept header, respecting quality values. The first of the formats with
+         * the highest quality is used. Wildcards and missing or unsupported types resolves to {@link #JSON}.
+         * @param accept a HTTP Accept header, such as {@code application/x-ndjson, application/json;q=0.9}.
+         * @return the best matching format.
+         */
+        public static Format fromAccept(String accept) {
+            if (accept == null || accept.isEmpty()) {
+                return JSON;
+            }
+            Format best = null;
+            double bestQuality = 0;
+            for (String range: accept.split(",")) {
+                String[] tokens = range.split(";");
+                Format format = fromMimeType(tokens[0].trim());
+                if (format == null) {
+                    continue;
+                }
+                double quality = 1.0;
+                for (int i = 1 ; i < tokens.length ; i++) {
+                    String param = tokens[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (quality > bestQuality) {
+                    best = format;
+                    bestQuality = quality;
+                }
+            }
+            return best == null ? JSON : best;
+        }
+
+        private static Format fromMimeType(String mimeType) {
+            mimeType = mimeType.toLowerCase(Locale.ROOT);
+            if ("*/*".equals(mimeType) || "application/*".equals(mimeType)) {
+                return JSON;
+            }
+            for (Format format: values()) {
+                if (format.mimeType.equals(mimeType)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final byte[] HEADER_CSV =
+            "path,filename,lastSeen,lastSeenEpochMS\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEADER_TSV =
+            "path\tfilename\tlastSeen\tlastSeenEpochMS\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Stream<FileEntry> entries;
+    private final Format format;
+    private long count = 0;
+
+    // State for the binary format
+    private final Map<String, Integer> pathIDs = new HashMap<>();
+    private String lastPath = null;
+    private int lastPathID = -1;
+    private long lastSeen = 0;
+
+    /**
+     * Writes the entries as {@link Format#JSON}.
+     * @param entries the entries to write. The stream will be closed when the entries has been written.
+     */
+    public EntryStreamingOutput(Stream<FileEntry> entries) {
+        this(entries, Format.JSON);
+    }
+
+    /**
+     * @param entries the entries to write. The stream will be closed when the entries has been written.
+     * @param format  the output format.
+     */
+    public EntryStreamingOutput(Stream<FileEntry> entries, Format format) {
+        this.entries = entries;
+        this.format = format;
+    }
+
+    /**
+     * @return the output format.
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    void writeContent() throws IOException {
+        try (Stream<FileEntry> closing = entries) {
+            Iterator<FileEntry> iterator = closing.iterator();
+            switch (format) {
+                case JSON: {
+                    put((byte) '[');
+                    while (iterator.hasNext()) {
+                        if (count++ != 0) {
+                            put((byte) ',');
+                            put((byte) '\n');
+                        }
+                        writeEntry(iterator.next());
+                    }
+                    put((byte) ']');
+                    break;
+                }
+                case NDJSON: {
+                    while (iterator.hasNext()) {
+                        writeEntry(iterator.next());
+                        put((byte) '\n');
+                        count++;
+                    }
+                    break;
+                }
+                case CSV:
+                case TSV: {
+                    ensure(HEADER_CSV.length);
+                    put(format == Format.CSV ? HEADER_CSV : HEADER_TSV);
+                    while (iterator.hasNext()) {
+                        writeSeparated(iterator.next());
+                        count++;
+                    }
+                    break;
+                }
+                case BINARY: {
+                    ensure(EntryBinaryReader.MAGIC.length);
+                    put(EntryBinaryReader.MAGIC);
+                    while (iterator.hasNext()) {
+                        writeBinary(iterator.next());
+                        count++;
+                    }
+                    break;
+                }
+                default: throw new UnsupportedOperationException("The format " + format + " is not supported");
+            }
+        }
+    }
+
+    /**
+     * Writes the entry as {@link Format#CSV} or {@link Format#TSV}.
+     */
+    private void writeSeparated(FileEntry entry) throws IOException {
+        final boolean csv = format == Format.CSV;
+        final Escaping escaping = csv ? Escaping.CSV : Escaping.TSV;
+        final byte separator = (byte) (csv ? ',' : '\t');
+        ensure(ENTRY_OVERHEAD);
+        if (csv) {
+            put((byte) '"');
+        }
+        putEscaped(entry.path, escaping);
+        ensure(ENTRY_OVERHEAD);
+        if (csv) {
+            put((byte) '"');
+        }
+        put(separator);
+        if (entry.filename != null) {
+            if (csv) {
+                put((byte) '"');
+            }
+            putEscaped(entry.filename, escaping);
+            ensure(ENTRY_OVERHEAD);
+            if (csv) {
+                put((byte) '"');
+            }
+        }
+        put(separator);
+        put(getISO8601(entry.lastSeen));
+        put(separator);
+        putLong(entry.lastSeen);
+        put((byte) '\n');
+    }
+
+    /**
+     * Writes the entry as {@link Format#BINARY}, preceded by a path record if the path is not in the dictionary.
+     */
+    private void writeBinary(FileEntry entry) throws IOException {
+        ensure(ENTRY_OVERHEAD);
+        // Entries are typically grouped by folder and the indexes share path instances, so check identity first
+        if (entry.path != lastPath) {
+            Integer pathID = pathIDs.get(entry.path);
+            if (pathID == null) {
+                if (pathIDs.size() == MAX_BINARY_PATHS) {
+                    put(EntryBinaryReader.RECORD_RESET);
+                    pathIDs.clear();
+                }
+                pathID = pathIDs.size();
+                pathIDs.put(entry.path, pathID);
+                put(EntryBinaryReader.RECORD_PATH);
+                putVarLong(utf8Length(entry.path));
+                putEscaped(entry.path, Escaping.NONE);
+                ensure(ENTRY_OVERHEAD);
+            }
+            lastPath = entry.path;
+            lastPathID = pathID;
+        }
+        put(EntryBinaryReader.RECORD_ENTRY);
+        putVarLong(lastPathID);
+        if (entry.filename == null) {
+            putVarLong(0);
+        } else {
+            putVarLong(utf8Length(entry.filename) + 1L);
+            putEscaped(entry.filename, Escaping.NONE);
+            ensure(ENTRY_OVERHEAD);
+        }
+        long delta = entry.lastSeen - lastSeen;
+        putVarLong((delta << 1) ^ (delta >> 63)); // ZigZag encoding, so that small negative deltas are compact
+        lastSeen = entry.lastSeen;
+    }
+
+    @Override
+    public String toString() {
+        return "EntryStreamingOutput(format=" + format + ", written=" + count + ")";
+    }
+}
@@ -64,8 +64,16 @@ public class FileEntry {
      * @return lastSeen as the subset {@code YYYY-MM-DDThh:mm:ssZ} of iso-8601.
      */
     public String getLastSeenAsISO8601() {
+        return formatISO8601(lastSeen);
+    }
+
+    /**
+     * @param epochMS milliseconds since epoch.
+     * @return the time as the subset {@code YYYY-MM-DDThh:mm:ssZ} of iso-8601.
+     */
+    public static String formatISO8601(long epochMS) {
         synchronized (iso8601) { // SimpleDateFormat is not thread safe
-            return iso8601.format(new Date(lastSeen));
+            return iso8601.format(new Date(epochMS));
         }
     }
 
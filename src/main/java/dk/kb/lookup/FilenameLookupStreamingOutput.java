@@ -0,0 +1,107 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Resolves newline-delimited filenames from an input stream and writes the result as NDJSON, see
+ * {@link BufferedStreamingOutput}. The input is read and resolved in batches of {@link #BATCH_SIZE} filenames, so neither
+ * the input nor the output is held in memory.
+ * </p><p>
+ * There is one line of output for each non-empty line of input, in the same order as the input.
+ * Leading and trailing whitespace in the input lines is ignored. Located entries are written as {@code EntryReply}
+ * and filenames that could not be located are marked with {@code "found":false}:
+ * <pre>
+ * {"path":"/home/foo","filename":"bar.txt","lastSeen":"2020-12-04T15:01:13Z","lastSeenEpochMS":1607090473802}
+ * {"filename":"unknown.txt","found":false}
+ * </pre>
+ * The input stream is closed when it has been processed or if the writing fails, e.g. due to client disconnect.
+ */
+public class FilenameLookupStreamingOutput extends BufferedStreamingOutput {
+    public static final String MIME_TYPE = "application/x-ndjson";
+    public static final int BATCH_SIZE = 1000;
+
+    private static final byte[] NOT_FOUND_START = "{\"filename\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_FOUND_END = "\",\"found\":false}".getBytes(StandardCharsets.UTF_8);
+
+    private final InputStream filenames;
+    private final Function<List<String>, List<FileEntry>> resolver;
+    private long count = 0;
+    private long found = 0;
+
+    /**
+     * @param filenames newline-delimited filenames, encoded as UTF-8. The stream will be closed after use.
+     * @param resolver  resolves a batch of filenames to a list of the same size, with null for unknown filenames.
+     */
+    public FilenameLookupStreamingOutput(InputStream filenames, Function<List<String>, List<FileEntry>> resolver) {
+        this.filenames = filenames;
+        this.resolver = resolver;
+    }
+
+    @Override
+    void writeContent() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(filenames, StandardCharsets.UTF_8))) {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                batch.add(line);
+                if (batch.size() == BATCH_SIZE) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+            }
+            writeBatch(batch);
+        }
+    }
+
+    private void writeBatch(List<String> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<FileEntry> entries = resolver.apply(batch);
+        for (int i = 0 ; i < batch.size() ; i++) {
+            FileEntry entry = entries.get(i);
+            if (entry == null) {
+                ensure(NOT_FOUND_START.length);
+                put(NOT_FOUND_START);
+                putEscaped(batch.get(i));
+                ensure(NOT_FOUND_END.length);
+                put(NOT_FOUND_END);
+            } else {
+                writeEntry(entry);
+                found++;
+            }
+            put((byte) '\n');
+            count++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FilenameLookupStreamingOutput(resolved=" + count + ", found=" + found + ")";
+    }
+}
@@ -14,30 +14,403 @@
  */
 package dk.kb.lookup;
 
+import dk.kb.lookup.config.ServiceConfig;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
+import org.h2.jdbcx.JdbcConnectionPool;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- *
+ * Persistent storage of {@link FileEntry}s in an embedded H2 database.
+ * </p><p>
+ * The entries are stored in a single table with filename as primary key and a secondary index on lastSeen,
+ * so that lookups as well as {@code since}-queries are handled by the database indexes.
  */
-public class H2Persistence {
+public class H2Persistence implements Closeable {
     private static Log log = LogFactory.getLog(H2Persistence.class);
 
+    public static final String DEFAULT_LOCATION = "file-lookup-h2/file-lookup";
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    public static final int FETCH_SIZE = 1000;
+
     private static H2Persistence instance;
     private final Path location;
     private final boolean createdNewOnStartup;
+    private final int batchSize;
+    private final JdbcConnectionPool pool;
 
-    public static H2Persistence getInstance() {
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS entries (" +
+            "filename VARCHAR PRIMARY KEY, path VARCHAR NOT NULL, lastSeen BIGINT NOT NULL)";
+    private static final String CREATE_LASTSEEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS entries_lastSeen ON entries(lastSeen)";
+    private static final String CREATE_PATH_INDEX =
+            "CREATE INDEX IF NOT EXISTS entries_path ON entries(path)";
+    private static final String MERGE_ENTRY =
+            "MERGE INTO entries (filename, path, lastSeen) KEY(filename) VALUES (?, ?, ?)";
+    private static final String DELETE_ENTRY =
+            "DELETE FROM entries WHERE filename = ?";
+    private static final String SELECT_ENTRY =
+            "SELECT path, filename, lastSeen FROM entries WHERE filename = ?";
+    private static final String SELECT_SINCE =
+            "SELECT path, filename, lastSeen FROM entries WHERE lastSeen >= ?";
+    private static final String SELECT_SINCE_ORDERED = SELECT_SINCE + " ORDER BY lastSeen";
+    private static final String COUNT_ENTRIES =
+            "SELECT COUNT(*) FROM entries";
+    private static final String TOUCH_FOLDER =
+            "UPDATE entries SET lastSeen = ? WHERE path = ?";
+    private static final String PURGE_ENTRIES =
+            "DELETE FROM entries WHERE lastSeen < ? AND path LIKE ? ESCAPE '\\'";
+    private static final String PURGE_FOLDER =
+            "DELETE FROM entries WHERE lastSeen < ? AND (path = ? OR path LIKE ? ESCAPE '\\')";
+
+    public static synchronized H2Persistence getInstance() {
         if (instance == null) {
-            instance = new H2Persistence();
+            instance = new H2Persistence(
+                    Paths.get(ServiceConfig.getConfig().getString(".lookup.h2.location", DEFAULT_LOCATION)),
+                    ServiceConfig.getConfig().getInteger(".lookup.h2.batchSize", DEFAULT_BATCH_SIZE));
         }
         return instance;
     }
 
-    H2Persistence() {
-        location = null;
-        createdNewOnStartup = false;
+    /**
+     * Closes the database connections if an instance has been created.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * @param location  the database location, without the H2-specific file extension.
+     * @param batchSize the number of entries to add or delete in a single transaction.
+     */
+    H2Persistence(Path location, int batchSize) {
+        this.location = location.toAbsolutePath();
+        this.batchSize = batchSize;
+        createdNewOnStartup = !Files.exists(Paths.get(this.location + ".mv.db"));
+        try {
+            if (this.location.getParent() != null) {
+                Files.createDirectories(this.location.getParent());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create folder for H2 database at '" + this.location + "'", e);
+        }
+        // Lazy query execution avoids materializing large results before delivering them
+        pool = JdbcConnectionPool.create("jdbc:h2:" + this.location + ";LAZY_QUERY_EXECUTION=1", "", "");
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_TABLE);
+            statement.execute(CREATE_LASTSEEN_INDEX);
+            statement.execute(CREATE_PATH_INDEX);
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to create tables for H2 database at '" + this.location + "'", e);
+        }
+        log.info("Created " + this);
+    }
+
+    /**
+     * @param filename a filename without path.
+     * @return the entry for the filename or null if it is not present in the database.
+     * @throws SQLException if the lookup failed.
+     */
+    public FileEntry getEntry(String filename) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_ENTRY)) {
+            return getEntry(statement, filename);
+        }
+    }
+
+    /**
+     * @param filenames filenames without paths.
+     * @return the entries for the filenames that could be located.
+     * @throws SQLException if the lookup failed.
+     */
+    public List<FileEntry> getEntries(Collection<String> filenames) throws SQLException {
+        List<FileEntry> entries = new ArrayList<>(filenames.size());
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_ENTRY)) {
+            for (String filename: filenames) {
+                FileEntry entry = getEntry(statement, filename);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @param filenames filenames without paths.
+     * @return the entries for the filenames, in the same order as the filenames, with null for unknown filenames.
+     * @throws SQLException if the lookup failed.
+     */
+    public List<FileEntry> lookup(List<String> filenames) throws SQLException {
+        List<FileEntry> entries = new ArrayList<>(filenames.size());
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_ENTRY)) {
+            for (String filename: filenames) {
+                entries.add(getEntry(statement, filename));
+            }
+        }
+        return entries;
+    }
+
+    private FileEntry getEntry(PreparedStatement statement, String filename) throws SQLException {
+        statement.setString(1, filename);
+        try (ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? new FileEntry(rs.getString(1), rs.getString(2), rs.getLong(3)) : null;
+        }
+    }
+
+    /**
+     * Add or update the given entries. The entries are committed in batches of {@code .lookup.h2.batchSize}.
+     * @param entries the entries to add or update.
+     * @throws SQLException if the update failed.
+     */
+    public void putAll(Collection<FileEntry> entries) throws SQLException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(MERGE_ENTRY)) {
+            connection.setAutoCommit(false);
+            int batch = 0;
+            for (FileEntry entry: entries) {
+                statement.setString(1, entry.filename);
+                statement.setString(2, entry.path);
+                statement.setLong(3, entry.lastSeen);
+                statement.addBatch();
+                if (++batch == batchSize) {
+                    statement.executeBatch();
+                    connection.commit();
+                    batch = 0;
+                }
+            }
+            if (batch > 0) {
+                statement.executeBatch();
+                connection.commit();
+            }
+        }
+    }
+
+    /**
+     * @param filenames filenames without paths.
+     * @return the number of removed entries.
+     * @throws SQLException if the removal failed.
+     */
+    public long removeAll(Collection<String> filenames) throws SQLException {
+        if (filenames.isEmpty()) {
+            return 0;
+        }
+        long removed = 0;
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(DELETE_ENTRY)) {
+            connection.setAutoCommit(false);
+            for (String filename: filenames) {
+                statement.setString(1, filename);
+                statement.addBatch();
+            }
+            for (int count: statement.executeBatch()) {
+                removed += Math.max(0, count);
+            }
+            connection.commit();
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of entries in the database.
+     * @throws SQLException if the count failed.
+     */
+    public int size() throws SQLException {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(COUNT_ENTRIES)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Set lastSeen for all entries with the given path.
+     * @param path     the path for the entries to update.
+     * @param lastSeen the new lastSeen for the entries.
+     * @return the number of updated entries.
+     * @throws SQLException if the update failed.
+     */
+    public long touchFolder(String path, long lastSeen) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(TOUCH_FOLDER)) {
+            statement.setLong(1, lastSeen);
+            statement.setString(2, path);
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Remove all entries with {@code lastSeen < minTime} and a path starting with the given root.
+     * @param root    the root for the entries to purge.
+     * @param minTime the minimum time for an entry under the root to be preserved.
+     * @return the number of purged entries.
+     * @throws SQLException if the purge failed.
+     */
+    public long purge(String root, long minTime) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(PURGE_ENTRIES)) {
+            statement.setLong(1, minTime);
+            statement.setString(2, escapeLike(root) + "%");
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Provides a lazy stream of the entries with {@code lastSeen >= since}, backed by an open database cursor.
+     * The stream MUST be closed after use, in order to release the database connection.
+     * @param since   only entries with lastSeen at this point in time or later are returned.
+     * @param ordered if true, the entries are delivered in lastSeen order, using the database index.
+     * @return a stream of entries.
+     * @throws SQLException if the query failed.
+     */
+    public Stream<FileEntry> stream(long since, boolean ordered) throws SQLException {
+        Connection connection = pool.getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement(ordered ? SELECT_SINCE_ORDERED : SELECT_SINCE);
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setLong(1, since);
+            ResultSet rs = statement.executeQuery();
+            return StreamSupport.stream(
+                    Spliterators.spliteratorUnknownSize(new ResultSetIterator(rs), Spliterator.ORDERED), false).
+                    onClose(() -> {
+                        try {
+                            rs.close();
+                            statement.close();
+                            connection.close();
+                        } catch (SQLException e) {
+                            log.warn("Exception closing H2 stream resources", e);
+                        }
+                    });
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of entries to add or delete in a single transaction.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return true if the database did not exist before this H2Persistence was created.
+     */
+    public boolean isCreatedNewOnStartup() {
+        return createdNewOnStartup;
+    }
+
+    /**
+     * Closes all connections to the database.
+     */
+    @Override
+    public void close() {
+        log.info("Closing " + this);
+        pool.dispose();
+    }
+
+    public String toString() {
+        return "H2Persistence(location='" + location + "', createdNewOnStartup=" + createdNewOnStartup +
+               ", batchSize=" + batchSize + ")";
+    }
+
+    /**
+     * Remove all entries with {@code lastSeen < minTime} in the given folder or its sub-folders.
+     * Contrary to {@link #purge(String, long)}, sibling folders sharing the folder name as prefix are not affected.
+     * @param folder  the folder for the entries to purge.
+     * @param minTime the minimum time for an entry under the folder to be preserved.
+     * @return the number of purged entries.
+     * @throws SQLException if the purge failed.
+     */
+    public long purgeFolder(String folder, long minTime) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(PURGE_FOLDER)) {
+            statement.setLong(1, minTime);
+            statement.setString(2, folder);
+            statement.setString(3, escapeLike(folder + File.separator) + "%");
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Escapes the LIKE wildcards {@code %} and {@code _} with backslash.
+     */
+    static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Delivers the rows from a ResultSet with the columns path, filename and lastSeen as FileEntries.
+     */
+    private static class ResultSetIterator implements Iterator<FileEntry> {
+        private final ResultSet rs;
+        private FileEntry next = null;
+        private boolean depleted = false;
+
+        public ResultSetIterator(ResultSet rs) {
+            this.rs = rs;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (depleted) {
+                return false;
+            }
+            try {
+                if (rs.next()) {
+                    next = new FileEntry(rs.getString(1), rs.getString(2), rs.getLong(3));
+                    return true;
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException("Exception iterating H2 entries", e);
+            }
+            depleted = true;
+            return false;
+        }
+
+        @Override
+        public FileEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more entries");
+            }
+            FileEntry entry = next;
+            next = null;
+            return entry;
+        }
     }
 }
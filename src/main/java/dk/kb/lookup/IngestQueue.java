@@ -0,0 +1,374 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded hand-over of {@link ScanBot.Folder}s from the scanner threads to a single ingest thread, which delivers
+ * the folders to the index in batches.
+ * </p><p>
+ * The scanner threads are decoupled from the index locks: They only wait if the queue is full, which applies
+ * back-pressure so that the scan does not outrun the index. Many small folders are coalesced into a single batch,
+ * so that the index is locked once per batch instead of once per folder.
+ * </p><p>
+ * The size of the queue and the batches are measured in entries. An {@link ScanBot.Folder#unchanged} folder counts
+ * as its {@link ScanBot.Folder#knownFileCount}, as the consumer touches that many entries in the index, and a folder
+ * without entries counts as 1.
+ * </p><p>
+ * Folders are delivered in the order they were queued. Call {@link #flush()} before acting on the complete result
+ * of a scan, e.g. before purging entries that were not seen during the scan.
+ * </p><p>
+ * If the batch consumer throws an {@link Error}, the ingest thread stops and the queue enters a failed state, where
+ * {@link #accept} and {@link #flush} throws {@link IllegalStateException} instead of waiting forever. Call
+ * {@link #close()} on shutdown to stop the ingest thread.
+ */
+public class IngestQueue implements Consumer<ScanBot.Folder>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(IngestQueue.class);
+
+    private final String name;
+    private final int maxQueueEntries;
+    private final int maxBatchEntries;
+    private final Consumer<List<ScanBot.Folder>> batchConsumer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition delivered = lock.newCondition();
+    private final Deque<ScanBot.Folder> queue = new ArrayDeque<>(); // Guarded by lock
+    private long queuedEntries = 0;                                   // Guarded by lock
+    private long queuedCount = 0;                                     // Guarded by lock
+    private long deliveredCount = 0;                                  // Guarded by lock
+    private boolean closed = false;                                   // Guarded by lock
+    private boolean stopped = false;                                  // Guarded by lock
+    private Throwable failure = null;                                 // Guarded by lock
+    private final Thread ingester;
+
+    private final Metrics.Histogram batchLatency;
+    private final Metrics.Histogram batchEntries;
+    private final Metrics.Histogram queueWait;
+
+    /**
+     * Creates the queue and starts the ingest thread.
+     * @param name            used for the thread name and as label for the metrics.
+     * @param maxQueueEntries the maximum number of entries in the queue. If a folder is larger than this, it is
+     *                        accepted when the queue is empty.
+     * @param maxBatchEntries the maximum number of entries in a batch. Folders are never split, so a batch with a
+     *                        single large folder can be larger than this.
+     * @param batchConsumer   receives the batches from the ingest thread. Exceptions are logged and the batch is
+     *                        skipped. Errors stops the ingest thread and puts the queue in the failed state.
+     */
+    public IngestQueue(String name, int maxQueueEntries, int maxBatchEntries,
+                       Consumer<List<ScanBot.Folder>> batchConsumer) {
+        if (maxQueueEntries < 1 || maxBatchEntries < 1) {
+            throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                    "maxQueueEntries and maxBatchEntries must be positive but was %d and %d",
+                    maxQueueEntries, maxBatchEntries));
+        }
+        this.name = name;
+        this.maxQueueEntries = maxQueueEntries;
+        this.maxBatchEntries = maxBatchEntries;
+        this.batchConsumer = batchConsumer;
+
+        Metrics metrics = Metrics.instance();
+        batchLatency = metrics.histogram("filelookup_ingest_batch_seconds", "Time for delivering a batch to the index",
+                                         Metrics.LATENCY_BUCKETS, "queue", name);
+        batchEntries = metrics.histogram("filelookup_ingest_batch_entries", "The number of entries in batches",
+                                         new double[]{1, 10, 100, 1000, 10000, 100000, 1000000}, "queue", name);
+        queueWait = metrics.histogram("filelookup_ingest_queue_wait_seconds",
+                                      "Time scanner threads waited for room in the queue (back-pressure)",
+                                      Metrics.LATENCY_BUCKETS, "queue", name);
+        metrics.gauge("filelookup_ingest_queue_folders", "Folders waiting in the queue", this::getQueuedFolders,
+                      "queue", name);
+        metrics.gauge("filelookup_ingest_queue_entries", "Entries waiting in the queue", this::getQueuedEntries,
+                      "queue", name);
+
+        ingester = new Thread(this::ingestLoop, "IngestQueue_" + name);
+        ingester.setDaemon(true);
+        ingester.start();
+        log.info("Created " + this);
+    }
+
+    /**
+     * Adds the folder to the queue, waiting for room if the queue is full.
+     * @param folder a folder from a scan.
+     * @throws IllegalStateException if the queue is closed or has failed.
+     */
+    @Override
+    public void accept(ScanBot.Folder folder) {
+        final long weight = weight(folder);
+        final long startNS = System.nanoTime();
+        lock.lock();
+        try {
+            checkAccepting();
+            while (queuedEntries > 0 && queuedEntries + weight > maxQueueEntries) {
+                notFull.awaitUninterruptibly();
+                checkAccepting();
+            }
+            queue.addLast(folder);
+            queuedEntries += weight;
+            queuedCount++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        queueWait.observeSince(startNS);
+    }
+
+    /**
+     * Waits until all folders queued before the call have been delivered to the batch consumer.
+     * @throws IllegalStateException if the ingest thread stopped before the folders were delivered.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            final long target = queuedCount;
+            while (deliveredCount < target) {
+                checkRunning();
+                delivered.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit for the timeout.
+     * @return true if all folders queued before the call have been delivered, false if the timeout was reached.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws IllegalStateException if the ingest thread stopped before the folders were delivered.
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long remainingNS = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            final long target = queuedCount;
+            while (deliveredCount < target) {
+                checkRunning();
+                if (remainingNS <= 0) {
+                    return false;
+                }
+                remainingNS = delivered.awaitNanos(remainingNS);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting folders and waits up to 10 seconds for the ingest thread to deliver the already queued folders.
+     * If the ingest thread has not stopped by then, it is interrupted. Calling close more than once has no effect.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            ingester.join(10000);
+            if (ingester.isAlive()) {
+                log.warn("The ingest thread did not stop within 10 seconds. Interrupting it for " + this);
+                ingester.interrupt();
+                ingester.join(1000);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the ingest thread to stop for " + this);
+            Thread.currentThread().interrupt();
+        }
+        log.info("Closed " + this);
+    }
+
+    /**
+     * @return the {@link Error} that stopped the ingest thread or null if it has not failed.
+     */
+    public Throwable getFailure() {
+        lock.lock();
+        try {
+            return failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if all queued folders have been delivered to the batch consumer.
+     */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return deliveredCount == queuedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of folders waiting in the queue.
+     */
+    public int getQueuedFolders() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries waiting in the queue.
+     */
+    public long getQueuedEntries() {
+        lock.lock();
+        try {
+            return queuedEntries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ingestLoop() {
+        try {
+            List<ScanBot.Folder> batch;
+            while (!(batch = take()).isEmpty()) {
+                final long startNS = System.nanoTime();
+                long entries = 0;
+                for (ScanBot.Folder folder: batch) {
+                    entries += weight(folder);
+                }
+                try {
+                    batchConsumer.accept(batch);
+                } catch (Exception e) {
+                    log.error("Exception delivering batch of " + batch.size() + " folders for " + this, e);
+                }
+                batchLatency.observeSince(startNS);
+                batchEntries.observe(entries);
+                lock.lock();
+                try {
+                    deliveredCount += batch.size();
+                    delivered.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (Throwable t) {
+            log.error("Error delivering batch. No more folders will be accepted by " + this, t);
+            lock.lock();
+            try {
+                failure = t;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            lock.lock();
+            try {
+                stopped = true;
+                notFull.signalAll();
+                delivered.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for at least one folder and removes folders from the queue until the batch is full or the queue is empty.
+     * @return the batch or the empty list if the queue is closed and empty.
+     */
+    private List<ScanBot.Folder> take() {
+        List<ScanBot.Folder> batch = new ArrayList<>();
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (closed) {
+                    return batch;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+            long entries = 0;
+            while (!queue.isEmpty() &&
+                   (batch.isEmpty() || entries + weight(queue.peekFirst()) <= maxBatchEntries)) {
+                ScanBot.Folder folder = queue.removeFirst();
+                batch.add(folder);
+                entries += weight(folder);
+                queuedEntries -= weight(folder);
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     * @throws IllegalStateException if the queue does not accept folders.
+     */
+    private void checkAccepting() {
+        if (failure != null) {
+            throw new IllegalStateException("The ingest thread has failed for " + name, failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("The ingest queue " + name + " is closed");
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     * @throws IllegalStateException if the ingest thread has stopped.
+     */
+    private void checkRunning() {
+        if (failure != null) {
+            throw new IllegalStateException("The ingest thread has failed for " + name, failure);
+        }
+        if (stopped) {
+            throw new IllegalStateException("The ingest thread has stopped for " + name);
+        }
+    }
+
+    /**
+     * @return the number of entries in the index affected by the folder, at least 1.
+     */
+    static long weight(ScanBot.Folder folder) {
+        return Math.max(1, folder.unchanged ? folder.knownFileCount : folder.size());
+    }
+
+    @Override
+    public String toString() {
+        return "IngestQueue(name='" + name + "', maxQueueEntries=" + maxQueueEntries +
+               ", maxBatchEntries=" + maxBatchEntries + ", queued=" + getQueuedFolders() + " folders)";
+    }
+}
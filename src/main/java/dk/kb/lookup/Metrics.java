@@ -0,0 +1,294 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lightweight registry for counters, gauges and histograms, exposed in the Prometheus text format at
+ * {@code /metrics}.
+ * </p><p>
+ * Metrics are identified by name and labels. Registering the same name and labels again returns the existing metric,
+ * so callers can register in constructors or static initializers without coordination. Updates are lock free and
+ * cheap enough for hot paths.
+ */
+public class Metrics {
+    /**
+     * Histogram buckets in seconds for operations that typically takes microseconds to seconds.
+     */
+    public static final double[] LATENCY_BUCKETS = {
+            0.00001, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60};
+    /**
+     * Histogram buckets in seconds for long running operations, such as scans.
+     */
+    public static final double[] DURATION_BUCKETS = {
+            0.1, 1, 10, 60, 300, 900, 1800, 3600, 7200, 14400, 43200, 86400};
+
+    private static final Metrics instance = new Metrics();
+
+    private final Map<String, Family> families = new TreeMap<>();
+
+    /**
+     * @return the shared registry.
+     */
+    public static Metrics instance() {
+        return instance;
+    }
+
+    /**
+     * @param name   the name of the metric, e.g. {@code filelookup_scan_folders_total}.
+     * @param help   a human readable description.
+     * @param labels label names and values, alternating.
+     * @return the counter with the given name and labels.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, Counter::new);
+    }
+
+    /**
+     * @param name    the name of the metric, e.g. {@code filelookup_scan_duration_seconds}.
+     * @param help    a human readable description.
+     * @param buckets the upper bounds for the buckets, in increasing order.
+     * @param labels  label names and values, alternating.
+     * @return the histogram with the given name and labels.
+     */
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) register(name, help, "histogram", labels, () -> new Histogram(buckets));
+    }
+
+    /**
+     * Registers a gauge which is resolved when the metrics are exported. If a gauge with the same name and labels
+     * exists, it is replaced.
+     * @param name   the name of the metric, e.g. {@code filelookup_index_entries}.
+     * @param help   a human readable description.
+     * @param value  delivers the current value.
+     * @param labels label names and values, alternating.
+     */
+    public synchronized void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        getFamily(name, help, "gauge").metrics.put(toLabels(labels), new Gauge(value));
+    }
+
+    private synchronized Metric register(
+            String name, String help, String type, String[] labels, Supplier<Metric> creator) {
+        return getFamily(name, help, type).metrics.computeIfAbsent(toLabels(labels), key -> creator.get());
+    }
+
+    private Family getFamily(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(
+                    "The metric '" + name + "' is a " + family.type + " and cannot be registered as " + type);
+        }
+        return family;
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String toPrometheus() {
+        List<Family> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(families.values());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Family family: snapshot) {
+            sb.append("# HELP ").append(family.name).append(' ').append(escapeHelp(family.help)).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            List<Map.Entry<String, Metric>> metrics;
+            synchronized (this) {
+                metrics = new ArrayList<>(family.metrics.entrySet());
+            }
+            for (Map.Entry<String, Metric> metric: metrics) {
+                metric.getValue().write(sb, family.name, metric.getKey());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the labels formatted as {@code key1="value1",key2="value2"}.
+     */
+    private static String toLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be pairs of name and value but got " +
+                                               Arrays.toString(labels));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < labels.length ; i += 2) {
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(escapeLabel(labels[i+1])).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static void writeSample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private interface Metric {
+        void write(StringBuilder sb, String name, String labels);
+    }
+
+    /**
+     * Monotonically increasing count.
+     */
+    public static class Counter implements Metric {
+        private final LongAdder count = new LongAdder();
+
+        public void inc() {
+            count.increment();
+        }
+
+        public void add(long delta) {
+            count.add(delta);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels) {
+            writeSample(sb, name, labels, count.sum());
+        }
+    }
+
+    /**
+     * Value resolved on export.
+     */
+    private static class Gauge implements Metric {
+        private final DoubleSupplier value;
+
+        Gauge(DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels) {
+            writeSample(sb, name, labels, value.getAsDouble());
+        }
+    }
+
+    /**
+     * Distribution of observations in fixed buckets, with sum and count.
+     */
+    public static class Histogram implements Metric {
+        private final double[] bounds;
+        private final LongAdder[] buckets; // Non-cumulative. The last bucket is +Inf
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0 ; i < buckets.length ; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param value the observed value, typically in seconds.
+         */
+        public void observe(double value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            buckets[bucket >= 0 ? bucket : -bucket - 1].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Observe the time since startNS in seconds.
+         * @param startNS a start time from {@link System#nanoTime()}.
+         */
+        public void observeSince(long startNS) {
+            observe((System.nanoTime() - startNS) / 1_000_000_000.0);
+        }
+
+        /**
+         * @return the number of observations.
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket: buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * @return the sum of all observations.
+         */
+        public double getSum() {
+            return sum.sum();
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0 ; i < buckets.length ; i++) {
+                cumulative += buckets[i].sum();
+                String le = formatValue(i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY);
+                writeSample(sb, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+            }
+            writeSample(sb, name + "_sum", labels, sum.sum());
+            writeSample(sb, name + "_count", labels, cumulative);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+/**
+ * Extracts the literal prefix from regexps and globs, i.e. the part that all matching full paths must start with.
+ * The extraction is conservative: If the prefix cannot be safely determined, the empty String is returned.
+ */
+public class PathPrefix {
+    private static final String REGEXP_META = "\\^$.|?*+()[]{}";
+    private static final String REGEXP_QUANTIFIERS = "?*+{";
+    private static final String GLOB_META = "*?[{\\";
+
+    /**
+     * Extract the literal prefix for a regexp, intended to be matched against full paths with
+     * {@link java.util.regex.Matcher#matches()}.
+     * @param regexp a regular expression. Can be null.
+     * @return the literal prefix of the regexp, or the empty String if there is no prefix.
+     */
+    public static String fromRegexp(String regexp) {
+        if (regexp == null || regexp.contains("|")) { // Alternations are not analyzed
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int pos = regexp.startsWith("^") ? 1 : 0; // Redundant for matches()
+        while (pos < regexp.length()) {
+            char c = regexp.charAt(pos);
+            char literal;
+            int next;
+            if (c == '\\') {
+                if (pos+1 == regexp.length() || Character.isLetterOrDigit(regexp.charAt(pos+1))) {
+                    break; // Character classes, back references, quoting and similar
+                }
+                literal = regexp.charAt(pos+1);
+                next = pos+2;
+            } else if (REGEXP_META.indexOf(c) != -1) {
+                break;
+            } else {
+                literal = c;
+                next = pos+1;
+            }
+            if (next < regexp.length() && REGEXP_QUANTIFIERS.indexOf(regexp.charAt(next)) != -1) {
+                break; // The literal is optional or repeated
+            }
+            prefix.append(literal);
+            pos = next;
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Extract the literal prefix for a glob, as described at
+     * {@link java.nio.file.FileSystem#getPathMatcher(String)}.
+     * @param glob a glob. Can be null.
+     * @return the literal prefix of the glob, or the empty String if there is no prefix.
+     */
+    public static String fromGlob(String glob) {
+        if (glob == null) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int pos = 0;
+        while (pos < glob.length()) {
+            char c = glob.charAt(pos);
+            if (c == '\\') {
+                if (pos+1 == glob.length()) {
+                    break;
+                }
+                prefix.append(glob.charAt(pos+1));
+                pos += 2;
+            } else if (GLOB_META.indexOf(c) != -1) {
+                break;
+            } else {
+                prefix.append(c);
+                pos++;
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * @param regexp a regular expression. Can be null.
+     * @param glob   a glob. Can be null.
+     * @return the longest of the literal prefixes for the regexp and the glob, as both must match.
+     */
+    public static String fromQuery(String regexp, String glob) {
+        String regexpPrefix = fromRegexp(regexp);
+        String globPrefix = fromGlob(glob);
+        return regexpPrefix.length() >= globPrefix.length() ? regexpPrefix : globPrefix;
+    }
+}
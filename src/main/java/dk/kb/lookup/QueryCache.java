@@ -0,0 +1,237 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Least recently used cache for query results, bounded by the total number of entries in the cached results.
+ * </p><p>
+ * The cache is tied to a modification counter for the index, which must be increased after each change to the
+ * index. All cached results are invalidated when the counter changes, so a cached result is never stale.
+ * Results are recorded while they are consumed and only added to the cache if the query stream is depleted and
+ * the result is not larger than {@code maxResultEntries}. Large results are thus streamed without caching.
+ */
+public class QueryCache {
+    private static Log log = LogFactory.getLog(QueryCache.class);
+
+    private final int maxEntries;
+    private final int maxResultEntries;
+    private final LongSupplier modificationCount;
+
+    private final LinkedHashMap<Object, List<FileEntry>> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long generation = Long.MIN_VALUE; // The modification count for the cached results
+    private long entries = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxEntries        the maximum number of entries, summed over all cached results. 0 disables the cache.
+     * @param maxResultEntries  results with more entries than this are not cached.
+     * @param modificationCount the modification counter for the index. Negative values disables the cache.
+     */
+    public QueryCache(int maxEntries, int maxResultEntries, LongSupplier modificationCount) {
+        this.maxEntries = maxEntries;
+        this.maxResultEntries = Math.min(maxEntries, maxResultEntries);
+        this.modificationCount = modificationCount;
+        log.info("Created " + this);
+    }
+
+    /**
+     * Deliver the cached result for the key or, if there is no cached result, the result of the query.
+     * @param key   the key for the query. Must implement {@code equals} and {@code hashCode}.
+     * @param query resolves the query if it is not cached.
+     * @return the result for the query.
+     */
+    public Stream<FileEntry> query(Object key, Supplier<Stream<FileEntry>> query) {
+        final long modifications = modificationCount.getAsLong();
+        if (maxEntries <= 0 || modifications < 0) {
+            return query.get();
+        }
+        List<FileEntry> cached = get(key, modifications);
+        if (cached != null) {
+            return cached.stream();
+        }
+        // The modification count is read before the query is resolved, so changes during the query invalidates it
+        Stream<FileEntry> result = query.get();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                new RecordingIterator(key, modifications, result.iterator()), Spliterator.ORDERED), false).
+                onClose(result::close);
+    }
+
+    private synchronized List<FileEntry> get(Object key, long modifications) {
+        validate(modifications);
+        List<FileEntry> cached = results.get(key);
+        if (cached == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return cached;
+    }
+
+    private synchronized void put(Object key, long modifications, List<FileEntry> result) {
+        validate(modificationCount.getAsLong());
+        if (modifications != generation) { // The index has changed since the query was resolved
+            return;
+        }
+        List<FileEntry> old = results.put(key, result);
+        entries += result.size() - (old == null ? 0 : old.size());
+        Iterator<List<FileEntry>> lru = results.values().iterator();
+        while (entries > maxEntries && lru.hasNext()) {
+            entries -= lru.next().size();
+            lru.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Clears the cache if the modification count has changed.
+     */
+    private void validate(long modifications) {
+        if (modifications != generation) {
+            if (!results.isEmpty()) {
+                invalidations++;
+            }
+            results.clear();
+            entries = 0;
+            generation = modifications;
+        }
+    }
+
+    /**
+     * Clear all cached results.
+     */
+    public synchronized void clear() {
+        results.clear();
+        entries = 0;
+    }
+
+    /**
+     * @return true if the cache is enabled.
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @return the number of cached results.
+     */
+    public synchronized int getResultCount() {
+        return results.size();
+    }
+
+    /**
+     * @return the number of entries, summed over all cached results.
+     */
+    public synchronized long getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * @return the number of queries delivered from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of queries that were not in the cache.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of times the cache was cleared due to changes to the index.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return the number of results removed from the cache to stay within the entry limit.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryCache(maxEntries=" + maxEntries + ", maxResultEntries=" + maxResultEntries +
+               ", results=" + results.size() + ", entries=" + entries + ", hits=" + hits + ", misses=" + misses +
+               ", invalidations=" + invalidations + ", evictions=" + evictions + ")";
+    }
+
+    /**
+     * Records the delivered entries and adds them to the cache when the source is depleted.
+     */
+    private class RecordingIterator implements Iterator<FileEntry> {
+        private final Object key;
+        private final long modifications;
+        private final Iterator<FileEntry> source;
+        private List<FileEntry> recorded = new ArrayList<>();
+
+        public RecordingIterator(Object key, long modifications, Iterator<FileEntry> source) {
+            this.key = key;
+            this.modifications = modifications;
+            this.source = source;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (source.hasNext()) {
+                return true;
+            }
+            if (recorded != null) {
+                put(key, modifications, recorded);
+                recorded = null;
+            }
+            return false;
+        }
+
+        @Override
+        public FileEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more entries");
+            }
+            FileEntry entry = source.next();
+            if (recorded != null) {
+                if (recorded.size() < maxResultEntries) {
+                    recorded.add(entry);
+                } else {
+                    recorded = null; // Too large to cache
+                }
+            }
+            return entry;
+        }
+    }
+}
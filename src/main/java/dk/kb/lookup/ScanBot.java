@@ -14,72 +14,173 @@
  */
 package dk.kb.lookup;
 
+import dk.kb.lookup.config.ServiceConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executor;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Responsible for scanning the file system for new or deleted files.
+ * </p><p>
+ * Scans are performed in parallel using a work-stealing {@link ForkJoinPool}, where each folder is a separate task.
+ * Scans of disjoint roots run concurrently, each with its own pool, while the number of folders being listed at any
+ * time is limited by a global budget shared by all scans. The budget is controlled by
+ * {@code .lookup.autoscan.parallelism}. A scan is refused if any of its roots overlaps a root being scanned.
+ * </p><p>
+ * Progress is tracked per root, see {@link #getRootProgress()}.
+ * </p><p>
+ * If {@code .lookup.autoscan.incremental} is true, the modification time, file count and sub-folders for each folder
+ * are remembered between scans. Folders with unchanged modification time are not listed again, but are delivered
+ * as {@link Folder#unchanged} so that the consumer can refresh the previously delivered entries in bulk.
+ * </p><p>
+ * Folders that could not be listed, and folders that were known from a previous scan but were not reached by a
+ * completed scan, are delivered as {@link Folder#unavailable}, so that the consumer can remove their entries.
  */
 public class ScanBot {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    public static final int DEFAULT_PARALLELISM = 1;
+    public static final boolean DEFAULT_INCREMENTAL = true;
+    // Folders modified less than this before listing are not remembered, as the file system timestamp granularity
+    // might hide changes made right after the listing. 2 seconds is the granularity for FAT
+    static final long MTIME_GRACE_MS = 2000;
+    // The maximum number of idle roots to keep progress for. Mostly relevant for scans of sub folders
+    static final int MAX_IDLE_PROGRESS = 100;
+
     public enum STATE {scanning, idle}
 
-    private STATE state = STATE.idle;
+    private static final Metrics.Counter foldersListed = Metrics.instance().counter(
+            "filelookup_scan_folders_total", "Folders visited by scans", "listing", "full");
+    private static final Metrics.Counter foldersUnchanged = Metrics.instance().counter(
+            "filelookup_scan_folders_total", "Folders visited by scans", "listing", "unchanged");
+    private static final Metrics.Counter filesListed = Metrics.instance().counter(
+            "filelookup_scan_files_total", "Files found by listing folders during scans");
+    private static final Metrics.Histogram folderListing = Metrics.instance().histogram(
+            "filelookup_scan_folder_listing_seconds", "Time for listing a single folder, excluding the consumer",
+            Metrics.LATENCY_BUCKETS);
+    private static final Metrics.Histogram scanDuration = Metrics.instance().histogram(
+            "filelookup_scan_duration_seconds", "Duration of complete scans", Metrics.DURATION_BUCKETS);
+
     private static ScanBot instance;
-    private List<String> activeRoots = null;
-    private String activePath = null;
-    private final Executor executor = Executors.newSingleThreadExecutor(runnable -> {
-        Thread t = new Thread(runnable, "ScanBot");
-        t.setDaemon(true);
-        return t;
+    private final Map<String, RootProgress> progress = new ConcurrentHashMap<>();
+    private final List<Path> activeRoots = new ArrayList<>(); // Guarded by this
+    private volatile String activePath = null;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread t = new Thread(runnable, "ScanBot_" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
     });
+    private final int parallelism;
+    private final Semaphore ioBudget;
+    private final boolean incremental;
+    private final Map<Path, FolderState> folderStates = new ConcurrentHashMap<>();
+    private final AtomicLong scanIDs = new AtomicLong(0);
+    private final AtomicInteger poolCount = new AtomicInteger(0);
 
-    public static ScanBot instance() {
+    public static synchronized ScanBot instance() {
         if (instance == null) {
-            instance = new ScanBot();
+            instance = new ScanBot(
+                    ServiceConfig.getConfig().getInteger(".lookup.autoscan.parallelism", DEFAULT_PARALLELISM),
+                    ServiceConfig.getConfig().getBoolean(".lookup.autoscan.incremental", DEFAULT_INCREMENTAL));
+            Metrics.instance().gauge("filelookup_scan_active", "The number of roots being scanned",
+                                     () -> instance.getActiveRootCount());
         }
         return instance;
     }
 
     public ScanBot() {
-        log.info("Creating instance");
+        this(DEFAULT_PARALLELISM, DEFAULT_INCREMENTAL);
+    }
+
+    /**
+     * @param parallelism the maximum number of folders to list concurrently, across all running scans.
+     * @param incremental if true, folders with unchanged modification time are not listed on rescans.
+     */
+    public ScanBot(int parallelism, boolean incremental) {
+        log.info("Creating instance with parallelism " + parallelism + " and incremental " + incremental);
+        this.incremental = incremental;
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1 but was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        // Fair so that a scan of a small root is not starved by a scan of a large root
+        ioBudget = new Semaphore(parallelism, true);
     }
 
     /**
      * Starts a background scan from the given roots, feeding the given consumer with the encountered folders.
      * This call will return immediately.
+     * </p><p>
+     * Scans of roots that are disjoint from the roots of running scans are started immediately and run concurrently
+     * with the other scans. If any of the given roots is equal to, above or below a root being scanned, the scan is
+     * not started.
+     * </p><p>
+     * Note: The consumer will be called concurrently from multiple threads if parallelism is above 1.
+     *       Each encountered folder is delivered exactly once and the finalizer is only called after all folders
+     *       has been delivered.
      * @param roots where to scan from.
      * @param consumer handles callbacks.
      * @param finalizer called if the scan completes successfully.
      * @return true if the scan was started.
      */
     public synchronized boolean startScan(List<String> roots, Consumer<Folder> consumer, Runnable finalizer) {
-        if (state == STATE.scanning) {
-            log.info("Attempted to start job with roots " + roots + " but a scan was already running");
-            return false;
+        List<Path> rootPaths = roots.stream().map(Paths::get).collect(Collectors.toList());
+        for (Path root: rootPaths) {
+            if (overlapsActive(root)) {
+                log.info("Attempted to start job with roots " + roots + " but '" + root +
+                         "' overlaps the roots of a running scan " + activeRoots);
+                return false;
+            }
+        }
+        final long scanID = scanIDs.incrementAndGet();
+        List<RootProgress> rootProgresses = new ArrayList<>(roots.size());
+        for (String root: roots) {
+            RootProgress rootProgress = progress.computeIfAbsent(root, RootProgress::new);
+            rootProgress.start();
+            rootProgresses.add(rootProgress);
         }
-        state = STATE.scanning;
-        activeRoots = roots;
-        activePath = null;
+        activeRoots.addAll(rootPaths);
+        pruneProgress();
         executor.execute(() -> {
+            final long startNS = System.nanoTime();
             try {
-                performScan(activeRoots, consumer);
+                performScan(scanID, rootProgresses, consumer);
             } catch (Exception e) {
-                log.error("Exception during scan of " + activeRoots, e);
+                log.error("Exception during scan of " + roots, e);
             } finally {
-                state = STATE.idle;
-                activeRoots = null;
-                activePath = null;
+                scanDuration.observeSince(startNS);
+                rootProgresses.forEach(RootProgress::finish);
+                synchronized (this) {
+                    rootPaths.forEach(activeRoots::remove);
+                    if (activeRoots.isEmpty()) {
+                        activePath = null;
+                    }
+                }
             }
             try {
                 if (finalizer != null) {
@@ -93,68 +194,452 @@ public class ScanBot {
     }
 
     /**
-     * @return the current state of the ScanBot.
+     * @param path a file system path.
+     * @return true if the path is equal to, above or below a root being scanned, i.e. if a scan from the path would
+     *         be refused by {@link #startScan(List, Consumer, Runnable)}.
+     */
+    public synchronized boolean isScanning(String path) {
+        return overlapsActive(Paths.get(path));
+    }
+
+    private boolean overlapsActive(Path root) {
+        return activeRoots.stream().anyMatch(active -> active.startsWith(root) || root.startsWith(active));
+    }
+
+    /**
+     * Removes the progress for the idle roots that finished longest ago, if there are more than
+     * {@link #MAX_IDLE_PROGRESS} idle roots.
+     */
+    private void pruneProgress() {
+        List<RootProgress> idle = progress.values().stream().
+                filter(rootProgress -> !rootProgress.isActive()).
+                sorted(Comparator.comparingLong(RootProgress::getEndTime)).
+                collect(Collectors.toList());
+        for (int i = 0 ; i < idle.size() - MAX_IDLE_PROGRESS ; i++) {
+            progress.remove(idle.get(i).getRoot());
+        }
+    }
+
+    /**
+     * @return the current state of the ScanBot: {@link STATE#scanning} if any root is being scanned.
      */
     public STATE getState() {
-        return state;
+        return getActiveRootCount() == 0 ? STATE.idle : STATE.scanning;
     }
 
+    /**
+     * @return true if no roots are being scanned.
+     */
     public boolean isReady() {
-        return state == STATE.idle;
+        return getState() == STATE.idle;
+    }
+
+    private synchronized int getActiveRootCount() {
+        return activeRoots.size();
     }
 
     /**
-     * @return the folder currently being scanned. Can be null.
+     * @return the folder most recently scanned, across all running scans. Can be null.
      */
     public String getActivePath() {
         return activePath;
     }
 
-    private void performScan(List<String> roots, Consumer<Folder> consumer) {
+    /**
+     * @return the progress for the roots being scanned and for the most recently scanned idle roots, sorted by root.
+     */
+    public List<RootProgress> getRootProgress() {
+        return progress.values().stream().
+                sorted(Comparator.comparing(RootProgress::getRoot)).
+                collect(Collectors.toList());
+    }
+
+    /**
+     * Forget the state for the given folder, ensuring that it will be fully listed on the next scan.
+     * Consumers should call this if they are unable to refresh the entries for an {@link Folder#unchanged} folder.
+     * @param folder a previously delivered folder.
+     */
+    public void forgetFolder(String folder) {
+        folderStates.remove(Paths.get(folder));
+    }
+
+    /**
+     * Forget the state for all folders, ensuring that the next scan will list all folders.
+     */
+    public void forgetAll() {
+        folderStates.clear();
+    }
+
+    private void performScan(long scanID, List<RootProgress> roots, Consumer<Folder> consumer) {
+        List<RootTask> rootTasks = new ArrayList<>(roots.size());
         for (int i = 1 ; i <= roots.size() ; i++ ) {
-            String root = roots.get(i-1);
-            log.info(String.format(Locale.ENGLISH, "Starting scan of root %d/%d '%s'", i, roots.size(), root));
+            rootTasks.add(new RootTask(roots.get(i-1), i, roots.size(), scanID, consumer));
+        }
+        // All roots are scanned in parallel, sharing the worker threads from the pool for the scan.
+        // The global ioBudget limits the number of concurrent listings across scans
+        final int poolID = poolCount.getAndIncrement();
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        ForkJoinPool scanPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("ScanBot_worker_" + poolID + "_" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+        try {
+            scanPool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(rootTasks);
+                }
+            });
+        } finally {
+            scanPool.shutdown();
+        }
+        // Remove the states for folders under the roots that were not encountered, i.e. deleted folders or folders
+        // below folders that could not be listed. Roots of concurrent scans are disjoint, so their states are not
+        // affected
+        for (RootTask rootTask: rootTasks) {
+            final Path rootPath = Paths.get(rootTask.root.getRoot());
+            List<Path> unvisited = new ArrayList<>();
+            folderStates.entrySet().removeIf(entry -> {
+                if (entry.getValue().scanID == scanID || !entry.getKey().startsWith(rootPath)) {
+                    return false;
+                }
+                unvisited.add(entry.getKey());
+                return true;
+            });
+            if (rootTask.completed) { // An aborted scan says nothing about the folders it did not reach
+                deliverUnvisited(unvisited, rootTask.root, consumer);
+            }
+        }
+    }
+
+    /**
+     * Delivers the topmost of the given folders as {@link Folder#unavailable}, with the start of the scan as
+     * listing time, so that the consumer removes the entries for the folders and the folders below them that were
+     * not seen during the scan. Most of the folders will be below deleted or unavailable folders, where the entries
+     * have already been removed, so this is normally a no-op for the consumer.
+     * @param unvisited folders below the root that were known from previous scans but not reached by this scan.
+     * @param root      the progress for the root that the folders are below.
+     * @param consumer  receives the folders.
+     */
+    private void deliverUnvisited(List<Path> unvisited, RootProgress root, Consumer<Folder> consumer) {
+        Set<Path> unvisitedSet = new HashSet<>(unvisited);
+        int delivered = 0;
+        for (Path path: unvisited) {
+            Path parent = path.getParent();
+            while (parent != null && !unvisitedSet.contains(parent)) {
+                parent = parent.getParent();
+            }
+            if (parent != null) { // Handled by the delivery of the parent
+                continue;
+            }
+            Folder folder = new Folder(path.toString());
+            folder.unavailable = true;
+            folder.listingTime = root.getStartTime();
             try {
-                performScan(Paths.get(root), consumer);
-                log.debug(String.format(Locale.ENGLISH, "Finished scan of root %d/%d '%s'", i, roots.size(), root));
+                consumer.accept(folder);
+                delivered++;
             } catch (Exception e) {
-                log.warn(String.format(Locale.ENGLISH, "Exception during scan %d/%d '%s'", i, roots.size(), root), e);
+                log.warn("Exception delivering unvisited folder '" + path + "' to the consumer", e);
             }
         }
+        if (delivered > 0) {
+            log.info(String.format(Locale.ENGLISH, "Delivered %d previously known folders under root '%s' that were " +
+                                                   "not reached by the scan as unavailable", delivered, root.getRoot()));
+        }
     }
 
-    private void performScan(Path path, Consumer<Folder> consumer) {
+    /**
+     * Scans a single root, catching and logging all Exceptions so that other roots are unaffected.
+     */
+    private class RootTask extends RecursiveAction {
+        private static final long serialVersionUID = -2317563286419023117L;
+
+        private final RootProgress root;
+        private final int index;
+        private final int total;
+        private final long scanID;
+        private final Consumer<Folder> consumer;
+        // True if the scan of the root finished without Exceptions, i.e. all reachable folders were visited
+        volatile boolean completed = false;
+
+        public RootTask(RootProgress root, int index, int total, long scanID, Consumer<Folder> consumer) {
+            this.root = root;
+            this.index = index;
+            this.total = total;
+            this.scanID = scanID;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            log.info(String.format(Locale.ENGLISH, "Starting scan of root %d/%d '%s'", index, total, root.getRoot()));
+            try {
+                new FolderTask(Paths.get(root.getRoot()), root, scanID, consumer).compute();
+                completed = true;
+                log.debug(String.format(Locale.ENGLISH, "Finished scan of root %d/%d '%s' with %d folders",
+                                        index, total, root.getRoot(), root.getFoldersVisited()));
+            } catch (Exception e) {
+                log.warn(String.format(Locale.ENGLISH, "Exception during scan %d/%d '%s'",
+                                       index, total, root.getRoot()), e);
+            }
+        }
+    }
+
+    /**
+     * Scans a single folder, delivers its files to the consumer and forks tasks for all its sub-folders.
+     */
+    private class FolderTask extends RecursiveAction {
+        private static final long serialVersionUID = 4891307521196471325L;
+
+        private final Path path;
+        private final RootProgress root;
+        private final long scanID;
+        private final Consumer<Folder> consumer;
+
+        public FolderTask(Path path, RootProgress root, long scanID, Consumer<Folder> consumer) {
+            this.path = path;
+            this.root = root;
+            this.scanID = scanID;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            List<Path> subFolders = scanFolder(path, root, scanID, consumer);
+            if (!subFolders.isEmpty()) {
+                invokeAll(subFolders.stream().
+                        map(subFolder -> new FolderTask(subFolder, root, scanID, consumer)).
+                        collect(Collectors.toList()));
+            }
+        }
+    }
+
+    /**
+     * Performs a non-recursive scan of the given path and delivers the result to the consumer.
+     * The listing is done within the global I/O budget, while the consumer is called outside of it.
+     * @param path     the folder to scan.
+     * @param root     the progress for the root that the folder is below.
+     * @param scanID   the ID of the scan that the folder is part of.
+     * @param consumer receives the content of the folder.
+     * @return the sub-folders of the path. Can be empty but never null.
+     */
+    private List<Path> scanFolder(Path path, RootProgress root, long scanID, Consumer<Folder> consumer) {
+        Folder folder = new Folder(path.toString());
+        List<Path> subFolders;
+        ioBudget.acquireUninterruptibly();
+        try {
+            subFolders = listFolder(path, root, scanID, folder);
+        } finally {
+            ioBudget.release();
+        }
+        root.folderVisited(folder.unchanged ? folder.knownFileCount : folder.size());
+        consumer.accept(folder);
+        return subFolders;
+    }
+
+    /**
+     * Lists the content of the given path into folder, using the remembered state if the folder is unchanged.
+     * If the folder cannot be listed, it is marked as {@link Folder#unavailable} and its sub-folders are not visited.
+     * @return the sub-folders of the path. Can be empty but never null.
+     */
+    private List<Path> listFolder(Path path, RootProgress root, long scanID, Folder folder) {
         if (!Files.exists(path)) {
             log.debug("Path '" + path + "' could not be located");
+            folderStates.remove(path);
             // Send empty folder for potential deletion of pre-existing files
-            consumer.accept(new Folder(path.toString()));
-            return;
+            return new ArrayList<>();
         }
 
         //log.debug("Scanning path " + path + "'");
         activePath = path.toString();
-        Folder folder = new Folder(path.toString());
+        root.activePath = activePath;
+        final long listingTime = System.currentTimeMillis();
+        long lastModified = -1;
+        if (incremental) {
+            try {
+                lastModified = Files.getLastModifiedTime(path).toMillis();
+            } catch (IOException e) {
+                log.debug("Unable to get last modified time for '" + path + "'. Performing full listing", e);
+            }
+            FolderState previous = folderStates.get(path);
+            if (previous != null && lastModified != -1 && previous.lastModified == lastModified) {
+                previous.scanID = scanID;
+                folder.unchanged = true;
+                folder.knownFileCount = previous.fileCount;
+                folder.subFolderCount = previous.subFolders.size();
+                foldersUnchanged.inc();
+                return previous.subFolders;
+            }
+        }
+
         List<Path> subFolders = new ArrayList<>();
+        final long listingNS = System.nanoTime();
         try (DirectoryStream<Path> pathEntries = Files.newDirectoryStream(path)) {
+            folder.listingTime = listingTime;
             pathEntries.forEach(pathEntry -> {
                 if (Files.isDirectory(pathEntry)) {
                     subFolders.add(pathEntry);
+                    folder.subFolderNames.add(pathEntry.getFileName().toString());
                 } else {
                     folder.add(new FileEntry(path.toString(), pathEntry.getFileName().toString()));
                 }
             });
             folder.subFolderCount = subFolders.size();
+            folderListing.observeSince(listingNS);
+            foldersListed.inc();
+            filesListed.add(folder.size());
             log.debug(String.format(Locale.ENGLISH, "Finished scan of path '%s' with %d files and %d sub-folders",
                                     path.toString(),  folder.size(), folder.subFolderCount));
-            consumer.accept(folder);
+            if (lastModified != -1 && listingTime - lastModified > MTIME_GRACE_MS) {
+                folderStates.put(path, new FolderState(lastModified, folder.size(), subFolders, scanID));
+            } else {
+                folderStates.remove(path);
+            }
+            return subFolders;
         } catch (AccessDeniedException e) {
-            log.debug("AccessDeniedException for path '" + path + "'");
+            log.debug("AccessDeniedException for path '" + path + "'. Delivering it as unavailable");
         } catch (IOException e) {
-            log.warn("Exception while scanning the content of folder '" + path + "'", e);
+            log.warn("Exception while scanning the content of folder '" + path + "'. Delivering it as unavailable", e);
+        }
+        folderStates.remove(path);
+        // Entries added during the failed listing are discarded and the sub-folders are not visited
+        folder.clear();
+        folder.subFolderNames.clear();
+        folder.subFolderCount = 0;
+        folder.unavailable = true;
+        folder.listingTime = listingTime;
+        return new ArrayList<>();
+    }
+
+    /**
+     * Progress for scans of a single root. The folder count from the previous completed scan of the root is used for
+     * estimating the remaining time for the current scan.
+     */
+    public static class RootProgress {
+        private final String root;
+        private final AtomicLong foldersVisited = new AtomicLong(0);
+        private final AtomicLong filesSeen = new AtomicLong(0);
+        private volatile boolean active = false;
+        private volatile long startTime = -1;
+        private volatile long endTime = -1;
+        private volatile long previousFolders = -1;
+        private volatile String activePath = null;
+
+        RootProgress(String root) {
+            this.root = root;
         }
-        activePath = null;
 
-        subFolders.forEach(subFolder -> performScan(subFolder, consumer));
+        synchronized void start() {
+            foldersVisited.set(0);
+            filesSeen.set(0);
+            startTime = System.currentTimeMillis();
+            endTime = -1;
+            activePath = null;
+            active = true;
+        }
+
+        void folderVisited(int files) {
+            foldersVisited.incrementAndGet();
+            filesSeen.addAndGet(files);
+        }
+
+        synchronized void finish() {
+            previousFolders = foldersVisited.get();
+            endTime = System.currentTimeMillis();
+            activePath = null;
+            active = false;
+        }
+
+        /**
+         * @return the root as given when the scan was started.
+         */
+        public String getRoot() {
+            return root;
+        }
+
+        /**
+         * @return true if the root is being scanned.
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        /**
+         * @return the number of folders visited in the current or latest scan.
+         */
+        public long getFoldersVisited() {
+            return foldersVisited.get();
+        }
+
+        /**
+         * @return the number of files seen in the current or latest scan, including the known files in unchanged
+         *         folders.
+         */
+        public long getFilesSeen() {
+            return filesSeen.get();
+        }
+
+        /**
+         * @return the start of the current or latest scan in epoch milliseconds.
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the end of the latest scan in epoch milliseconds or -1 if the root is being scanned.
+         */
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return the folder most recently scanned under the root or null if the root is not being scanned.
+         */
+        public String getActivePath() {
+            return activePath;
+        }
+
+        /**
+         * The estimate assumes that the root has the same number of folders as in the previous scan and that the
+         * remaining folders are visited at the same rate as the folders so far.
+         * @return the estimated remaining time in milliseconds for the current scan or -1 if it cannot be estimated
+         *         or the root is not being scanned.
+         */
+        public long getEtaMS() {
+            final long visited = foldersVisited.get();
+            final long expected = previousFolders;
+            if (!active || visited == 0 || expected <= visited) {
+                return -1;
+            }
+            final long elapsed = System.currentTimeMillis() - startTime;
+            return elapsed * (expected - visited) / visited;
+        }
+
+        @Override
+        public String toString() {
+            return "RootProgress(root='" + root + "', active=" + active + ", folders=" + getFoldersVisited() +
+                   ", files=" + getFilesSeen() + ", eta=" + getEtaMS() + "ms)";
+        }
+    }
+
+    /**
+     * The state of a folder at the time of its last listing.
+     */
+    private static class FolderState {
+        final long lastModified;
+        final int fileCount;
+        final List<Path> subFolders;
+        volatile long scanID;
+
+        public FolderState(long lastModified, int fileCount, List<Path> subFolders, long scanID) {
+            this.lastModified = lastModified;
+            this.fileCount = fileCount;
+            this.subFolders = subFolders;
+            this.scanID = scanID;
+        }
     }
 
     /**
@@ -166,13 +651,39 @@ public class ScanBot {
         
         public final String folder;
         public int subFolderCount = 0;
+        /**
+         * If true, the folder was not listed as it has not been modified since the previous scan. The Folder holds
+         * no entries and the consumer should refresh lastSeen for the entries delivered for the folder previously.
+         */
+        public boolean unchanged = false;
+        /**
+         * If true, the folder could not be listed or it was known from a previous scan, but not reached by this scan.
+         * The Folder holds no entries and no sub-folders, so the consumer should remove the entries for the folder
+         * and for all folders below it that were not seen since {@link #listingTime}.
+         */
+        public boolean unavailable = false;
+        /**
+         * The number of files in the folder at the previous scan. Only defined if {@link #unchanged} is true.
+         */
+        public int knownFileCount = 0;
+        /**
+         * The names of the sub-folders. Only defined if {@link #unchanged} is false.
+         */
+        public final Set<String> subFolderNames = new HashSet<>();
+        /**
+         * When the listing of the folder started, in epoch milliseconds. Files created after this might not be
+         * part of the listing.
+         */
+        public long listingTime = System.currentTimeMillis();
 
         public Folder(String folder) {
             this.folder = folder;
         }
 
         public String toString() {
-            return "Folder('" + folder + "', #files=" + size() + ", #subFolders=" + subFolderCount + ")";
+            return "Folder('" + folder + "', #files=" + (unchanged ? knownFileCount + " (unchanged)" : size()) +
+                   (unavailable ? " (unavailable)" : "") +
+                   ", #subFolders=" + subFolderCount + ")";
         }
     }
 
@@ -48,14 +48,14 @@ public interface Storage {
 
     /**
      * Initiate a full scan of all tracked roots.
-     * If a scan is already running, a new one will not be started.
+     * Roots that are already being scanned are skipped.
      * @return true if the scan was started.
      */
     boolean startScan();
 
     /**
      * Initiate a scan of the specific root.
-     * If a scan is already running, a new one will not be started.
+     * If a scan of the root, a folder above it or a folder below it is already running, a new one will not be started.
      * If the root is not registered, a scan will not be started.
      * @return true if the scan was started.
      */
@@ -20,6 +20,7 @@ import org.apache.commons.logging.Log;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.AccessDeniedException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -29,63 +30,78 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
  * File system watcher that tracks multiple roots and automatically watches sub-folders.
  * Non-existing roots are checked for existence at regular intervals and will be added to the watched list if created.
+ * </p><p>
+ * Events are resolved against the folder of their {@link WatchKey} and delivered in batches: All pending events are
+ * collected and delivered as one list of deleted paths followed by one list of created files. Created paths are
+ * checked at delivery time, so paths that were created and deleted within the same batch are not delivered as
+ * created. When a folder is created, it is watched and all files under it are delivered as created, as files might
+ * have been added to the folder before the watch was registered.
+ * </p><p>
+ * If the event queue for a folder overflows, the folder and all its sub-folders are re-watched and the folder is
+ * delivered to the overflow callback, which should perform a rescan of the folder and its sub-folders.
  */
 public class WatchBot implements Closeable {
     private static Log log = LogFactory.getLog(WatchBot.class);
 
+    public static final int MAX_BATCH = 10000; // Maximum number of events to collect before delivery
+
     private final Map<Path, WatchKey> watchers = new HashMap<>();
     private final WatchService watcher;
     private final int maxWatchers;
+    private final long rootCheckIntervalMS;
     private final Set<Path> roots = new HashSet<>(); // All roots (sum of watchedRoots and unwatchedRoots)
     private final Set<Path> watchedRoots = new HashSet<>();
     private final Set<Path> unwatchedRoots = new HashSet<>();
 
-    private final Consumer<Path> pathCreatedCallback;
-    private final Consumer<Path> pathDeletedCallback;
-    private final Runnable watchBotFailedCallback;
-    private boolean allOK = true;
-    private boolean closed = false;
-    private Thread watchBotDaemon;
-    private Thread rootChecker;
+    private final Consumer<List<Path>> filesCreatedCallback;
+    private final Consumer<List<Path>> pathsDeletedCallback;
+    private final Consumer<Path> overflowCallback;
+    private volatile boolean allOK = true;
+    private volatile boolean closed = false;
+    private final Thread watchBotDaemon;
+    private final Thread rootChecker;
 
     /**
      * Creates a new Watchbot with the given setup and starts watching the roots immediately.
      * Note that files that exists when WatchBot is created does not trigger callbacks.
-     * @param roots                  the roots that are watched recursively.
-     * @param maxWatches             the maximim number of watches to create.
-     * @param fileCreatedCallback    called whenever a file or folder is created.
-     * @param fileDeletedCallback    called whenever a file or folder is deleted.
-     * @param watchBotFailedCallback if the WatchBot fails to register or delete watches this is called.
-     *                               If the callback is triggered, WatchBot should be considered unreliable.
-     * @throws IOException if the setup failed. This is typically either because the file system does not support
-     *                     file watching or because maxWatches was exceeded.
+     * @param roots                the roots that are watched recursively.
+     * @param maxWatches           the maximim number of watches to create.
+     * @param rootCheckIntervalMS  how often to check if non-existing or unwatched roots has become available.
+     * @param filesCreatedCallback called with created files. Folders are never delivered.
+     * @param pathsDeletedCallback called with deleted files or folders. When a folder is delivered, all entries
+     *                             under the folder should be considered deleted.
+     * @param overflowCallback     called with a folder if events for the folder or its sub-folders was lost.
+     * @throws IOException if the setup failed, typically because the file system does not support file watching.
      */
-    public WatchBot(List<String> roots, int maxWatches,
-                    Consumer<Path> fileCreatedCallback, Consumer<Path> fileDeletedCallback,
-                    Runnable watchBotFailedCallback) throws IOException {
+    public WatchBot(List<String> roots, int maxWatches, long rootCheckIntervalMS,
+                    Consumer<List<Path>> filesCreatedCallback, Consumer<List<Path>> pathsDeletedCallback,
+                    Consumer<Path> overflowCallback) throws IOException {
         this.maxWatchers = maxWatches;
-        this.pathCreatedCallback = fileCreatedCallback;
-        this.pathDeletedCallback = fileDeletedCallback;
-        this.watchBotFailedCallback = watchBotFailedCallback;
+        this.rootCheckIntervalMS = rootCheckIntervalMS;
+        this.filesCreatedCallback = filesCreatedCallback;
+        this.pathsDeletedCallback = pathsDeletedCallback;
+        this.overflowCallback = overflowCallback;
         watcher = FileSystems.getDefault().newWatchService();
         roots.stream().map(Paths::get).map(Path::toAbsolutePath).forEach(this::addRoot);
         if (!unwatchedRoots.isEmpty()) {
-            log.warn("Warning: Unable to add watchers for roots " + unwatchedRoots);
-        };
+            log.warn("Unable to add watchers for roots " + unwatchedRoots + ". Will check again every " +
+                     rootCheckIntervalMS + " ms");
+        }
         watchBotDaemon = createDaemon();
         rootChecker = createRootChecker();
         log.info("Created " + this);
@@ -94,42 +110,24 @@ public class WatchBot implements Closeable {
     /**
      * @return the thread responsible for polling for changes to the structure under the roots.
      */
-    @SuppressWarnings("unchecked") // (WatchEvent<Path>) cast
     private Thread createDaemon() {
         Thread watchBotDaemon = new Thread(() -> {
             while (!closed) {
-                WatchKey watchKey;
                 try {
-                    watchKey = watcher.take();
+                    processEvents(watcher.take());
                 } catch (InterruptedException e) {
-                    log.warn("Unexpected interruption received while waiting for event");
-                    return;
-                }
-                try {
-                    for (WatchEvent<?> event : watchKey.pollEvents()) {
-                        WatchEvent.Kind<?> kind = event.kind();
-
-                        if (kind == StandardWatchEventKinds.OVERFLOW) {
-                            log.error("Overflow detected. Operations are unreliable");
-                            allOK = false;
-                            watchBotFailedCallback.run();
-                            continue;
-                        }
-
-                        // The filename is the context of the event.
-                        WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                        Path path = ev.context();
-                        log.info("Got event " + kind + " for path " + path);
-                        if (StandardWatchEventKinds.ENTRY_CREATE.equals(kind)) {
-                            pathCreated(path);
-                        } else if (StandardWatchEventKinds.ENTRY_DELETE.equals(kind)) {
-                            pathDeleted(path);
-                        }
+                    if (!closed) {
+                        log.warn("Unexpected interruption received while waiting for event");
                     }
-                } finally {
-                    watchKey.reset();
+                    return;
+                } catch (ClosedWatchServiceException e) {
+                    log.debug("WatchService closed. Stopping watchBotDaemon");
+                    return;
+                } catch (Exception e) {
+                    log.error("Unexpected Exception while processing events. Continuing watch", e);
                 }
-        }});
+            }
+        });
         watchBotDaemon.setName("WatchBotDaemon");
         watchBotDaemon.setDaemon(true);
         watchBotDaemon.start();
@@ -138,12 +136,107 @@ public class WatchBot implements Closeable {
     }
 
     /**
-     * @return a thread that periodically checks for creation or deletion of roots.
+     * Collects the events for the given key and all other pending keys, up to {@link #MAX_BATCH} events, and delivers
+     * them to the callbacks.
+     * @param watchKey a signalled key.
+     */
+    private void processEvents(WatchKey watchKey) {
+        Set<Path> deletedPaths = new LinkedHashSet<>();
+        Set<Path> createdPaths = new LinkedHashSet<>();
+        List<Path> overflows = new ArrayList<>();
+        while (watchKey != null) {
+            collectEvents(watchKey, deletedPaths, createdPaths, overflows);
+            watchKey = deletedPaths.size() + createdPaths.size() < MAX_BATCH ? watcher.poll() : null;
+        }
+
+        List<Path> deleted = new ArrayList<>(deletedPaths);
+        deleted.forEach(this::removeWatch);
+        List<Path> created = new ArrayList<>();
+        createdPaths.forEach(path -> pathCreated(path, created));
+        log.debug(String.format(Locale.ENGLISH, "Delivering %d deleted paths, %d created files and %d overflows",
+                                deleted.size(), created.size(), overflows.size()));
+        if (!deleted.isEmpty()) {
+            pathsDeletedCallback.accept(deleted);
+        }
+        if (!created.isEmpty()) {
+            filesCreatedCallback.accept(created);
+        }
+        for (Path overflow: overflows) {
+            addWatch(overflow); // Sub-folder creations might be lost
+            overflowCallback.accept(overflow);
+        }
+    }
+
+    @SuppressWarnings("unchecked") // (WatchEvent<Path>) cast
+    private void collectEvents(WatchKey watchKey, Set<Path> deleted, Set<Path> created, List<Path> overflows) {
+        Path folder = (Path) watchKey.watchable();
+        try {
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                WatchEvent.Kind<?> kind = event.kind();
+                if (kind == StandardWatchEventKinds.OVERFLOW) {
+                    log.warn("Overflow detected for folder '" + folder + "'. Requesting rescan");
+                    overflows.add(folder);
+                    continue;
+                }
+
+                // The context of the event is relative to the watched folder
+                Path path = folder.resolve(((WatchEvent<Path>) event).context());
+                if (log.isTraceEnabled()) {
+                    log.trace("Got event " + kind + " for path " + path);
+                }
+                if (StandardWatchEventKinds.ENTRY_CREATE.equals(kind)) {
+                    created.add(path);
+                } else if (StandardWatchEventKinds.ENTRY_DELETE.equals(kind)) {
+                    deleted.add(path);
+                    created.remove(path); // A later create is still delivered, as deletes are delivered first
+                }
+            }
+        } finally {
+            // If the reset fails, the folder is no longer accessible. Deleted sub-folders are reported by the parent
+            // folder, but roots have no watched parent, so their deletion is reported here
+            if (!watchKey.reset() && unwatchFolder(folder) && !Files.exists(folder)) {
+                deleted.add(folder);
+                created.remove(folder);
+            }
+        }
+    }
+
+    /**
+     * If the path is a regular file, it is added to created. If it is a folder, it is watched recursively and all
+     * regular files under it are added to created. If the path no longer exists, nothing happens.
+     */
+    private void pathCreated(Path path, List<Path> created) {
+        if (Files.isRegularFile(path)) {
+            created.add(path);
+        } else if (Files.isDirectory(path)) {
+            addWatch(path);
+            descend(path, p -> {
+                if (Files.isRegularFile(p)) {
+                    created.add(p);
+                }
+                return true;
+            });
+        }
+    }
+
+    /**
+     * @return a thread that periodically checks for creation of unwatched roots.
      */
+    @SuppressWarnings("BusyWait")
     private Thread createRootChecker() {
         Thread rootChecker = new Thread(() -> {
             while (!closed) {
-
+                try {
+                    Thread.sleep(rootCheckIntervalMS);
+                } catch (InterruptedException e) {
+                    log.debug("Interrupted from sleep. Re-evaluating conditions");
+                    continue;
+                }
+                try {
+                    checkUnwatchedRoots();
+                } catch (Exception e) {
+                    log.warn("Exception while checking unwatched roots " + unwatchedRoots, e);
+                }
             }
         });
         rootChecker.setName("WatchBotRootChecker");
@@ -152,26 +245,62 @@ public class WatchBot implements Closeable {
         return rootChecker;
     }
 
-    private void pathDeleted(Path path) {
-        path = path.toAbsolutePath();
-        pathDeletedCallback.accept(path);
-        if (Files.isDirectory(path)) {
-            addWatch(path);
+    /**
+     * Attempts to watch the unwatched roots. If successful, all files under the roots are delivered as created.
+     */
+    private void checkUnwatchedRoots() {
+        List<Path> candidates;
+        synchronized (roots) {
+            candidates = new ArrayList<>(unwatchedRoots);
+        }
+        for (Path root: candidates) {
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            boolean watched;
+            synchronized (roots) {
+                if (closed || !unwatchedRoots.contains(root)) {
+                    continue;
+                }
+                watched = addWatch(root);
+                if (watched) {
+                    unwatchedRoots.remove(root);
+                    watchedRoots.add(root);
+                }
+            }
+            if (watched) {
+                log.info("Previously unwatched root '" + root + "' is now watched");
+                List<Path> created = new ArrayList<>();
+                pathCreated(root, created);
+                if (!created.isEmpty()) {
+                    filesCreatedCallback.accept(created);
+                }
+            }
         }
     }
 
-    private void pathCreated(Path path) {
-        path = path.toAbsolutePath();
-        pathCreatedCallback.accept(path);
-        if (Files.isDirectory(path)) {
-            removeWatch(path);
+    /**
+     * Removes the watches for the folder and, if the folder is a root, marks the root as unwatched so that it will
+     * be watched again if it is re-created.
+     * @return true if the folder was a watched root.
+     */
+    private boolean unwatchFolder(Path folder) {
+        removeWatch(folder);
+        synchronized (roots) {
+            if (watchedRoots.remove(folder)) {
+                log.info("Root '" + folder + "' is no longer accessible. Will check again every " +
+                         rootCheckIntervalMS + " ms");
+                unwatchedRoots.add(folder);
+                return true;
+            }
         }
+        return false;
     }
 
     /**
      * Add the given root to be watched for changes.
      * @param root the root to watch recursively.
-     * @return true if the root was added.
+     * @return true if the root was added and is watched.
      */
     public boolean addRoot(Path root) {
         root = root.toAbsolutePath();
@@ -180,18 +309,18 @@ public class WatchBot implements Closeable {
                 log.info("addRoot(" + root + ") called, but the root was already registered");
                 return false;
             }
+            if (Files.exists(root) && !Files.isDirectory(root)) {
+                log.warn("addRoot(" + root + ") called with something that is not a directory");
+                return false;
+            }
+            roots.add(root);
             if (!Files.exists(root)) {
                 log.debug("addRoot(" + root + ") received a non-existing folder. " +
                           "Watchers will be assigned if it is created at a later point in time");
                 unwatchedRoots.add(root);
-                return true;
-            }
-            if (!Files.isDirectory(root)) {
-                log.warn("addRoot(" + root + ") called with something that is not a directory");
                 return false;
             }
 
-            roots.add(root);
             boolean result = addWatch(root);
             if (result) {
                 watchedRoots.add(root);
@@ -225,7 +354,7 @@ public class WatchBot implements Closeable {
     }
 
     /**
-     * @return a copy of the watched roots.
+     * @return a copy of the roots, both watched and unwatched.
      */
     public Set<Path> getRoots() {
         synchronized (roots) {
@@ -233,6 +362,24 @@ public class WatchBot implements Closeable {
         }
     }
 
+    /**
+     * @return a copy of the roots that are not currently watched, typically because they do not exist.
+     */
+    public Set<Path> getUnwatchedRoots() {
+        synchronized (roots) {
+            return new HashSet<>(unwatchedRoots);
+        }
+    }
+
+    /**
+     * @return the number of watched folders.
+     */
+    public int getWatchCount() {
+        synchronized (watchers) {
+            return watchers.size();
+        }
+    }
+
     /**
      * @return true if no error has been encountered while attempting watching.
      *         If false is returned, the sevice is considered unreliable.
@@ -252,14 +399,18 @@ public class WatchBot implements Closeable {
         int removed = 0;
         synchronized (watchers) {
             try {
-                for (Map.Entry<Path, WatchKey> pathWatchKeyEntry : watchers.entrySet()) {
-                    Path entryPath = pathWatchKeyEntry.getKey();
-                    if (entryPath.startsWith(path)) {
-                        watchers.remove(path).cancel();
+                Iterator<Map.Entry<Path, WatchKey>> entries = watchers.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<Path, WatchKey> entry = entries.next();
+                    if (entry.getKey().startsWith(path)) {
+                        entry.getValue().cancel();
+                        entries.remove();
                         removed++;
                     }
                 }
-                log.debug("removeWatch(" + path + ") caused " + removed + " watches to be removed");
+                if (removed > 0) {
+                    log.debug("removeWatch(" + path + ") caused " + removed + " watches to be removed");
+                }
                 return true;
             } catch (Exception e) {
                 log.error("Exception while recursively removing watch for '" + path + "'", e);
@@ -276,34 +427,42 @@ public class WatchBot implements Closeable {
     private boolean addWatch(Path path) {
         synchronized (watchers) {
             try {
-                return descend(path, p -> {
-                    if (!Files.isDirectory(path) || watchers.containsKey(path)) {
+                boolean result = descend(path, folder -> {
+                    if (!Files.isDirectory(folder) || watchers.containsKey(folder)) {
                         return true;
                     }
-                    if (roots.size() == maxWatchers) {
-                        log.warn("The number of watched folders has reached maxWatchers == " + maxWatchers);
+                    if (watchers.size() >= maxWatchers) {
+                        log.warn("The number of watched folders has reached maxWatchers == " + maxWatchers +
+                                 ". Folder '" + folder + "' and further folders will not be watched");
                         return false;
                     }
                     try {
-                        watchers.put(path, path.register(watcher,
-                                                         StandardWatchEventKinds.ENTRY_CREATE,
-                                                         StandardWatchEventKinds.ENTRY_DELETE,
-                                                         StandardWatchEventKinds.OVERFLOW));
+                        watchers.put(folder, folder.register(watcher,
+                                                             StandardWatchEventKinds.ENTRY_CREATE,
+                                                             StandardWatchEventKinds.ENTRY_DELETE,
+                                                             StandardWatchEventKinds.OVERFLOW));
                         return true;
                     } catch (IOException e) {
-                        log.warn("Unable to add watcher for folder '" + path + "'", e);
+                        log.warn("Unable to add watcher for folder '" + folder + "'", e);
                         return false;
                     }
                 });
+                allOK &= result;
+                return result;
+            } catch (ClosedWatchServiceException e) {
+                log.debug("addWatch(" + path + ") called after close");
+                return false;
             } catch (Exception e) {
                 log.error("Exception while recursively adding watch for '" + path + "'", e);
+                allOK = false;
                 return false;
             }
         }
     }
-    
+
     public String toString() {
-        return String.format(Locale.ENGLISH, "WatchBot(watched=%d, max=%d, roots=%s)", watchers.size(), maxWatchers, roots);
+        return String.format(Locale.ENGLISH, "WatchBot(watched=%d, max=%d, roots=%s, unwatched=%s)",
+                             getWatchCount(), maxWatchers, getRoots(), getUnwatchedRoots());
     }
 
     /**
@@ -318,7 +477,7 @@ public class WatchBot implements Closeable {
             return false;
         }
         if (!Files.isDirectory(path)) {
-            return false;
+            return true;
         }
         try (DirectoryStream<Path> pathEntries = Files.newDirectoryStream(path)) {
             for (Path pathEntry: pathEntries) {
@@ -326,27 +485,32 @@ public class WatchBot implements Closeable {
                     return false;
                 }
             }
-            return true;
         } catch (AccessDeniedException e) {
             log.debug("AccessDeniedException for path '" + path + "'");
         } catch (IOException e) {
             log.warn("Exception while scanning the content of folder '" + path + "'", e);
         }
-        return false;
+        return true; // Problems with a single folder does not stop the descend
     }
 
     /**
      * Stops watching all roots. After close is called, WatchBot will not watch anything, even if new roots are added.
-     * @throws IOException if the shutdown failed.
      */
     @Override
     public void close() {
-        log.info("close() called: Removing roots " + roots);
+        log.info("close() called: Removing roots " + getRoots());
+        closed = true;
         for (Path root: getRoots()) {
             if (!removeRoot(root)) {
                 log.warn("Problem removing root '" + root + "' as part of close(). Skipping to next root");
             }
         }
-        closed = true;
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            log.warn("Exception closing WatchService", e);
+        }
+        rootChecker.interrupt();
+        watchBotDaemon.interrupt();
     }
 }
@@ -1,61 +1,73 @@
 package dk.kb.lookup.api.impl;
 
-import dk.kb.lookup.CallbackInputStream;
+import dk.kb.lookup.EntryCursor;
+import dk.kb.lookup.EntryMatcher;
+import dk.kb.lookup.EntryStreamingOutput;
 import dk.kb.lookup.FileEntry;
+import dk.kb.lookup.FilenameLookupStreamingOutput;
+import dk.kb.lookup.H2Persistence;
+import dk.kb.lookup.Metrics;
 import dk.kb.lookup.ScanBot;
 import dk.kb.lookup.api.MergedApi;
 import dk.kb.lookup.config.ServiceConfig;
+import dk.kb.lookup.model.ChangesReplyDto;
 import dk.kb.lookup.model.EntryReplyDto;
+import dk.kb.lookup.model.RootScanStatusDto;
 import dk.kb.lookup.model.RootsReplyDto;
 import dk.kb.lookup.model.StatusReplyDto;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.webservice.exception.NoContentServiceException;
+import dk.kb.webservice.exception.NotFoundServiceException;
 import dk.kb.webservice.exception.ServiceException;
-import dk.kb.webservice.exception.StreamingServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Response;
 import java.io.File;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * H2-backed persistent file-lookup implementation.
+ * </p><p>
+ * All entries are stored in the database handled by {@link H2Persistence}, so the index survives restarts and
+ * the heap usage is independent of the number of files.
  */
 public class H2Impl implements MergedApi {
     private static final Logger log = LoggerFactory.getLogger(H2Impl.class);
 
     public static final int REPLY_STREAM_ACTIVATION = 1000; // When more than this is requested, streaming is used
-    public static final int REPLY_SORT_LIMIT = 100_000; // Only accept sort requests up to this size
+    public static final int MAX_PAGE_SIZE = 100000; // Pages are collected in memory before delivery
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
 
-    // Must be final as MemoryImpl are instantiated anew for each call
+    // Must be final as H2Impl are instantiated anew for each call
     private final static List<String> roots = ServiceConfig.getConfig().getList(".lookup.roots");
-    private final static Map<String, FileEntry> filenameMap = new HashMap<>();
-    private final static ReadWriteLock locks = new ReentrantReadWriteLock();
+    private final static H2Persistence persistence = H2Persistence.getInstance();
+    private final static Metrics.Histogram purgeDuration = Metrics.instance().histogram(
+            "filelookup_purge_duration_seconds", "Duration of purges of deleted files after scans",
+            Metrics.DURATION_BUCKETS);
+    private final static Metrics.Counter purgedEntries = Metrics.instance().counter(
+            "filelookup_purged_entries_total", "Entries removed for deleted files during or after scans");
+    // Scanned entries are collected here and written to the database in batches
+    private final static List<FileEntry> pending = new ArrayList<>();
 
     /**
      * Get the entries (path, filename and lastSeen) based on a multiple optional constraints. All returned entries fulfills all given constraints. Note that this is potentially a heavy request
      *
+     * @param httpServletRequest : The request, used for resolving the output format from the Accept header
+     *
      * @param regexp : The regexp which will be matched against the full path + filename
      *
      * @param glob : Glob-style matcher, which will be matched against the full path + filename. See https://docs.oracle.com/javase/7/docs/api/java/nio/file/FileSystem.html#getPathMatcher(java.lang.String) for syntax
@@ -66,10 +78,13 @@ public class H2Impl implements MergedApi {
      *
      * @param max : The maximum number of entries to return, -1 if there is no limit
      *
-     * @param ordered : If true, the entries are returned ordered by their timestamp. Setting this to true with max&#x3D;-1 or max&gt;100000 will fail
+     * @param ordered : If true, the entries are returned ordered by their timestamp
+     *
+     * @param cursor : If present, the entries are delivered in pages of max entries, ordered by lastSeen and filename. Use * for the first page and the X-Next-Cursor header from the response for the following pages. When the X-Next-Cursor header is not present, there are no more entries. The cursor is stable, so a failed page can be requested again with the same cursor. max must be between 1 and 100000 when using cursor and ordered is ignored
      *
      * @return <ul>
       *   <li>code = 200, message = "A list with the path, filename and lastSeen timestamps for the matches, sorted oldest to newest. The list can be empty", response = EntryReplyDto.class, responseContainer = "List"</li>
+      *   <li>code = 400, message = "If the cursor is invalid or max is out of range for cursor paging", response = ErrorDto.class</li>
       *   <li>code = 500, message = "Internal Error", response = ErrorDto.class</li>
       *   </ul>
       * @throws ServiceException when other http codes should be returned
@@ -78,86 +93,90 @@ public class H2Impl implements MergedApi {
      */
     @Override
     public Response getEntries(
-            String regexp, String glob, String since, Long sinceEpochMS, Integer max, Boolean ordered)
-            throws ServiceException {
+            HttpServletRequest httpServletRequest, String regexp, String glob, String since, Long sinceEpochMS,
+            Integer max, Boolean ordered, String cursor) throws ServiceException {
+        EntryStreamingOutput.Format format = EntryStreamingOutput.Format.fromAccept(
+                httpServletRequest == null ? null : httpServletRequest.getHeader("Accept"));
+        EntryCursor entryCursor = toCursor(cursor, max);
         long sinceEpoch = sinceEpochMS == null ? 0 : sinceEpochMS;
         if (since != null) {
             sinceEpoch = Math.max(sinceEpoch, toEpoch(since));
         }
+        if (entryCursor != null) {
+            sinceEpoch = Math.max(sinceEpoch, entryCursor.getSince());
+        }
 
         final long finalSince = sinceEpoch;
         final int limit = max == -1 ? Integer.MAX_VALUE : max;
-        Pattern pattern = regexp == null || regexp.isEmpty() ? null :
-                Pattern.compile(regexp);
-        PathMatcher globMatcher = glob == null  || glob.isEmpty() ? null :
-                FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        EntryMatcher matcher = EntryMatcher.get(regexp, glob);
 
-        ordered = ordered != null && ordered;
-        if (ordered && limit > REPLY_SORT_LIMIT) {
-            throw new InvalidArgumentServiceException(
-                    "Sorted response was requested but max=" + max + " exceeds the sort limit of " + REPLY_SORT_LIMIT);
-        }
+        // Ordering is handled by the lastSeen index in the database, so there is no sort limit
+        ordered = entryCursor != null || (ordered != null && ordered); // Paging requires ordering
 
+        Stream<FileEntry> entries = null;
         try {
-            locks.readLock().lock();
-
-            // Create a stream with the entries
-            Stream<FileEntry> entries = filenameMap.values().stream().
-                    filter(entry -> entry.lastSeen >= finalSince).
-                    filter(entry -> pattern == null || pattern.matcher(entry.getFullpath()).matches()).
-                    filter(entry -> globMatcher == null || globMatcher.matches(Paths.get(entry.getFullpath()))).
-                    limit(limit);
-
-            // Sort if needed
-            entries = ordered ? entries.sorted(Comparator.comparingLong(e -> e.lastSeen)) : entries;
+            // Create a stream with the entries. The since-constraint is resolved by the database
+            entries = persistence.stream(finalSince, ordered).
+                    filter(matcher);
+            if (entryCursor != null) {
+                return getPage(entries, entryCursor, max, format); // The page closes the database cursor
+            }
+            entries = entries.limit(limit);
 
             // If the max is low enough, collect the results immediately and return them
-            if (limit > -1 && limit <= REPLY_STREAM_ACTIVATION) { // Return directly
-                return Response.accepted(entries.
-                        map(this::toReplyEntry).
-                        collect(Collectors.toList())).build();
+            if (format == EntryStreamingOutput.Format.JSON &&
+                limit > -1 && limit <= REPLY_STREAM_ACTIVATION) { // Return directly
+                try (Stream<FileEntry> directEntries = entries) {
+                    return Response.accepted(directEntries.
+                            map(this::toReplyEntry).
+                            collect(Collectors.toList())).build();
+                }
             }
 
-            // It is potentially a very large result, so stream it
-            throw streamReplies(entries);
+            // It is potentially a very large result or a non-JSON format, so stream it.
+            // The writer closes the database cursor
+            return Response.accepted(new EntryStreamingOutput(entries, format)).type(format.mimeType).build();
         } catch (Exception e) {
+            if (entries != null) {
+                entries.close();
+            }
             throw handleException(e);
-        } finally {
-            locks.readLock().unlock();
         }
     }
 
     /**
-     * Creates an "Exception" that signals HTTP 200 and delivers the FileEntries as a valid JSON stream.
-     * @param entries a stream of entries to deliver.
+     * Delivers a page of entries from the ordered entries, with the cursor for the next page as header if the page is
+     * full.
      */
-    private StreamingServiceException streamReplies(Stream<FileEntry> entries) {
-        locks.readLock().lock();
-        final Iterator<FileEntry> iterator = entries.iterator();
-        final AtomicBoolean first = new AtomicBoolean(true);
-        return new StreamingServiceException("application/json", new CallbackInputStream(
-                () -> { // Producer
-                    try {
-                        if (first.get()) {
-                            first.set(false);
-                            return "{\n" + (iterator.hasNext() ? "" : "}");
-                        }
-                        if (!iterator.hasNext()) { // Depleted
-                            return "";
-                        }
-                        return iterator.next().toJSON() + (iterator.hasNext() ? ",\n" : "\n}");
-                    } catch (Exception e) {
-
-                        locks.readLock().unlock();
-                        throw new RuntimeException("Exception while writing output", e);
-                    }
-                },
-                depleted -> { // Finalizer
-                    // Manual check with breakpoints shows that InputStream.close is called if the client disconnects
-                    // This causes the depleted-callback to fire and thus release the lock
-                    locks.readLock().unlock();
-                }
-        ));
+    private Response getPage(Stream<FileEntry> ordered, EntryCursor cursor, int pageSize,
+                             EntryStreamingOutput.Format format) {
+        List<FileEntry> page = cursor.page(ordered, pageSize);
+        Response.ResponseBuilder response = format == EntryStreamingOutput.Format.JSON ?
+                Response.accepted(page.stream().map(this::toReplyEntry).collect(Collectors.toList())) :
+                Response.accepted(new EntryStreamingOutput(page.stream(), format)).type(format.mimeType);
+        if (page.size() == pageSize) {
+            response.header(NEXT_CURSOR_HEADER, EntryCursor.after(page.get(pageSize-1)).toToken());
+        }
+        return response.build();
+    }
+
+    /**
+     * @return the cursor for the token, if the token is defined and max is a valid page size, else null.
+     * @throws InvalidArgumentServiceException if the token or max is invalid for paging.
+     */
+    private static EntryCursor toCursor(String token, Integer max) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        if (max == null || max < 1 || max > MAX_PAGE_SIZE) {
+            throw new InvalidArgumentServiceException(
+                    "max must be between 1 and " + MAX_PAGE_SIZE + " when using cursor, but was " + max);
+        }
+        try {
+            return EntryCursor.fromToken(token);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage(), e);
+        }
     }
 
     public synchronized long toEpoch(String iso) {
@@ -189,16 +208,13 @@ public class H2Impl implements MergedApi {
     public EntryReplyDto getEntryFromFilename(String filename) {
         FileEntry entry;
         try {
-            locks.readLock().lock();
-            entry = filenameMap.get(filename);
+            entry = persistence.getEntry(filename);
             if (entry != null) {
                 return toReplyEntry(entry);
             }
             throw new NoContentServiceException("Unable to locate an entry for '" + filename + "'");
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.readLock().unlock();
         }
     }
 
@@ -218,19 +234,56 @@ public class H2Impl implements MergedApi {
     @Override
     public List<EntryReplyDto> getEntriesFromFilenames(List<String> filenames) {
         try {
-            locks.readLock().lock();
-            return filenames.stream().
-                    map(filenameMap::get).
-                    filter(Objects::nonNull).
+            return persistence.getEntries(filenames).stream().
                     map(this::toReplyEntry).
                     collect(Collectors.toList());
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.readLock().unlock();
         }
     }
 
+    /**
+     * Get the entries (path, filename and lastSeen) for a newline-delimited list of filenames, given as the request body. The filenames are processed and the result is streamed as they are read, so there is no practical limit to the number of filenames
+     *
+     * @param httpServletRequest: The request with the newline-delimited filenames as body
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "NDJSON with the path, filename and lastSeen timestamps for located filenames and a not found marker for the rest", response = String.class</li>
+      *   <li>code = 500, message = "Internal Error", response = ErrorDto.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public Response lookupFilenames(HttpServletRequest httpServletRequest) {
+        log.debug("lookupFilenames() called");
+        try {
+            return Response.ok(new FilenameLookupStreamingOutput(httpServletRequest.getInputStream(),
+                    filenames -> {
+                        try {
+                            return persistence.lookup(filenames);
+                        } catch (SQLException e) {
+                            throw new RuntimeException("Exception looking up " + filenames.size() + " filenames", e);
+                        }
+                    }),
+                               FilenameLookupStreamingOutput.MIME_TYPE).build();
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * The change log is only supported by the in-memory implementations.
+     *
+     * @throws NotFoundServiceException always.
+     */
+    @Override
+    public ChangesReplyDto getChanges(Long from, Integer max, Integer waitSeconds) {
+        throw new NotFoundServiceException(
+                "The change log is only supported by the memory and compact implementations");
+    }
+
     /**
      * Get the number of files registered
      *
@@ -243,8 +296,26 @@ public class H2Impl implements MergedApi {
      */
     @Override
     public Integer getFilecount() {
-        log.debug("Returning filecount " + filenameMap.size()); // TODO: Delete
-        return filenameMap.size();
+        try {
+            return persistence.size();
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Get metrics for scans, purges, index locks, endpoint latencies and streaming in the Prometheus text format
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "Counters, gauges and histograms in the Prometheus text exposition format version 0.0.4", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public String getMetrics() {
+        return Metrics.instance().toPrometheus();
     }
 
     /**
@@ -277,16 +348,42 @@ public class H2Impl implements MergedApi {
     @Override
     public StatusReplyDto getStatus() {
         StatusReplyDto response = new StatusReplyDto();
-        response.setGeneral(String.format(Locale.ENGLISH, "%d roots, %d files", roots.size(), filenameMap.size()));
+        int files = getFilecount();
+        response.setGeneral(String.format(Locale.ENGLISH, "%d roots, %d files", roots.size(), files));
         response.setRoots(roots);
-        response.setFiles(filenameMap.size());
+        response.setFiles(files);
         response.setState(ScanBot.instance().getState() == ScanBot.STATE.idle ?
                                   StatusReplyDto.StateEnum.IDLE :
                                   StatusReplyDto.StateEnum.SCANNING);
         response.setCurrentScanFolder(ScanBot.instance().getActivePath());
+        response.setScans(getScanStatus());
         return response;
     }
 
+    private static List<RootScanStatusDto> getScanStatus() {
+        List<RootScanStatusDto> scans = new ArrayList<>();
+        for (ScanBot.RootProgress progress: ScanBot.instance().getRootProgress()) {
+            RootScanStatusDto scan = new RootScanStatusDto();
+            scan.setRoot(progress.getRoot());
+            scan.setState(progress.isActive() ?
+                                  RootScanStatusDto.StateEnum.SCANNING :
+                                  RootScanStatusDto.StateEnum.IDLE);
+            scan.setFoldersVisited(progress.getFoldersVisited());
+            scan.setFilesSeen(progress.getFilesSeen());
+            scan.setStartTime(FileEntry.formatISO8601(progress.getStartTime()));
+            if (progress.getEndTime() != -1) {
+                scan.setEndTime(FileEntry.formatISO8601(progress.getEndTime()));
+            }
+            scan.setCurrentScanFolder(progress.getActivePath());
+            long eta = progress.getEtaMS();
+            if (eta != -1) {
+                scan.setEtaMS(eta);
+            }
+            scans.add(scan);
+        }
+        return scans;
+    }
+
     /**
      * Ping the server to check if the server is reachable
      *
@@ -305,12 +402,12 @@ public class H2Impl implements MergedApi {
     }
 
     /**
-     * Start a scan of all or some of the roots. If a scan is already running a new one will not be started
+     * Start a scan of all or some of the roots. Roots that are already being scanned are skipped. Scans of different roots run concurrently
      *
      * @param rootPattern: A pattern for the roots to scan
      *
      * @return <ul>
-      *   <li>code = 200, message = "A list of the roots for the started scan or the empty list if the pattern did not match any roots or a scan was already running", response = RootsReplyDto.class</li>
+      *   <li>code = 200, message = "A list of the roots for the started scan or the empty list if the pattern did not match any roots that were not already being scanned", response = RootsReplyDto.class</li>
       *   </ul>
       * @throws ServiceException when other http codes should be returned
       *
@@ -322,11 +419,11 @@ public class H2Impl implements MergedApi {
         Pattern pattern = Pattern.compile(rootPattern);
         List<String> scanRoots = roots.stream().
                 filter(root -> pattern.matcher(root).matches()).
+                filter(root -> !ScanBot.instance().isScanning(root)).
                 collect(Collectors.toList());
 
         final long startTime = System.currentTimeMillis();
         if (scanRoots.isEmpty() ||
-            !ScanBot.instance().isReady() ||
             !ScanBot.instance().startScan(scanRoots, this::acceptFolder, new Purger(scanRoots, startTime))) {
             // TODO: Better return message
             RootsReplyDto response = new RootsReplyDto();
@@ -339,6 +436,42 @@ public class H2Impl implements MergedApi {
         return response;
     }
 
+    /**
+     * Start a scan of a folder, including its sub-folders. The folder must be one of the roots or below one of the roots. When the scan has finished, entries under the folder that were not found are removed. Entries outside of the folder are not affected. If a scan of the folder, a folder above it or a folder below it is already running a new one will not be started
+     *
+     * @param path: The folder to scan
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "A list with the scanned folder or the empty list if a scan overlapping the folder was already running", response = RootsReplyDto.class</li>
+      *   <li>code = 400, message = "If the path is not a root or below one of the roots", response = ErrorDto.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public RootsReplyDto scanPath(String path) {
+        log.debug("scanPath(path=" + path + ") called");
+        if (path == null || path.isEmpty()) {
+            throw new InvalidArgumentServiceException("A path must be specified");
+        }
+        final Path folder = Paths.get(path).toAbsolutePath().normalize();
+        if (roots.stream().map(root -> Paths.get(root).toAbsolutePath().normalize()).noneMatch(folder::startsWith)) {
+            throw new InvalidArgumentServiceException(
+                    "The path '" + path + "' is not one of the roots or below one of the roots " + roots);
+        }
+
+        final long startTime = System.currentTimeMillis();
+        RootsReplyDto response = new RootsReplyDto();
+        if (!ScanBot.instance().startScan(Collections.singletonList(folder.toString()), this::acceptFolder,
+                                         () -> purgeFolder(folder.toString(), startTime))) {
+            response.setRoots(Collections.emptyList());
+            return response;
+        }
+        response.setRoots(Collections.singletonList(folder.toString()));
+        return response;
+    }
+
     /**
      * Inform the service of an added files. If a file is already known, its timestamp is updated
      *
@@ -369,12 +502,9 @@ public class H2Impl implements MergedApi {
 
         log.debug("addFiles adding " + keep.size() + "/" + files.size() + " files");
         try {
-            locks.writeLock().lock();
-            keep.forEach(entry -> filenameMap.put(entry.filename, entry));
+            persistence.putAll(keep);
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.writeLock().unlock();
         }
 
         return feedback;
@@ -410,12 +540,9 @@ public class H2Impl implements MergedApi {
 
         log.debug("removeFiles removing " + remove.size() + "/" + files.size() + " files");
         try {
-            locks.writeLock().lock();
-            remove.forEach(entry -> filenameMap.remove(entry.filename));
+            persistence.removeAll(remove.stream().map(entry -> entry.filename).collect(Collectors.toList()));
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.writeLock().unlock();
         }
 
         return feedback;
@@ -442,44 +569,89 @@ public class H2Impl implements MergedApi {
 
         @Override
         public void run() {
+            final long startNS = System.nanoTime();
             long purgeCount = 0;
             try {
-                locks.writeLock().lock();
-                Iterator<Map.Entry<String, FileEntry>> entries = filenameMap.entrySet().iterator();
-                while (entries.hasNext()) {
-                    FileEntry entry = entries.next().getValue();
-                    if (entry.lastSeen < minTime) { // Old entry. Check if it was under one of the scanned roots
-                        for (String root : roots) {
-                            if (entry.path.startsWith(root)) { // Old and under one of the roots: Purge it
-                                entries.remove();
-                                purgeCount++;
-                                break;
-                            }
-                        }
-                    }
+                flushPending(); // Ensure that all scanned entries are stored before purging
+                for (String root : roots) {
+                    purgeCount += persistence.purge(root, minTime);
                 }
             } catch (Exception e) {
                 log.warn(String.format(Locale.ENGLISH, "Unhandled Exception during purge with roots=%s, minTime=%d",
                                        roots, minTime), e);
-            } finally {
-                locks.writeLock().unlock();
             }
+            purgeDuration.observeSince(startNS);
+            purgedEntries.add(purgeCount);
             log.debug("Purged " + purgeCount + " entries for deleted files for roots '" + roots);
         }
     }
 
 
-    private void acceptFolder(ScanBot.Folder folder) {
-        log.debug("acceptFolder(" + folder + ") called");
+    /**
+     * Removes entries under the folder that are older than minTime, after storing all scanned entries.
+     */
+    private static void purgeFolder(String folder, long minTime) {
+        final long startNS = System.nanoTime();
+        long purgeCount = 0;
         try {
-            locks.writeLock().lock();
-            folder.forEach(entry -> filenameMap.put(entry.filename, entry));
+            flushPending(); // Ensure that all scanned entries are stored before purging
+            purgeCount = persistence.purgeFolder(folder, minTime);
         } catch (Exception e) {
-            throw handleException(e);
-        } finally {
-            locks.writeLock().unlock();
+            log.warn(String.format(Locale.ENGLISH, "Unhandled Exception during purge of folder '%s', minTime=%d",
+                                   folder, minTime), e);
+        }
+        purgeDuration.observeSince(startNS);
+        purgedEntries.add(purgeCount);
+        log.debug("Purged " + purgeCount + " entries for deleted files under '" + folder + "'");
+    }
+
+    /**
+     * Adds the folder entries to {@link #pending}, flushing to the database when the batch size has been reached.
+     * Many small folders are thereby written in few transactions.
+     * Unchanged folders are handled by updating lastSeen for the existing entries.
+     */
+    private void acceptFolder(ScanBot.Folder folder) {
+        log.debug("acceptFolder(" + folder + ") called");
+        if (folder.unchanged) {
+            try {
+                long touched = persistence.touchFolder(folder.folder, System.currentTimeMillis());
+                if (touched != folder.knownFileCount) {
+                    // The database does not match the previous scan, so the folder must be fully scanned next time
+                    ScanBot.instance().forgetFolder(folder.folder);
+                }
+            } catch (Exception e) {
+                throw handleException(e);
+            }
+            return;
+        }
+        List<FileEntry> batch = null;
+        synchronized (pending) {
+            pending.addAll(folder);
+            if (pending.size() >= persistence.getBatchSize()) {
+                batch = new ArrayList<>(pending);
+                pending.clear();
+            }
+        }
+        if (batch != null) {
+            try {
+                persistence.putAll(batch);
+            } catch (Exception e) {
+                throw handleException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes all entries in {@link #pending} to the database.
+     * @throws SQLException if the entries could not be written.
+     */
+    private static void flushPending() throws SQLException {
+        List<FileEntry> batch;
+        synchronized (pending) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
         }
-        //log.debug("File count after accept=" + filenameMap.size());
+        persistence.putAll(batch);
     }
 
     private EntryReplyDto toReplyEntry(FileEntry fileEntry) {
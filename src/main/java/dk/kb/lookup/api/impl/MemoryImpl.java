@@ -1,33 +1,61 @@
 package dk.kb.lookup.api.impl;
 
-import dk.kb.lookup.CallbackInputStream;
+import dk.kb.lookup.ChangeLog;
+import dk.kb.lookup.EntryCursor;
+import dk.kb.lookup.EntryMatcher;
+import dk.kb.lookup.EntryStreamingOutput;
 import dk.kb.lookup.FileEntry;
+import dk.kb.lookup.FilenameLookupStreamingOutput;
+import dk.kb.lookup.IngestQueue;
+import dk.kb.lookup.Metrics;
+import dk.kb.lookup.PathPrefix;
+import dk.kb.lookup.QueryCache;
 import dk.kb.lookup.ScanBot;
+import dk.kb.lookup.WatchBot;
 import dk.kb.lookup.api.MergedApi;
 import dk.kb.lookup.config.ServiceConfig;
+import dk.kb.lookup.index.CompactIndex;
+import dk.kb.lookup.index.FolderDiff;
+import dk.kb.lookup.index.FolderListing;
+import dk.kb.lookup.index.IndexSnapshot;
+import dk.kb.lookup.index.MapIndex;
+import dk.kb.lookup.index.StripedIndex;
+import dk.kb.lookup.index.WriteAheadLog;
+import dk.kb.lookup.model.CacheStatusDto;
+import dk.kb.lookup.model.ChangeDto;
+import dk.kb.lookup.model.ChangesReplyDto;
 import dk.kb.lookup.model.EntryReplyDto;
+import dk.kb.lookup.model.RootScanStatusDto;
 import dk.kb.lookup.model.RootsReplyDto;
 import dk.kb.lookup.model.StatusReplyDto;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.webservice.exception.NoContentServiceException;
+import dk.kb.webservice.exception.NotFoundServiceException;
 import dk.kb.webservice.exception.ServiceException;
 import dk.kb.webservice.exception.StreamingServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Response;
 import java.io.File;
-import java.io.InputStream;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -42,16 +70,50 @@ public class MemoryImpl implements MergedApi {
     private static final Logger log = LoggerFactory.getLogger(MemoryImpl.class);
 
     public static final int REPLY_STREAM_ACTIVATION = 1000; // When more than this is requested, streaming is used
-    public static final int REPLY_SORT_LIMIT = 100_000; // Only accept sort requests up to this size
+    public static final int MAX_PAGE_SIZE = 100000; // Pages are collected in memory before delivery
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 600;
+    public static final long DEFAULT_WAL_MAX_BYTES = 100*1024*1024;
+    public static final int DEFAULT_MAX_WATCHES = 100000;
+    public static final long DEFAULT_ROOT_CHECK_INTERVAL_SECONDS = 60;
+    public static final int DEFAULT_QUERY_PARALLELISM = 1;
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 1000000;
+    public static final int DEFAULT_CACHE_MAX_RESULT_ENTRIES = 10000;
+    public static final int DEFAULT_INGEST_QUEUE_ENTRIES = 100000;
+    public static final int DEFAULT_INGEST_BATCH_ENTRIES = 10000;
+    public static final int DEFAULT_CHANGES_MAX_ENTRIES = 1000000;
+    public static final int DEFAULT_CHANGES_MAX_WAIT_SECONDS = 60;
+    public static final int DEFAULT_CHANGES_MAX = 1000;
 
     // Must be final as MemoryImpl are instantiated anew for each call
     private final static List<String> roots = ServiceConfig.getConfig().getList(".lookup.roots");
-    private final static Map<String, FileEntry> filenameMap = new HashMap<>();
-    private final static ReadWriteLock locks = new ReentrantReadWriteLock();
+    private final static StripedIndex index = createIndex();
+    private final static ForkJoinPool queryPool = createQueryPool();
+    private final static Metrics.Counter purgedEntries = Metrics.instance().counter(
+            "filelookup_purged_entries_total", "Entries removed for deleted files during or after scans");
+    private final static Metrics.Counter addedEntries = scanEntriesCounter("added");
+    private final static Metrics.Counter removedEntries = scanEntriesCounter("removed");
+    private final static Metrics.Counter unchangedEntries = scanEntriesCounter("unchanged");
+    private final static List<Consumer<FolderDiff>> folderDiffListeners = new CopyOnWriteArrayList<>();
+    private final static ChangeLog changeLog = createChangeLog();
+    private final static QueryCache queryCache = new QueryCache(
+            ServiceConfig.getConfig().getInteger(".lookup.cache.maxEntries", DEFAULT_CACHE_MAX_ENTRIES),
+            ServiceConfig.getConfig().getInteger(".lookup.cache.maxResultEntries", DEFAULT_CACHE_MAX_RESULT_ENTRIES),
+            index::getModificationCount);
+    private final static IngestQueue ingestQueue = createIngestQueue();
+    private static ScheduledExecutorService snapshotExecutor = null;
+    private static Path snapshotPath = null;
+    private static volatile WriteAheadLog wal = null;
+    // Held for reading while logging and applying changes, for writing while rotating the write-ahead log
+    private final static ReentrantReadWriteLock walLock = new ReentrantReadWriteLock();
+    private final static AtomicBoolean compacting = new AtomicBoolean(false);
+    private static WatchBot watchBot = null;
 
     /**
      * Get the entries (path, filename and lastSeen) based on a multiple optional constraints. All returned entries fulfills all given constraints. Note that this is potentially a heavy request
      *
+     * @param httpServletRequest: The request, used for resolving the output format from the Accept header
+     *
      * @param regexp: The regexp which will be matched against the full path + filename
      *
      * @param glob: Glob-style matcher, which will be matched against the full path + filename. See https://docs.oracle.com/javase/7/docs/api/java/nio/file/FileSystem.html#getPathMatcher(java.lang.String) for syntax
@@ -62,10 +124,13 @@ public class MemoryImpl implements MergedApi {
      *
      * @param max: The maximum number of entries to return, -1 if there is no limit
      *
-     * @param ordered: If true, the entries are returned ordered by their timestamp. Setting this to true with max&#x3D;-1 or max&gt;100000 will fail
+     * @param ordered: If true, the entries are returned ordered by their timestamp
+     *
+     * @param cursor: If present, the entries are delivered in pages of max entries, ordered by lastSeen and filename. Use * for the first page and the X-Next-Cursor header from the response for the following pages. When the X-Next-Cursor header is not present, there are no more entries. The cursor is stable, so a failed page can be requested again with the same cursor. max must be between 1 and 100000 when using cursor and ordered is ignored
      *
      * @return <ul>
       *   <li>code = 200, message = "A list with the path, filename and lastSeen timestamps for the matches, sorted oldest to newest. The list can be empty", response = EntryReplyDto.class, responseContainer = "List"</li>
+      *   <li>code = 400, message = "If the cursor is invalid or max is out of range for cursor paging", response = ErrorDto.class</li>
       *   <li>code = 500, message = "Internal Error", response = ErrorDto.class</li>
       *   </ul>
       * @throws ServiceException when other http codes should be returned
@@ -73,78 +138,102 @@ public class MemoryImpl implements MergedApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public Response getEntries(String regexp, String glob, String since, Long sinceEpochMS, Integer max, Boolean ordered) throws ServiceException {
+    public Response getEntries(HttpServletRequest httpServletRequest, String regexp, String glob, String since,
+                               Long sinceEpochMS, Integer max, Boolean ordered, String cursor)
+            throws ServiceException {
+        EntryStreamingOutput.Format format = EntryStreamingOutput.Format.fromAccept(
+                httpServletRequest == null ? null : httpServletRequest.getHeader("Accept"));
+        EntryCursor entryCursor = toCursor(cursor, max);
         long sinceEpoch = sinceEpochMS == null ? 0 : sinceEpochMS;
         if (since != null) {
             sinceEpoch = Math.max(sinceEpoch, toEpoch(since));
         }
+        if (entryCursor != null) {
+            sinceEpoch = Math.max(sinceEpoch, entryCursor.getSince());
+        }
 
         final long finalSince = sinceEpoch;
         final int limit = max == -1 ? Integer.MAX_VALUE : max;
-        Pattern pattern = regexp == null || regexp.isEmpty() ? null :
-                Pattern.compile(regexp);
-        PathMatcher globMatcher = glob == null  || glob.isEmpty() ? null :
-                FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        EntryMatcher matcher = EntryMatcher.get(regexp, glob);
 
-        ordered = ordered != null && ordered;
-        if (ordered && limit > REPLY_SORT_LIMIT) {
-            throw new InvalidArgumentServiceException(
-                    "Sorted response was requested but max=" + max + " exceeds the sort limit of " + REPLY_SORT_LIMIT);
-        }
+        ordered = entryCursor != null || (ordered != null && ordered); // Paging requires ordering
+        // Only entries under the literal prefix of the regexp and glob are considered
+        String prefix = PathPrefix.fromQuery(regexp, glob);
 
+        final boolean finalOrdered = ordered;
         try {
-            locks.readLock().lock();
-
-            // Create a stream with the entries
-            Stream<FileEntry> entries = filenameMap.values().stream().
-                    filter(entry -> entry.lastSeen >= finalSince).
-                    filter(entry -> pattern == null || pattern.matcher(entry.getFullpath()).matches()).
-                    filter(entry -> globMatcher == null || globMatcher.matches(Paths.get(entry.getFullpath()))).
-                    limit(limit);
-
-            // Sort if needed
-            entries = ordered ? entries.sorted(Comparator.comparingLong(e -> e.lastSeen)) : entries;
-
-            // Convert to reply objects
-            Stream<EntryReplyDto> replyEntries = entries.map(this::toReplyEntry);
+            // Create a stream with the entries. The path and time indexes delivers only entries with the prefix and
+            // at or after since, ordered if requested, so no sorting is needed here. No locks are held while streaming
+            // If enabled, the regexp and glob are evaluated in parallel for the stripes of the index
+            if (entryCursor != null) {
+                // The index walk starts directly after the cursor, so only the entries for the page are read
+                final String afterFilename = entryCursor.getSince() == finalSince ? entryCursor.getFilename() : null;
+                return getPage(queryPool != null && !matcher.matchesAll() ?
+                                       index.snapshotAfter(prefix, finalSince, afterFilename, matcher, max, queryPool) :
+                                       index.snapshotAfter(prefix, finalSince, afterFilename).filter(matcher),
+                               entryCursor, max, format);
+            }
+            Supplier<Stream<FileEntry>> query = () -> queryPool != null && !matcher.matchesAll() ?
+                    index.snapshot(prefix, finalSince, finalOrdered, matcher, limit, queryPool) :
+                    (!prefix.isEmpty() || finalSince > 0 || finalOrdered ?
+                            index.snapshot(prefix, finalSince, finalOrdered) :
+                            index.stream()).
+                            filter(matcher);
+            // Repeated queries are served from the cache until the index changes
+            Stream<FileEntry> entries = queryCache.query(
+                    Arrays.asList(regexp, glob, finalSince, limit, finalOrdered), () -> query.get().limit(limit));
 
             // If the max is low enough, collect the results immediately and return them
-            if (limit > -1 && limit <= REPLY_STREAM_ACTIVATION) { // Return directly
-                return Response.accepted(replyEntries.collect(Collectors.toList())).build();
+            if (format == EntryStreamingOutput.Format.JSON &&
+                limit > -1 && limit <= REPLY_STREAM_ACTIVATION) { // Return directly
+                try (Stream<FileEntry> directEntries = entries) { // Closing stops parallel filtering
+                    return Response.accepted(directEntries.
+                            map(this::toReplyEntry).
+                            collect(Collectors.toList())).build();
+                }
             }
 
-            // It is potentially a very large result, so stream it
-            return Response.accepted(streamReplies(replyEntries)).build();
+            // It is potentially a very large result or a non-JSON format, so stream it. No locks are held during
+            // streaming, so slow clients does not block updates
+            return Response.accepted(new EntryStreamingOutput(entries, format)).type(format.mimeType).build();
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.readLock().unlock();
         }
     }
 
     /**
-     * Streams replies as valid JSON, taking care of releasing the read lock.
-     * @param entries the entries to stream.
-     * @return an InputStream lazily populated by the entries stream.
+     * Delivers a page of entries from the ordered entries, with the cursor for the next page as header if the page is
+     * full.
      */
-    private InputStream streamReplies(Stream<EntryReplyDto> entries) {
-        locks.readLock().lock();
-        final Iterator<EntryReplyDto> iterator = entries.iterator();
-        return new CallbackInputStream(CallbackInputStream.makeJSONProducer(
-                () -> { // Producer
-                    try {
-                        return iterator.hasNext() ? iterator.next() : null;
-                    } catch (Exception e) {
-                        locks.readLock().unlock();
-                        throw new RuntimeException("Exception while writing output", e);
-                    }
-                }),
-                depleted -> { // Finalizer
-                    // Manual check with breakpoints shows that InputStream.close is called if the client disconnects
-                    // This causes the depleted-callback to fire and thus release the lock
-                    locks.readLock().unlock();
-                }
-        );
+    private Response getPage(Stream<FileEntry> ordered, EntryCursor cursor, int pageSize,
+                             EntryStreamingOutput.Format format) {
+        List<FileEntry> page = cursor.page(ordered, pageSize);
+        Response.ResponseBuilder response = format == EntryStreamingOutput.Format.JSON ?
+                Response.accepted(page.stream().map(this::toReplyEntry).collect(Collectors.toList())) :
+                Response.accepted(new EntryStreamingOutput(page.stream(), format)).type(format.mimeType);
+        if (page.size() == pageSize) {
+            response.header(NEXT_CURSOR_HEADER, EntryCursor.after(page.get(pageSize-1)).toToken());
+        }
+        return response.build();
+    }
+
+    /**
+     * @return the cursor for the token, if the token is defined and max is a valid page size, else null.
+     * @throws InvalidArgumentServiceException if the token or max is invalid for paging.
+     */
+    private static EntryCursor toCursor(String token, Integer max) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        if (max == null || max < 1 || max > MAX_PAGE_SIZE) {
+            throw new InvalidArgumentServiceException(
+                    "max must be between 1 and " + MAX_PAGE_SIZE + " when using cursor, but was " + max);
+        }
+        try {
+            return EntryCursor.fromToken(token);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage(), e);
+        }
     }
 
     public synchronized long toEpoch(String iso) {
@@ -176,16 +265,13 @@ public class MemoryImpl implements MergedApi {
     public EntryReplyDto getEntryFromFilename(String filename) {
         FileEntry entry;
         try {
-            locks.readLock().lock();
-            entry = filenameMap.get(filename);
+            entry = index.get(filename);
             if (entry != null) {
                 return toReplyEntry(entry);
             }
             throw new NoContentServiceException("Unable to locate an entry for '" + filename + "'");
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.readLock().unlock();
         }
     }
 
@@ -205,16 +291,86 @@ public class MemoryImpl implements MergedApi {
     @Override
     public List<EntryReplyDto> getEntriesFromFilenames(List<String> filenames) {
         try {
-            locks.readLock().lock();
             return filenames.stream().
-                    map(filenameMap::get).
+                    map(index::get).
                     filter(Objects::nonNull).
                     map(this::toReplyEntry).
                     collect(Collectors.toList());
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the entries (path, filename and lastSeen) for a newline-delimited list of filenames, given as the request body. The filenames are processed and the result is streamed as they are read, so there is no practical limit to the number of filenames
+     *
+     * @param httpServletRequest: The request with the newline-delimited filenames as body
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "NDJSON with the path, filename and lastSeen timestamps for located filenames and a not found marker for the rest", response = String.class</li>
+      *   <li>code = 500, message = "Internal Error", response = ErrorDto.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public Response lookupFilenames(HttpServletRequest httpServletRequest) {
+        log.debug("lookupFilenames() called");
+        try {
+            return Response.ok(new FilenameLookupStreamingOutput(httpServletRequest.getInputStream(),
+                    filenames -> filenames.stream().map(index::get).collect(Collectors.toList())),
+                               FilenameLookupStreamingOutput.MIME_TYPE).build();
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Get the changes to the index (added, updated and removed files) in the order they happened. Consumers tail the changes by calling repeatedly with from set to nextSequence from the previous reply. Refreshes of lastSeen for known files during scans are not included. Only supported by the memory and compact implementations
+     *
+     * @param from: The sequence number for the first change to deliver. If not specified, only changes after the call are delivered
+     *
+     * @param max: The maximum number of changes to deliver
+     *
+     * @param waitSeconds: If there are no changes from the requested sequence number, wait up to this number of seconds for changes before replying (long polling). Capped by the server configuration
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "The changes, which might be empty, and the sequence number for the next call", response = ChangesReplyDto.class</li>
+      *   <li>code = 400, message = "If max is less than 1", response = ErrorDto.class</li>
+      *   <li>code = 404, message = "If the change log is disabled or not supported by the implementation", response = ErrorDto.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public ChangesReplyDto getChanges(Long from, Integer max, Integer waitSeconds) {
+        log.debug("getChanges(from=" + from + ", max=" + max + ", waitSeconds=" + waitSeconds + ") called");
+        if (changeLog == null) {
+            throw new NotFoundServiceException("The change log is disabled as .lookup.changes.maxEntries is below 1");
+        }
+        if (max == null) {
+            max = DEFAULT_CHANGES_MAX;
+        }
+        if (max < 1) {
+            throw new InvalidArgumentServiceException("max must be at least 1 but was " + max);
+        }
+        long waitMS = 1000L * Math.max(0, Math.min(waitSeconds == null ? 0 : waitSeconds, ServiceConfig.getConfig().
+                getInteger(".lookup.changes.maxWaitSeconds", DEFAULT_CHANGES_MAX_WAIT_SECONDS)));
+        try {
+            ChangeLog.Changes changes = changeLog.getChanges(from == null ? -1 : from, max, waitMS);
+            ChangesReplyDto reply = new ChangesReplyDto();
+            reply.setChanges(changes.changes.stream().map(MemoryImpl::toChange).collect(Collectors.toList()));
+            reply.setFirstSequence(changes.firstSequence);
+            reply.setNextSequence(changes.nextSequence);
+            reply.setGap(changes.gap);
+            return reply;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServiceException("Interrupted while waiting for changes");
+        } catch (Exception e) {
+            throw handleException(e);
         }
     }
 
@@ -230,8 +386,23 @@ public class MemoryImpl implements MergedApi {
      */
     @Override
     public Integer getFilecount() {
-        log.debug("Returning filecount " + filenameMap.size()); // TODO: Delete
-        return filenameMap.size();
+        log.debug("Returning filecount " + index.size()); // TODO: Delete
+        return index.size();
+    }
+
+    /**
+     * Get metrics for scans, purges, index locks, endpoint latencies and streaming in the Prometheus text format
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "Counters, gauges and histograms in the Prometheus text exposition format version 0.0.4", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public String getMetrics() {
+        return Metrics.instance().toPrometheus();
     }
 
     /**
@@ -264,16 +435,56 @@ public class MemoryImpl implements MergedApi {
     @Override
     public StatusReplyDto getStatus() {
         StatusReplyDto response = new StatusReplyDto();
-        response.setGeneral(String.format(Locale.ENGLISH, "%d roots, %d files", roots.size(), filenameMap.size()));
+        response.setGeneral(String.format(Locale.ENGLISH, "%d roots, %d files", roots.size(), index.size()));
         response.setRoots(roots);
-        response.setFiles(filenameMap.size());
-        response.setState(ScanBot.instance().getState() == ScanBot.STATE.idle ?
+        response.setFiles(index.size());
+        // Folders from a finished scan might still be waiting to be added to the index
+        response.setState(ScanBot.instance().getState() == ScanBot.STATE.idle &&
+                          (ingestQueue == null || ingestQueue.isIdle()) ?
                                   StatusReplyDto.StateEnum.IDLE :
                                   StatusReplyDto.StateEnum.SCANNING);
         response.setCurrentScanFolder(ScanBot.instance().getActivePath());
+        response.setScans(getScanStatus());
+        response.setCache(getCacheStatus());
         return response;
     }
 
+    private static List<RootScanStatusDto> getScanStatus() {
+        List<RootScanStatusDto> scans = new ArrayList<>();
+        for (ScanBot.RootProgress progress: ScanBot.instance().getRootProgress()) {
+            RootScanStatusDto scan = new RootScanStatusDto();
+            scan.setRoot(progress.getRoot());
+            scan.setState(progress.isActive() ?
+                                  RootScanStatusDto.StateEnum.SCANNING :
+                                  RootScanStatusDto.StateEnum.IDLE);
+            scan.setFoldersVisited(progress.getFoldersVisited());
+            scan.setFilesSeen(progress.getFilesSeen());
+            scan.setStartTime(FileEntry.formatISO8601(progress.getStartTime()));
+            if (progress.getEndTime() != -1) {
+                scan.setEndTime(FileEntry.formatISO8601(progress.getEndTime()));
+            }
+            scan.setCurrentScanFolder(progress.getActivePath());
+            long eta = progress.getEtaMS();
+            if (eta != -1) {
+                scan.setEtaMS(eta);
+            }
+            scans.add(scan);
+        }
+        return scans;
+    }
+
+    private static CacheStatusDto getCacheStatus() {
+        CacheStatusDto cache = new CacheStatusDto();
+        cache.setEnabled(queryCache.isEnabled());
+        cache.setResults(queryCache.getResultCount());
+        cache.setEntries(queryCache.getEntryCount());
+        cache.setHits(queryCache.getHits());
+        cache.setMisses(queryCache.getMisses());
+        cache.setInvalidations(queryCache.getInvalidations());
+        cache.setEvictions(queryCache.getEvictions());
+        return cache;
+    }
+
     /**
      * Ping the server to check if the server is reachable
      *
@@ -292,12 +503,12 @@ public class MemoryImpl implements MergedApi {
     }
 
     /**
-     * Start a scan of all or some of the roots. If a scan is already running a new one will not be started
+     * Start a scan of all or some of the roots. Roots that are already being scanned are skipped. Scans of different roots run concurrently
      *
      * @param rootPattern: A pattern for the roots to scan
      *
      * @return <ul>
-      *   <li>code = 200, message = "A list of the roots for the started scan or the empty list if the pattern did not match any roots or a scan was already running", response = RootsReplyDto.class</li>
+      *   <li>code = 200, message = "A list of the roots for the started scan or the empty list if the pattern did not match any roots that were not already being scanned", response = RootsReplyDto.class</li>
       *   </ul>
       * @throws ServiceException when other http codes should be returned
       *
@@ -309,12 +520,12 @@ public class MemoryImpl implements MergedApi {
         Pattern pattern = Pattern.compile(rootPattern);
         List<String> scanRoots = roots.stream().
                 filter(root -> pattern.matcher(root).matches()).
+                filter(root -> !ScanBot.instance().isScanning(root)).
                 collect(Collectors.toList());
 
-        final long startTime = System.currentTimeMillis();
+        // Entries for deleted files are removed folder by folder during the scan, so no finalizer is needed
         if (scanRoots.isEmpty() ||
-            !ScanBot.instance().isReady() ||
-            !ScanBot.instance().startScan(scanRoots, this::acceptFolder, new Purger(scanRoots, startTime))) {
+            !ScanBot.instance().startScan(scanRoots, folderConsumer(), null)) {
             // TODO: Better return message
             RootsReplyDto response = new RootsReplyDto();
             response.setRoots(Collections.emptyList());
@@ -326,6 +537,56 @@ public class MemoryImpl implements MergedApi {
         return response;
     }
 
+    /**
+     * Start a scan of a folder, including its sub-folders. The folder must be one of the roots or below one of the roots. When the scan has finished, entries under the folder that were not found are removed. Entries outside of the folder are not affected. If a scan of the folder, a folder above it or a folder below it is already running a new one will not be started
+     *
+     * @param path: The folder to scan
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "A list with the scanned folder or the empty list if a scan overlapping the folder was already running", response = RootsReplyDto.class</li>
+      *   <li>code = 400, message = "If the path is not a root or below one of the roots", response = ErrorDto.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public RootsReplyDto scanPath(String path) {
+        log.debug("scanPath(path=" + path + ") called");
+        final Path folder = resolveBelowRoots(path);
+
+        RootsReplyDto response = new RootsReplyDto();
+        if (!ScanBot.instance().startScan(Collections.singletonList(folder.toString()), folderConsumer(), null)) {
+            response.setRoots(Collections.emptyList());
+            return response;
+        }
+        response.setRoots(Collections.singletonList(folder.toString()));
+        return response;
+    }
+
+    /**
+     * Resolves the folder against the configured roots. The returned path starts with the root as it is written in
+     * the configuration, so that the entries from scanning the folder have the same paths as the entries from
+     * scanning the full root.
+     * @param path a folder.
+     * @return the folder expressed relative to the root string that contains it.
+     * @throws InvalidArgumentServiceException if the folder is not one of the roots or below one of the roots.
+     */
+    private static Path resolveBelowRoots(String path) {
+        if (path == null || path.isEmpty()) {
+            throw new InvalidArgumentServiceException("A path must be specified");
+        }
+        Path folder = Paths.get(path).toAbsolutePath().normalize();
+        for (String root: roots) {
+            Path rootPath = Paths.get(root).toAbsolutePath().normalize();
+            if (folder.startsWith(rootPath)) {
+                return Paths.get(root).resolve(rootPath.relativize(folder));
+            }
+        }
+        throw new InvalidArgumentServiceException(
+                "The path '" + path + "' is not one of the roots or below one of the roots " + roots);
+    }
+
     /**
      * Inform the service of an added files. If a file is already known, its timestamp is updated
      *
@@ -356,12 +617,9 @@ public class MemoryImpl implements MergedApi {
 
         log.debug("addFiles adding " + keep.size() + "/" + files.size() + " files");
         try {
-            locks.writeLock().lock();
-            keep.forEach(entry -> filenameMap.put(entry.filename, entry));
+            logAndApply(WriteAheadLog::logAdded, keep, () -> putAndRecord(keep));
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.writeLock().unlock();
         }
 
         return feedback;
@@ -397,12 +655,10 @@ public class MemoryImpl implements MergedApi {
 
         log.debug("removeFiles removing " + remove.size() + "/" + files.size() + " files");
         try {
-            locks.writeLock().lock();
-            remove.forEach(entry -> filenameMap.remove(entry.filename));
+            logAndApply(WriteAheadLog::logRemoved, remove,
+                        () -> remove.forEach(entry -> removeAndRecord(entry.filename)));
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.writeLock().unlock();
         }
 
         return feedback;
@@ -410,63 +666,582 @@ public class MemoryImpl implements MergedApi {
 
     /* ----------------------------------------------------------------------------------- */
 
+    /**
+     * If {@code .lookup.snapshot.file} is defined, the index is loaded from the snapshot file (if it exists), the
+     * changes from addFiles and removeFiles after the snapshot are replayed from the write-ahead log and periodic
+     * writing of snapshots is started. This should be called before the first scan is started, so that lookups can
+     * be served while the scan reconciles the index with the file system.
+     */
+    public static synchronized void initSnapshots() {
+        String snapshotFile = ServiceConfig.getConfig().getString(".lookup.snapshot.file", null);
+        if (snapshotFile == null || snapshotFile.isEmpty()) {
+            log.info("No index snapshots as .lookup.snapshot.file is not defined");
+            return;
+        }
+        final Path snapshot = Paths.get(snapshotFile);
+        if (Files.exists(snapshot)) {
+            try {
+                IndexSnapshot.load(snapshot, index);
+            } catch (Exception e) {
+                log.warn("Unable to load snapshot from '" + snapshot + "'. Relying on scans to populate the index", e);
+            }
+        } else {
+            log.info("No snapshot at '" + snapshot + "'. The index will be populated by scans");
+        }
+        snapshotPath = snapshot;
+
+        long interval = ServiceConfig.getConfig().getLong(
+                ".lookup.snapshot.intervalSeconds", DEFAULT_SNAPSHOT_INTERVAL_SECONDS);
+        initWAL(snapshot, interval > 0);
+        if (interval <= 0) {
+            log.info("No periodic snapshots as .lookup.snapshot.intervalSeconds=" + interval);
+            return;
+        }
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+        }
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MemoryImpl_snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotExecutor.scheduleWithFixedDelay(() -> writeSnapshot(snapshot), interval, interval, TimeUnit.SECONDS);
+        log.info("Scheduled index snapshots to '" + snapshot + "' every " + interval + " seconds");
+    }
 
     /**
-     * Removes entries under the given roots that are older than minTime,
+     * Stops periodic writing of snapshots, if started, and closes the write-ahead log.
      */
-    private static class Purger implements Runnable {
-        final List<String> roots;
-        final long minTime;
+    public static synchronized void stopSnapshots() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            snapshotExecutor = null;
+        }
+        closeWAL();
+    }
 
-        /**
-         * @param roots the roots to consider when removing entries.
-         * @param minTime the minimum time for an entry under the roots to be preserved.
-         */
-        public Purger(List<String> roots, long minTime) {
-            this.roots = roots;
-            this.minTime = minTime;
+    /**
+     * If {@code .lookup.wal.enabled} is true, the changes in the write-ahead log for the snapshot are applied to the
+     * index and the log is opened for logging changes from addFiles and removeFiles. The log is compacted when a
+     * snapshot is written, so it is only opened if snapshots are written.
+     * @param snapshot    the snapshot that the log complements.
+     * @param compactable true if snapshots are written periodically.
+     */
+    private static void initWAL(Path snapshot, boolean compactable) {
+        closeWAL();
+        if (!ServiceConfig.getConfig().getBoolean(".lookup.wal.enabled", true)) {
+            log.info("No write-ahead log as .lookup.wal.enabled is false. Changes from addFiles and removeFiles " +
+                     "are lost on restart until rediscovered by a scan");
+            return;
+        }
+        final Path base = snapshot.resolveSibling(snapshot.getFileName() + ".wal");
+        try {
+            WriteAheadLog.replay(base, index);
+        } catch (Exception e) {
+            log.warn("Unable to replay write-ahead log '" + base + "'. Changes from addFiles and removeFiles " +
+                     "after the snapshot are lost until rediscovered by a scan", e);
+        }
+        if (!compactable) {
+            log.warn("No logging of changes to '" + base + "' as snapshots are not written, so the log could " +
+                     "never be compacted");
+            return;
+        }
+        try {
+            wal = new WriteAheadLog(base);
+        } catch (Exception e) {
+            log.warn("Unable to open write-ahead log '" + base + "'. Changes from addFiles and removeFiles " +
+                     "are lost on restart until rediscovered by a scan", e);
+        }
+    }
+
+    private static void closeWAL() {
+        if (wal == null) {
+            return;
+        }
+        try {
+            wal.close();
+        } catch (IOException e) {
+            log.warn("Exception closing " + wal, e);
+        }
+        wal = null;
+    }
+
+    /**
+     * Logs the entries to the write-ahead log, if enabled, and applies the change. The log is not rotated between the
+     * two, so a snapshot written after the rotation always holds the changes from the rotated generations.
+     * If the log grows beyond {@code .lookup.wal.maxBytes}, a snapshot is scheduled, which compacts the log.
+     * @param logger  logs the entries.
+     * @param entries the added or removed entries.
+     * @param apply   applies the change to the index.
+     * @throws IOException if the entries could not be logged, in which case the change is not applied.
+     */
+    private static void logAndApply(WALWriter logger, List<FileEntry> entries, Runnable apply) throws IOException {
+        final WriteAheadLog currentWAL = wal;
+        walLock.readLock().lock();
+        try {
+            if (currentWAL != null) {
+                logger.write(currentWAL, entries);
+            }
+            apply.run();
+        } finally {
+            walLock.readLock().unlock();
+        }
+        if (currentWAL != null &&
+            currentWAL.getBytes() > ServiceConfig.getConfig().getLong(".lookup.wal.maxBytes", DEFAULT_WAL_MAX_BYTES)) {
+            scheduleCompaction();
         }
+    }
 
-        @Override
-        public void run() {
-            long purgeCount = 0;
+    private static synchronized void scheduleCompaction() {
+        if (snapshotExecutor == null || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+        final Path snapshot = snapshotPath;
+        log.info("Scheduling snapshot ahead of time as the write-ahead log exceeds .lookup.wal.maxBytes");
+        snapshotExecutor.execute(() -> {
             try {
-                locks.writeLock().lock();
-                Iterator<Map.Entry<String, FileEntry>> entries = filenameMap.entrySet().iterator();
-                while (entries.hasNext()) {
-                    FileEntry entry = entries.next().getValue();
-                    if (entry.lastSeen < minTime) { // Old entry. Check if it was under one of the scanned roots
-                        for (String root : roots) {
-                            if (entry.path.startsWith(root)) { // Old and under one of the roots: Purge it
-                                entries.remove();
-                                purgeCount++;
-                                break;
-                            }
-                        }
+                writeSnapshot(snapshot);
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface WALWriter {
+        void write(WriteAheadLog wal, List<FileEntry> entries) throws IOException;
+    }
+
+    /**
+     * If {@code .lookup.watch.enabled} is true, the roots are watched for file system changes and created or deleted
+     * files are reflected in the index immediately. This should be called after {@link #initSnapshots()}.
+     */
+    public static synchronized void initWatch() {
+        if (!ServiceConfig.getConfig().getBoolean(".lookup.watch.enabled", false)) {
+            log.info("No watching of roots as .lookup.watch.enabled is false");
+            return;
+        }
+        stopWatch();
+        try {
+            watchBot = new WatchBot(
+                    roots,
+                    ServiceConfig.getConfig().getInteger(".lookup.watch.maxWatches", DEFAULT_MAX_WATCHES),
+                    ServiceConfig.getConfig().getLong(".lookup.watch.rootCheckIntervalSeconds",
+                                                      DEFAULT_ROOT_CHECK_INTERVAL_SECONDS) * 1000,
+                    MemoryImpl::filesCreated, MemoryImpl::pathsDeleted, MemoryImpl::rescanFolder);
+        } catch (Exception e) {
+            log.warn("Unable to start watching roots " + roots + ". Changes will only be discovered by scans", e);
+        }
+    }
+
+    /**
+     * Stops watching the roots, if started.
+     */
+    public static synchronized void stopWatch() {
+        if (watchBot != null) {
+            watchBot.close();
+            watchBot = null;
+        }
+    }
+
+    /**
+     * Adds the files, reported by {@link WatchBot}, to the index.
+     */
+    private static void filesCreated(List<Path> files) {
+        putAndRecord(files.stream().
+                map(file -> new FileEntry(file.getParent().toString(), file.getFileName().toString())).
+                collect(Collectors.toList()));
+        log.debug("Added " + files.size() + " created files from watch");
+    }
+
+    /**
+     * Removes the files or folders, reported by {@link WatchBot}, from the index. As it is not known whether a
+     * deleted path was a file or a folder, both are removed.
+     */
+    private static void pathsDeleted(List<Path> paths) {
+        long removed = 0;
+        for (Path path: paths) {
+            if (path.getParent() != null && path.getFileName() != null) { // Deleted file
+                FileEntry entry = index.get(path.getFileName().toString());
+                if (entry != null && entry.path.equals(path.getParent().toString()) &&
+                    index.remove(entry.filename)) {
+                    recordRemovals(Collections.singletonList(entry));
+                    removed++;
+                }
+            }
+            removed += removeUnder(path, Long.MAX_VALUE); // Deleted folder
+        }
+        log.debug("Removed " + removed + " entries for " + paths.size() + " deleted paths from watch");
+    }
+
+    /**
+     * Lists the folder and all its sub-folders, updating the index with the found files and removing entries for
+     * files under the folder that were not found. Used when {@link WatchBot} has lost events.
+     * @param folder the folder to rescan.
+     */
+    private static void rescanFolder(Path folder) {
+        final long startTime = System.currentTimeMillis();
+        long added = 0;
+        if (Files.isDirectory(folder)) {
+            try (Stream<Path> files = Files.walk(folder)) {
+                Iterator<Path> iterator = files.filter(Files::isRegularFile).iterator();
+                List<Path> batch = new ArrayList<>();
+                while (iterator.hasNext()) {
+                    batch.add(iterator.next());
+                    if (batch.size() == WatchBot.MAX_BATCH || !iterator.hasNext()) {
+                        filesCreated(batch);
+                        added += batch.size();
+                        batch.clear();
                     }
                 }
             } catch (Exception e) {
-                log.warn(String.format(Locale.ENGLISH, "Unhandled Exception during purge with roots=%s, minTime=%d",
-                                       roots, minTime), e);
-            } finally {
-                locks.writeLock().unlock();
+                log.warn("Exception during rescan of '" + folder + "'. Stale entries are kept until next scan", e);
+                return;
+            }
+        }
+        long removed = removeUnder(folder, startTime);
+        log.info(String.format(Locale.ENGLISH, "Rescanned '%s' in %d ms, adding or updating %d and removing %d entries",
+                               folder, System.currentTimeMillis()-startTime, added, removed));
+    }
+
+    /**
+     * Removes the entries under the folder, including its sub-folders, that has lastSeen before minTime.
+     * @return the number of removed entries.
+     */
+    private static long removeUnder(Path folder, long minTime) {
+        List<FileEntry> stale;
+        try (Stream<FileEntry> entries = index.snapshot(folder.toString() + File.separator, 0, false)) {
+            stale = entries.filter(entry -> entry.lastSeen < minTime).collect(Collectors.toList());
+        }
+        // The entries might have been updated since the snapshot, so they are checked again before removal
+        List<FileEntry> removed = stale.stream().filter(entry -> {
+            FileEntry current = index.get(entry.filename);
+            return current != null && current.path.equals(entry.path) && current.lastSeen < minTime &&
+                   index.remove(entry.filename);
+        }).collect(Collectors.toList());
+        recordRemovals(removed);
+        return removed.size();
+    }
+
+    /**
+     * Adds the entries to the index. If the change log is enabled, the entries are recorded as added or, if they were
+     * already known in the same folder, as updated. Entries that were known in another folder are recorded as removed
+     * from the old folder and added to the new one.
+     */
+    private static void putAndRecord(List<FileEntry> entries) {
+        if (changeLog == null) {
+            index.putAll(entries);
+            return;
+        }
+        List<FileEntry> added = new ArrayList<>(entries.size());
+        List<FileEntry> updated = new ArrayList<>(entries.size());
+        List<FileEntry> moved = new ArrayList<>();
+        for (FileEntry entry: entries) {
+            FileEntry old = index.get(entry.filename);
+            if (old != null && old.path.equals(entry.path)) {
+                updated.add(entry);
+            } else {
+                if (old != null) {
+                    moved.add(old);
+                }
+                added.add(entry);
             }
-            log.debug("Purged " + purgeCount + " entries for deleted files for roots '" + roots);
         }
+        index.putAll(entries);
+        changeLog.record(ChangeLog.TYPE.removed, moved);
+        changeLog.record(ChangeLog.TYPE.updated, updated);
+        changeLog.record(ChangeLog.TYPE.added, added);
+    }
+
+    /**
+     * Removes the entry for the filename from the index and records the removal in the change log if enabled.
+     * @return true if an entry was removed.
+     */
+    private static boolean removeAndRecord(String filename) {
+        FileEntry old = changeLog == null ? null : index.get(filename);
+        if (!index.remove(filename)) {
+            return false;
+        }
+        if (old != null) {
+            changeLog.record(ChangeLog.TYPE.removed, old);
+        }
+        return true;
+    }
+
+    private static void recordChanges(ChangeLog.TYPE type, List<FileEntry> entries) {
+        if (changeLog != null) {
+            changeLog.record(type, entries);
+        }
+    }
+
+    /**
+     * Records the removals, discovered by the watcher, in the change log and the write-ahead log.
+     */
+    private static void recordRemovals(List<FileEntry> removed) {
+        recordChanges(ChangeLog.TYPE.removed, removed);
+        logRemovals(removed);
     }
 
+    /**
+     * Logs removals that were discovered by scans or the watcher, and thus already applied to the index, to the
+     * write-ahead log, if enabled. Without this, an entry added with addFiles and later removed by a scan or the
+     * watcher would be resurrected by replaying the log on restart, if no snapshot was written in between.
+     * </p><p>
+     * Entries that were added again after the removal are not logged. As the index is not locked between the removal
+     * and the logging, a concurrent addFiles for the same filename can still be lost on restart. In that case, the
+     * entry is rediscovered by the next scan if the file exists.
+     * @param removed entries that have been removed from the index.
+     */
+    private static void logRemovals(List<FileEntry> removed) {
+        final WriteAheadLog currentWAL = wal;
+        if (currentWAL == null || removed.isEmpty()) {
+            return;
+        }
+        List<FileEntry> absent = removed.stream().
+                filter(entry -> index.get(entry.filename) == null).
+                collect(Collectors.toList());
+        try {
+            logAndApply(WriteAheadLog::logRemoved, absent, () -> {});
+        } catch (IOException e) {
+            log.warn("Unable to log " + absent.size() + " removed entries to " + currentWAL + ". Entries added " +
+                     "with addFiles might reappear on restart until the next scan", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the index. Updates are not blocked during the write, except for short periods where the
+     * individual stripes of the index are copied.
+     * </p><p>
+     * If the write-ahead log is enabled, it is rotated before the snapshot is written and the old generations are
+     * deleted when the snapshot has been written, as their changes are in the snapshot.
+     * @param snapshot the destination for the snapshot.
+     * @return the number of written entries or -1 if the snapshot could not be written.
+     */
+    static long writeSnapshot(Path snapshot) {
+        final WriteAheadLog currentWAL = wal;
+        try {
+            long generation = -1;
+            if (currentWAL != null) {
+                walLock.writeLock().lock();
+                try {
+                    generation = currentWAL.rotate();
+                } finally {
+                    walLock.writeLock().unlock();
+                }
+            }
+            long written = IndexSnapshot.write(index, snapshot);
+            if (currentWAL != null) {
+                currentWAL.deleteBefore(generation);
+            }
+            return written;
+        } catch (IOException e) {
+            log.warn("Unable to write snapshot to '" + snapshot + "'", e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return a log of changes to the index, fed from ingested folders, or null if {@code .lookup.changes.maxEntries}
+     *         is below 1.
+     */
+    private static ChangeLog createChangeLog() {
+        int maxEntries = ServiceConfig.getConfig().getInteger(
+                ".lookup.changes.maxEntries", DEFAULT_CHANGES_MAX_ENTRIES);
+        if (maxEntries < 1) {
+            log.info("No change log as .lookup.changes.maxEntries is " + maxEntries);
+            return null;
+        }
+        ChangeLog changeLog = new ChangeLog(maxEntries);
+        addFolderDiffListener(changeLog::record);
+        return changeLog;
+    }
+
+    /**
+     * @return a queue for adding scanned folders to the index in batches or null if {@code .lookup.ingest.queueEntries}
+     *         is below 1.
+     */
+    private static IngestQueue createIngestQueue() {
+        int queueEntries = ServiceConfig.getConfig().getInteger(
+                ".lookup.ingest.queueEntries", DEFAULT_INGEST_QUEUE_ENTRIES);
+        if (queueEntries < 1) {
+            log.info("Scanned folders are added directly to the index as .lookup.ingest.queueEntries is " +
+                     queueEntries);
+            return null;
+        }
+        return new IngestQueue("memory", queueEntries, ServiceConfig.getConfig().getInteger(
+                ".lookup.ingest.batchEntries", DEFAULT_INGEST_BATCH_ENTRIES), MemoryImpl::acceptFolders);
+    }
+
+    /**
+     * Stops the ingest queue, if enabled, after delivering the already queued folders to the index.
+     */
+    public static void stopIngest() {
+        if (ingestQueue != null) {
+            ingestQueue.close();
+        }
+    }
+
+    /**
+     * @return the receiver for folders from scans: The ingest queue if enabled, else direct adding to the index.
+     */
+    private Consumer<ScanBot.Folder> folderConsumer() {
+        return ingestQueue != null ? ingestQueue : this::acceptFolder;
+    }
+
+    /**
+     * @return a pool for filtering getEntries queries with {@code .lookup.query.parallelism} threads or null if
+     *         parallel querying is disabled.
+     */
+    private static ForkJoinPool createQueryPool() {
+        int parallelism = ServiceConfig.getConfig().getInteger(
+                ".lookup.query.parallelism", DEFAULT_QUERY_PARALLELISM);
+        if (parallelism == -1) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        if (parallelism <= 1) {
+            log.info("Parallel querying is disabled as .lookup.query.parallelism is " + parallelism);
+            return null;
+        }
+        log.info("Creating pool with parallelism " + parallelism + " for getEntries queries");
+        return new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @return a thread safe FileIndex with stripes matching {@code .lookup.implementation}.
+     */
+    private static StripedIndex createIndex() {
+        int stripes = ServiceConfig.getConfig().getInteger(".lookup.index.stripes", StripedIndex.DEFAULT_STRIPES);
+        StripedIndex index;
+        switch (ServiceConfig.getImplementation()) {
+            case memory: index = new StripedIndex(stripes, MapIndex::new); break;
+            case compact: index = new StripedIndex(stripes, CompactIndex::new); break;
+            default: throw new IllegalStateException(
+                    "The implementation " + ServiceConfig.getImplementation() + " is not supported by MemoryImpl");
+        }
+        Metrics.instance().gauge("filelookup_index_entries", "The number of entries in the index", index::size);
+        return index;
+    }
+
+    private static Metrics.Counter scanEntriesCounter(String change) {
+        return Metrics.instance().counter("filelookup_scan_entries_total",
+                                          "Entries added, removed or unchanged when ingesting scanned folders",
+                                          "change", change);
+    }
 
     private void acceptFolder(ScanBot.Folder folder) {
         log.debug("acceptFolder(" + folder + ") called");
         try {
-            locks.writeLock().lock();
-            folder.forEach(entry -> filenameMap.put(entry.filename, entry));
+            acceptFolders(Collections.singletonList(folder));
         } catch (Exception e) {
             throw handleException(e);
-        } finally {
-            locks.writeLock().unlock();
         }
-        //log.debug("File count after accept=" + filenameMap.size());
+        //log.debug("File count after accept=" + index.size());
+    }
+
+    /**
+     * Applies the listings of all changed folders to the index in one call and refreshes all unchanged folders in
+     * another, so that the stripes of the index are locked twice per batch instead of once per folder.
+     * </p><p>
+     * Each listing is compared with the entries for the folder and the paths below it in the index: Known files only
+     * have lastSeen updated, new files are added and entries for deleted files and folders are removed. This
+     * replaces a sweep of the whole index after the scan. An unchanged folder can neither have added nor removed
+     * files or sub-folders, so it only needs lastSeen to be refreshed. An {@link ScanBot.Folder#unavailable} folder
+     * is an empty listing, so the entries for it and for all folders below it are removed.
+     * </p><p>
+     * The resulting {@link FolderDiff}s are delivered to the listeners added with
+     * {@link #addFolderDiffListener(Consumer)}.
+     */
+    private static void acceptFolders(List<ScanBot.Folder> folders) {
+        List<String> unchangedPaths = new ArrayList<>();
+        List<ScanBot.Folder> unchanged = new ArrayList<>();
+        List<FolderListing> listings = new ArrayList<>();
+        for (ScanBot.Folder folder: folders) {
+            if (folder.unchanged) {
+                unchangedPaths.add(folder.folder);
+                unchanged.add(folder);
+            } else {
+                listings.add(toListing(folder));
+            }
+        }
+        List<FolderDiff> diffs = new ArrayList<>(index.applyListings(listings));
+        long removed = 0;
+        for (FolderDiff diff: diffs) {
+            addedEntries.add(diff.added.size());
+            removedEntries.add(diff.removed.size());
+            unchangedEntries.add(diff.unchanged);
+            removed += diff.removed.size();
+        }
+        if (removed > 0) {
+            logRemovals(diffs.stream().flatMap(diff -> diff.removed.stream()).collect(Collectors.toList()));
+            purgedEntries.add(removed);
+            log.debug("Removed " + removed + " entries for deleted files and folders while ingesting " +
+                      folders.size() + " folders");
+        }
+
+        long[] touched = index.touchFolders(unchangedPaths, System.currentTimeMillis());
+        for (int i = 0 ; i < touched.length ; i++) {
+            ScanBot.Folder folder = unchanged.get(i);
+            if (touched[i] != folder.knownFileCount) {
+                // The index does not match the previous scan, so the folder must be fully scanned next time
+                log.debug(String.format(Locale.ENGLISH, "Touched %d entries for unchanged folder '%s', " +
+                                                        "expected %d. Forcing full scan of folder next time",
+                                        touched[i], folder.folder, folder.knownFileCount));
+                ScanBot.instance().forgetFolder(folder.folder);
+            }
+            FolderDiff diff = new FolderDiff(folder.folder);
+            diff.unchanged = touched[i];
+            unchangedEntries.add(touched[i]);
+            diffs.add(diff);
+        }
+        publishDiffs(diffs);
+    }
+
+    private static void publishDiffs(List<FolderDiff> diffs) {
+        if (folderDiffListeners.isEmpty()) {
+            return;
+        }
+        for (FolderDiff diff: diffs) {
+            for (Consumer<FolderDiff> listener: folderDiffListeners) {
+                try {
+                    listener.accept(diff);
+                } catch (Exception e) {
+                    log.warn("Exception delivering " + diff + " to listener " + listener, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a listener that receives the changes to the index for each scanned folder. Listeners are called from the
+     * ingest thread (or the scanner threads if the ingest queue is disabled), in the order the folders were ingested,
+     * and should return quickly.
+     * @param listener receives a {@link FolderDiff} for each ingested folder.
+     */
+    public static void addFolderDiffListener(Consumer<FolderDiff> listener) {
+        folderDiffListeners.add(listener);
+    }
+
+    /**
+     * @param listener a listener previously added with {@link #addFolderDiffListener(Consumer)}.
+     * @return true if the listener was removed.
+     */
+    public static boolean removeFolderDiffListener(Consumer<FolderDiff> listener) {
+        return folderDiffListeners.remove(listener);
+    }
+
+    private static FolderListing toListing(ScanBot.Folder folder) {
+        return new FolderListing(folder.folder, folder, folder.subFolderNames, folder.listingTime);
+    }
+
+    private static ChangeDto toChange(ChangeLog.Change change) {
+        ChangeDto item = new ChangeDto();
+        item.setSequence(change.sequence);
+        item.setType(ChangeDto.TypeEnum.fromValue(change.type.toString()));
+        item.setPath(change.path);
+        item.setFilename(change.filename);
+        item.setLastSeenEpochMS(change.lastSeen);
+        item.setLastSeen(FileEntry.formatISO8601(change.lastSeen));
+        return item;
     }
 
     private EntryReplyDto toReplyEntry(FileEntry fileEntry) {
@@ -6,6 +6,7 @@ import java.util.Arrays;
 import dk.kb.lookup.api.ControlApi;
 import dk.kb.lookup.api.LookupApi;
 import dk.kb.lookup.api.StatusApi;
+import dk.kb.lookup.api.impl.H2Impl;
 import dk.kb.lookup.api.impl.MemoryImpl;
 import dk.kb.webservice.ContextListener;
 import dk.kb.util.yaml.YAML;
@@ -17,7 +18,7 @@ import dk.kb.util.yaml.YAML;
 @SuppressWarnings("ALL")
 public class ServiceConfig {
 
-    public enum IMPLEMENTATION { memory;
+    public enum IMPLEMENTATION { memory, compact, h2;
         public static IMPLEMENTATION getDefault() {
             return memory;
         }
@@ -68,28 +69,36 @@ public class ServiceConfig {
 
     public static Class<?> getImplementationClass() {
         switch (getImplementation()) {
-            case memory: return MemoryImpl.class;
+            case memory:
+            case compact: return MemoryImpl.class;
+            case h2: return H2Impl.class;
             default: throw new IllegalStateException("Inable to resolve implementation");
         }
     }
 
     public static LookupApi getLookup() {
         switch (getImplementation()) {
-            case memory: return new MemoryImpl();
+            case memory:
+            case compact: return new MemoryImpl();
+            case h2: return new H2Impl();
             default: throw new IllegalStateException("Inable to resolve implementation");
         }
     }
 
     public static ControlApi getControl() {
         switch (getImplementation()) {
-            case memory: return new MemoryImpl();
+            case memory:
+            case compact: return new MemoryImpl();
+            case h2: return new H2Impl();
             default: throw new IllegalStateException("Inable to resolve implementation");
         }
     }
 
     public static StatusApi getStatus() {
         switch (getImplementation()) {
-            case memory: return new MemoryImpl();
+            case memory:
+            case compact: return new MemoryImpl();
+            case h2: return new H2Impl();
             default: throw new IllegalStateException("Inable to resolve implementation");
         }
     }
@@ -0,0 +1,899 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Memory efficient {@link FileIndex} intended for 100M+ entries.
+ * </p><p>
+ * Instead of holding a {@link FileEntry} object per file, the index stores its data in primitive columns:
+ * <ul>
+ *     <li>Paths are interned in a path table and referenced by id from the entries.</li>
+ *     <li>Filenames are stored as length-prefixed UTF-8 bytes in large byte blocks.</li>
+ *     <li>Entries are dense ids {@code 0..size-1} with parallel columns for name offset, path id, hash and lastSeen.</li>
+ *     <li>Lookup is done through an open addressing hash table (linear probing) of entry ids.</li>
+ *     <li>Entries sharing a path are chained in a doubly linked list, for fast folder-level operations.
+ *         The path table is sorted, for fast path prefix queries.</li>
+ *     <li>Entries are also chained in time buckets of {@link FileIndex#TIME_BUCKET_MS} by lastSeen, for fast
+ *         since-queries and purges.</li>
+ * </ul>
+ * The cost per entry is approximately 46 bytes plus the UTF-8 representation of the filename. Time buckets that have
+ * been walked in {@link FileIndex#ORDER} cache their entry ids in that order, which costs 4 bytes per entry.
+ * {@link FileEntry} objects are only created on request.
+ */
+public class CompactIndex implements FileIndex {
+    static final int BLOCK_BITS = 24;
+    static final int BLOCK_SIZE = 1 << BLOCK_BITS; // 16MB
+    static final int MAX_NAME_BYTES = 65535;       // 2 bytes length prefix
+    private static final int INITIAL_BLOCK_SIZE = 65536;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+    private static final double MAX_LOAD = 0.7;
+
+    // Path table. Paths are released when no entries refers to them
+    private final List<String> paths = new ArrayList<>();
+    private final NavigableMap<String, Integer> pathIds = new TreeMap<>();
+    private final Deque<Integer> freePathIds = new ArrayDeque<>();
+    private int[] pathRefs = new int[64];
+    private int[] pathHeads = newHeads(64); // First entry for each path, -1 if none
+
+    // Filename storage as length-prefixed UTF-8
+    private byte[][] blocks = new byte[0][];
+    private int blockPos = 0; // Next free position in the last block
+    private long liveBytes = 0;
+    private long garbageBytes = 0;
+
+    // Entry columns
+    private int size = 0;
+    private long[] nameOffsets;
+    private int[] entryPaths;
+    private int[] hashes;
+    private long[] lastSeen;
+    private int[] nextInPath;
+    private int[] prevInPath;
+    private int[] nextInTime;
+    private int[] prevInTime;
+
+    // Time buckets, keyed by lastSeen/TIME_BUCKET_MS
+    private final NavigableMap<Long, TimeBucket> timeBuckets = new TreeMap<>();
+
+    // Hash table holding entryID+1, 0 means empty
+    private int[] table;
+    private int mask;
+    private int threshold;
+
+    public CompactIndex() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the expected number of entries. The index grows as needed if this is exceeded.
+     */
+    public CompactIndex(int expectedSize) {
+        expectedSize = Math.max(16, expectedSize);
+        nameOffsets = new long[expectedSize];
+        entryPaths = new int[expectedSize];
+        hashes = new int[expectedSize];
+        lastSeen = new long[expectedSize];
+        nextInPath = new int[expectedSize];
+        prevInPath = new int[expectedSize];
+        nextInTime = new int[expectedSize];
+        prevInTime = new int[expectedSize];
+        int tableSize = Integer.highestOneBit((int) Math.min(MAX_TABLE_SIZE/2, expectedSize / MAX_LOAD)) << 1;
+        initTable(tableSize);
+    }
+
+    @Override
+    public FileEntry get(String filename) {
+        int id = find(toUTF8(filename));
+        return id == -1 ? null : getEntry(id);
+    }
+
+    @Override
+    public void put(FileEntry entry) {
+        byte[] name = toUTF8(entry.filename);
+        int hash = hash(name);
+        int id = find(name, hash);
+        if (id != -1) { // Update existing
+            if (!entry.path.equals(paths.get(entryPaths[id]))) {
+                unlinkPath(id);
+                releasePath(entryPaths[id]);
+                entryPaths[id] = acquirePath(entry.path);
+                linkPath(id);
+            }
+            setLastSeen(id, entry.lastSeen);
+            return;
+        }
+
+        // New entry
+        ensureColumns(size+1);
+        id = size++;
+        nameOffsets[id] = appendName(name);
+        hashes[id] = hash;
+        entryPaths[id] = acquirePath(entry.path);
+        linkPath(id);
+        lastSeen[id] = entry.lastSeen;
+        linkTime(id);
+        if (size > threshold) {
+            rehash(table.length << 1);
+        } else {
+            insertSlot(id);
+        }
+    }
+
+    @Override
+    public boolean remove(String filename) {
+        int id = find(toUTF8(filename));
+        if (id == -1) {
+            return false;
+        }
+        removeEntry(id);
+        compactNamesIfNeeded();
+        return true;
+    }
+
+    @Override
+    public long touchFolder(String path, long lastSeen) {
+        Integer pathID = pathIds.get(path);
+        if (pathID == null) {
+            return 0;
+        }
+        long touched = 0;
+        for (int id = pathHeads[pathID] ; id != -1 ; id = nextInPath[id]) {
+            setLastSeen(id, lastSeen);
+            touched++;
+        }
+        return touched;
+    }
+
+    /**
+     * Entries that are already present with the same path only have their lastSeen column updated.
+     */
+    @Override
+    public FolderDiff applyListing(FolderListing listing) {
+        FolderDiff diff = new FolderDiff(listing.path);
+        for (FileEntry entry: listing.entries) {
+            byte[] name = toUTF8(entry.filename);
+            int id = find(name, hash(name));
+            if (id != -1 && entry.path.equals(paths.get(entryPaths[id]))) {
+                setLastSeen(id, entry.lastSeen);
+                diff.unchanged++;
+                continue;
+            }
+            if (id != -1) {
+                diff.removed.add(getEntry(id)); // Moved from another folder
+            }
+            put(entry);
+            diff.added.add(entry);
+        }
+        diff.removed.addAll(removeDeleted(listing));
+        return diff;
+    }
+
+    @Override
+    public List<FileEntry> removeDeleted(FolderListing listing) {
+        int[] candidates = new int[16];
+        int candidateCount = 0;
+        List<Integer> pathIDs = new ArrayList<>();
+        for (String path: PrefixPaths.deletedBelow(pathIds.navigableKeySet(), listing.path, listing.subFolders)) {
+            pathIDs.add(pathIds.get(path));
+        }
+        final int folderID = pathIds.getOrDefault(listing.path, -1);
+        if (folderID != -1) {
+            pathIDs.add(folderID);
+        }
+        for (int pathID: pathIDs) {
+            for (int id = pathHeads[pathID] ; id != -1 ; id = nextInPath[id]) {
+                if (lastSeen[id] < listing.listingTime &&
+                    (pathID != folderID || !listing.filenames.contains(getName(id)))) {
+                    if (candidateCount == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, candidates.length*2);
+                    }
+                    candidates[candidateCount++] = id;
+                }
+            }
+        }
+        List<FileEntry> removed = new ArrayList<>(candidateCount);
+        // Remove from highest to lowest id, as removal moves the last entry into the vacated position
+        Arrays.sort(candidates, 0, candidateCount);
+        for (int i = candidateCount-1 ; i >= 0 ; i--) {
+            removed.add(getEntry(candidates[i]));
+            removeEntry(candidates[i]);
+        }
+        compactNamesIfNeeded();
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Stream<FileEntry> stream() {
+        return IntStream.range(0, size).mapToObj(this::getEntry);
+    }
+
+    /**
+     * Copies the entry columns and the path table. The name blocks are shared with the snapshot, as existing names
+     * are never overwritten: Names for new entries are appended and compaction creates new blocks.
+     */
+    @Override
+    public Stream<FileEntry> snapshot() {
+        final long[] snapshotOffsets = Arrays.copyOf(nameOffsets, size);
+        final int[] snapshotPaths = Arrays.copyOf(entryPaths, size);
+        final long[] snapshotLastSeen = Arrays.copyOf(lastSeen, size);
+        final byte[][] snapshotBlocks = blocks.clone();
+        final String[] pathTable = paths.toArray(new String[0]);
+        return IntStream.range(0, snapshotOffsets.length).mapToObj(id -> new FileEntry(
+                pathTable[snapshotPaths[id]], getName(snapshotBlocks, snapshotOffsets[id]), snapshotLastSeen[id]));
+    }
+
+    /**
+     * If a prefix is given, only the paths with the prefix are visited. Else only the time buckets at or after since
+     * are visited. The columns for the matching entries are copied, so the cost is proportional to the size of the
+     * result.
+     */
+    @Override
+    public Stream<FileEntry> snapshot(String fullpathPrefix, long since, boolean ordered) {
+        final boolean allPaths = fullpathPrefix == null || fullpathPrefix.isEmpty();
+        if (ordered) {
+            return allPaths ?
+                    orderedAfter(null, since, null, Integer.MAX_VALUE).stream() :
+                    orderedPrefix(fullpathPrefix, since, Integer.MAX_VALUE).stream();
+        }
+        return snapshot(allPaths ? collectSince(since) : collectPrefix(fullpathPrefix, since, Integer.MAX_VALUE));
+    }
+
+    /**
+     * The time buckets are ordered and the entries in a bucket are sorted on first use, see
+     * {@link #getSortedIDs(TimeBucket)}. The position in the first bucket is located by binary search, so the cost is
+     * proportional to the number of visited entries after the position, regardless of how many entries shares
+     * lastSeen.
+     */
+    @Override
+    public List<FileEntry> orderedAfter(String fullpathPrefix, long afterLastSeen, String afterFilename, int max) {
+        final boolean allPaths = fullpathPrefix == null || fullpathPrefix.isEmpty();
+        List<FileEntry> result = new ArrayList<>();
+        boolean first = true;
+        for (TimeBucket bucket: timeBuckets.tailMap(bucketKey(afterLastSeen), true).values()) {
+            int[] sorted = getSortedIDs(bucket);
+            for (int i = first ? firstAfter(sorted, afterLastSeen, afterFilename) : 0 ; i < sorted.length ; i++) {
+                if (allPaths || fullpathStartsWith(sorted[i], fullpathPrefix)) {
+                    result.add(getEntry(sorted[i]));
+                    if (result.size() == max) {
+                        return result;
+                    }
+                }
+            }
+            first = false;
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids of the entries in the bucket in {@link FileIndex#ORDER}. The ids are sorted on first call and
+     *         cached in the bucket until the bucket is modified.
+     */
+    private int[] getSortedIDs(TimeBucket bucket) {
+        int[] sorted = bucket.sorted;
+        if (sorted != null) {
+            return sorted;
+        }
+        // The names are resolved once, instead of for each comparison
+        final int[] ids = new int[bucket.count];
+        final String[] names = new String[bucket.count];
+        int count = 0;
+        for (int id = bucket.head ; id != -1 ; id = nextInTime[id]) {
+            ids[count] = id;
+            names[count++] = getName(id);
+        }
+        sorted = IntStream.range(0, count).boxed().
+                sorted((pos1, pos2) -> lastSeen[ids[pos1]] != lastSeen[ids[pos2]] ?
+                        Long.compare(lastSeen[ids[pos1]], lastSeen[ids[pos2]]) :
+                        names[pos1].compareTo(names[pos2])).
+                mapToInt(pos -> ids[pos]).
+                toArray();
+        bucket.sorted = sorted; // Concurrent readers might both sort the bucket, which is harmless
+        return sorted;
+    }
+
+    /**
+     * @return the index of the first id in sorted that is after the position {@code (afterLastSeen, afterFilename)},
+     *         as defined by {@link FileIndex#isAfter(FileEntry, long, String)}.
+     */
+    private int firstAfter(int[] sorted, long afterLastSeen, String afterFilename) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int id = sorted[mid];
+            boolean after = lastSeen[id] != afterLastSeen ?
+                    lastSeen[id] > afterLastSeen :
+                    afterFilename == null || getName(id).compareTo(afterFilename) > 0;
+            if (after) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public List<FileEntry> orderedPrefix(String fullpathPrefix, long since, int limit) {
+        int[] ids = collectPrefix(fullpathPrefix, since, limit);
+        if (ids == null) {
+            return null;
+        }
+        List<FileEntry> result = new ArrayList<>(ids.length);
+        for (int id: ids) {
+            result.add(getEntry(id));
+        }
+        result.sort(ORDER);
+        return result;
+    }
+
+    /**
+     * @return true if the full path for the entry starts with the prefix. The name is only resolved if the prefix is
+     *         longer than the path.
+     */
+    private boolean fullpathStartsWith(int id, String fullpathPrefix) {
+        String path = paths.get(entryPaths[id]);
+        return fullpathPrefix.length() <= path.length() ?
+                path.startsWith(fullpathPrefix) :
+                PrefixPaths.matches(path, getName(id), fullpathPrefix);
+    }
+
+    /**
+     * Copies the columns for the given entries.
+     */
+    private Stream<FileEntry> snapshot(int[] ids) {
+        final long[] snapshotOffsets = new long[ids.length];
+        final int[] snapshotPaths = new int[ids.length];
+        final long[] snapshotLastSeen = new long[ids.length];
+        for (int i = 0 ; i < ids.length ; i++) {
+            snapshotOffsets[i] = nameOffsets[ids[i]];
+            snapshotPaths[i] = entryPaths[ids[i]];
+            snapshotLastSeen[i] = lastSeen[ids[i]];
+        }
+        final byte[][] snapshotBlocks = blocks.clone();
+        final String[] pathTable = paths.toArray(new String[0]);
+        return IntStream.range(0, ids.length).mapToObj(i -> new FileEntry(
+                pathTable[snapshotPaths[i]], getName(snapshotBlocks, snapshotOffsets[i]), snapshotLastSeen[i]));
+    }
+
+    /**
+     * Only the time buckets before minTime are visited.
+     */
+    @Override
+    public long purge(long minTime, Predicate<String> pathFilter) {
+        Map<Integer, Boolean> pathDecisions = new HashMap<>(); // Only evaluate the filter once per path
+        int[] candidates = new int[16];
+        int candidateCount = 0;
+        for (TimeBucket bucket: timeBuckets.headMap(bucketKey(minTime), true).values()) {
+            for (int id = bucket.head ; id != -1 ; id = nextInTime[id]) {
+                if (lastSeen[id] < minTime &&
+                    pathDecisions.computeIfAbsent(entryPaths[id], pathID -> pathFilter.test(paths.get(pathID)))) {
+                    if (candidateCount == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, candidates.length*2);
+                    }
+                    candidates[candidateCount++] = id;
+                }
+            }
+        }
+        // Remove from highest to lowest id, as removal moves the last entry into the vacated position.
+        // The moved entry always has a higher id than the remaining candidates
+        Arrays.sort(candidates, 0, candidateCount);
+        for (int i = candidateCount-1 ; i >= 0 ; i--) {
+            removeEntry(candidates[i]);
+        }
+        compactNamesIfNeeded();
+        return candidateCount;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the index, excluding the path table.
+     */
+    public long getMemoryBytes() {
+        long blockBytes = 0;
+        for (byte[] block: blocks) {
+            blockBytes += block.length;
+        }
+        return blockBytes + (long)nameOffsets.length*(8+4+4+8+4+4+4+4) + (long)table.length*4;
+    }
+
+    public String toString() {
+        return String.format(Locale.ENGLISH, "CompactIndex(#entries=%d, #paths=%d, nameBytes=%d, garbageBytes=%d, " +
+                                             "memory=%dMB)",
+                             size, pathIds.size(), liveBytes, garbageBytes, getMemoryBytes()/1048576);
+    }
+
+    /* ----------------------------------------------------------------------------------- */
+
+    /**
+     * @param id the id for an existing entry.
+     * @return a FileEntry constructed from the columns for the entry.
+     */
+    private FileEntry getEntry(int id) {
+        return new FileEntry(paths.get(entryPaths[id]), getName(id), lastSeen[id]);
+    }
+
+    private int find(byte[] name) {
+        return find(name, hash(name));
+    }
+
+    /**
+     * @return the entry ID for the given name or -1 if it could not be located.
+     */
+    private int find(byte[] name, int hash) {
+        int slot = hash & mask;
+        while (true) {
+            int id = table[slot]-1;
+            if (id == -1) {
+                return -1;
+            }
+            if (hashes[id] == hash && nameEquals(id, name)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the slot in the hash table for the given entry ID.
+     */
+    private int findSlot(int id) {
+        int slot = hashes[id] & mask;
+        while (table[slot] != id+1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insertSlot(int id) {
+        int slot = hashes[id] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id+1;
+    }
+
+    /**
+     * Clears the slot in the hash table, shifting subsequent entries in the probe sequence backwards to avoid the need
+     * for tombstones.
+     */
+    private void deleteSlot(int slot) {
+        table[slot] = 0;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (table[next] == 0) {
+                return;
+            }
+            int ideal = hashes[table[next]-1] & mask;
+            // Move the entry if its ideal slot is not cyclically in (slot, next]
+            boolean inRange = slot <= next ? (ideal > slot && ideal <= next) : (ideal > slot || ideal <= next);
+            if (!inRange) {
+                table[slot] = table[next];
+                table[next] = 0;
+                slot = next;
+            }
+        }
+    }
+
+    /**
+     * Removes the entry with the given id by moving the last entry into its position.
+     */
+    private void removeEntry(int id) {
+        deleteSlot(findSlot(id));
+        unlinkPath(id);
+        unlinkTime(id);
+        releasePath(entryPaths[id]);
+        int nameLength = getNameLength(id);
+        liveBytes -= nameLength;
+        garbageBytes += nameLength + 2;
+
+        int last = size-1;
+        if (id != last) {
+            table[findSlot(last)] = id+1;
+            nameOffsets[id] = nameOffsets[last];
+            entryPaths[id] = entryPaths[last];
+            hashes[id] = hashes[last];
+            lastSeen[id] = lastSeen[last];
+            // Redirect the path list neighbours of last to id
+            nextInPath[id] = nextInPath[last];
+            prevInPath[id] = prevInPath[last];
+            if (prevInPath[id] == -1) {
+                pathHeads[entryPaths[id]] = id;
+            } else {
+                nextInPath[prevInPath[id]] = id;
+            }
+            if (nextInPath[id] != -1) {
+                prevInPath[nextInPath[id]] = id;
+            }
+            // Redirect the time list neighbours of last to id. The id changes, so the bucket order must be resolved again
+            timeBuckets.get(bucketKey(lastSeen[id])).sorted = null;
+            nextInTime[id] = nextInTime[last];
+            prevInTime[id] = prevInTime[last];
+            if (prevInTime[id] == -1) {
+                timeBuckets.get(bucketKey(lastSeen[id])).head = id;
+            } else {
+                nextInTime[prevInTime[id]] = id;
+            }
+            if (nextInTime[id] != -1) {
+                prevInTime[nextInTime[id]] = id;
+            }
+        }
+        size--;
+    }
+
+    private void initTable(int tableSize) {
+        table = new int[tableSize];
+        mask = tableSize-1;
+        threshold = tableSize == MAX_TABLE_SIZE ? Integer.MAX_VALUE-1 : (int) (tableSize * MAX_LOAD);
+    }
+
+    private void rehash(int newSize) {
+        if (newSize > MAX_TABLE_SIZE) {
+            throw new IllegalStateException("The maximum number of entries has been reached: " + size);
+        }
+        initTable(newSize);
+        for (int id = 0 ; id < size ; id++) {
+            insertSlot(id);
+        }
+    }
+
+    private void ensureColumns(int minSize) {
+        if (minSize <= nameOffsets.length) {
+            return;
+        }
+        int newSize = (int) Math.min(Integer.MAX_VALUE-8, Math.max(minSize, nameOffsets.length*3L/2));
+        nameOffsets = Arrays.copyOf(nameOffsets, newSize);
+        entryPaths = Arrays.copyOf(entryPaths, newSize);
+        hashes = Arrays.copyOf(hashes, newSize);
+        lastSeen = Arrays.copyOf(lastSeen, newSize);
+        nextInPath = Arrays.copyOf(nextInPath, newSize);
+        prevInPath = Arrays.copyOf(prevInPath, newSize);
+        nextInTime = Arrays.copyOf(nextInTime, newSize);
+        prevInTime = Arrays.copyOf(prevInTime, newSize);
+    }
+
+    /* ----------------------------------------------------------------------------------- */
+
+    private int acquirePath(String path) {
+        Integer pathID = pathIds.get(path);
+        if (pathID == null) {
+            if (freePathIds.isEmpty()) {
+                pathID = paths.size();
+                paths.add(path);
+            } else {
+                pathID = freePathIds.pop();
+                paths.set(pathID, path);
+            }
+            pathIds.put(path, pathID);
+            if (pathID >= pathRefs.length) {
+                pathRefs = Arrays.copyOf(pathRefs, pathRefs.length*2);
+                int oldLength = pathHeads.length;
+                pathHeads = Arrays.copyOf(pathHeads, pathRefs.length);
+                Arrays.fill(pathHeads, oldLength, pathHeads.length, -1);
+            }
+        }
+        pathRefs[pathID]++;
+        return pathID;
+    }
+
+    private void releasePath(int pathID) {
+        if (--pathRefs[pathID] == 0) {
+            pathIds.remove(paths.get(pathID));
+            paths.set(pathID, null);
+            freePathIds.push(pathID);
+        }
+    }
+
+    /**
+     * Adds the entry as head of the list of entries for its path.
+     */
+    private void linkPath(int id) {
+        int pathID = entryPaths[id];
+        prevInPath[id] = -1;
+        nextInPath[id] = pathHeads[pathID];
+        if (pathHeads[pathID] != -1) {
+            prevInPath[pathHeads[pathID]] = id;
+        }
+        pathHeads[pathID] = id;
+    }
+
+    /**
+     * Removes the entry from the list of entries for its path.
+     */
+    private void unlinkPath(int id) {
+        int prev = prevInPath[id];
+        int next = nextInPath[id];
+        if (prev == -1) {
+            pathHeads[entryPaths[id]] = next;
+        } else {
+            nextInPath[prev] = next;
+        }
+        if (next != -1) {
+            prevInPath[next] = prev;
+        }
+    }
+
+    /* ----------------------------------------------------------------------------------- */
+
+    /**
+     * Updates lastSeen for the entry, moving it to another time bucket if needed.
+     */
+    private void setLastSeen(int id, long newLastSeen) {
+        if (bucketKey(lastSeen[id]) == bucketKey(newLastSeen)) {
+            if (lastSeen[id] != newLastSeen) {
+                timeBuckets.get(bucketKey(newLastSeen)).sorted = null;
+                lastSeen[id] = newLastSeen;
+            }
+            return;
+        }
+        unlinkTime(id);
+        lastSeen[id] = newLastSeen;
+        linkTime(id);
+    }
+
+    /**
+     * Adds the entry as head of the time bucket matching its lastSeen.
+     */
+    private void linkTime(int id) {
+        TimeBucket bucket = timeBuckets.computeIfAbsent(bucketKey(lastSeen[id]), key -> new TimeBucket());
+        prevInTime[id] = -1;
+        nextInTime[id] = bucket.head;
+        if (bucket.head != -1) {
+            prevInTime[bucket.head] = id;
+        }
+        bucket.head = id;
+        bucket.count++;
+        bucket.sorted = null;
+    }
+
+    /**
+     * Removes the entry from the time bucket matching its lastSeen, removing the bucket if it becomes empty.
+     */
+    private void unlinkTime(int id) {
+        long key = bucketKey(lastSeen[id]);
+        TimeBucket bucket = timeBuckets.get(key);
+        int prev = prevInTime[id];
+        int next = nextInTime[id];
+        if (prev == -1) {
+            bucket.head = next;
+        } else {
+            nextInTime[prev] = next;
+        }
+        if (next != -1) {
+            prevInTime[next] = prev;
+        }
+        bucket.sorted = null;
+        if (--bucket.count == 0) {
+            timeBuckets.remove(key);
+        }
+    }
+
+    /**
+     * @return the ids of all entries with {@code lastSeen >= since}.
+     */
+    private int[] collectSince(long since) {
+        NavigableMap<Long, TimeBucket> buckets = timeBuckets.tailMap(bucketKey(since), true);
+        int total = 0;
+        for (TimeBucket bucket: buckets.values()) {
+            total += bucket.count;
+        }
+        int[] ids = new int[total];
+        int count = 0;
+        for (TimeBucket bucket: buckets.values()) {
+            for (int id = bucket.head ; id != -1 ; id = nextInTime[id]) {
+                if (lastSeen[id] >= since) {
+                    ids[count++] = id;
+                }
+            }
+        }
+        return count == total ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * @return the ids of all entries with the full path prefix and {@code lastSeen >= since} or null if there are
+     *         more than limit of them.
+     */
+    private int[] collectPrefix(String fullpathPrefix, long since, int limit) {
+        List<Integer> prefixPaths = new ArrayList<>();
+        List<byte[]> namePrefixes = new ArrayList<>();
+        PrefixPaths.visit(pathIds, fullpathPrefix, (pathID, filenamePrefix) -> {
+            prefixPaths.add(pathID);
+            namePrefixes.add(filenamePrefix == null ? null : filenamePrefix.getBytes(StandardCharsets.UTF_8));
+        });
+        int[] ids = new int[16];
+        int count = 0;
+        for (int i = 0 ; i < prefixPaths.size() ; i++) {
+            byte[] namePrefix = namePrefixes.get(i);
+            for (int id = pathHeads[prefixPaths.get(i)] ; id != -1 ; id = nextInPath[id]) {
+                if (lastSeen[id] >= since && (namePrefix == null || nameStartsWith(id, namePrefix))) {
+                    if (count == limit) {
+                        return null;
+                    }
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, ids.length*2);
+                    }
+                    ids[count++] = id;
+                }
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    private static long bucketKey(long lastSeen) {
+        return Math.floorDiv(lastSeen, TIME_BUCKET_MS);
+    }
+
+    /**
+     * The head of the doubly linked list of entries in a time bucket, with the cached order of the entries.
+     */
+    private static class TimeBucket {
+        int head = -1;
+        int count = 0;
+        // The entry ids in FileIndex.ORDER, null if not resolved. Assigned by readers, so it must be volatile
+        volatile int[] sorted = null;
+    }
+
+    private static int[] newHeads(int size) {
+        int[] heads = new int[size];
+        Arrays.fill(heads, -1);
+        return heads;
+    }
+
+    /* ----------------------------------------------------------------------------------- */
+
+    /**
+     * Appends the length-prefixed name to the blocks.
+     * @return the offset of the name.
+     */
+    private long appendName(byte[] name) {
+        int needed = name.length + 2;
+        if (blocks.length == 0 || blockPos + needed > BLOCK_SIZE) {
+            blocks = Arrays.copyOf(blocks, blocks.length+1);
+            blocks[blocks.length-1] = new byte[blocks.length == 1 ? INITIAL_BLOCK_SIZE : BLOCK_SIZE];
+            blockPos = 0;
+        }
+        byte[] block = blocks[blocks.length-1];
+        if (blockPos + needed > block.length) { // Only the first block grows
+            block = Arrays.copyOf(block, Math.min(BLOCK_SIZE, Math.max(blockPos + needed, block.length*2)));
+            blocks[blocks.length-1] = block;
+        }
+        long offset = ((long)(blocks.length-1) << BLOCK_BITS) | blockPos;
+        block[blockPos++] = (byte) (name.length >>> 8);
+        block[blockPos++] = (byte) name.length;
+        System.arraycopy(name, 0, block, blockPos, name.length);
+        blockPos += name.length;
+        liveBytes += name.length;
+        return offset;
+    }
+
+    /**
+     * If more than half of the bytes used for names are garbage from deleted entries, the live names are copied to
+     * new blocks.
+     */
+    private void compactNamesIfNeeded() {
+        if (garbageBytes < INITIAL_BLOCK_SIZE || garbageBytes < liveBytes) {
+            return;
+        }
+        byte[][] oldBlocks = blocks;
+        long[] oldOffsets = nameOffsets;
+        blocks = new byte[0][];
+        blockPos = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+        nameOffsets = new long[nameOffsets.length];
+        for (int id = 0 ; id < size ; id++) {
+            byte[] block = oldBlocks[(int) (oldOffsets[id] >>> BLOCK_BITS)];
+            int pos = (int) (oldOffsets[id] & (BLOCK_SIZE-1));
+            int length = ((block[pos] & 0xFF) << 8) | (block[pos+1] & 0xFF);
+            nameOffsets[id] = appendName(Arrays.copyOfRange(block, pos+2, pos+2+length));
+        }
+    }
+
+    private int getNameLength(int id) {
+        byte[] block = blocks[(int) (nameOffsets[id] >>> BLOCK_BITS)];
+        int pos = (int) (nameOffsets[id] & (BLOCK_SIZE-1));
+        return ((block[pos] & 0xFF) << 8) | (block[pos+1] & 0xFF);
+    }
+
+    private String getName(int id) {
+        return getName(blocks, nameOffsets[id]);
+    }
+
+    private static String getName(byte[][] blocks, long offset) {
+        byte[] block = blocks[(int) (offset >>> BLOCK_BITS)];
+        int pos = (int) (offset & (BLOCK_SIZE-1));
+        int length = ((block[pos] & 0xFF) << 8) | (block[pos+1] & 0xFF);
+        return new String(block, pos+2, length, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameStartsWith(int id, byte[] prefix) {
+        byte[] block = blocks[(int) (nameOffsets[id] >>> BLOCK_BITS)];
+        int pos = (int) (nameOffsets[id] & (BLOCK_SIZE-1));
+        int length = ((block[pos] & 0xFF) << 8) | (block[pos+1] & 0xFF);
+        if (length < prefix.length) {
+            return false;
+        }
+        pos += 2;
+        for (int i = 0 ; i < prefix.length ; i++) {
+            if (block[pos+i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nameEquals(int id, byte[] name) {
+        byte[] block = blocks[(int) (nameOffsets[id] >>> BLOCK_BITS)];
+        int pos = (int) (nameOffsets[id] & (BLOCK_SIZE-1));
+        int length = ((block[pos] & 0xFF) << 8) | (block[pos+1] & 0xFF);
+        if (length != name.length) {
+            return false;
+        }
+        pos += 2;
+        for (int i = 0 ; i < length ; i++) {
+            if (block[pos+i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toUTF8(String filename) {
+        if (filename == null) {
+            throw new IllegalArgumentException("CompactIndex does not support entries without filename");
+        }
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException(
+                    "The filename '" + filename + "' exceeds the maximum length of " + MAX_NAME_BYTES + " bytes");
+        }
+        return name;
+    }
+
+    /**
+     * FNV-1a with extra bit spreading, as only the lower bits are used for the table index.
+     */
+    private static int hash(byte[] name) {
+        int hash = 0x811C9DC5;
+        for (byte b: name) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
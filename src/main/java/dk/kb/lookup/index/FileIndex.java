@@ -0,0 +1,261 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * In-memory mapping from filenames to {@link FileEntry}s.
+ * </p><p>
+ * Implementations are not required to be thread safe: Callers are responsible for synchronization.
+ * Use {@link StripedIndex} for concurrent access.
+ */
+public interface FileIndex {
+    /**
+     * The granularity of the time buckets used by implementations to index lastSeen.
+     */
+    long TIME_BUCKET_MS = 1000;
+
+    /**
+     * The order of ordered results: By lastSeen and, for entries sharing lastSeen, by filename. As filenames are unique
+     * in an index, the order is total, so ordered results from several indexes can be merged and an ordered walk can
+     * be resumed after any entry. A missing filename is ordered as the empty filename.
+     */
+    Comparator<FileEntry> ORDER = Comparator.
+            comparingLong((FileEntry entry) -> entry.lastSeen).
+            thenComparing(entry -> entry.filename == null ? "" : entry.filename);
+
+    /**
+     * @param filename a filename without path.
+     * @return the entry for the filename or null if it is not present in the index.
+     */
+    FileEntry get(String filename);
+
+    /**
+     * Add the entry to the index. If an entry with the same filename exists, it is replaced.
+     * @param entry the entry to add.
+     */
+    void put(FileEntry entry);
+
+    /**
+     * Add all the given entries to the index, replacing existing entries with the same filenames.
+     * @param entries the entries to add.
+     */
+    default void putAll(Collection<FileEntry> entries) {
+        entries.forEach(this::put);
+    }
+
+    /**
+     * @param filename a filename without path.
+     * @return true if an entry for the filename was present and thus removed.
+     */
+    boolean remove(String filename);
+
+    /**
+     * Set lastSeen for all entries with the given path. Used for refreshing the entries for a folder that is known to
+     * be unchanged since the last scan, without re-adding the entries.
+     * @param path     the path for the entries to update.
+     * @param lastSeen the new lastSeen for the entries.
+     * @return the number of updated entries.
+     */
+    long touchFolder(String path, long lastSeen);
+
+    /**
+     * As {@link #touchFolder(String, long)} for multiple paths.
+     * @param paths    the paths for the entries to update.
+     * @param lastSeen the new lastSeen for the entries.
+     * @return the number of updated entries for each path, in the same order as the paths.
+     */
+    default long[] touchFolders(List<String> paths, long lastSeen) {
+        long[] touched = new long[paths.size()];
+        for (int i = 0 ; i < touched.length ; i++) {
+            touched[i] = touchFolder(paths.get(i), lastSeen);
+        }
+        return touched;
+    }
+
+    /**
+     * Removes the entries for files and folders that a listing of a folder shows to be deleted: Entries directly in
+     * the folder that are not in the listing and all entries below the folder that are not below one of the listed
+     * sub-folders. Entries with {@code lastSeen >= listing.listingTime} are kept.
+     * </p><p>
+     * Implementations use their path index, so that the cost is proportional to the number of entries in the folder
+     * and the number of direct sub-folders, not to the size of the index.
+     * @param listing the content of a folder.
+     * @return the removed entries.
+     */
+    List<FileEntry> removeDeleted(FolderListing listing);
+
+    /**
+     * As {@link #removeDeleted(FolderListing)} for multiple folders.
+     * @param listings the content of the folders.
+     * @return the removed entries.
+     */
+    default List<FileEntry> removeDeleted(Collection<FolderListing> listings) {
+        List<FileEntry> removed = new ArrayList<>();
+        for (FolderListing listing: listings) {
+            removed.addAll(removeDeleted(listing));
+        }
+        return removed;
+    }
+
+    /**
+     * Updates the index with a listing of a folder, computing the changes against the previously known content of
+     * the folder: Entries that are already present with the same path only have lastSeen updated, other entries are
+     * added and entries for deleted files and folders are removed as described in
+     * {@link #removeDeleted(FolderListing)}.
+     * @param listing the content of a folder.
+     * @return the changes to the index.
+     */
+    default FolderDiff applyListing(FolderListing listing) {
+        FolderDiff diff = new FolderDiff(listing.path);
+        for (FileEntry entry: listing.entries) {
+            FileEntry old = get(entry.filename);
+            if (old != null && old.path.equals(entry.path)) {
+                diff.unchanged++;
+            } else {
+                if (old != null) {
+                    diff.removed.add(old); // Moved from another folder
+                }
+                diff.added.add(entry);
+            }
+            put(entry);
+        }
+        diff.removed.addAll(removeDeleted(listing));
+        return diff;
+    }
+
+    /**
+     * As {@link #applyListing(FolderListing)} for multiple folders.
+     * @param listings the content of the folders.
+     * @return the changes to the index, in the same order as the listings.
+     */
+    default List<FolderDiff> applyListings(List<FolderListing> listings) {
+        List<FolderDiff> diffs = new ArrayList<>(listings.size());
+        for (FolderListing listing: listings) {
+            diffs.add(applyListing(listing));
+        }
+        return diffs;
+    }
+
+    /**
+     * @return the number of entries in the index.
+     */
+    int size();
+
+    /**
+     * The order of the entries is not guaranteed.
+     * The returned entries must not be modified by the caller.
+     * @return all entries in the index.
+     */
+    Stream<FileEntry> stream();
+
+    /**
+     * Creates a stream of the entries in the index at the time of the call, which is unaffected by later modifications
+     * of the index. The call itself must be synchronized with modifications, but the returned stream can be consumed
+     * without synchronization.
+     * The order of the entries is not guaranteed.
+     * The returned entries must not be modified by the caller.
+     * @return all entries in the index at the time of the call.
+     */
+    Stream<FileEntry> snapshot();
+
+    /**
+     * As {@link #snapshot()}, but only with the entries where {@code lastSeen >= since}.
+     * Implementations maintain a secondary index on lastSeen, so that the cost is proportional to the size of the
+     * result and not to the size of the index.
+     * @param since   only entries with lastSeen at this point in time or later are returned.
+     * @param ordered if true, the entries are delivered in {@link #ORDER}.
+     * @return the entries with {@code lastSeen >= since} at the time of the call.
+     */
+    default Stream<FileEntry> snapshot(long since, boolean ordered) {
+        return snapshot(null, since, ordered);
+    }
+
+    /**
+     * As {@link #snapshot(long, boolean)}, but only with the entries where {@link FileEntry#getFullpath()} starts
+     * with the given prefix. Implementations maintain a sorted path index, so that the cost for a prefix is
+     * proportional to the number of entries under the prefix and not to the size of the index.
+     * @param fullpathPrefix only entries where the full path starts with this are returned. If null or empty, the
+     *                       entries are not restricted by path.
+     * @param since          only entries with lastSeen at this point in time or later are returned.
+     * @param ordered        if true, the entries are delivered in {@link #ORDER}.
+     * @return the entries with the prefix and {@code lastSeen >= since} at the time of the call.
+     */
+    Stream<FileEntry> snapshot(String fullpathPrefix, long since, boolean ordered);
+
+    /**
+     * Delivers the next entries in {@link #ORDER} after a given position. Used for walking the index in order a chunk
+     * at a time, by repeatedly requesting the entries after the last delivered entry.
+     * </p><p>
+     * Implementations walk their time buckets from the position and sort one bucket at a time, so the cost is
+     * proportional to max plus the size of the visited buckets, not to the size of the index.
+     * @param fullpathPrefix only entries where the full path starts with this are returned. If null or empty, the
+     *                       entries are not restricted by path. Entries without the prefix are skipped while walking.
+     * @param afterLastSeen  together with afterFilename, the position to deliver entries after.
+     * @param afterFilename  entries with lastSeen equal to afterLastSeen are only delivered if their filename is after
+     *                       this. If null, all entries with lastSeen equal to afterLastSeen are delivered.
+     * @param max            the maximum number of entries to deliver.
+     * @return up to max entries after the position, in {@link #ORDER}. If less than max entries are returned, there
+     *         are no more entries after the position.
+     */
+    List<FileEntry> orderedAfter(String fullpathPrefix, long afterLastSeen, String afterFilename, int max);
+
+    /**
+     * Collects the entries with the prefix and {@code lastSeen >= since} using the path index, if there are at most
+     * limit of them. For prefixes matching a small part of the index, this is cheaper than walking the time buckets
+     * with {@link #orderedAfter(String, long, String, int)}.
+     * @param fullpathPrefix only entries where the full path starts with this are returned.
+     * @param since          only entries with lastSeen at this point in time or later are returned.
+     * @param limit          the maximum number of entries to collect.
+     * @return the entries in {@link #ORDER} or null if more than limit entries matches.
+     */
+    List<FileEntry> orderedPrefix(String fullpathPrefix, long since, int limit);
+
+    /**
+     * @return true if the entry is after the position {@code (lastSeen, filename)} in {@link #ORDER}. A null filename
+     *         for the position is before all entries with the given lastSeen.
+     */
+    static boolean isAfter(FileEntry entry, long lastSeen, String filename) {
+        if (entry.lastSeen != lastSeen) {
+            return entry.lastSeen > lastSeen;
+        }
+        return filename == null || (entry.filename == null ? "" : entry.filename).compareTo(filename) > 0;
+    }
+
+    /**
+     * Remove all entries which has {@code lastSeen < minTime} and where the path is accepted by the pathFilter.
+     * @param minTime    the minimum time for an entry to be preserved.
+     * @param pathFilter if it returns true for the path of an old entry, the entry is removed.
+     * @return the number of removed entries.
+     */
+    long purge(long minTime, Predicate<String> pathFilter);
+
+    /**
+     * A counter that is increased after each modification of the index, usable for invalidating derived data such as
+     * cached query results.
+     * @return the number of modifications or -1 if the implementation does not track modifications.
+     */
+    default long getModificationCount() {
+        return -1;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes to the index caused by a scanned folder: The files that appeared, the files and folders that
+ * disappeared and the number of files that were already known and only had lastSeen updated.
+ * </p><p>
+ * A file that moved from another folder is both added (with the new path) and removed (with the old path).
+ */
+public class FolderDiff {
+    public final String path;
+    public final List<FileEntry> added = new ArrayList<>();
+    public final List<FileEntry> removed = new ArrayList<>();
+    public long unchanged = 0;
+
+    /**
+     * @param path the scanned folder.
+     */
+    public FolderDiff(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Adds the changes from the other diff to this diff. Used for combining the diffs for the stripes of an index.
+     * @param other a diff for the same folder.
+     * @return this diff.
+     */
+    public FolderDiff merge(FolderDiff other) {
+        added.addAll(other.added);
+        removed.addAll(other.removed);
+        unchanged += other.unchanged;
+        return this;
+    }
+
+    /**
+     * @return true if no files were added or removed.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "FolderDiff('" + path + "', added=" + added.size() + ", removed=" + removed.size() +
+               ", unchanged=" + unchanged + ")";
+    }
+}
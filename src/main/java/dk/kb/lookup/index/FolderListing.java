@@ -0,0 +1,56 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The content of a folder at the time it was listed, used for updating the index with
+ * {@link FileIndex#applyListing(FolderListing)} and for removing the entries for deleted files and folders with
+ * {@link FileIndex#removeDeleted(FolderListing)}.
+ */
+public class FolderListing {
+    public final String path;
+    public final Collection<FileEntry> entries;
+    public final Set<String> filenames;
+    public final Set<String> subFolders;
+    public final long listingTime;
+
+    /**
+     * @param path        the folder.
+     * @param entries     the files directly in the folder.
+     * @param subFolders  the names (not the full paths) of the sub-folders of the folder.
+     * @param listingTime when the folder was listed, in epoch milliseconds. Entries with lastSeen at or after this
+     *                    are never removed, as they might have been added after the listing.
+     */
+    public FolderListing(String path, Collection<FileEntry> entries, Set<String> subFolders, long listingTime) {
+        this.path = path;
+        this.entries = entries;
+        this.subFolders = subFolders;
+        this.listingTime = listingTime;
+        filenames = new HashSet<>(entries.size()*2);
+        entries.forEach(entry -> filenames.add(entry.filename));
+    }
+
+    @Override
+    public String toString() {
+        return "FolderListing('" + path + "', #files=" + entries.size() + ", #subFolders=" + subFolders.size() +
+               ", listingTime=" + listingTime + ")";
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Writes and reads compact binary snapshots of a {@link FileIndex}.
+ * </p><p>
+ * The format is a header followed by a sequence of records. Paths are only written once: The first time a path is
+ * encountered, a path record is written and the path is implicitly assigned the next path id.
+ * <pre>
+ * header:      magic(8 bytes "FLSNAP01") entryCount(long) pathCount(int)
+ * path record: 'P' length(int) UTF-8-bytes
+ * entry:       'E' pathID(int) lastSeen(long) length(unsigned short) UTF-8-bytes
+ * </pre>
+ * Snapshots are written sequentially to a temporary file which is renamed on completion, so that an existing
+ * snapshot is never left in a partial state. Snapshots are read using memory mapping.
+ */
+public class IndexSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(IndexSnapshot.class);
+
+    static final byte[] MAGIC = "FLSNAP01".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_SIZE = MAGIC.length + 8 + 4;
+    static final byte PATH_RECORD = 'P';
+    static final byte ENTRY_RECORD = 'E';
+    private static final int WRITE_BUFFER_SIZE = 1024*1024;
+    private static final long MAP_WINDOW = 256*1024*1024; // Max size of a single memory map
+    private static final int LOAD_BATCH_SIZE = 10000;
+
+    /**
+     * Write the content of the index to the given file. If the file already exists, it is replaced.
+     * The entries are delivered by {@link FileIndex#stream()}, so the caller must ensure that the index is not modified
+     * during the write, unless the index is thread safe, such as {@link StripedIndex}.
+     * @param index the index to write.
+     * @param file  the destination for the snapshot.
+     * @return the number of written entries.
+     * @throws IOException if the snapshot could not be written.
+     */
+    public static long write(FileIndex index, Path file) throws IOException {
+        return write(index.stream(), file);
+    }
+
+    /**
+     * Write the given entries to the given file. If the file already exists, it is replaced.
+     * @param entries the entries to write.
+     * @param file    the destination for the snapshot.
+     * @return the number of written entries.
+     * @throws IOException if the snapshot could not be written.
+     */
+    public static long write(Stream<FileEntry> entries, Path file) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        long entryCount = 0;
+        Map<String, Integer> pathIDs = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            buffer.put(MAGIC).putLong(0).putInt(0); // Counts are updated at the end
+
+            Iterator<FileEntry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                FileEntry entry = iterator.next();
+                if (entry.filename == null) {
+                    continue;
+                }
+                Integer pathID = pathIDs.get(entry.path);
+                if (pathID == null) {
+                    pathID = pathIDs.size();
+                    pathIDs.put(entry.path, pathID);
+                    byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+                    ensureSpace(channel, buffer, 1+4+path.length);
+                    buffer.put(PATH_RECORD).putInt(path.length).put(path);
+                }
+                byte[] name = entry.filename.getBytes(StandardCharsets.UTF_8);
+                if (name.length > 65535) {
+                    log.warn("Skipping entry with filename longer than 65535 bytes: " + entry);
+                    continue;
+                }
+                ensureSpace(channel, buffer, 1+4+8+2+name.length);
+                buffer.put(ENTRY_RECORD).putInt(pathID).putLong(entry.lastSeen).putShort((short) name.length).put(name);
+                entryCount++;
+            }
+            flush(channel, buffer);
+
+            // Update the header with the counts
+            buffer.clear();
+            buffer.putLong(entryCount).putInt(pathIDs.size()).flip();
+            channel.write(buffer, MAGIC.length);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info(String.format(Locale.ENGLISH, "Wrote snapshot with %d entries and %d paths to '%s' in %d ms",
+                               entryCount, pathIDs.size(), file, System.currentTimeMillis()-startTime));
+        return entryCount;
+    }
+
+    /**
+     * Loads the entries from the snapshot into the given index.
+     * Existing entries with the same filenames as the ones in the snapshot are replaced.
+     * @param file  a snapshot created with {@link #write}.
+     * @param index the destination for the entries.
+     * @return the number of loaded entries.
+     * @throws IOException if the snapshot could not be read or was not in the expected format.
+     */
+    public static long load(Path file, FileIndex index) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedReader reader = new MappedReader(channel);
+            byte[] magic = new byte[MAGIC.length];
+            reader.ensure(HEADER_SIZE).get(magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("The file '" + file + "' is not a snapshot (wrong magic)");
+            }
+            long entryCount = reader.buffer.getLong();
+            String[] paths = new String[reader.buffer.getInt()];
+            int pathCount = 0;
+            long loaded = 0;
+            byte[] bytes = new byte[65535];
+            List<FileEntry> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+            while (loaded < entryCount) {
+                byte recordType = reader.ensure(1).get();
+                if (recordType == PATH_RECORD) {
+                    int length = reader.ensure(4).getInt();
+                    if (bytes.length < length) {
+                        bytes = new byte[length];
+                    }
+                    reader.ensure(length).get(bytes, 0, length);
+                    paths[pathCount++] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                } else if (recordType == ENTRY_RECORD) {
+                    ByteBuffer buffer = reader.ensure(4+8+2);
+                    String path = paths[buffer.getInt()];
+                    long lastSeen = buffer.getLong();
+                    int length = buffer.getShort() & 0xFFFF;
+                    reader.ensure(length).get(bytes, 0, length);
+                    batch.add(new FileEntry(path, new String(bytes, 0, length, StandardCharsets.UTF_8), lastSeen));
+                    if (batch.size() == LOAD_BATCH_SIZE) {
+                        index.putAll(batch);
+                        batch.clear();
+                    }
+                    loaded++;
+                } else {
+                    throw new IOException(String.format(
+                            Locale.ENGLISH, "Unknown record type %d in snapshot '%s' after %d entries",
+                            recordType, file, loaded));
+                }
+            }
+            index.putAll(batch);
+            log.info(String.format(Locale.ENGLISH, "Loaded snapshot with %d entries and %d paths from '%s' in %d ms",
+                                   loaded, pathCount, file, System.currentTimeMillis()-startTime));
+            return loaded;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt snapshot '" + file + "'", e);
+        }
+    }
+
+    private static void ensureSpace(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() < needed) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Sequential reader that maps the file in windows of at most {@link #MAP_WINDOW} bytes, as a single
+     * {@link MappedByteBuffer} cannot exceed 2GB.
+     */
+    private static class MappedReader {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private MappedByteBuffer buffer;
+
+        public MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        /**
+         * Ensures that the buffer has at least the given number of bytes remaining, remapping if needed.
+         * @return the buffer positioned at the next unread byte.
+         */
+        public ByteBuffer ensure(int needed) {
+            if (buffer.remaining() < needed) {
+                long position = windowStart + buffer.position();
+                if (position + needed > size) {
+                    throw new IllegalStateException(String.format(
+                            Locale.ENGLISH, "Premature end of snapshot: Needed %d bytes at position %d with size %d",
+                            needed, position, size));
+                }
+                try {
+                    map(position);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to map snapshot at position " + position, e);
+                }
+            }
+            return buffer;
+        }
+
+        private void map(long position) throws IOException {
+            windowStart = position;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size-position));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Straight forward {@link FileIndex} backed by a {@link HashMap}.
+ * Should be fine for a few million files.
+ * </p><p>
+ * The entries are also grouped by path in sorted order, so that folder-level operations and path prefix queries does
+ * not require a full iteration, and in time buckets of {@link FileIndex#TIME_BUCKET_MS} by lastSeen, for fast
+ * since-queries and purges. The entries in a time bucket are sorted in {@link FileIndex#ORDER}, so ordered walks can
+ * start directly at any position. This relies on entries never being modified after they have been added.
+ */
+public class MapIndex implements FileIndex {
+    private final Map<String, FileEntry> filenameMap = new HashMap<>();
+    private final NavigableMap<String, Set<FileEntry>> pathMap = new TreeMap<>();
+    private final NavigableMap<Long, NavigableSet<FileEntry>> timeMap = new TreeMap<>();
+
+    @Override
+    public FileEntry get(String filename) {
+        return filenameMap.get(filename);
+    }
+
+    @Override
+    public void put(FileEntry entry) {
+        FileEntry old = filenameMap.put(entry.filename, entry);
+        if (old != null) {
+            removeFromPath(old);
+            removeFromTime(old);
+        }
+        pathMap.computeIfAbsent(entry.path, path -> new HashSet<>()).add(entry);
+        addToTime(entry);
+    }
+
+    @Override
+    public boolean remove(String filename) {
+        FileEntry old = filenameMap.remove(filename);
+        if (old == null) {
+            return false;
+        }
+        removeFromPath(old);
+        removeFromTime(old);
+        return true;
+    }
+
+    @Override
+    public long touchFolder(String path, long lastSeen) {
+        Set<FileEntry> entries = pathMap.get(path);
+        if (entries == null) {
+            return 0;
+        }
+        List<FileEntry> touched = new ArrayList<>(entries); // setLastSeen replaces the entries in the set
+        for (FileEntry entry: touched) {
+            setLastSeen(entry, lastSeen);
+        }
+        return touched.size();
+    }
+
+    /**
+     * Replaces the entry with a copy with the given lastSeen. Entries are never modified after they have been added,
+     * so entries delivered by {@link #stream()} and {@link #snapshot()} keeps the lastSeen they had at the time of
+     * the call.
+     */
+    private void setLastSeen(FileEntry entry, long lastSeen) {
+        if (entry.lastSeen == lastSeen) {
+            return;
+        }
+        put(new FileEntry(entry.path, entry.filename, lastSeen));
+    }
+
+    /**
+     * Entries that are already present with the same path are replaced with a copy holding the new lastSeen.
+     */
+    @Override
+    public FolderDiff applyListing(FolderListing listing) {
+        FolderDiff diff = new FolderDiff(listing.path);
+        for (FileEntry entry: listing.entries) {
+            FileEntry old = filenameMap.get(entry.filename);
+            if (old != null && old.path.equals(entry.path)) {
+                setLastSeen(old, entry.lastSeen);
+                diff.unchanged++;
+                continue;
+            }
+            if (old != null) {
+                diff.removed.add(old); // Moved from another folder
+            }
+            put(entry);
+            diff.added.add(entry);
+        }
+        diff.removed.addAll(removeDeleted(listing));
+        return diff;
+    }
+
+    @Override
+    public List<FileEntry> removeDeleted(FolderListing listing) {
+        List<FileEntry> removed = new ArrayList<>();
+        Set<FileEntry> entries = pathMap.get(listing.path);
+        if (entries != null) {
+            for (FileEntry entry: entries) {
+                if (entry.lastSeen < listing.listingTime && !listing.filenames.contains(entry.filename)) {
+                    removed.add(entry);
+                }
+            }
+        }
+        for (String path: PrefixPaths.deletedBelow(pathMap.navigableKeySet(), listing.path, listing.subFolders)) {
+            for (FileEntry entry: pathMap.get(path)) {
+                if (entry.lastSeen < listing.listingTime) {
+                    removed.add(entry);
+                }
+            }
+        }
+        for (FileEntry entry: removed) {
+            filenameMap.remove(entry.filename);
+            removeFromPath(entry);
+            removeFromTime(entry);
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return filenameMap.size();
+    }
+
+    @Override
+    public Stream<FileEntry> stream() {
+        return filenameMap.values().stream();
+    }
+
+    @Override
+    public Stream<FileEntry> snapshot() {
+        return new ArrayList<>(filenameMap.values()).stream();
+    }
+
+    @Override
+    public Stream<FileEntry> snapshot(String fullpathPrefix, long since, boolean ordered) {
+        if (fullpathPrefix != null && !fullpathPrefix.isEmpty()) {
+            return ordered ?
+                    orderedPrefix(fullpathPrefix, since, Integer.MAX_VALUE).stream() :
+                    collectPrefix(fullpathPrefix, since, Integer.MAX_VALUE).stream();
+        }
+        if (ordered) {
+            return orderedAfter(null, since, null, Integer.MAX_VALUE).stream();
+        }
+
+        List<FileEntry> result = new ArrayList<>();
+        for (Set<FileEntry> bucket: timeMap.tailMap(bucketKey(since), true).values()) {
+            for (FileEntry entry: bucket) {
+                if (entry.lastSeen >= since) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result.stream();
+    }
+
+    /**
+     * The time buckets are ordered and the entries within the buckets are sorted, so the walk starts directly after
+     * the position and stops when the result is filled.
+     */
+    @Override
+    public List<FileEntry> orderedAfter(String fullpathPrefix, long afterLastSeen, String afterFilename, int max) {
+        final boolean allPaths = fullpathPrefix == null || fullpathPrefix.isEmpty();
+        // A null filename is ordered as the empty filename, so the position is inclusive if afterFilename is null
+        final FileEntry position = new FileEntry("", afterFilename == null ? "" : afterFilename, afterLastSeen);
+        List<FileEntry> result = new ArrayList<>();
+        for (NavigableSet<FileEntry> bucket: timeMap.tailMap(bucketKey(afterLastSeen), true).values()) {
+            for (FileEntry entry: bucket.tailSet(position, afterFilename == null)) {
+                if (allPaths || PrefixPaths.matches(entry.path, entry.filename, fullpathPrefix)) {
+                    result.add(entry);
+                    if (result.size() == max) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<FileEntry> orderedPrefix(String fullpathPrefix, long since, int limit) {
+        List<FileEntry> result = collectPrefix(fullpathPrefix, since, limit);
+        if (result == null) {
+            return null;
+        }
+        result.sort(ORDER);
+        return result;
+    }
+
+    /**
+     * @return the entries with the prefix and {@code lastSeen >= since} in no particular order or null if there are
+     *         more than limit of them.
+     */
+    private List<FileEntry> collectPrefix(String fullpathPrefix, long since, int limit) {
+        List<FileEntry> result = new ArrayList<>();
+        PrefixPaths.visit(pathMap, fullpathPrefix, (entries, filenamePrefix) -> {
+            if (result.size() > limit) {
+                return;
+            }
+            for (FileEntry entry: entries) {
+                if (entry.lastSeen >= since && (filenamePrefix == null ||
+                                                (entry.filename != null && entry.filename.startsWith(filenamePrefix)))) {
+                    result.add(entry);
+                }
+            }
+        });
+        return result.size() > limit ? null : result;
+    }
+
+    /**
+     * Only the time buckets before minTime are visited.
+     */
+    @Override
+    public long purge(long minTime, Predicate<String> pathFilter) {
+        Map<String, Boolean> pathDecisions = new HashMap<>(); // Only evaluate the filter once per path
+        List<FileEntry> purge = new ArrayList<>();
+        for (Set<FileEntry> bucket: timeMap.headMap(bucketKey(minTime), true).values()) {
+            for (FileEntry entry: bucket) {
+                if (entry.lastSeen < minTime && pathDecisions.computeIfAbsent(entry.path, pathFilter::test)) {
+                    purge.add(entry);
+                }
+            }
+        }
+        for (FileEntry entry: purge) {
+            filenameMap.remove(entry.filename);
+            removeFromPath(entry);
+            removeFromTime(entry);
+        }
+        return purge.size();
+    }
+
+    private void removeFromPath(FileEntry entry) {
+        Set<FileEntry> entries = pathMap.get(entry.path);
+        if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+            pathMap.remove(entry.path);
+        }
+    }
+
+    private void addToTime(FileEntry entry) {
+        timeMap.computeIfAbsent(bucketKey(entry.lastSeen), key -> new TreeSet<>(ORDER)).add(entry);
+    }
+
+    private void removeFromTime(FileEntry entry) {
+        long key = bucketKey(entry.lastSeen);
+        NavigableSet<FileEntry> entries = timeMap.get(key);
+        if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+            timeMap.remove(key);
+        }
+    }
+
+    private static long bucketKey(long lastSeen) {
+        return Math.floorDiv(lastSeen, TIME_BUCKET_MS);
+    }
+
+    public String toString() {
+        return "MapIndex(#entries=" + filenameMap.size() + ", #paths=" + pathMap.size() + ")";
+    }
+}
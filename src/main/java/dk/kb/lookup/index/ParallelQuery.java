@@ -0,0 +1,245 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Filters partitions of entries concurrently on a {@link ForkJoinPool} and delivers the matches through bounded queues.
+ * </p><p>
+ * Each partition is handled by a single task, which filters the entries and hands over the matches in batches of
+ * {@link #BATCH_SIZE}. Partitions can share a single {@link Iterator} (unordered) or get an iterator each, which
+ * preserves the order of the partition (used for k-way merging of ordered partitions).
+ * The tasks stop when {@code max} matches has been found, when the query is {@link #close()}d or when the queue is
+ * full and the consumer is slow, in which case they wait for the consumer. No locks on the index are held while
+ * waiting.
+ * </p><p>
+ * Not thread safe: The iterators must be consumed by a single thread. The query must be closed if the iterators
+ * are not depleted, as the tasks would otherwise keep waiting for room in the queues.
+ */
+class ParallelQuery implements AutoCloseable {
+    /**
+     * The number of matches to collect before handing them over to the consumer.
+     */
+    public static final int BATCH_SIZE = 1000;
+    /**
+     * The maximum number of batches waiting to be consumed in each queue.
+     */
+    public static final int QUEUE_BATCHES = 16;
+
+    private static final List<FileEntry> END = Collections.unmodifiableList(new ArrayList<>()); // Compared by identity
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private final ForkJoinPool pool;
+    private final Predicate<FileEntry> filter;
+    private final long max;
+    private final AtomicLong matched = new AtomicLong(0);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<BlockingQueue<List<FileEntry>>> queues = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param pool     the pool for the filtering tasks. Should be separate from the common pool, as the tasks
+     *                 wait for the consumer when the queues are full.
+     * @param filter   the filter for the entries. Must be thread safe.
+     * @param max      the maximum number of matches in total for unordered and per partition for ordered.
+     */
+    ParallelQuery(ForkJoinPool pool, Predicate<FileEntry> filter, long max) {
+        this.pool = pool;
+        this.filter = filter;
+        this.max = max;
+    }
+
+    /**
+     * Start filtering all partitions, delivering the matches through a single iterator in no particular order.
+     * Filtering stops when {@code max} matches has been found in total.
+     * @param partitions the sources for the entries. They are resolved and closed by the filtering tasks.
+     * @return an iterator over the matching entries.
+     */
+    Iterator<FileEntry> unordered(List<Supplier<Stream<FileEntry>>> partitions) {
+        BlockingQueue<List<FileEntry>> queue = createQueue();
+        for (Supplier<Stream<FileEntry>> partition: partitions) {
+            pool.execute(() -> filter(partition, queue, matched));
+        }
+        return new QueueIterator(queue, partitions.size());
+    }
+
+    /**
+     * Start filtering all partitions, delivering the matches through an iterator for each partition, which preserves
+     * the order of the partition. Filtering of a partition stops when {@code max} matches has been found in it.
+     * @param partitions the sources for the entries. They are resolved and closed by the filtering tasks.
+     * @return iterators over the matching entries, one for each partition.
+     */
+    List<Iterator<FileEntry>> ordered(List<Supplier<Stream<FileEntry>>> partitions) {
+        List<Iterator<FileEntry>> iterators = new ArrayList<>(partitions.size());
+        for (Supplier<Stream<FileEntry>> partition: partitions) {
+            BlockingQueue<List<FileEntry>> queue = createQueue();
+            AtomicLong partitionMatched = new AtomicLong(0);
+            pool.execute(() -> filter(partition, queue, partitionMatched));
+            iterators.add(new QueueIterator(queue, 1));
+        }
+        return iterators;
+    }
+
+    private BlockingQueue<List<FileEntry>> createQueue() {
+        BlockingQueue<List<FileEntry>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Filters the partition and puts the matches on the queue in batches, always ending with {@link #END}.
+     */
+    private void filter(Supplier<Stream<FileEntry>> partition, BlockingQueue<List<FileEntry>> queue,
+                        AtomicLong matchCounter) {
+        try {
+            if (closed || matchCounter.get() >= max) {
+                return;
+            }
+            try (Stream<FileEntry> entries = partition.get()) {
+                List<FileEntry> batch = new ArrayList<>(BATCH_SIZE);
+                Iterator<FileEntry> iterator = entries.iterator();
+                while (iterator.hasNext() && !closed) {
+                    FileEntry entry = iterator.next();
+                    if (!filter.test(entry)) {
+                        continue;
+                    }
+                    if (matchCounter.incrementAndGet() > max) {
+                        break;
+                    }
+                    batch.add(entry);
+                    if (batch.size() == BATCH_SIZE) {
+                        offer(queue, batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    offer(queue, batch);
+                }
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        } finally {
+            try {
+                offer(queue, END);
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for room in the queue, giving up if the query is closed. The wait is managed, so that the pool can activate
+     * a spare thread for other tasks. Without this, ordered queries could deadlock when all threads are waiting for
+     * a consumer that waits for a partition which has not been started.
+     */
+    private void offer(BlockingQueue<List<FileEntry>> queue, List<FileEntry> batch) throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean offered = false;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                while (!offered && !closed) {
+                    offered = queue.offer(batch, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return offered || closed || (offered = queue.offer(batch));
+            }
+        });
+    }
+
+    /**
+     * Stops the filtering tasks and releases queued matches. Tasks that are already running stops shortly after.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queues.forEach(BlockingQueue::clear);
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelQuery(max=" + max + ", matched=" + matched.get() + ", queues=" + queues.size() +
+               ", closed=" + closed + ")";
+    }
+
+    /**
+     * Delivers entries from the batches on a queue until the given number of producers has signalled {@link #END}.
+     */
+    private class QueueIterator implements Iterator<FileEntry> {
+        private final BlockingQueue<List<FileEntry>> queue;
+        private int activeProducers;
+        private Iterator<FileEntry> batch = Collections.emptyIterator();
+
+        public QueueIterator(BlockingQueue<List<FileEntry>> queue, int producers) {
+            this.queue = queue;
+            this.activeProducers = producers;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!batch.hasNext() && activeProducers > 0) {
+                if (closed) {
+                    throw new IllegalStateException("The query has been closed");
+                }
+                List<FileEntry> next;
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for matches", e);
+                }
+                if (next == END) {
+                    activeProducers--;
+                } else {
+                    batch = next.iterator();
+                }
+                Throwable t = failure.get();
+                if (t != null) {
+                    throw new IllegalStateException("Exception while filtering entries", t);
+                }
+            }
+            return batch.hasNext();
+        }
+
+        @Override
+        public FileEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more entries");
+            }
+            return batch.next();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Locates the paths in a sorted path map that can hold entries with a given full path prefix.
+ * Used by the {@link FileIndex} implementations for {@link FileIndex#snapshot(String, long, boolean)} and
+ * {@link FileIndex#removeDeleted(FolderListing)}.
+ */
+class PrefixPaths {
+
+    /**
+     * Calls the visitor for each path that holds entries where {@link dk.kb.lookup.FileEntry#getFullpath()} can start
+     * with the given prefix. The visitor receives the value for the path and a filename prefix, which is null if all
+     * entries for the path matches the prefix.
+     * @param paths   sorted paths.
+     * @param prefix  the prefix for the full paths.
+     * @param visitor receives the values for the matching paths along with the filename prefix.
+     */
+    static <T> void visit(NavigableMap<String, T> paths, String prefix, BiConsumer<T, String> visitor) {
+        final String separator = File.separator;
+        // Paths with the prefix: The folder itself, sub folders and siblings sharing the prefix
+        String base = prefix.endsWith(separator) ? prefix.substring(0, prefix.length()-separator.length()) : prefix;
+        for (Map.Entry<String, T> entry: paths.tailMap(base, true).entrySet()) {
+            if (!entry.getKey().startsWith(base)) {
+                break;
+            }
+            if ((entry.getKey() + separator).startsWith(prefix)) {
+                visitor.accept(entry.getValue(), null);
+            }
+        }
+        // The parent folder of the prefix, where the filenames must start with the remainder of the prefix
+        int lastSeparator = prefix.lastIndexOf(separator);
+        if (lastSeparator >= 0 && lastSeparator + separator.length() < prefix.length()) {
+            T parent = paths.get(prefix.substring(0, lastSeparator));
+            if (parent != null) {
+                visitor.accept(parent, prefix.substring(lastSeparator + separator.length()));
+            }
+        }
+    }
+
+    /**
+     * @param path     the path for an entry.
+     * @param filename the filename for the entry.
+     * @param prefix   a full path prefix.
+     * @return true if {@link dk.kb.lookup.FileEntry#getFullpath()} for the entry starts with the prefix.
+     */
+    static boolean matches(String path, String filename, String prefix) {
+        if (prefix.length() <= path.length()) {
+            return path.startsWith(prefix);
+        }
+        return prefix.startsWith(path) &&
+               (path + (filename == null ? "" : File.separator + filename)).startsWith(prefix);
+    }
+
+    /**
+     * Locates the paths below the folder that are not below one of the given sub-folders, i.e. the paths for deleted
+     * sub-folders. Sub-trees for the given sub-folders are skipped, so the cost is proportional to the number of
+     * direct sub-folders with entries plus the number of returned paths.
+     * @param paths      sorted paths.
+     * @param folder     a folder.
+     * @param subFolders the names of the existing sub-folders of the folder.
+     * @return the paths below the folder where the first name below the folder is not one of the sub-folders.
+     */
+    static List<String> deletedBelow(NavigableSet<String> paths, String folder, Set<String> subFolders) {
+        final String separator = File.separator;
+        final String base = folder.endsWith(separator) ? folder : folder + separator;
+        // The character after the separator, used for skipping all paths below a sub-folder
+        final String afterSeparator = String.valueOf((char) (File.separatorChar + 1));
+        List<String> deleted = new ArrayList<>();
+        String path = paths.ceiling(base);
+        while (path != null && path.startsWith(base)) {
+            int end = path.indexOf(separator, base.length());
+            String subFolder = end == -1 ? path.substring(base.length()) : path.substring(base.length(), end);
+            if (!subFolders.contains(subFolder)) {
+                deleted.add(path);
+                path = paths.higher(path);
+            } else if (end == -1) {
+                path = paths.higher(path); // Continue with the paths below the sub-folder, which are skipped
+            } else {
+                path = paths.ceiling(base + subFolder + afterSeparator);
+            }
+        }
+        return deleted;
+    }
+}
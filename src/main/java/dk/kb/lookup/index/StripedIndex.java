@@ -0,0 +1,644 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import dk.kb.lookup.Metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Thread safe {@link FileIndex} that distributes the entries to a number of non-thread safe stripes, based on the
+ * hash of the filename. Each stripe is guarded by its own {@link ReadWriteLock}, so that operations on different
+ * stripes does not block each other.
+ * </p><p>
+ * {@link #stream()} and {@link #snapshot()} are lazy: The stripes are {@link FileIndex#snapshot()}ed one at a time
+ * when the stream reaches them and no locks are held while the entries are consumed. This means that a slow consumer
+ * does not block writers. The stream is consistent per stripe, but not across stripes.
+ * </p><p>
+ * Ordered queries through {@link #snapshot(String, long, boolean)} are handled by merging lazy ordered walks of the
+ * stripes. Each walk fetches {@link #ORDERED_CHUNK} entries at a time with
+ * {@link FileIndex#orderedAfter(String, long, String, int)} under the read lock, so memory use and lock hold times are
+ * bounded regardless of the size of the result. As the stripes are not locked between chunks, an entry that is updated
+ * during the walk can be delivered again with its new lastSeen.
+ * Filtering of the stripes can be done in parallel with
+ * {@link #snapshot(String, long, boolean, Predicate, long, ForkJoinPool)}.
+ * </p><p>
+ * Modifications are counted, see {@link #getModificationCount()}. The counter is increased after the modification,
+ * so a reader that sees an unchanged counter before and after a query knows that the result is current.
+ */
+public class StripedIndex implements FileIndex {
+    public static final int DEFAULT_STRIPES = 16;
+    /**
+     * The number of entries fetched from a stripe for each read lock acquisition during ordered walks.
+     */
+    static final int ORDERED_CHUNK = 1000;
+    /**
+     * Ordered prefix queries matching less than this number of entries in total are resolved through the path index.
+     * Larger prefix queries walk the time buckets, skipping entries without the prefix.
+     */
+    static final int ORDERED_PREFIX_LIMIT = 100_000;
+
+    private static final Metrics.Histogram writeLockWait = Metrics.instance().histogram(
+            "filelookup_index_lock_wait_seconds", "Time spent waiting for stripe locks",
+            Metrics.LATENCY_BUCKETS, "lock", "write");
+    private static final Metrics.Histogram writeLockHold = Metrics.instance().histogram(
+            "filelookup_index_lock_hold_seconds", "Time stripe locks were held",
+            Metrics.LATENCY_BUCKETS, "lock", "write");
+
+    private final FileIndex[] stripes;
+    private final ReadWriteLock[] locks;
+    private final int stripeBits;
+    private final AtomicLong modifications = new AtomicLong(0);
+
+    /**
+     * @param stripeCount the number of stripes. This will be rounded up to the nearest power of 2.
+     * @param indexFactory creates the index for each stripe.
+     */
+    public StripedIndex(int stripeCount, Supplier<FileIndex> indexFactory) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("The number of stripes must be at least 1 but was " + stripeCount);
+        }
+        int size = Integer.highestOneBit(stripeCount);
+        size = size < stripeCount ? size << 1 : size;
+        stripeBits = Integer.numberOfTrailingZeros(size);
+        stripes = new FileIndex[size];
+        locks = new ReadWriteLock[size];
+        for (int i = 0 ; i < size ; i++) {
+            stripes[i] = indexFactory.get();
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    @Override
+    public FileEntry get(String filename) {
+        int stripe = getStripe(filename);
+        locks[stripe].readLock().lock();
+        try {
+            return stripes[stripe].get(filename);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(FileEntry entry) {
+        int stripe = getStripe(entry.filename);
+        final long acquired = lockWrite(stripe);
+        try {
+            stripes[stripe].put(entry);
+        } finally {
+            unlockWrite(stripe, acquired);
+        }
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Groups the entries by stripe, so that each stripe is only locked once.
+     */
+    @Override
+    public void putAll(Collection<FileEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (entries.size() == 1) {
+            entries.forEach(this::put);
+            return;
+        }
+        List<List<FileEntry>> grouped = new ArrayList<>(stripes.length);
+        for (int i = 0 ; i < stripes.length ; i++) {
+            grouped.add(new ArrayList<>());
+        }
+        entries.forEach(entry -> grouped.get(getStripe(entry.filename)).add(entry));
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            if (grouped.get(stripe).isEmpty()) {
+                continue;
+            }
+            final long acquired = lockWrite(stripe);
+            try {
+                stripes[stripe].putAll(grouped.get(stripe));
+            } finally {
+                unlockWrite(stripe, acquired);
+            }
+        }
+        modifications.incrementAndGet();
+    }
+
+    @Override
+    public boolean remove(String filename) {
+        int stripe = getStripe(filename);
+        final long acquired = lockWrite(stripe);
+        boolean removed;
+        try {
+            removed = stripes[stripe].remove(filename);
+        } finally {
+            unlockWrite(stripe, acquired);
+        }
+        if (removed) {
+            modifications.incrementAndGet();
+        }
+        return removed;
+    }
+
+    @Override
+    public long touchFolder(String path, long lastSeen) {
+        long touched = 0;
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            final long acquired = lockWrite(stripe);
+            try {
+                touched += stripes[stripe].touchFolder(path, lastSeen);
+            } finally {
+                unlockWrite(stripe, acquired);
+            }
+        }
+        if (touched > 0) {
+            modifications.incrementAndGet();
+        }
+        return touched;
+    }
+
+    /**
+     * Locks each stripe once for all the paths.
+     */
+    @Override
+    public long[] touchFolders(List<String> paths, long lastSeen) {
+        long[] touched = new long[paths.size()];
+        if (paths.isEmpty()) {
+            return touched;
+        }
+        long total = 0;
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            final long acquired = lockWrite(stripe);
+            try {
+                for (int i = 0 ; i < touched.length ; i++) {
+                    long stripeTouched = stripes[stripe].touchFolder(paths.get(i), lastSeen);
+                    touched[i] += stripeTouched;
+                    total += stripeTouched;
+                }
+            } finally {
+                unlockWrite(stripe, acquired);
+            }
+        }
+        if (total > 0) {
+            modifications.incrementAndGet();
+        }
+        return touched;
+    }
+
+    @Override
+    public FolderDiff applyListing(FolderListing listing) {
+        return applyListings(Collections.singletonList(listing)).get(0);
+    }
+
+    /**
+     * Splits the listings by stripe and locks each stripe once for all the listings.
+     */
+    @Override
+    public List<FolderDiff> applyListings(List<FolderListing> listings) {
+        List<FolderDiff> diffs = new ArrayList<>(listings.size());
+        if (listings.isEmpty()) {
+            return diffs;
+        }
+        // stripeListings.get(stripe).get(i) holds the entries from listings.get(i) that belongs to the stripe
+        List<List<FolderListing>> stripeListings = new ArrayList<>(stripes.length);
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            stripeListings.add(new ArrayList<>(listings.size()));
+        }
+        for (FolderListing listing: listings) {
+            diffs.add(new FolderDiff(listing.path));
+            List<List<FileEntry>> grouped = new ArrayList<>(stripes.length);
+            for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+                grouped.add(new ArrayList<>());
+            }
+            listing.entries.forEach(entry -> grouped.get(getStripe(entry.filename)).add(entry));
+            for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+                stripeListings.get(stripe).add(new FolderListing(
+                        listing.path, grouped.get(stripe), listing.subFolders, listing.listingTime));
+            }
+        }
+        long changed = 0;
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            final long acquired = lockWrite(stripe);
+            try {
+                List<FolderDiff> stripeDiffs = stripes[stripe].applyListings(stripeListings.get(stripe));
+                for (int i = 0 ; i < diffs.size() ; i++) {
+                    FolderDiff stripeDiff = stripeDiffs.get(i);
+                    changed += stripeDiff.added.size() + stripeDiff.removed.size() + stripeDiff.unchanged;
+                    diffs.get(i).merge(stripeDiff);
+                }
+            } finally {
+                unlockWrite(stripe, acquired);
+            }
+        }
+        if (changed > 0) { // lastSeen for unchanged entries is also a modification
+            modifications.incrementAndGet();
+        }
+        return diffs;
+    }
+
+    @Override
+    public List<FileEntry> removeDeleted(FolderListing listing) {
+        return removeDeleted(Collections.singletonList(listing));
+    }
+
+    /**
+     * Locks each stripe once for all the listings.
+     */
+    @Override
+    public List<FileEntry> removeDeleted(Collection<FolderListing> listings) {
+        List<FileEntry> removed = new ArrayList<>();
+        if (listings.isEmpty()) {
+            return removed;
+        }
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            final long acquired = lockWrite(stripe);
+            try {
+                removed.addAll(stripes[stripe].removeDeleted(listings));
+            } finally {
+                unlockWrite(stripe, acquired);
+            }
+        }
+        if (!removed.isEmpty()) {
+            modifications.incrementAndGet();
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            locks[stripe].readLock().lock();
+            try {
+                size += stripes[stripe].size();
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Equivalent to {@link #snapshot()}: The stream is consistent per stripe and can be consumed without locking.
+     */
+    @Override
+    public Stream<FileEntry> stream() {
+        return snapshot();
+    }
+
+    @Override
+    public Stream<FileEntry> snapshot() {
+        return IntStream.range(0, stripes.length).boxed().flatMap(this::snapshotStripe);
+    }
+
+    private Stream<FileEntry> snapshotStripe(int stripe) {
+        locks[stripe].readLock().lock();
+        try {
+            return stripes[stripe].snapshot();
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    /**
+     * If ordered is false, the stripes are snapshotted lazily as with {@link #snapshot()}.
+     * If ordered is true, the stripes are walked lazily in chunks and their ordered entries are merged.
+     */
+    @Override
+    public Stream<FileEntry> snapshot(String fullpathPrefix, long since, boolean ordered) {
+        if (!ordered) {
+            return IntStream.range(0, stripes.length).boxed().
+                    flatMap(stripe -> snapshotStripe(stripe, fullpathPrefix, since, false));
+        }
+        return snapshotAfter(fullpathPrefix, since, null);
+    }
+
+    /**
+     * Delivers the entries after a position in {@link FileIndex#ORDER}, walking the stripes lazily as described for
+     * {@link #snapshot(String, long, boolean)}. Each stripe starts directly at the position, so the cost of reading
+     * the first entries does not depend on the number of entries before the position. Used for paging.
+     * @param fullpathPrefix only entries where the full path starts with this are returned. If null or empty, the
+     *                       entries are not restricted by path.
+     * @param afterLastSeen  together with afterFilename, the position to deliver entries after.
+     * @param afterFilename  entries with lastSeen equal to afterLastSeen are only delivered if their filename is after
+     *                       this. If null, all entries with lastSeen equal to afterLastSeen are delivered.
+     * @return the entries after the position, in {@link FileIndex#ORDER}.
+     */
+    public Stream<FileEntry> snapshotAfter(String fullpathPrefix, long afterLastSeen, String afterFilename) {
+        List<Iterator<FileEntry>> sources = new ArrayList<>(stripes.length);
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            sources.add(new OrderedStripe(stripe, fullpathPrefix, afterLastSeen, afterFilename));
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                new MergingIterator(sources), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Not supported, as the stripes are locked individually. Use {@link #snapshot(String, long, boolean)}.
+     */
+    @Override
+    public List<FileEntry> orderedAfter(String fullpathPrefix, long afterLastSeen, String afterFilename, int max) {
+        throw new UnsupportedOperationException("Ordered walks are handled per stripe by snapshot(prefix, since, true)");
+    }
+
+    /**
+     * Not supported, as the stripes are locked individually. Use {@link #snapshot(String, long, boolean)}.
+     */
+    @Override
+    public List<FileEntry> orderedPrefix(String fullpathPrefix, long since, int limit) {
+        throw new UnsupportedOperationException("Ordered walks are handled per stripe by snapshot(prefix, since, true)");
+    }
+
+    /**
+     * As {@link #snapshot(String, long, boolean)}, but the entries are filtered concurrently, with a task for each
+     * stripe on the given pool. Each task snapshots its stripe under the read lock and filters the entries
+     * without holding any locks. If ordered is true, each task walks its stripe in chunks as described for
+     * {@link #snapshot(String, long, boolean)} and the ordered matches from the stripes are merged as they arrive.
+     * </p><p>
+     * The returned stream must be closed if it is not depleted, to stop the filtering tasks.
+     * @param fullpathPrefix only entries where the full path starts with this are returned. If null or empty, the
+     *                       entries are not restricted by path.
+     * @param since          only entries with lastSeen at this point in time or later are returned.
+     * @param ordered        if true, the entries are delivered in {@link FileIndex#ORDER}.
+     * @param filter         only entries accepted by this are returned. Must be thread safe.
+     * @param max            the tasks stop filtering when it is known that max entries are enough to satisfy the
+     *                       request. The returned stream can contain more entries than max.
+     * @param pool           the pool for the filtering tasks. Should be separate from the common pool.
+     * @return the entries matching the constraints.
+     */
+    public Stream<FileEntry> snapshot(String fullpathPrefix, long since, boolean ordered,
+                                      Predicate<FileEntry> filter, long max, ForkJoinPool pool) {
+        return parallelSnapshot(fullpathPrefix, since, null, ordered, filter, max, pool);
+    }
+
+    /**
+     * As {@link #snapshotAfter(String, long, String)}, but the entries are filtered concurrently as described for
+     * {@link #snapshot(String, long, boolean, Predicate, long, ForkJoinPool)}.
+     * </p><p>
+     * The returned stream must be closed if it is not depleted, to stop the filtering tasks.
+     * @param fullpathPrefix only entries where the full path starts with this are returned. If null or empty, the
+     *                       entries are not restricted by path.
+     * @param afterLastSeen  together with afterFilename, the position to deliver entries after.
+     * @param afterFilename  entries with lastSeen equal to afterLastSeen are only delivered if their filename is after
+     *                       this. If null, all entries with lastSeen equal to afterLastSeen are delivered.
+     * @param filter         only entries accepted by this are returned. Must be thread safe.
+     * @param max            the tasks stop filtering when it is known that max entries are enough to satisfy the
+     *                       request. The returned stream can contain more entries than max.
+     * @param pool           the pool for the filtering tasks. Should be separate from the common pool.
+     * @return the entries after the position and matching the filter, in {@link FileIndex#ORDER}.
+     */
+    public Stream<FileEntry> snapshotAfter(String fullpathPrefix, long afterLastSeen, String afterFilename,
+                                           Predicate<FileEntry> filter, long max, ForkJoinPool pool) {
+        return parallelSnapshot(fullpathPrefix, afterLastSeen, afterFilename, true, filter, max, pool);
+    }
+
+    private Stream<FileEntry> parallelSnapshot(String fullpathPrefix, long since, String afterFilename, boolean ordered,
+                                               Predicate<FileEntry> filter, long max, ForkJoinPool pool) {
+        List<Supplier<Stream<FileEntry>>> partitions = new ArrayList<>(stripes.length);
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            final int finalStripe = stripe;
+            partitions.add(() -> ordered ?
+                    StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                            new OrderedStripe(finalStripe, fullpathPrefix, since, afterFilename),
+                            Spliterator.ORDERED | Spliterator.NONNULL), false) :
+                    snapshotStripe(finalStripe, fullpathPrefix, since, false));
+        }
+        ParallelQuery query = new ParallelQuery(pool, filter, max);
+        Iterator<FileEntry> matches;
+        try {
+            // The MergingIterator waits for the first match from each stripe
+            matches = ordered ? new MergingIterator(query.ordered(partitions)) : query.unordered(partitions);
+        } catch (RuntimeException e) {
+            query.close();
+            throw e;
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                matches, Spliterator.ORDERED | Spliterator.NONNULL), false).
+                onClose(query::close);
+    }
+
+    private Stream<FileEntry> snapshotStripe(int stripe, String fullpathPrefix, long since, boolean ordered) {
+        locks[stripe].readLock().lock();
+        try {
+            return stripes[stripe].snapshot(fullpathPrefix, since, ordered);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    /**
+     * The stripes are purged one at a time, so only a single stripe is write locked at any given time.
+     */
+    @Override
+    public long purge(long minTime, Predicate<String> pathFilter) {
+        long purgeCount = 0;
+        for (int stripe = 0 ; stripe < stripes.length ; stripe++) {
+            final long acquired = lockWrite(stripe);
+            try {
+                purgeCount += stripes[stripe].purge(minTime, pathFilter);
+            } finally {
+                unlockWrite(stripe, acquired);
+            }
+        }
+        if (purgeCount > 0) {
+            modifications.incrementAndGet();
+        }
+        return purgeCount;
+    }
+
+    @Override
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    /**
+     * Acquires the write lock for the stripe, measuring the wait.
+     * @return the time of acquisition, for {@link #unlockWrite(int, long)}.
+     */
+    private long lockWrite(int stripe) {
+        final long startNS = System.nanoTime();
+        locks[stripe].writeLock().lock();
+        final long acquired = System.nanoTime();
+        writeLockWait.observe((acquired - startNS) / 1_000_000_000.0);
+        return acquired;
+    }
+
+    /**
+     * Releases the write lock for the stripe, measuring the time it was held.
+     */
+    private void unlockWrite(int stripe, long acquired) {
+        locks[stripe].writeLock().unlock();
+        writeLockHold.observeSince(acquired);
+    }
+
+    /**
+     * @return the number of stripes.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * The stripe is derived from the upper bits of a multiplicative hash, as the lower bits of {@code hashCode} are
+     * used by {@link java.util.HashMap}-based stripes and would otherwise be the same for all entries in a stripe.
+     */
+    private int getStripe(String filename) {
+        if (stripeBits == 0) {
+            return 0;
+        }
+        int hash = filename == null ? 0 : filename.hashCode();
+        return (hash * 0x9E3779B9) >>> (32 - stripeBits);
+    }
+
+    public String toString() {
+        return "StripedIndex(#stripes=" + stripes.length + ", #entries=" + size() + ")";
+    }
+
+    /**
+     * Lazy walk of a single stripe in {@link FileIndex#ORDER}, starting after a given position. The entries are fetched
+     * in chunks, holding the read lock only while a chunk is fetched, and the next chunk continues after the last
+     * delivered entry.
+     * </p><p>
+     * Prefix queries first try to collect all matches through the path index, which is cheap for narrow prefixes.
+     * If the prefix matches more than the stripe's share of {@link #ORDERED_PREFIX_LIMIT} entries, the time buckets
+     * are walked instead.
+     */
+    private class OrderedStripe implements Iterator<FileEntry> {
+        private final int stripe;
+        private final String fullpathPrefix;
+        private List<FileEntry> chunk = Collections.emptyList();
+        private int position = 0;
+        private boolean exhausted = false;
+        // The position of the walk: Entries after this are fetched with the next chunk
+        private long afterLastSeen;
+        private String afterFilename;
+
+        public OrderedStripe(int stripe, String fullpathPrefix, long afterLastSeen, String afterFilename) {
+            this.stripe = stripe;
+            this.fullpathPrefix = fullpathPrefix;
+            this.afterLastSeen = afterLastSeen;
+            this.afterFilename = afterFilename;
+            if (fullpathPrefix != null && !fullpathPrefix.isEmpty()) {
+                int limit = Math.max(ORDERED_CHUNK, ORDERED_PREFIX_LIMIT / stripes.length);
+                List<FileEntry> all;
+                locks[stripe].readLock().lock();
+                try {
+                    all = stripes[stripe].orderedPrefix(fullpathPrefix, afterLastSeen, limit);
+                } finally {
+                    locks[stripe].readLock().unlock();
+                }
+                if (all != null) {
+                    all.removeIf(entry -> !FileIndex.isAfter(entry, afterLastSeen, afterFilename));
+                    chunk = all;
+                    exhausted = true;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (position < chunk.size()) {
+                return true;
+            }
+            if (exhausted) {
+                return false;
+            }
+            locks[stripe].readLock().lock();
+            try {
+                chunk = stripes[stripe].orderedAfter(fullpathPrefix, afterLastSeen, afterFilename, ORDERED_CHUNK);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+            position = 0;
+            exhausted = chunk.size() < ORDERED_CHUNK;
+            if (!chunk.isEmpty()) {
+                FileEntry last = chunk.get(chunk.size()-1);
+                afterLastSeen = last.lastSeen;
+                afterFilename = last.filename == null ? "" : last.filename;
+            }
+            return !chunk.isEmpty();
+        }
+
+        @Override
+        public FileEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more entries in stripe " + stripe);
+            }
+            return chunk.get(position++);
+        }
+    }
+
+    /**
+     * Merges iterators of entries in {@link FileIndex#ORDER} into a single iterator in {@link FileIndex#ORDER}.
+     */
+    private static class MergingIterator implements Iterator<FileEntry> {
+        private final PriorityQueue<Source> heads = new PriorityQueue<>(
+                (source1, source2) -> ORDER.compare(source1.head, source2.head));
+
+        public MergingIterator(List<Iterator<FileEntry>> sources) {
+            for (Iterator<FileEntry> source: sources) {
+                if (source.hasNext()) {
+                    heads.add(new Source(source));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public FileEntry next() {
+            Source source = heads.poll();
+            if (source == null) {
+                throw new NoSuchElementException("No more entries");
+            }
+            FileEntry entry = source.head;
+            if (source.iterator.hasNext()) {
+                source.head = source.iterator.next();
+                heads.add(source);
+            }
+            return entry;
+        }
+
+        private static class Source {
+            final Iterator<FileEntry> iterator;
+            FileEntry head;
+
+            public Source(Iterator<FileEntry> iterator) {
+                this.iterator = iterator;
+                this.head = iterator.next();
+            }
+        }
+    }
+}
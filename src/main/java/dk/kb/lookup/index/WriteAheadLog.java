@@ -0,0 +1,480 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import dk.kb.lookup.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of additions and removals of entries, used for making changes that are not discovered by scans
+ * durable between {@link IndexSnapshot}s. Removals discovered by scans are also logged, so that replaying an earlier
+ * addition does not bring back an entry for a deleted file.
+ * </p><p>
+ * The log is split in generations, stored as {@code <base>.<generation>}. {@link #rotate()} starts a new generation
+ * and {@link #deleteBefore(long)} removes the old ones once a snapshot holding their changes has been written.
+ * On startup, the snapshot is loaded and all generations are replayed in order with {@link #replay(Path, FileIndex)}.
+ * Replaying a change that is already in the snapshot is harmless, as the last change for a filename wins.
+ * </p><p>
+ * Appends are group committed: The first appender to find no write in progress becomes the leader and writes and
+ * forces the changes from all appenders that arrived in the meantime with a single fsync, while the other appenders
+ * wait. An append returns when its changes are on disk.
+ * <pre>
+ * header: magic(8 bytes "FLWAL001")
+ * record: length(int) crc32(int) type('A' or 'R') lastSeen(long) pathLength(int) UTF-8-bytes
+ *         nameLength(unsigned short) UTF-8-bytes
+ * </pre>
+ * The length and checksum covers the bytes from type to the end of the record. Replay stops at the first incomplete
+ * or corrupt record, which is the expected result of a crash during a write, and the generation is truncated to the
+ * last valid record before appending is resumed.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    static final byte[] MAGIC = "FLWAL001".getBytes(StandardCharsets.US_ASCII);
+    static final byte ADD_RECORD = 'A';
+    static final byte REMOVE_RECORD = 'R';
+    private static final int MIN_RECORD_LENGTH = 1+8+4+2;        // Record with empty path and filename
+    private static final int MAX_RECORD_LENGTH = 1 << 30;         // Anything larger is considered corrupt
+    private static final int REPLAY_BATCH_SIZE = 10000;
+
+    private final Path base;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private Group current = new Group();   // Guarded by lock
+    private boolean writing = false;       // Guarded by lock
+    private FileChannel channel;           // Guarded by lock. Only replaced when not writing
+    private long generation;               // Guarded by lock
+    private long bytes;                    // Guarded by lock
+
+    private final Metrics.Histogram syncLatency;
+    private final Metrics.Histogram groupRecords;
+
+    /**
+     * Opens the newest generation for appending, truncating it to the last valid record, or creates the first
+     * generation if there are none. Call {@link #replay(Path, FileIndex)} before this to get the existing changes.
+     * @param base the path for the log, without the generation suffix.
+     * @throws IOException if the log could not be opened.
+     */
+    public WriteAheadLog(Path base) throws IOException {
+        this.base = base;
+        if (base.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(base.toAbsolutePath().getParent());
+        }
+        TreeMap<Long, Path> generations = getGenerations(base);
+        generation = generations.isEmpty() ? 0 : generations.lastKey();
+        open(generation);
+
+        Metrics metrics = Metrics.instance();
+        syncLatency = metrics.histogram("filelookup_wal_sync_seconds",
+                                        "Time for writing and forcing a group of changes", Metrics.LATENCY_BUCKETS);
+        groupRecords = metrics.histogram("filelookup_wal_group_records", "The number of changes per forced write",
+                                         new double[]{1, 10, 100, 1000, 10000, 100000});
+        metrics.gauge("filelookup_wal_bytes", "The size of the write-ahead log", this::getBytes);
+        log.info("Opened " + this);
+    }
+
+    /**
+     * Logs the addition or update of the entries and waits until they are on disk.
+     * @param entries added or updated entries.
+     * @throws IOException if the entries could not be written.
+     */
+    public void logAdded(Collection<FileEntry> entries) throws IOException {
+        append(encode(ADD_RECORD, entries));
+    }
+
+    /**
+     * Logs the removal of the entries and waits until they are on disk. Only the filenames are used when replaying.
+     * @param entries removed entries.
+     * @throws IOException if the entries could not be written.
+     */
+    public void logRemoved(Collection<FileEntry> entries) throws IOException {
+        append(encode(REMOVE_RECORD, entries));
+    }
+
+    private void append(List<ByteBuffer> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            final Group group = current;
+            group.records.addAll(records);
+            while (!group.done) {
+                if (writing) {
+                    written.awaitUninterruptibly();
+                    continue;
+                }
+                // Become the leader and write all pending records, including the ones from waiting appenders
+                writing = true;
+                final Group batch = current;
+                final FileChannel target = channel;
+                final long validBytes = bytes;
+                current = new Group();
+                lock.unlock();
+                long writtenBytes = 0;
+                try {
+                    writtenBytes = write(target, batch.records);
+                } catch (IOException | RuntimeException | Error e) {
+                    // Any failure must release the waiting appenders and leave the log without a partial group
+                    batch.error = e;
+                    discardPartial(target, validBytes);
+                } finally {
+                    lock.lock();
+                    bytes += writtenBytes;
+                    batch.done = true;
+                    writing = false;
+                    written.signalAll();
+                }
+            }
+            if (group.error != null) {
+                throw new IOException("Unable to write changes to " + this, group.error);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces the records. Package private for testing of failed writes.
+     * @return the number of written bytes.
+     */
+    long write(FileChannel target, List<ByteBuffer> records) throws IOException {
+        final long startNS = System.nanoTime();
+        long size = 0;
+        for (ByteBuffer record: records) {
+            size += record.remaining();
+        }
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+        long remaining = size;
+        while (remaining > 0) {
+            remaining -= target.write(buffers);
+        }
+        target.force(false);
+        syncLatency.observeSince(startNS);
+        groupRecords.observe(records.size());
+        return size;
+    }
+
+    /**
+     * Removes a partially written group, so that later groups are not appended after an invalid record.
+     */
+    private void discardPartial(FileChannel target, long validBytes) {
+        try {
+            target.truncate(validBytes);
+            target.position(validBytes);
+        } catch (IOException e) {
+            log.warn("Unable to truncate " + this + " to " + validBytes + " bytes after failed write", e);
+        }
+    }
+
+    /**
+     * Starts a new generation. Changes logged after this call are written to the new generation.
+     * Call this before starting a snapshot and {@link #deleteBefore(long)} with the returned generation when the
+     * snapshot has been written.
+     * @return the new generation.
+     * @throws IOException if the new generation could not be created.
+     */
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            while (writing) {
+                written.awaitUninterruptibly();
+            }
+            channel.close();
+            open(generation + 1);
+            log.debug("Rotated to generation " + generation + " for " + this);
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the generations before the given one. Call this when a snapshot holding all their changes has been
+     * written.
+     * @param generation the first generation to keep, as returned by {@link #rotate()}.
+     * @return the number of deleted generations.
+     * @throws IOException if a generation could not be deleted.
+     */
+    public int deleteBefore(long generation) throws IOException {
+        int deleted = 0;
+        for (Path old: getGenerations(base).headMap(generation).values()) {
+            Files.delete(old);
+            deleted++;
+        }
+        if (deleted > 0) {
+            log.info("Deleted " + deleted + " generations before " + generation + " as they are in the snapshot");
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the number of bytes in the current generation.
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            while (writing) {
+                written.awaitUninterruptibly();
+            }
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the generation for appending, truncating it to the last valid record. Must be called with the lock held.
+     */
+    private void open(long generation) throws IOException {
+        Path file = getFile(base, generation);
+        long valid = Files.exists(file) ? read(file, null) : 0;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (valid == 0) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(MAGIC), 0);
+            channel.force(true);
+            valid = MAGIC.length;
+        } else if (channel.size() > valid) {
+            log.warn(String.format(Locale.ENGLISH, "Truncating '%s' from %d to %d bytes to discard an incomplete " +
+                                                   "record", file, channel.size(), valid));
+            channel.truncate(valid);
+            channel.force(true);
+        }
+        channel.position(valid);
+        this.generation = generation;
+        bytes = valid;
+    }
+
+    /**
+     * Applies all generations of the log to the index, oldest first.
+     * @param base  the path for the log, without the generation suffix.
+     * @param index the index to update, normally freshly loaded from a snapshot.
+     * @return the number of replayed changes.
+     * @throws IOException if a generation could not be read.
+     */
+    public static long replay(Path base, FileIndex index) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        TreeMap<Long, Path> generations = getGenerations(base);
+        long changes = 0;
+        for (Path file: generations.values()) {
+            Replayer replayer = new Replayer(index);
+            read(file, replayer);
+            changes += replayer.changes;
+        }
+        if (!generations.isEmpty()) {
+            log.info(String.format(Locale.ENGLISH, "Replayed %d changes from %d generations of '%s' in %d ms",
+                                   changes, generations.size(), base, System.currentTimeMillis()-startTime));
+        }
+        return changes;
+    }
+
+    /**
+     * Reads the records in the file and delivers them to the replayer, if defined.
+     * @return the number of bytes in the file up to and including the last valid record, 0 if the header is invalid.
+     */
+    private static long read(Path file, Replayer replayer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                in.readFully(magic);
+            } catch (EOFException e) {
+                return 0;
+            }
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("The file '" + file + "' is not a write-ahead log (wrong magic)");
+            }
+            long valid = MAGIC.length;
+            byte[] record = new byte[1024];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < MIN_RECORD_LENGTH || length > MAX_RECORD_LENGTH) {
+                        log.warn("Invalid record length " + length + " at position " + valid + " in '" + file + "'");
+                        break;
+                    }
+                    if (record.length < length) {
+                        record = new byte[length];
+                    }
+                    in.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    break; // Incomplete last record
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Checksum mismatch for record at position " + valid + " in '" + file + "'");
+                    break;
+                }
+                if (replayer != null) {
+                    replayer.apply(ByteBuffer.wrap(record, 0, length));
+                }
+                valid += 4 + 4 + length;
+            }
+            if (replayer != null) {
+                replayer.flush();
+            }
+            return valid;
+        }
+    }
+
+    /**
+     * @return the records for the entries, each with length and checksum.
+     */
+    private static List<ByteBuffer> encode(byte type, Collection<FileEntry> entries) {
+        List<ByteBuffer> records = new ArrayList<>(entries.size());
+        CRC32 crc = new CRC32();
+        for (FileEntry entry: entries) {
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            byte[] name = entry.filename == null ? new byte[0] : entry.filename.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 65535) {
+                log.warn("Skipping entry with filename longer than 65535 bytes: " + entry);
+                continue;
+            }
+            int length = MIN_RECORD_LENGTH + path.length + name.length;
+            ByteBuffer record = ByteBuffer.allocate(4+4+length);
+            record.putInt(length).putInt(0).
+                    put(type).putLong(entry.lastSeen).putInt(path.length).put(path).
+                    putShort((short) name.length).put(name);
+            crc.update(record.array(), 8, length);
+            record.putInt(4, (int) crc.getValue());
+            record.flip();
+            records.add(record);
+            crc.reset();
+        }
+        return records;
+    }
+
+    /**
+     * @return the generations for the log, ordered by generation.
+     */
+    static TreeMap<Long, Path> getGenerations(Path base) throws IOException {
+        TreeMap<Long, Path> generations = new TreeMap<>();
+        Path folder = base.toAbsolutePath().getParent();
+        if (folder == null || !Files.isDirectory(folder)) {
+            return generations;
+        }
+        Pattern generationPattern = Pattern.compile(Pattern.quote(base.getFileName().toString()) + "[.]([0-9]+)");
+        try (Stream<Path> files = Files.list(folder)) {
+            files.forEach(file -> {
+                Matcher matcher = generationPattern.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    generations.put(Long.parseLong(matcher.group(1)), file);
+                }
+            });
+        }
+        return generations;
+    }
+
+    static Path getFile(Path base, long generation) {
+        return base.resolveSibling(base.getFileName() + "." + generation);
+    }
+
+    @Override
+    public String toString() {
+        return "WriteAheadLog(base='" + base + "', generation=" + generation + ", bytes=" + bytes + ")";
+    }
+
+    /**
+     * The records from appenders that arrived while a write was in progress, written together by the next leader.
+     */
+    private static class Group {
+        final List<ByteBuffer> records = new ArrayList<>();
+        boolean done = false;
+        Throwable error = null;
+    }
+
+    /**
+     * Applies records to an index, batching consecutive additions.
+     */
+    private static class Replayer {
+        private final FileIndex index;
+        private final List<FileEntry> added = new ArrayList<>(REPLAY_BATCH_SIZE);
+        long changes = 0;
+
+        Replayer(FileIndex index) {
+            this.index = index;
+        }
+
+        void apply(ByteBuffer record) {
+            byte type = record.get();
+            long lastSeen = record.getLong();
+            byte[] path = new byte[record.getInt()];
+            record.get(path);
+            byte[] name = new byte[record.getShort() & 0xFFFF];
+            record.get(name);
+            String filename = new String(name, StandardCharsets.UTF_8);
+            if (type == ADD_RECORD) {
+                added.add(new FileEntry(new String(path, StandardCharsets.UTF_8), filename, lastSeen));
+                if (added.size() == REPLAY_BATCH_SIZE) {
+                    flush();
+                }
+            } else if (type == REMOVE_RECORD) {
+                flush(); // Order matters if the same filename is added and removed
+                index.remove(filename);
+            } else {
+                log.warn("Skipping record with unknown type " + type);
+                return;
+            }
+            changes++;
+        }
+
+        void flush() {
+            index.putAll(added);
+            added.clear();
+        }
+    }
+}
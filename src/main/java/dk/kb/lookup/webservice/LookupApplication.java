@@ -8,6 +8,7 @@ import javax.ws.rs.core.Application;
 
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import dk.kb.lookup.config.ServiceConfig;
+import dk.kb.webservice.RequestMetricsFilter;
 import dk.kb.webservice.ServiceExceptionMapper;
 
 public class LookupApplication extends Application {
@@ -17,7 +18,8 @@ public class LookupApplication extends Application {
         return new HashSet<>(Arrays.asList(
                 JacksonJsonProvider.class,
                 ServiceConfig.getImplementationClass(),
-                ServiceExceptionMapper.class
+                ServiceExceptionMapper.class,
+                RequestMetricsFilter.class
         ));
     }
 }
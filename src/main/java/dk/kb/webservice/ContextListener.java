@@ -7,7 +7,9 @@ import javax.naming.NamingException;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import dk.kb.lookup.H2Persistence;
 import dk.kb.lookup.ScanControl;
+import dk.kb.lookup.api.impl.MemoryImpl;
 import dk.kb.lookup.config.ServiceConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +27,8 @@ public class ContextListener implements ServletContextListener {
      * On context initialisation this
      * i) Initialises the logging framework (logback).
      * ii) Initialises the configuration class.
+     * iii) Loads the index snapshot, replays the write-ahead log and starts watching the roots for the in-memory
+     *      implementations, if enabled.
      * @param sce context provided by the web server upon initialization.
      * @throws java.lang.RuntimeException if anything at all goes wrong.
      */
@@ -39,6 +43,10 @@ public class ContextListener implements ServletContextListener {
             throw new RuntimeException("Failed to lookup settings", e);
         } catch (IOException e) {
             throw new RuntimeException("Failed to load settings", e);        }
+        if (ServiceConfig.getImplementationClass() == MemoryImpl.class) {
+            MemoryImpl.initSnapshots(); // Warm start before the first scan
+            MemoryImpl.initWatch();
+        }
         ScanControl.initControl();
         log.info("Service initialized.");
     }
@@ -46,6 +54,12 @@ public class ContextListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        if (ServiceConfig.getImplementationClass() == MemoryImpl.class) {
+            MemoryImpl.stopWatch();
+            MemoryImpl.stopIngest();
+            MemoryImpl.stopSnapshots();
+        }
+        H2Persistence.shutdown();
         log.debug("Service destroyed");
     }
 
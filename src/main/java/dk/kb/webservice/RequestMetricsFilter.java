@@ -0,0 +1,61 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.webservice;
+
+import dk.kb.lookup.Metrics;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+/*
+ * Measures the latency for all endpoints, labelled with the name of the resource method.
+ * For streaming responses the latency is the time until the response is ready to be written, as the streaming itself
+ * is measured separately.
+ */
+@Provider
+public class RequestMetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+    private static final String START_PROPERTY = RequestMetricsFilter.class.getName() + ".start";
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        request.setProperty(START_PROPERTY, System.nanoTime());
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        Object start = request.getProperty(START_PROPERTY);
+        if (!(start instanceof Long)) {
+            return; // The request was not matched or failed before reaching the request filter
+        }
+        String endpoint = resourceInfo == null || resourceInfo.getResourceMethod() == null ?
+                "unmatched" : resourceInfo.getResourceMethod().getName();
+        Metrics.instance().histogram(
+                "filelookup_request_duration_seconds", "Latency for the endpoints until the response is ready",
+                Metrics.LATENCY_BUCKETS, "endpoint", endpoint).
+                observeSince((Long) start);
+        Metrics.instance().counter(
+                "filelookup_requests_total", "Requests for the endpoints, by response status",
+                "endpoint", endpoint, "status", Integer.toString(response.getStatus())).
+                inc();
+    }
+}
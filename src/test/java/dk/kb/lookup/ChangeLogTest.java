@@ -0,0 +1,91 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import dk.kb.lookup.index.FolderDiff;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeLogTest {
+
+    @Test
+    void testTailing() throws InterruptedException {
+        ChangeLog changeLog = new ChangeLog(10);
+        long from = changeLog.getChanges(-1, 10, 0).nextSequence;
+        FolderDiff diff = new FolderDiff("/r");
+        diff.removed.add(new FileEntry("/old", "moved", 0));
+        diff.added.add(new FileEntry("/r", "moved", 0));
+        diff.added.add(new FileEntry("/r", "new", 0));
+        changeLog.record(diff);
+
+        ChangeLog.Changes changes = changeLog.getChanges(from, 2, 0);
+        assertFalse(changes.gap, "There should be no gap for the first request");
+        assertEquals(2, changes.changes.size(), "max should limit the number of changes");
+        assertEquals(ChangeLog.TYPE.removed, changes.changes.get(0).type, "Removals should be recorded first");
+        assertEquals(from, changes.changes.get(0).sequence, "The first change should have the requested sequence");
+
+        changes = changeLog.getChanges(changes.nextSequence, 10, 0);
+        assertEquals(1, changes.changes.size(), "The remaining change should be delivered");
+        assertEquals("new", changes.changes.get(0).filename, "The last added entry should be delivered last");
+        assertTrue(changeLog.getChanges(changes.nextSequence, 10, 0).changes.isEmpty(),
+                   "There should be no more changes");
+    }
+
+    @Test
+    void testGap() throws InterruptedException {
+        ChangeLog changeLog = new ChangeLog(5);
+        for (int i = 0 ; i < 12 ; i++) {
+            changeLog.record(ChangeLog.TYPE.added, new FileEntry("/r", "file" + i, 0));
+        }
+        ChangeLog.Changes changes = changeLog.getChanges(1, 100, 0);
+        assertTrue(changes.gap, "Requesting overwritten changes should give a gap");
+        assertEquals(8, changes.firstSequence, "Only the latest 5 changes should be held");
+        assertEquals(5, changes.changes.size(), "All held changes should be delivered");
+        assertEquals("file7", changes.changes.get(0).filename, "The oldest held change should be delivered first");
+        assertEquals(13, changes.nextSequence, "nextSequence should follow the last change");
+
+        assertTrue(changeLog.getChanges(1000, 100, 0).gap,
+                   "Requesting changes beyond the log, e.g. after a restart, should give a gap");
+    }
+
+    @Test
+    void testLongPoll() throws InterruptedException {
+        ChangeLog changeLog = new ChangeLog(10);
+        final long from = changeLog.getNextSequence();
+        AtomicReference<ChangeLog.Changes> received = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                received.set(changeLog.getChanges(from, 10, 10000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        assertNull(received.get(), "The consumer should wait for changes");
+        changeLog.record(ChangeLog.TYPE.added, new FileEntry("/r", "file", 0));
+        consumer.join(5000);
+        assertNotNull(received.get(), "The consumer should be woken by the change");
+        assertEquals(1, received.get().changes.size(), "The consumer should receive the change");
+
+        final long startMS = System.currentTimeMillis();
+        assertTrue(changeLog.getChanges(changeLog.getNextSequence(), 10, 50).changes.isEmpty(),
+                   "Waiting without changes should give an empty result");
+        assertTrue(System.currentTimeMillis() - startMS >= 50, "The call should wait for the timeout");
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import dk.kb.lookup.index.CompactIndex;
+import dk.kb.lookup.index.MapIndex;
+import dk.kb.lookup.index.StripedIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryCursorTest {
+
+    @Test
+    void testToken() {
+        FileEntry entry = new FileEntry("/home/foo", "bar\nzoo_æøå.txt", 1607090473802L);
+        EntryCursor cursor = EntryCursor.fromToken(EntryCursor.after(entry).toToken());
+        assertEquals(1607090473802L, cursor.getSince(), "The since should be the lastSeen for the entry");
+        assertFalse(cursor.precedes(entry), "The entry itself should not be after the cursor");
+        assertTrue(cursor.precedes(new FileEntry("/home/foo", "bar\nzoo_æøå.txu", 1607090473802L)),
+                   "An entry with the same lastSeen and a larger filename should be after the cursor");
+        assertTrue(EntryCursor.fromToken(EntryCursor.START).precedes(entry),
+                   "All entries should be after the start cursor");
+        assertThrows(IllegalArgumentException.class, () -> EntryCursor.fromToken("#invalid#"),
+                     "An invalid token should fail");
+    }
+
+    @Test
+    void testPagingWithTies() {
+        for (StripedIndex index: new StripedIndex[]{new StripedIndex(4, MapIndex::new),
+                                                    new StripedIndex(4, CompactIndex::new)}) {
+            // A large group of entries sharing a single lastSeen, as when unchanged folders are touched
+            final int entries = 100_000;
+            final int pageSize = 1000;
+            for (int i = 0 ; i < entries ; i++) {
+                index.put(new FileEntry("/home", "file_" + i, 1000L + (i < 100 ? i : 500)));
+            }
+
+            List<FileEntry> paged = new ArrayList<>();
+            EntryCursor cursor = EntryCursor.fromToken(EntryCursor.START);
+            while (true) {
+                AtomicLong read = new AtomicLong(0);
+                List<FileEntry> page = cursor.page(
+                        index.snapshotAfter("", cursor.getSince(), cursor.getFilename()).peek(e -> read.incrementAndGet()),
+                        pageSize);
+                assertTrue(page.size() <= pageSize, "The page should not exceed the page size for " + index);
+                assertEquals(page.size(), read.get(),
+                             "Only the entries for the page should be read from the index for " + index);
+                paged.addAll(page);
+                if (page.size() < pageSize) {
+                    break;
+                }
+                cursor = EntryCursor.fromToken(EntryCursor.after(page.get(page.size()-1)).toToken());
+            }
+            List<FileEntry> expected = index.stream().sorted(EntryCursor.ORDER).collect(Collectors.toList());
+            assertEquals(entries, paged.size(), "Paging should deliver all entries for " + index);
+            assertEquals(expected.stream().map(FileEntry::getFullpath).collect(Collectors.toList()),
+                         paged.stream().map(FileEntry::getFullpath).collect(Collectors.toList()),
+                         "Paging should deliver all entries exactly once in cursor order for " + index);
+        }
+    }
+}
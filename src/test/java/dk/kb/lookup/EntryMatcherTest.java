@@ -0,0 +1,95 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryMatcherTest {
+    private static final List<FileEntry> ENTRIES = Arrays.asList(
+            new FileEntry("/home/foo", "bar.txt", 0L),
+            new FileEntry("/home/foo", "zoo.warc.gz", 0L),
+            new FileEntry("/home/foo/sub", "bar.txt", 0L),
+            new FileEntry("/home/foo", ".hidden", 0L),
+            new FileEntry("/home/foo", "a[1]{x}.txt", 0L),
+            new FileEntry("/home/foo", "b-2.TXT", 0L),
+            new FileEntry("/home/foo", "c&d.txt", 0L),
+            new FileEntry("/home/foo", "with space^$.txt", 0L),
+            new FileEntry("/home/foo", null, 0L));
+
+    @Test
+    void testGlobsMatchPathMatcher() {
+        List<String> globs = Arrays.asList(
+                "/home/foo/*", "/home/foo/**", "/home/**.txt", "/home/foo/*.txt", "/home/foo/???.txt",
+                "/home/foo/*.{txt,gz}", "/home/foo/{bar,zoo}*", "/home/foo/[a-c]*", "/home/foo/[!a-c]*",
+                "/home/foo/[-b]*", "/home/foo/a\\[1\\]\\{x\\}.txt", "/home/foo/c&d.txt", "/home/foo/[&]*",
+                "/home/foo/with space^$.txt", "/home/foo/*.[tT][xX][tT]", "/home/foo", "**/sub/*", "*",
+                "/home/foo/{}", "/home/foo/{,bar.txt}", "/home/foo/b-2.TXT", "/home/foo/[^a]*");
+        for (String glob: globs) {
+            PathMatcher reference = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            EntryMatcher matcher = new EntryMatcher(null, glob);
+            for (FileEntry entry: ENTRIES) {
+                assertEquals(reference.matches(Paths.get(entry.getFullpath())), matcher.test(entry),
+                             "The glob '" + glob + "' should match '" + entry.getFullpath() + "' as PathMatcher");
+            }
+        }
+    }
+
+    @Test
+    void testInvalidGlobs() {
+        for (String glob: Arrays.asList("foo\\", "[a", "{a,{b}}", "{a", "[a/b]", "[z-a]")) {
+            assertThrows(PatternSyntaxException.class, () -> new EntryMatcher(null, glob),
+                         "The glob '" + glob + "' should be invalid");
+        }
+    }
+
+    @Test
+    void testRegexpAndGlob() {
+        EntryMatcher matcher = new EntryMatcher(".*/sub/.*", "**.txt");
+        assertTrue(matcher.test(ENTRIES.get(2)), "An entry matching both regexp and glob should be accepted");
+        assertFalse(matcher.test(ENTRIES.get(0)), "An entry only matching the glob should be rejected");
+        assertTrue(new EntryMatcher("/home/foo", null).test(ENTRIES.get(ENTRIES.size()-1)),
+                   "An entry without filename should be matched on the path");
+    }
+
+    @Test
+    void testCache() {
+        assertSame(EntryMatcher.get("foo.*", ""), EntryMatcher.get("foo.*", null),
+                   "The cached matcher should be returned and empty should be the same as null");
+        assertTrue(EntryMatcher.get(null, null).matchesAll(), "No regexp and no glob should match all");
+    }
+
+    @Test
+    void testFullpathSequence() {
+        EntryMatcher.FullpathSequence fullpath = new EntryMatcher.FullpathSequence();
+        for (FileEntry entry: ENTRIES) {
+            fullpath.assign(entry);
+            assertEquals(entry.getFullpath(), fullpath.toString(), "toString should match getFullpath");
+            StringBuilder chars = new StringBuilder();
+            for (int i = 0 ; i < fullpath.length() ; i++) {
+                chars.append(fullpath.charAt(i));
+            }
+            assertEquals(entry.getFullpath(), chars.toString(), "The characters should match getFullpath");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryStreamingOutputTest {
+
+    @Test
+    void testEscaping() throws IOException {
+        List<FileEntry> entries = Arrays.asList(
+                new FileEntry("/home/foo", "bar.txt", 1607090473802L),
+                new FileEntry("/home/\"quoted\"\\back", "tab\tnew\nline\u0001", 1607090473900L),
+                new FileEntry("/home/æøå", "€😀", 1607090474011L),
+                new FileEntry("/home/only_path", null, 0L));
+        String[] lines = write(entries.stream()).split("\n");
+        assertEquals(entries.size(), lines.length, "There should be a line for each entry");
+        assertTrue(lines[0].startsWith("[{"), "The output should start with the array start");
+
+        ObjectMapper mapper = new ObjectMapper();
+        for (int i = 0 ; i < entries.size() ; i++) {
+            String json = lines[i].replaceAll("^\\[", "").replaceAll("[,\\]]$", "");
+            JsonNode node = mapper.readTree(json);
+            FileEntry expected = entries.get(i);
+            assertEquals(expected.path, node.get("path").asText(), "The path for entry #" + i + " should match");
+            if (expected.filename == null) {
+                assertFalse(node.has("filename"), "Entry #" + i + " should not have a filename");
+            } else {
+                assertEquals(expected.filename, node.get("filename").asText(),
+                             "The filename for entry #" + i + " should match");
+            }
+            assertEquals(expected.getLastSeenAsISO8601(), node.get("lastSeen").asText(),
+                         "The lastSeen for entry #" + i + " should match");
+            assertEquals(expected.lastSeen, node.get("lastSeenEpochMS").asLong(),
+                         "The lastSeenEpochMS for entry #" + i + " should match");
+        }
+    }
+
+    @Test
+    void testLargeOutput() throws IOException {
+        final int count = 20000; // Several times the buffer size
+        AtomicBoolean closed = new AtomicBoolean(false);
+        Stream<FileEntry> entries = IntStream.range(0, count).
+                mapToObj(i -> new FileEntry("/some/path/" + (i / 100), "file_" + i + ".warc", i * 10L)).
+                onClose(() -> closed.set(true));
+        String output = write(entries);
+        assertTrue(closed.get(), "The entries stream should be closed after writing");
+
+        List<String> lines = Arrays.stream(output.split("\n")).collect(Collectors.toList());
+        assertEquals(count, lines.size(), "All entries should be written");
+        assertTrue(lines.get(count-1).contains("\"file_" + (count-1) + ".warc\""),
+                   "The last line should contain the last entry");
+        assertTrue(output.endsWith("\"lastSeenEpochMS\":" + ((count-1)*10L) + "}]"),
+                   "The output should end with the last entry and the array end");
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        assertEquals("[]", write(Stream.empty()), "No entries should give the empty array");
+    }
+
+    @Test
+    void testValidJSON() throws IOException {
+        List<FileEntry> entries = Arrays.asList(
+                new FileEntry("/home/foo", "bar.txt", 1607090473802L),
+                new FileEntry("/home/foo", "zoo.txt", 1607090474011L));
+        JsonNode array = new ObjectMapper().readTree(write(entries.stream()));
+        assertTrue(array.isArray(), "The JSON output should be an array");
+        assertEquals(2, array.size(), "The array should contain all entries");
+    }
+
+    @Test
+    void testNDJSON() throws IOException {
+        String[] lines = write(testEntries().stream(), EntryStreamingOutput.Format.NDJSON).split("\n");
+        assertEquals(testEntries().size(), lines.length, "There should be a line for each entry");
+        ObjectMapper mapper = new ObjectMapper();
+        for (int i = 0 ; i < lines.length ; i++) {
+            assertEquals(testEntries().get(i).path, mapper.readTree(lines[i]).get("path").asText(),
+                         "Line #" + i + " should be a stand-alone JSON object with the expected path");
+        }
+    }
+
+    @Test
+    void testCSV() throws IOException {
+        String[] lines = write(testEntries().stream(), EntryStreamingOutput.Format.CSV).split("\n");
+        assertEquals("path,filename,lastSeen,lastSeenEpochMS", lines[0], "The first line should be the header");
+        assertEquals("\"/home/foo\",\"bar.txt\"," + FileEntry.formatISO8601(1607090473802L) + ",1607090473802",
+                     lines[1], "The first entry should be as expected");
+        assertEquals("\"/home/\"\"quoted\"\"\",\"a,b\",", lines[2].substring(0, 25),
+                     "Quotes should be doubled and separators kept inside quotes");
+        assertTrue(lines[3].startsWith("\"/home/only_path\",,"), "A missing filename should be an empty field");
+    }
+
+    @Test
+    void testTSV() throws IOException {
+        String[] lines = write(testEntries().stream(), EntryStreamingOutput.Format.TSV).split("\n");
+        assertEquals("path\tfilename\tlastSeen\tlastSeenEpochMS", lines[0], "The first line should be the header");
+        assertEquals(testEntries().size() + 1, lines.length, "There should be a line for each entry plus header");
+        assertTrue(lines[4].startsWith("/home/tab\\tnew\\nline\t"), "Tabs and newlines should be escaped");
+    }
+
+    @Test
+    void testBinaryRoundTrip() throws IOException {
+        // Enough distinct paths to force a reset of the path dictionary
+        final int count = EntryStreamingOutput.MAX_BINARY_PATHS + 1000;
+        List<FileEntry> entries = IntStream.range(0, count).
+                mapToObj(i -> new FileEntry("/some/path/" + (i / 2), i % 7 == 0 ? null : "file_" + i + ".warc",
+                                            1607090473802L + (i % 3 == 0 ? -i : i))).
+                collect(Collectors.toList());
+        entries.addAll(testEntries());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new EntryStreamingOutput(entries.stream(), EntryStreamingOutput.Format.BINARY).write(out);
+
+        try (EntryBinaryReader reader = new EntryBinaryReader(new ByteArrayInputStream(out.toByteArray()))) {
+            for (int i = 0 ; i < entries.size() ; i++) {
+                FileEntry expected = entries.get(i);
+                FileEntry actual = reader.next();
+                assertNotNull(actual, "Entry #" + i + " should be present");
+                assertEquals(expected.path, actual.path, "The path for entry #" + i + " should match");
+                assertEquals(expected.filename, actual.filename, "The filename for entry #" + i + " should match");
+                assertEquals(expected.lastSeen, actual.lastSeen, "The lastSeen for entry #" + i + " should match");
+            }
+            assertNull(reader.next(), "There should be no more entries");
+        }
+    }
+
+    @Test
+    void testFromAccept() {
+        assertEquals(EntryStreamingOutput.Format.JSON, EntryStreamingOutput.Format.fromAccept(null),
+                     "No Accept header should give JSON");
+        assertEquals(EntryStreamingOutput.Format.JSON, EntryStreamingOutput.Format.fromAccept("*/*"),
+                     "Wildcard should give JSON");
+        assertEquals(EntryStreamingOutput.Format.NDJSON,
+                     EntryStreamingOutput.Format.fromAccept("application/x-ndjson, application/json;q=0.9"),
+                     "The first format with the highest quality should be used");
+        assertEquals(EntryStreamingOutput.Format.CSV,
+                     EntryStreamingOutput.Format.fromAccept("application/json;q=0.5, text/csv"),
+                     "Quality should be respected");
+        assertEquals(EntryStreamingOutput.Format.BINARY,
+                     EntryStreamingOutput.Format.fromAccept("text/html, " + EntryBinaryReader.MIME_TYPE),
+                     "Unsupported types should be ignored");
+    }
+
+    private List<FileEntry> testEntries() {
+        return Arrays.asList(
+                new FileEntry("/home/foo", "bar.txt", 1607090473802L),
+                new FileEntry("/home/\"quoted\"", "a,b", 1607090473900L),
+                new FileEntry("/home/only_path", null, 0L),
+                new FileEntry("/home/tab\tnew\nline", "æøå€😀", 1607090474011L));
+    }
+
+    private String write(Stream<FileEntry> entries, EntryStreamingOutput.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new EntryStreamingOutput(entries, format).write(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private String write(Stream<FileEntry> entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new EntryStreamingOutput(entries).write(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FilenameLookupStreamingOutputTest {
+
+    @Test
+    void testFoundAndNotFound() throws IOException {
+        String input = "file_0.warc\r\n\n  unknown\"name  \nfile_1.warc";
+        String[] lines = lookup(input, new ArrayList<>()).split("\n");
+        assertEquals(3, lines.length, "There should be a line for each non-empty input line");
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode first = mapper.readTree(lines[0]);
+        assertEquals("/home/file_0", first.get("path").asText(), "The first filename should be located");
+        JsonNode second = mapper.readTree(lines[1]);
+        assertEquals("unknown\"name", second.get("filename").asText(),
+                     "The unknown filename should be trimmed and escaped");
+        assertFalse(second.get("found").asBoolean(), "The unknown filename should be marked as not found");
+        assertEquals("file_1.warc", mapper.readTree(lines[2]).get("filename").asText(),
+                     "The last filename should be located without a trailing newline in the input");
+    }
+
+    @Test
+    void testBatching() throws IOException {
+        final int count = FilenameLookupStreamingOutput.BATCH_SIZE * 2 + 1;
+        String input = IntStream.range(0, count).
+                mapToObj(i -> "file_" + i + ".warc").
+                collect(Collectors.joining("\n"));
+        List<Integer> batchSizes = new ArrayList<>();
+        String[] lines = lookup(input, batchSizes).split("\n");
+        assertEquals(count, lines.length, "All filenames should be resolved");
+        assertTrue(lines[count-1].contains("\"file_" + (count-1) + ".warc\""),
+                   "The output should be in input order");
+        assertEquals(3, batchSizes.size(), "The filenames should be resolved in batches");
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        assertEquals("", lookup("", new ArrayList<>()), "Empty input should give empty output");
+    }
+
+    /**
+     * Resolves filenames starting with {@code file_} and records the batch sizes.
+     */
+    private String lookup(String input, List<Integer> batchSizes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FilenameLookupStreamingOutput(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                filenames -> {
+                    batchSizes.add(filenames.size());
+                    return filenames.stream().
+                            map(filename -> filename.startsWith("file_") ?
+                                    new FileEntry("/home/" + filename.replace(".warc", ""), filename, 1000L) :
+                                    null).
+                            collect(Collectors.toList());
+                }).write(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class H2PersistenceTest {
+
+    @Test
+    void testBasicOperations() throws IOException, SQLException {
+        Path dbFolder = Files.createTempDirectory("file-lookup-h2");
+        try (H2Persistence persistence = new H2Persistence(dbFolder.resolve("test"), 2)) {
+            assertTrue(persistence.isCreatedNewOnStartup(), "The database should be new");
+            persistence.putAll(Arrays.asList(
+                    new FileEntry("/a", "file1", 10),
+                    new FileEntry("/a", "file2", 30),
+                    new FileEntry("/b_c", "file3", 20)));
+            assertEquals(3, persistence.size(), "All entries should be added");
+            assertEquals("/b_c", persistence.getEntry("file3").path, "The path for file3 should be as expected");
+            assertNull(persistence.getEntry("file4"), "Requesting a non-existing entry should return null");
+
+            persistence.putAll(Collections.singletonList(new FileEntry("/b", "file1", 40)));
+            assertEquals(3, persistence.size(), "Updating an entry should not change the count");
+            assertEquals("/b", persistence.getEntry("file1").path, "Updating an entry should change the path");
+
+            try (Stream<FileEntry> entries = persistence.stream(20, true)) {
+                List<String> ordered = entries.map(entry -> entry.filename).collect(Collectors.toList());
+                assertEquals(Arrays.asList("file3", "file2", "file1"), ordered,
+                             "Entries since 20 should be delivered in lastSeen order");
+            }
+
+            assertEquals(0, persistence.purge("/b%", 100), "LIKE wildcards in the root should be escaped");
+            assertEquals(1, persistence.purge("/b_", 100), "Old entries under the root should be purged");
+            assertEquals(1, persistence.removeAll(Arrays.asList("file2", "file4")),
+                         "Only existing entries should be counted as removed");
+            assertEquals(1, persistence.size(), "Only file1 should remain");
+        } finally {
+            FileUtils.deleteDirectory(dbFolder.toFile());
+        }
+    }
+
+    @Test
+    void testPurgeFolder() throws IOException, SQLException {
+        Path dbFolder = Files.createTempDirectory("file-lookup-h2");
+        try (H2Persistence persistence = new H2Persistence(dbFolder.resolve("test"), 2)) {
+            persistence.putAll(Arrays.asList(
+                    new FileEntry("/a", "file1", 10),
+                    new FileEntry("/a/sub", "file2", 10),
+                    new FileEntry("/ab", "file3", 10),
+                    new FileEntry("/a/sub", "file4", 30)));
+            assertEquals(2, persistence.purgeFolder("/a", 20), "Old entries in the folder and sub-folders should be purged");
+            assertNull(persistence.getEntry("file2"), "The old entry in the sub-folder should be purged");
+            assertNotNull(persistence.getEntry("file3"), "Entries in sibling folders with the same prefix should remain");
+            assertNotNull(persistence.getEntry("file4"), "New entries in the folder should remain");
+        } finally {
+            FileUtils.deleteDirectory(dbFolder.toFile());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestQueueTest {
+
+    @Test
+    void testCoalescing() throws InterruptedException {
+        CountDownLatch firstBatch = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<ScanBot.Folder>> batches = Collections.synchronizedList(new ArrayList<>());
+        IngestQueue queue = new IngestQueue("test_coalescing", 1000, 10, batch -> {
+            batches.add(batch);
+            firstBatch.countDown();
+            await(release);
+        });
+        queue.accept(createFolder("/first", 1));
+        assertTrue(firstBatch.await(10, TimeUnit.SECONDS), "The first folder should be delivered");
+        // The ingest thread is blocked, so the following folders are queued
+        for (int i = 0 ; i < 20 ; i++) {
+            queue.accept(createFolder("/folder" + i, 2));
+        }
+        assertEquals(20, queue.getQueuedFolders(), "All folders should be queued while the consumer is blocked");
+        release.countDown();
+        assertTrue(queue.flush(10, TimeUnit.SECONDS), "All folders should be delivered within 10 seconds");
+        assertEquals(0, queue.getQueuedEntries(), "The queue should be empty after flush");
+
+        assertEquals(5, batches.size(), "The queued folders should be coalesced into batches of 10 entries");
+        int folders = 0;
+        for (List<ScanBot.Folder> batch: batches.subList(1, batches.size())) {
+            assertEquals(5, batch.size(), "Each batch should hold 5 folders with 2 entries each");
+            for (ScanBot.Folder folder: batch) {
+                assertEquals("/folder" + folders++, folder.folder, "The folders should be delivered in order");
+            }
+        }
+    }
+
+    @Test
+    void testUnchangedWeight() throws InterruptedException {
+        CountDownLatch firstBatch = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<ScanBot.Folder>> batches = Collections.synchronizedList(new ArrayList<>());
+        IngestQueue queue = new IngestQueue("test_unchanged", 1000, 10, batch -> {
+            batches.add(batch);
+            firstBatch.countDown();
+            await(release);
+        });
+        queue.accept(createFolder("/first", 1));
+        assertTrue(firstBatch.await(10, TimeUnit.SECONDS), "The first folder should be delivered");
+        for (int i = 0 ; i < 20 ; i++) {
+            queue.accept(createUnchangedFolder("/unchanged" + i, 5));
+        }
+        assertEquals(100, queue.getQueuedEntries(), "Unchanged folders should be weighted by their known files");
+        release.countDown();
+        assertTrue(queue.flush(10, TimeUnit.SECONDS), "All folders should be delivered within 10 seconds");
+
+        assertEquals(11, batches.size(), "The unchanged folders should be coalesced into batches of 10 entries");
+        for (List<ScanBot.Folder> batch: batches.subList(1, batches.size())) {
+            assertEquals(2, batch.size(), "Each batch should hold 2 unchanged folders with 5 known files each");
+        }
+        assertEquals(1, IngestQueue.weight(createUnchangedFolder("/empty", 0)),
+                     "An unchanged folder without files should count as 1");
+    }
+
+    @Test
+    void testBackPressure() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        IngestQueue queue = new IngestQueue("test_backpressure", 10, 10, batch -> await(release));
+        queue.accept(createFolder("/taken", 10)); // Taken by the ingest thread, which is then blocked
+        assertTrue(waitForEmpty(queue), "The first folder should be taken by the ingest thread");
+        queue.accept(createFolder("/queued", 6));
+
+        AtomicBoolean accepted = new AtomicBoolean(false);
+        Thread scanner = new Thread(() -> {
+            queue.accept(createFolder("/blocked", 6));
+            accepted.set(true);
+        });
+        scanner.start();
+        Thread.sleep(100);
+        assertFalse(accepted.get(), "The scanner should wait when the queue is full");
+
+        release.countDown();
+        scanner.join(10000);
+        assertTrue(accepted.get(), "The scanner should continue when there is room in the queue");
+        assertTrue(queue.flush(10, TimeUnit.SECONDS), "All folders should be delivered within 10 seconds");
+    }
+
+    @Test
+    void testConsumerException() throws InterruptedException {
+        List<ScanBot.Folder> delivered = Collections.synchronizedList(new ArrayList<>());
+        IngestQueue queue = new IngestQueue("test_exception", 10, 1, batch -> {
+            if (batch.get(0).folder.equals("/fail")) {
+                throw new IllegalStateException("Expected failure");
+            }
+            delivered.addAll(batch);
+        });
+        queue.accept(createFolder("/fail", 1));
+        queue.accept(createFolder("/ok", 1));
+        assertTrue(queue.flush(10, TimeUnit.SECONDS), "Flush should succeed after a failing batch");
+        assertEquals(1, delivered.size(), "The batch after the failing one should be delivered");
+    }
+
+    @Test
+    void testConsumerError() throws InterruptedException {
+        IngestQueue queue = new IngestQueue("test_error", 10, 1, batch -> {
+            throw new OutOfMemoryError("Expected failure");
+        });
+        queue.accept(createFolder("/fail", 1));
+        assertThrows(IllegalStateException.class, () -> queue.flush(10, TimeUnit.SECONDS),
+                     "Flush should fail instead of waiting when the ingest thread has failed");
+        assertTrue(queue.getFailure() instanceof OutOfMemoryError, "The failure should be the thrown Error");
+        assertThrows(IllegalStateException.class, () -> queue.accept(createFolder("/rejected", 1)),
+                     "Folders should be rejected when the ingest thread has failed");
+    }
+
+    @Test
+    void testClose() throws InterruptedException {
+        List<ScanBot.Folder> delivered = Collections.synchronizedList(new ArrayList<>());
+        IngestQueue queue = new IngestQueue("test_close", 10, 1, delivered::addAll);
+        queue.accept(createFolder("/a", 1));
+        queue.accept(createFolder("/b", 1));
+        queue.close();
+        assertEquals(2, delivered.size(), "Queued folders should be delivered before close returns");
+        assertThrows(IllegalStateException.class, () -> queue.accept(createFolder("/rejected", 1)),
+                     "Folders should be rejected when the queue is closed");
+        assertTrue(queue.flush(1, TimeUnit.SECONDS), "Flush should succeed when all folders were delivered");
+        queue.close(); // Should be a no-op
+    }
+
+    private boolean waitForEmpty(IngestQueue queue) throws InterruptedException {
+        for (int i = 0 ; i < 1000 && queue.getQueuedFolders() > 0 ; i++) {
+            Thread.sleep(10);
+        }
+        return queue.getQueuedFolders() == 0;
+    }
+
+    private static ScanBot.Folder createFolder(String path, int files) {
+        ScanBot.Folder folder = new ScanBot.Folder(path);
+        for (int i = 0 ; i < files ; i++) {
+            folder.add(new FileEntry(path, "file" + i, 0L));
+        }
+        return folder;
+    }
+
+    private static ScanBot.Folder createUnchangedFolder(String path, int knownFiles) {
+        ScanBot.Folder folder = new ScanBot.Folder(path);
+        folder.unchanged = true;
+        folder.knownFileCount = knownFiles;
+        return folder;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
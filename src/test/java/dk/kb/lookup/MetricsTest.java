@@ -0,0 +1,64 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    @Test
+    void testCounter() {
+        Metrics metrics = new Metrics();
+        metrics.counter("test_total", "Test counter", "kind", "a").inc();
+        metrics.counter("test_total", "Test counter", "kind", "a").add(2);
+        metrics.counter("test_total", "Test counter", "kind", "b\"quoted\"").inc();
+        String exported = metrics.toPrometheus();
+        assertTrue(exported.contains("# TYPE test_total counter\n"), "The type should be exported");
+        assertTrue(exported.contains("test_total{kind=\"a\"} 3\n"),
+                   "Registering the same counter again should return the existing counter. Got\n" + exported);
+        assertTrue(exported.contains("test_total{kind=\"b\\\"quoted\\\"\"} 1\n"),
+                   "Label values should be escaped. Got\n" + exported);
+    }
+
+    @Test
+    void testHistogram() {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram("test_seconds", "Test histogram", new double[]{0.1, 1});
+        histogram.observe(0.05);
+        histogram.observe(0.1);
+        histogram.observe(0.5);
+        histogram.observe(7);
+        String exported = metrics.toPrometheus();
+        assertTrue(exported.contains("test_seconds_bucket{le=\"0.1\"} 2\n"),
+                   "Values at the bound should be in the bucket. Got\n" + exported);
+        assertTrue(exported.contains("test_seconds_bucket{le=\"1\"} 3\n"),
+                   "Buckets should be cumulative. Got\n" + exported);
+        assertTrue(exported.contains("test_seconds_bucket{le=\"+Inf\"} 4\n"),
+                   "The +Inf bucket should hold all observations. Got\n" + exported);
+        assertTrue(exported.contains("test_seconds_count 4\n"), "The count should be exported. Got\n" + exported);
+        assertEquals(7.65, histogram.getSum(), 0.0001, "The sum should be the sum of the observations");
+    }
+
+    @Test
+    void testGaugeAndTypeConflict() {
+        Metrics metrics = new Metrics();
+        metrics.gauge("test_value", "Test gauge", () -> 42);
+        assertTrue(metrics.toPrometheus().contains("test_value 42\n"), "The gauge should be resolved on export");
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("test_value", "Conflict"),
+                     "Registering a gauge name as counter should fail");
+    }
+}
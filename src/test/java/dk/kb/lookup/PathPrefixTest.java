@@ -0,0 +1,42 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PathPrefixTest {
+
+    @Test
+    void testRegexp() {
+        assertEquals("/a/b/", PathPrefix.fromRegexp("/a/b/.*"), "Plain folder prefix should be extracted");
+        assertEquals("/a/b/", PathPrefix.fromRegexp("^/a/b/.*"), "Leading ^ should be ignored");
+        assertEquals("/a/b/foo.", PathPrefix.fromRegexp("/a/b/foo\\.[0-9]+"), "Escaped dots should be literals");
+        assertEquals("/a/b", PathPrefix.fromRegexp("/a/bc?/.*"), "Optional characters should end the prefix");
+        assertEquals("/a/", PathPrefix.fromRegexp("/a/\\d+/.*"), "Character classes should end the prefix");
+        assertEquals("", PathPrefix.fromRegexp("/a/b/x|/c/d/y"), "Alternations should not give a prefix");
+        assertEquals("", PathPrefix.fromRegexp("(?i)/a/b/.*"), "Flags should not give a prefix");
+        assertEquals("", PathPrefix.fromRegexp(null), "null should not give a prefix");
+    }
+
+    @Test
+    void testGlob() {
+        assertEquals("/a/b/", PathPrefix.fromGlob("/a/b/*.txt"), "Plain folder prefix should be extracted");
+        assertEquals("/a/b*c/", PathPrefix.fromGlob("/a/b\\*c/**"), "Escaped wildcards should be literals");
+        assertEquals("/a/", PathPrefix.fromGlob("/a/{b,c}/*"), "Groups should end the prefix");
+        assertEquals("/a/b/", PathPrefix.fromQuery("/a/.*", "/a/b/*"), "The longest prefix should be used");
+    }
+}
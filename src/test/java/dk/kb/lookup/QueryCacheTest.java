@@ -0,0 +1,144 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import dk.kb.lookup.index.MapIndex;
+import dk.kb.lookup.index.StripedIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryCacheTest {
+
+    @Test
+    void testHit() {
+        StripedIndex index = createIndex(10);
+        QueryCache cache = new QueryCache(100, 100, index::getModificationCount);
+        AtomicInteger resolved = new AtomicInteger(0);
+
+        assertEquals(10, query(cache, "all", index, resolved).size(), "The first query should deliver all entries");
+        assertEquals(10, query(cache, "all", index, resolved).size(), "The second query should deliver all entries");
+        assertEquals(1, resolved.get(), "The second query should be served from the cache");
+        assertEquals(1, cache.getHits(), "There should be a single hit");
+        assertEquals(1, cache.getMisses(), "There should be a single miss");
+        assertEquals(10, cache.getEntryCount(), "The cached entries should be counted");
+    }
+
+    @Test
+    void testInvalidation() {
+        StripedIndex index = createIndex(10);
+        QueryCache cache = new QueryCache(100, 100, index::getModificationCount);
+        AtomicInteger resolved = new AtomicInteger(0);
+
+        query(cache, "all", index, resolved);
+        index.put(new FileEntry("/home", "extra.txt", 2000L));
+        assertEquals(11, query(cache, "all", index, resolved).size(),
+                     "The query after a change to the index should include the new entry");
+        assertEquals(2, resolved.get(), "The query after a change to the index should not be served from the cache");
+        assertEquals(1, cache.getInvalidations(), "The change to the index should invalidate the cache");
+
+        index.touchFolder("/nonexisting", 3000L);
+        query(cache, "all", index, resolved);
+        assertEquals(2, resolved.get(), "Touching a folder without entries should not invalidate the cache");
+    }
+
+    @Test
+    void testChangeDuringQuery() {
+        StripedIndex index = createIndex(10);
+        QueryCache cache = new QueryCache(100, 100, index::getModificationCount);
+
+        try (Stream<FileEntry> entries = cache.query("all", index::stream)) {
+            index.remove("file_0.txt");
+            entries.forEach(entry -> {});
+        }
+        assertEquals(0, cache.getResultCount(), "A result should not be cached if the index changed during the query");
+    }
+
+    @Test
+    void testEviction() {
+        StripedIndex index = createIndex(10);
+        QueryCache cache = new QueryCache(25, 100, index::getModificationCount);
+        AtomicInteger resolved = new AtomicInteger(0);
+
+        query(cache, "a", index, resolved);
+        query(cache, "b", index, resolved);
+        query(cache, "a", index, resolved); // a is now most recently used
+        query(cache, "c", index, resolved);
+        assertEquals(2, cache.getResultCount(), "Only 2 results should fit in the cache");
+        assertEquals(1, cache.getEvictions(), "The least recently used result should be evicted");
+
+        resolved.set(0);
+        query(cache, "a", index, resolved);
+        assertEquals(0, resolved.get(), "The recently used result should still be cached");
+        query(cache, "b", index, resolved);
+        assertEquals(1, resolved.get(), "The least recently used result should have been evicted");
+    }
+
+    @Test
+    void testLargeResult() {
+        StripedIndex index = createIndex(10);
+        QueryCache cache = new QueryCache(100, 5, index::getModificationCount);
+        AtomicInteger resolved = new AtomicInteger(0);
+
+        assertEquals(10, query(cache, "all", index, resolved).size(), "All entries should be delivered");
+        assertEquals(0, cache.getResultCount(), "A result larger than maxResultEntries should not be cached");
+    }
+
+    @Test
+    void testPartialConsumption() {
+        StripedIndex index = createIndex(10);
+        QueryCache cache = new QueryCache(100, 100, index::getModificationCount);
+
+        try (Stream<FileEntry> entries = cache.query("all", index::stream)) {
+            assertEquals(3, entries.limit(3).count(), "The limited stream should deliver 3 entries");
+        }
+        assertEquals(0, cache.getResultCount(), "A partially consumed result should not be cached");
+    }
+
+    @Test
+    void testDisabled() {
+        StripedIndex index = createIndex(10);
+        QueryCache cache = new QueryCache(0, 100, index::getModificationCount);
+        AtomicInteger resolved = new AtomicInteger(0);
+
+        query(cache, "all", index, resolved);
+        query(cache, "all", index, resolved);
+        assertEquals(2, resolved.get(), "All queries should be resolved when the cache is disabled");
+        assertFalse(cache.isEnabled(), "The cache should be disabled");
+    }
+
+    private List<FileEntry> query(QueryCache cache, Object key, StripedIndex index, AtomicInteger resolved) {
+        try (Stream<FileEntry> entries = cache.query(key, () -> {
+            resolved.incrementAndGet();
+            return index.stream();
+        })) {
+            return entries.collect(Collectors.toList());
+        }
+    }
+
+    private StripedIndex createIndex(int entries) {
+        StripedIndex index = new StripedIndex(4, MapIndex::new);
+        index.putAll(IntStream.range(0, entries).
+                mapToObj(i -> new FileEntry("/home", "file_" + i + ".txt", 1000L + i)).
+                collect(Collectors.toList()));
+        return index;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import dk.kb.lookup.index.FileIndex;
+import dk.kb.lookup.index.FolderListing;
+import dk.kb.lookup.index.MapIndex;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+class ScanBotTest {
+
+    @Test
+    void testIncrementalScan() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("file-lookup-scanbot");
+        try {
+            Path sub = Files.createDirectories(root.resolve("sub"));
+            Files.createFile(sub.resolve("a.txt"));
+            Files.createFile(sub.resolve("b.txt"));
+            // Folders modified within the grace period are not remembered, so the times are set back
+            setOld(root, 100);
+            setOld(sub, 100);
+
+            ScanBot bot = new ScanBot(2, true);
+            Map<String, ScanBot.Folder> first = scan(bot, root);
+            assertFalse(first.get(sub.toString()).unchanged, "The first scan should list all folders");
+            assertEquals(2, first.get(sub.toString()).size(), "The first scan should deliver the files");
+
+            Map<String, ScanBot.Folder> second = scan(bot, root);
+            ScanBot.Folder unchanged = second.get(sub.toString());
+            assertTrue(unchanged.unchanged, "The second scan should skip the unmodified sub folder");
+            assertEquals(2, unchanged.knownFileCount, "The unchanged folder should state the known file count");
+            assertTrue(unchanged.isEmpty(), "The unchanged folder should not hold any entries");
+
+            Files.createFile(sub.resolve("c.txt"));
+            setOld(sub, 50);
+            Map<String, ScanBot.Folder> third = scan(bot, root);
+            assertFalse(third.get(sub.toString()).unchanged, "The modified sub folder should be listed");
+            assertEquals(3, third.get(sub.toString()).size(), "The modified sub folder should deliver all files");
+
+            bot.forgetFolder(sub.toString());
+            assertFalse(scan(bot, root).get(sub.toString()).unchanged, "A forgotten folder should be listed");
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    @Test
+    void testUnreadableFolder() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("file-lookup-scanbot");
+        Path sub = Files.createDirectories(root.resolve("sub"));
+        try {
+            Files.createFile(root.resolve("kept.txt"));
+            Files.createFile(sub.resolve("a.txt"));
+            Path deep = Files.createDirectories(sub.resolve("deep"));
+            Files.createFile(deep.resolve("b.txt"));
+            setOld(root, 100);
+            setOld(sub, 100);
+            setOld(deep, 100);
+
+            ScanBot bot = new ScanBot(1, true);
+            MapIndex index = new MapIndex();
+            scan(bot, root).values().forEach(folder -> apply(index, folder));
+            assertEquals(3, index.size(), "The first scan should deliver all files");
+
+            setOld(sub, 50); // Ensures that the folder is listed again
+            Files.setPosixFilePermissions(sub, Collections.emptySet());
+            assumeFalse(Files.isReadable(sub), "The folder must be unreadable, which is not the case for root");
+            Thread.sleep(10); // The entries from the first scan must be older than the second scan
+
+            Map<String, ScanBot.Folder> second = scan(bot, root);
+            assertTrue(second.get(sub.toString()).unavailable, "The unreadable folder should be delivered as unavailable");
+            assertTrue(second.get(sub.toString()).isEmpty(), "The unreadable folder should not hold any entries");
+            assertTrue(second.get(deep.toString()).unavailable,
+                       "The previously known folder below the unreadable folder should be delivered as unavailable");
+            assertFalse(second.get(root.toString()).unavailable, "The readable root should not be unavailable");
+
+            second.values().forEach(folder -> apply(index, folder));
+            assertNotNull(index.get("kept.txt"), "The entry in the readable root should be kept");
+            assertNull(index.get("a.txt"), "The entry in the unreadable folder should be removed");
+            assertNull(index.get("b.txt"), "The entry below the unreadable folder should be removed");
+        } finally {
+            Files.setPosixFilePermissions(sub, PosixFilePermissions.fromString("rwx------"));
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    /**
+     * Updates the index with the folder in the same way as the in-memory implementations.
+     */
+    private void apply(FileIndex index, ScanBot.Folder folder) {
+        if (folder.unchanged) {
+            index.touchFolder(folder.folder, System.currentTimeMillis());
+        } else {
+            index.applyListing(new FolderListing(folder.folder, folder, folder.subFolderNames, folder.listingTime));
+        }
+    }
+
+    @Test
+    void testConcurrentScans() throws IOException, InterruptedException {
+        Path base = Files.createTempDirectory("file-lookup-scanbot");
+        try {
+            Path slow = Files.createDirectories(base.resolve("slow"));
+            Path fast = Files.createDirectories(base.resolve("fast"));
+            Files.createFile(fast.resolve("a.txt"));
+            Files.createFile(Files.createDirectories(fast.resolve("sub")).resolve("b.txt"));
+
+            ScanBot bot = new ScanBot(1, true);
+            CountDownLatch blocked = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch slowDone = new CountDownLatch(1);
+            assertTrue(bot.startScan(Collections.singletonList(slow.toString()), folder -> {
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, slowDone::countDown), "The scan of the slow root should be started");
+            try {
+                assertTrue(blocked.await(10, TimeUnit.SECONDS), "The slow scan should deliver a folder");
+                assertTrue(bot.isScanning(slow.resolve("sub").toString()),
+                           "A folder below the slow root should be reported as being scanned");
+                assertFalse(bot.startScan(Collections.singletonList(base.toString()), folder -> {}, null),
+                            "A scan of a folder above the slow root should be refused");
+
+                Map<String, ScanBot.Folder> folders = scan(bot, fast);
+                assertEquals(2, folders.size(), "The disjoint root should be scanned while the slow scan runs");
+                assertEquals(ScanBot.STATE.scanning, bot.getState(), "The slow scan should still be running");
+
+                Map<String, ScanBot.RootProgress> progress = new HashMap<>();
+                bot.getRootProgress().forEach(rootProgress -> progress.put(rootProgress.getRoot(), rootProgress));
+                ScanBot.RootProgress fastProgress = progress.get(fast.toString());
+                assertFalse(fastProgress.isActive(), "The fast root should be idle");
+                assertEquals(2, fastProgress.getFoldersVisited(), "The fast root should have 2 visited folders");
+                assertEquals(2, fastProgress.getFilesSeen(), "The fast root should have 2 seen files");
+                assertTrue(progress.get(slow.toString()).isActive(), "The slow root should be active");
+            } finally {
+                release.countDown();
+            }
+            assertTrue(slowDone.await(10, TimeUnit.SECONDS), "The slow scan should finish within 10 seconds");
+            assertEquals(ScanBot.STATE.idle, bot.getState(), "No scans should be running");
+        } finally {
+            FileUtils.deleteDirectory(base.toFile());
+        }
+    }
+
+    private Map<String, ScanBot.Folder> scan(ScanBot bot, Path root) throws InterruptedException {
+        Map<String, ScanBot.Folder> folders = Collections.synchronizedMap(new LinkedHashMap<>()); // Delivery order
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> roots = Collections.singletonList(root.toString());
+        assertTrue(bot.startScan(roots, folder -> folders.put(folder.folder, folder), done::countDown),
+                   "The scan should be started");
+        assertTrue(done.await(10, TimeUnit.SECONDS), "The scan should finish within 10 seconds");
+        return folders;
+    }
+
+    private void setOld(Path path, int secondsAgo) throws IOException {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - secondsAgo*1000L));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WatchBotTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    @Test
+    void testCreateDelete() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("file-lookup-watch");
+        Set<Path> created = Collections.synchronizedSet(new HashSet<>());
+        Set<Path> deleted = Collections.synchronizedSet(new HashSet<>());
+        Files.createDirectories(root.resolve("existing"));
+        try (WatchBot watchBot = new WatchBot(Collections.singletonList(root.toString()), 100, 100,
+                                              created::addAll, deleted::addAll, folder -> {})) {
+            assertEquals(2, watchBot.getWatchCount(), "The root and its existing sub-folder should be watched");
+
+            Path file1 = Files.createFile(root.resolve("file1"));
+            Path file2 = Files.createFile(root.resolve("existing").resolve("file2"));
+            assertTrue(waitFor(() -> created.contains(file1) && created.contains(file2)),
+                       "Files created in existing folders should be delivered. Got " + created);
+
+            Path sub = Files.createDirectories(root.resolve("new").resolve("sub"));
+            Path file3 = Files.createFile(sub.resolve("file3"));
+            assertTrue(waitFor(() -> created.contains(file3)),
+                       "Files in new folders should be delivered. Got " + created);
+            assertFalse(created.contains(sub), "Folders should not be delivered as created");
+            assertTrue(waitFor(() -> watchBot.getWatchCount() == 4), "New folders should be watched");
+
+            Files.delete(file1);
+            assertTrue(waitFor(() -> deleted.contains(file1)), "Deleted files should be delivered. Got " + deleted);
+
+            FileUtils.deleteDirectory(root.resolve("new").toFile());
+            assertTrue(waitFor(() -> deleted.contains(root.resolve("new"))),
+                       "Deleted folders should be delivered. Got " + deleted);
+            assertTrue(waitFor(() -> watchBot.getWatchCount() == 2), "Deleted folders should not be watched");
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    @Test
+    void testLateRoot() throws IOException, InterruptedException {
+        Path parent = Files.createTempDirectory("file-lookup-watch");
+        Path root = parent.resolve("late");
+        Set<Path> created = Collections.synchronizedSet(new HashSet<>());
+        try (WatchBot watchBot = new WatchBot(Collections.singletonList(root.toString()), 100, 50,
+                                              created::addAll, paths -> {}, folder -> {})) {
+            assertEquals(Collections.singleton(root), watchBot.getUnwatchedRoots(),
+                         "The non-existing root should be unwatched");
+
+            Files.createDirectories(root);
+            Path file1 = Files.createFile(root.resolve("file1"));
+            assertTrue(waitFor(() -> created.contains(file1)),
+                       "Files in the late root should be delivered. Got " + created);
+            assertTrue(watchBot.getUnwatchedRoots().isEmpty(), "The late root should be watched");
+        } finally {
+            FileUtils.deleteDirectory(parent.toFile());
+        }
+    }
+
+    private boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long endTime = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < endTime) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return condition.getAsBoolean();
+    }
+}
@@ -2,7 +2,10 @@ package dk.kb.lookup.api.impl;
 
 import dk.kb.lookup.api.MergedApi;
 import dk.kb.lookup.config.ServiceConfig;
+import dk.kb.lookup.model.ChangeDto;
+import dk.kb.lookup.model.ChangesReplyDto;
 import dk.kb.lookup.model.EntryReplyDto;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.webservice.exception.NoContentServiceException;
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.BeforeAll;
@@ -10,13 +13,17 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Proxy;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -26,10 +33,14 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -135,6 +146,45 @@ class MemoryImplTest {
         setupTestImpl(root);
     }
 
+    @Test
+    void testScanPathOutsideRoots() {
+        assertThrows(InvalidArgumentServiceException.class, () -> impl.scanPath("/nonexisting/file-lookup"),
+                     "Scanning a path outside of the roots should fail");
+        assertThrows(InvalidArgumentServiceException.class, () -> impl.scanPath(root + "/../file-lookup-other"),
+                     "Scanning a path that escapes the roots should fail");
+    }
+
+    @Test
+    void testScanPath() throws IOException, InterruptedException {
+        Files.createDirectories(root.resolve("scan_path/sub"));
+        createFile("scan_path/sp_deleted");
+        createFile("scan_path/sub/sp_kept");
+        createFile("sp_outside");
+        performScan(impl);
+        deleteFile("scan_path/sp_deleted");
+        deleteFile("sp_outside");
+        createFile("scan_path/sub/sp_new");
+
+        try {
+            assertEquals(Collections.singletonList(root + "/scan_path"),
+                         impl.scanPath(root + "/scan_path/sub/../").getRoots(),
+                         "The scanned folder should be expressed relative to the configured root");
+            waitForIdle(impl);
+
+            assertEquals(root + "/scan_path/sub", impl.getEntryFromFilename("sp_new").getPath(),
+                         "The new file should be added with the same path as a full scan would give");
+            assertEquals(root + "/scan_path/sub", impl.getEntryFromFilename("sp_kept").getPath(),
+                         "The existing file should be kept");
+            assertThrows(NoContentServiceException.class, () -> impl.getEntryFromFilename("sp_deleted"),
+                         "The deleted file below the scanned folder should be removed");
+            assertEquals(root.toString(), impl.getEntryFromFilename("sp_outside").getPath(),
+                         "The deleted file outside of the scanned folder should not be affected");
+        } finally {
+            FileUtils.deleteDirectory(root.resolve("scan_path").toFile());
+            performScan(impl);
+        }
+    }
+
     @Test
     void testFilenameLookup()  {
         impl.getEntryFromFilename("file1");
@@ -168,6 +218,26 @@ class MemoryImplTest {
                 "The expected number of entries should be removed");
     }
 
+    @Test
+    void testChanges() {
+        final String file = "/foo/change_test.txt";
+        long from = impl.getChanges(null, 1, 0).getNextSequence();
+        impl.addFiles(Collections.singletonList(file), false);
+        impl.addFiles(Collections.singletonList(file), false);
+        impl.removeFiles(Collections.singletonList(file), false);
+
+        ChangesReplyDto reply = impl.getChanges(from, 1000, 0);
+        assertFalse(reply.getGap(), "There should be no gap when requesting from the previous nextSequence");
+        List<ChangeDto.TypeEnum> types = reply.getChanges().stream().
+                filter(change -> "change_test.txt".equals(change.getFilename())).
+                map(ChangeDto::getType).
+                collect(Collectors.toList());
+        assertEquals(Arrays.asList(ChangeDto.TypeEnum.ADDED, ChangeDto.TypeEnum.UPDATED, ChangeDto.TypeEnum.REMOVED),
+                     types, "Adding twice and removing should give the expected changes");
+        assertEquals(reply.getNextSequence(), impl.getChanges(reply.getNextSequence(), 1000, 0).getNextSequence(),
+                     "Requesting from nextSequence without waiting should not advance when there are no changes");
+    }
+
     @Test
     void testNonexistingFilenameLookup() {
         try {
@@ -181,7 +251,7 @@ class MemoryImplTest {
 
     @Test
     void testRegexpLookup() {
-        assertEquals(1, countEntries(impl.getEntries(".*1", null, null, null,  100, false)),
+        assertEquals(1, countEntries(impl.getEntries(null, ".*1", null, null, null,  100, false, null)),
                      "The expected number of files should be located");
     }
 
@@ -189,10 +259,16 @@ class MemoryImplTest {
         if (entries.getEntity() instanceof List) {
             return toList(entries).size();
         }
-        if (entries.getEntity() instanceof InputStream) {
+        if (entries.getEntity() instanceof StreamingOutput) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                ((StreamingOutput) entries.getEntity()).write(out);
+            } catch (IOException e) {
+                throw new RuntimeException("IOException writing stream", e);
+            }
             int count = 0;
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader((InputStream) entries.getEntity(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(out.toByteArray()), StandardCharsets.UTF_8));
             while (true) {
                 try {
                     if ((in.readLine() == null)) break;
@@ -220,16 +296,60 @@ class MemoryImplTest {
 
     @Test
     void testGlobLookup() {
-        assertEquals(1, countEntries(impl.getEntries(null,"**/f*1", null, null,  100, false)),
+        assertEquals(1, countEntries(impl.getEntries(null, null,"**/f*1", null, null,  100, false, null)),
                      "The expected number of files should be located");
     }
 
+    @Test
+    void testNDJSONLookup() throws IOException {
+        Response response = impl.getEntries(
+                acceptRequest("application/x-ndjson"), ".*1", null, null, null, 100, false, null);
+        assertEquals("application/x-ndjson", response.getMediaType().toString(),
+                     "The media type should be the requested one");
+        assertEquals(1, countEntries(response), "The expected number of files should be located");
+    }
+
+    /**
+     * @return a request which only supports {@code getHeader("Accept")}.
+     */
+    private static HttpServletRequest acceptRequest(String accept) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                MemoryImplTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> "getHeader".equals(method.getName()) && "Accept".equals(args[0]) ?
+                        accept : null);
+    }
+
+    @Test
+    void testCursorPaging() {
+        int total = toList(impl.getEntries(null, ".*", null, null, null, 1000, false, null)).size();
+        Set<String> seen = new HashSet<>();
+        String cursor = "*";
+        int pages = 0;
+        while (cursor != null) {
+            Response response = impl.getEntries(null, ".*", null, null, null, 1, false, cursor);
+            for (EntryReplyDto entry: toList(response)) {
+                assertTrue(seen.add(entry.getPath() + "/" + entry.getFilename()),
+                           "The entry " + entry.getFilename() + " should only be delivered once");
+            }
+            cursor = response.getHeaderString(MemoryImpl.NEXT_CURSOR_HEADER);
+            assertTrue(++pages <= total + 1, "Paging should terminate");
+        }
+        assertEquals(total, seen.size(), "All entries should be delivered when paging");
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> impl.getEntries(null, ".*", null, null, null, 10, false, "invalid_cursor"),
+                     "An invalid cursor should fail");
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> impl.getEntries(null, ".*", null, null, null, -1, false, "*"),
+                     "Unlimited pages should not be allowed");
+    }
+
     @Test
     void testRegexpLookupStream() throws IOException {
-        assertEquals(1, countEntries(impl.getEntries(".*1", null, null, null,  -1, false)),
+        assertEquals(1, countEntries(impl.getEntries(null, ".*1", null, null, null,  -1, false, null)),
                      "The expected number of files should be located using streaming");
         assertFalse(impl.startScan(".*").getRoots().isEmpty(),
                     "Starting a new scan after stream export should work");
+        waitForIdle(impl); // Later tests might need the roots and the files found by the scan
     }
 
     // TODO: Reimplement this
@@ -251,12 +371,12 @@ class MemoryImplTest {
     @Test
     void testTimeMSLookup()  {
         // Get the timestamp for an entry and the total entry count
-        List<EntryReplyDto> all = toList(impl.getEntries(".*", null, null, null, 1000, true));
+        List<EntryReplyDto> all = toList(impl.getEntries(null, ".*", null, null, null, 1000, true, null));
         assertFalse(all.isEmpty(), "some files should be located");
         long firstTime = all.get(0).getLastSeenEpochMS();
 
         // Try requesting a bit later (1 ms later than the first)
-        List<EntryReplyDto> oneMsLater = toList(impl.getEntries(null, null, null, firstTime+1, 1000, true));
+        List<EntryReplyDto> oneMsLater = toList(impl.getEntries(null, null, null, null, firstTime+1, 1000, true, null));
         assertNotEquals(oneMsLater.size(), all.size(),
                         "Requesting 1 ms later than first entry should result in another number of entries returned");
     }
@@ -264,14 +384,14 @@ class MemoryImplTest {
     @Test
     void testTimeISOLookup() throws Exception {
         // Get the timestamp for an entry and the total entry count
-        List<EntryReplyDto> all = toList(impl.getEntries(".*", null, null, null, 1000, true));
+        List<EntryReplyDto> all = toList(impl.getEntries(null, ".*", null, null, null, 1000, true, null));
         assertFalse(all.isEmpty(), "some files should be located");
         String firstISO = all.get(0).getLastSeen();
         long firstTime = MemoryImpl.iso8601.parse(firstISO).getTime();
 
         // Try requesting a bit later (1 s as ISO-time only goes down to 1 second granularity in this API)
         String since = MemoryImpl.iso8601.format(new Date(firstTime + 1000)); // 1 s later than the first
-        List<EntryReplyDto> oneMsLater = toList(impl.getEntries(".*", null, since, null, 1000, true));
+        List<EntryReplyDto> oneMsLater = toList(impl.getEntries(null, ".*", null, since, null, 1000, true, null));
         assertNotEquals(oneMsLater.size(), all.size(),
                         "Requesting 1 second later than first entry should result in another number of entries returned");
     }
@@ -331,9 +451,18 @@ class MemoryImplTest {
     @SuppressWarnings("BusyWait")
     private static void performScan(MergedApi impl) throws InterruptedException {
         assertFalse(impl.startScan(".*").getRoots().isEmpty(), "At least 1 root should be scanned");
+        waitForIdle(impl);
+    }
+
+    private static void waitForIdle(MergedApi impl) {
         final long maxTime = System.currentTimeMillis()+60000; // 1 minute is insanely overkill, but we err on the side of caution
         while (System.currentTimeMillis() < maxTime && !impl.getStatus().getState().equals("idle")) {
-            Thread.sleep(10); // Yeah, busy wait. Hard to avoid without adding a callback to ScanBot
+            try {
+                Thread.sleep(10); // Yeah, busy wait. Hard to avoid without adding a callback to ScanBot
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
         assertEquals("idle", impl.getStatus().getState(), "After waiting for scan to stop, the ScanBot should be idle");
     }
@@ -0,0 +1,241 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactIndexTest {
+
+    @Test
+    void testBasicOperations() {
+        CompactIndex index = new CompactIndex();
+        index.put(new FileEntry("/a/b", "foo.txt", 10));
+        index.put(new FileEntry("/a/b", "bar.txt", 20));
+        index.put(new FileEntry("/a/c", "\u00e6\u00f8\u00e5.txt", 30));
+        assertEquals(3, index.size(), "There should be the expected number of entries");
+
+        FileEntry entry = index.get("\u00e6\u00f8\u00e5.txt");
+        assertNotNull(entry, "The non-ASCII filename should be located");
+        assertEquals("/a/c", entry.path, "The path for the non-ASCII entry should be correct");
+        assertEquals(30L, entry.lastSeen, "The lastSeen for the non-ASCII entry should be correct");
+
+        index.put(new FileEntry("/a/d", "foo.txt", 40));
+        assertEquals(3, index.size(), "Updating an entry should not change the size");
+        assertEquals("/a/d", index.get("foo.txt").path, "Updating an entry should change the path");
+
+        assertTrue(index.remove("bar.txt"), "Removing an existing entry should succeed");
+        assertFalse(index.remove("bar.txt"), "Removing a non-existing entry should fail");
+        assertNull(index.get("bar.txt"), "A removed entry should not be returned");
+        assertEquals(2, index.size(), "Removing an entry should reduce the size");
+    }
+
+    @Test
+    void testPurge() {
+        CompactIndex index = new CompactIndex();
+        for (int i = 0 ; i < 1000 ; i++) {
+            index.put(new FileEntry(i % 2 == 0 ? "/even" : "/odd", "file_" + i, i));
+        }
+        long purged = index.purge(500, path -> path.equals("/even"));
+        assertEquals(250, purged, "The expected number of entries should be purged");
+        assertEquals(750, index.size(), "The index should shrink after purge");
+        assertNull(index.get("file_2"), "An old even entry should be purged");
+        assertNotNull(index.get("file_3"), "An old odd entry should be kept");
+        assertNotNull(index.get("file_502"), "A new even entry should be kept");
+    }
+
+    @Test
+    void testSinceOrdered() {
+        for (FileIndex index: new FileIndex[]{new CompactIndex(16), new MapIndex(),
+                                              new StripedIndex(4, CompactIndex::new)}) {
+            final Random random = new Random(87);
+            Map<String, FileEntry> expected = new HashMap<>();
+            for (int i = 0 ; i < 20_000 ; i++) {
+                String filename = "file_" + random.nextInt(5_000);
+                if (random.nextInt(5) == 0) {
+                    expected.remove(filename);
+                    index.remove(filename);
+                } else {
+                    FileEntry entry = new FileEntry("/folder_" + random.nextInt(10), filename, random.nextInt(20_000));
+                    expected.put(filename, entry);
+                    index.put(entry);
+                }
+            }
+            index.touchFolder("/folder_3", 15_500);
+            expected.values().stream().filter(entry -> "/folder_3".equals(entry.path)).
+                    forEach(entry -> entry.lastSeen = 15_500);
+
+            List<Long> expectedSince = expected.values().stream().
+                    map(entry -> entry.lastSeen).
+                    filter(lastSeen -> lastSeen >= 12_345).
+                    sorted().
+                    collect(Collectors.toList());
+            List<Long> actualSince = index.snapshot(12_345, true).
+                    map(entry -> entry.lastSeen).
+                    collect(Collectors.toList());
+            assertEquals(expectedSince, actualSince,
+                         "Ordered since-query should deliver the expected timestamps for " + index);
+            assertEquals(expectedSince.size(), index.snapshot(12_345, false).count(),
+                         "Unordered since-query should deliver the expected number of entries for " + index);
+
+            long expectedPurge = expected.values().stream().filter(entry -> entry.lastSeen < 10_000).count();
+            assertEquals(expectedPurge, index.purge(10_000, path -> true),
+                         "Purge should remove the expected number of entries for " + index);
+            assertTrue(index.stream().allMatch(entry -> entry.lastSeen >= 10_000),
+                       "Only new entries should remain after purge for " + index);
+        }
+    }
+
+    @Test
+    void testPrefix() {
+        for (FileIndex index: new FileIndex[]{new CompactIndex(), new MapIndex(), new StripedIndex(4, MapIndex::new)}) {
+            String[] paths = {"/a", "/a/b", "/a/bc", "/a/b/c", "/ab"};
+            for (int i = 0 ; i < 100 ; i++) {
+                index.put(new FileEntry(paths[i % paths.length], "file_" + i, 100-i));
+            }
+            for (String prefix: new String[]{"/a/b", "/a/b/", "/a/b/fi", "/a/b/c/file_1", "/a/file_9", "/x"}) {
+                List<String> expected = index.stream().
+                        filter(entry -> entry.getFullpath().startsWith(prefix)).
+                        sorted(Comparator.comparingLong(entry -> entry.lastSeen)).
+                        map(FileEntry::getFullpath).
+                        collect(Collectors.toList());
+                List<String> actual = index.snapshot(prefix, 0, true).
+                        map(FileEntry::getFullpath).
+                        collect(Collectors.toList());
+                assertEquals(expected, actual, "The prefix '" + prefix + "' should give the expected entries for " + index);
+                assertEquals(index.stream().
+                                     filter(entry -> entry.getFullpath().startsWith(prefix) && entry.lastSeen >= 50).
+                                     count(),
+                             index.snapshot(prefix, 50, false).count(),
+                             "Combined prefix and since should give the expected count for " + index);
+            }
+        }
+    }
+
+    @Test
+    void testRemoveDeleted() {
+        for (FileIndex index: new FileIndex[]{new CompactIndex(), new MapIndex(), new StripedIndex(4, MapIndex::new)}) {
+            index.put(new FileEntry("/r", "kept", 10));
+            index.put(new FileEntry("/r", "deleted", 10));
+            index.put(new FileEntry("/r", "new", 200)); // Added after the listing
+            index.put(new FileEntry("/r/a", "in_a", 10));
+            index.put(new FileEntry("/r/a/deep", "in_a_deep", 10));
+            index.put(new FileEntry("/r/a-b", "in_a-b", 10));
+            index.put(new FileEntry("/r/gone", "in_gone", 10));
+            index.put(new FileEntry("/r/gone/deep", "in_gone_deep", 10));
+            index.put(new FileEntry("/rx", "in_sibling", 10));
+
+            FolderListing listing = new FolderListing("/r", Collections.singletonList(new FileEntry("/r", "kept", 10)),
+                                                      new HashSet<>(Arrays.asList("a", "a-b")), 100);
+            Set<String> removed = index.removeDeleted(listing).stream().
+                    map(entry -> entry.filename).
+                    collect(Collectors.toSet());
+            assertEquals(new HashSet<>(Arrays.asList("deleted", "in_gone", "in_gone_deep")), removed,
+                         "Entries for deleted files and folders should be removed for " + index);
+            assertEquals(6, index.size(), "The other entries should be kept for " + index);
+            assertNotNull(index.get("new"), "An entry added after the listing should be kept for " + index);
+            assertNotNull(index.get("in_sibling"), "An entry in a sibling folder should be kept for " + index);
+        }
+    }
+
+    @Test
+    void testApplyListing() {
+        for (FileIndex index: new FileIndex[]{new CompactIndex(), new MapIndex(), new StripedIndex(4, CompactIndex::new)}) {
+            index.put(new FileEntry("/r", "known", 10));
+            index.put(new FileEntry("/r", "deleted", 10));
+            index.put(new FileEntry("/r/gone", "in_gone", 10));
+            index.put(new FileEntry("/other", "moved", 10));
+
+            List<FileEntry> entries = Arrays.asList(new FileEntry("/r", "known", 100),
+                                                    new FileEntry("/r", "new", 100),
+                                                    new FileEntry("/r", "moved", 100));
+            FolderDiff diff = index.applyListing(new FolderListing("/r", entries, Collections.emptySet(), 100));
+            assertEquals(1, diff.unchanged, "Only the known entry should be unchanged for " + index);
+            assertEquals(new HashSet<>(Arrays.asList("new", "moved")),
+                         diff.added.stream().map(entry -> entry.filename).collect(Collectors.toSet()),
+                         "The new and the moved entries should be added for " + index);
+            assertEquals(new HashSet<>(Arrays.asList("/r:deleted", "/r/gone:in_gone", "/other:moved")),
+                         diff.removed.stream().map(entry -> entry.path + ":" + entry.filename).
+                                 collect(Collectors.toSet()),
+                         "Deleted entries and the old location of the moved entry should be removed for " + index);
+            assertEquals(3, index.size(), "Only the listed entries should remain for " + index);
+            assertEquals(100, index.get("known").lastSeen,
+                         "lastSeen should be updated for unchanged entries for " + index);
+            assertEquals("/r", index.get("moved").path, "The moved entry should have the new path for " + index);
+        }
+    }
+
+    @Test
+    void testDeletedBelow() {
+        TreeSet<String> paths = new TreeSet<>(Arrays.asList(
+                "/r", "/r/a", "/r/a-b", "/r/a/x", "/r/a/x/y", "/r/b/x", "/r/c", "/r0", "/s"));
+        assertEquals(Arrays.asList("/r/a-b", "/r/c"),
+                     PrefixPaths.deletedBelow(paths, "/r", new HashSet<>(Arrays.asList("a", "b"))),
+                     "Only the paths for the sub-folders that are not listed should be returned");
+        assertEquals(Arrays.asList("/r/a", "/r/a-b", "/r/a/x", "/r/a/x/y", "/r/b/x", "/r/c"),
+                     PrefixPaths.deletedBelow(paths, "/r/", Collections.emptySet()),
+                     "All paths below the folder should be returned when there are no sub-folders");
+    }
+
+    @Test
+    void testRandomizedAgainstHashMap() {
+        final Random random = new Random(87);
+        CompactIndex index = new CompactIndex(16); // Small start to force growth
+        Map<String, FileEntry> expected = new HashMap<>();
+        for (int i = 0 ; i < 200_000 ; i++) {
+            String filename = "file_" + random.nextInt(50_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(filename) != null, index.remove(filename),
+                             "Removing '" + filename + "' should give the expected result");
+            } else {
+                FileEntry entry = new FileEntry("/folder_" + random.nextInt(100), filename, i);
+                expected.put(filename, entry);
+                index.put(entry);
+            }
+        }
+        assertEquals(expected.size(), index.size(), "The index should have the expected size");
+        for (FileEntry entry: expected.values()) {
+            FileEntry actual = index.get(entry.filename);
+            assertNotNull(actual, "The entry '" + entry.filename + "' should be present");
+            assertEquals(entry.path, actual.path, "The path for '" + entry.filename + "' should match");
+            assertEquals(entry.lastSeen, actual.lastSeen, "The lastSeen for '" + entry.filename + "' should match");
+        }
+        assertEquals(expected.keySet(), index.stream().map(e -> e.filename).collect(Collectors.toSet()),
+                     "Streaming the index should deliver the expected filenames");
+
+        Map<String, Long> pathCounts = expected.values().stream().
+                collect(Collectors.groupingBy(entry -> entry.path, Collectors.counting()));
+        for (Map.Entry<String, Long> pathCount: pathCounts.entrySet()) {
+            assertEquals(pathCount.getValue().longValue(), index.touchFolder(pathCount.getKey(), 1_000_000),
+                         "Touching '" + pathCount.getKey() + "' should update the expected number of entries");
+        }
+        assertTrue(index.stream().allMatch(entry -> entry.lastSeen == 1_000_000),
+                   "All entries should be touched");
+    }
+}
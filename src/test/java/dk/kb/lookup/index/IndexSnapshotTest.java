@@ -0,0 +1,68 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexSnapshotTest {
+
+    @Test
+    void testRoundTrip() throws IOException {
+        MapIndex source = new MapIndex();
+        for (int i = 0 ; i < 10_000 ; i++) {
+            source.put(new FileEntry("/folder_" + (i % 37), "file_" + i, i));
+        }
+        source.put(new FileEntry("/\u00e6\u00f8\u00e5", "\u00e6\u00f8\u00e5.txt", 123));
+
+        Path snapshot = Files.createTempFile("file-lookup", ".snapshot");
+        try {
+            assertEquals(source.size(), IndexSnapshot.write(source, snapshot),
+                         "All entries should be written to the snapshot");
+
+            CompactIndex loaded = new CompactIndex();
+            assertEquals(source.size(), IndexSnapshot.load(snapshot, loaded),
+                         "All entries should be loaded from the snapshot");
+            assertEquals(source.size(), loaded.size(), "The loaded index should have the same size as the source");
+            source.stream().forEach(expected -> {
+                FileEntry actual = loaded.get(expected.filename);
+                assertNotNull(actual, "The entry '" + expected.filename + "' should be loaded");
+                assertEquals(expected.path, actual.path, "The path for '" + expected.filename + "' should match");
+                assertEquals(expected.lastSeen, actual.lastSeen,
+                             "The lastSeen for '" + expected.filename + "' should match");
+            });
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    void testInvalidSnapshot() throws IOException {
+        Path snapshot = Files.createTempFile("file-lookup", ".snapshot");
+        try {
+            Files.write(snapshot, "Not a snapshot, just some text".getBytes("UTF-8"));
+            assertThrows(IOException.class, () -> IndexSnapshot.load(snapshot, new MapIndex()),
+                         "Loading a file that is not a snapshot should fail");
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MapIndexTest {
+
+    @Test
+    void testTouchFolderCopyOnWrite() {
+        MapIndex index = new MapIndex();
+        index.put(new FileEntry("/r", "a", 10));
+        index.put(new FileEntry("/r", "b", 10));
+        index.put(new FileEntry("/s", "c", 10));
+        List<FileEntry> before = index.snapshot().collect(Collectors.toList());
+
+        assertEquals(2, index.touchFolder("/r", 10 + 2*FileIndex.TIME_BUCKET_MS),
+                     "All entries in the folder should be touched");
+        assertTrue(before.stream().allMatch(entry -> entry.lastSeen == 10),
+                   "Entries from an earlier snapshot should keep their lastSeen");
+        assertEquals(10 + 2*FileIndex.TIME_BUCKET_MS, index.get("a").lastSeen,
+                     "The touched entry should have the new lastSeen");
+        assertEquals(2, index.snapshot(null, 10 + FileIndex.TIME_BUCKET_MS, false).count(),
+                     "The touched entries should be in the new time bucket");
+        assertEquals(1, index.snapshot(null, 0, false).filter(entry -> entry.lastSeen == 10).count(),
+                     "Only the untouched entry should remain in the old time bucket");
+        assertEquals(2, index.snapshot("/r/", 0, false).count(), "The folder should hold the touched entries");
+    }
+
+    @Test
+    void testApplyListingCopyOnWrite() {
+        MapIndex index = new MapIndex();
+        index.put(new FileEntry("/r", "a", 10));
+        FileEntry before = index.get("a");
+
+        index.applyListing(new FolderListing("/r", Collections.singletonList(new FileEntry("/r", "a", 100)),
+                                             Collections.emptySet(), 100));
+        assertEquals(10, before.lastSeen, "The previously delivered entry should keep its lastSeen");
+        assertEquals(100, index.get("a").lastSeen, "The index should hold the new lastSeen");
+        assertEquals(1, index.size(), "There should still be a single entry");
+    }
+
+    @Test
+    void testRemoveDeleted() {
+        MapIndex index = new MapIndex();
+        index.put(new FileEntry("/r", "kept", 10));
+        index.put(new FileEntry("/r", "deleted", 10));
+        index.put(new FileEntry("/r", "new", 200)); // Added after the listing
+        index.put(new FileEntry("/r/a", "in_a", 10));
+        index.put(new FileEntry("/r/gone", "in_gone", 10));
+        index.put(new FileEntry("/r/gone/deep", "in_gone_deep", 10));
+        index.put(new FileEntry("/rx", "in_sibling", 10));
+
+        FolderListing listing = new FolderListing("/r", Collections.singletonList(new FileEntry("/r", "kept", 10)),
+                                                  new HashSet<>(Collections.singletonList("a")), 100);
+        Set<String> removed = index.removeDeleted(listing).stream().
+                map(entry -> entry.filename).
+                collect(Collectors.toSet());
+        assertEquals(new HashSet<>(Arrays.asList("deleted", "in_gone", "in_gone_deep")), removed,
+                     "Entries for deleted files and folders should be removed");
+        assertEquals(4, index.size(), "The other entries should be kept");
+        assertNull(index.get("deleted"), "The deleted entry should not be present");
+        assertEquals(0, index.snapshot("/r/gone", 0, false).count(),
+                     "There should be no entries below the deleted folder");
+        assertEquals(new HashSet<>(Arrays.asList("kept", "in_a", "in_sibling")),
+                     index.snapshot(null, 0, false).filter(entry -> entry.lastSeen < 100).
+                             map(entry -> entry.filename).collect(Collectors.toSet()),
+                     "Only the kept entries should remain in the time bucket");
+        assertTrue(index.removeDeleted(listing).isEmpty(), "A repeated removal should not remove anything");
+    }
+
+    @Test
+    void testApplyListing() {
+        MapIndex index = new MapIndex();
+        index.put(new FileEntry("/r", "known", 10));
+        index.put(new FileEntry("/r", "deleted", 10));
+        index.put(new FileEntry("/r/gone", "in_gone", 10));
+        index.put(new FileEntry("/other", "moved", 10));
+
+        List<FileEntry> entries = Arrays.asList(new FileEntry("/r", "known", 100),
+                                                new FileEntry("/r", "new", 100),
+                                                new FileEntry("/r", "moved", 100));
+        FolderDiff diff = index.applyListing(new FolderListing("/r", entries, Collections.emptySet(), 100));
+        assertEquals(1, diff.unchanged, "Only the known entry should be unchanged");
+        assertEquals(new HashSet<>(Arrays.asList("new", "moved")),
+                     diff.added.stream().map(entry -> entry.filename).collect(Collectors.toSet()),
+                     "The new and the moved entries should be added");
+        assertEquals(new HashSet<>(Arrays.asList("/r:deleted", "/r/gone:in_gone", "/other:moved")),
+                     diff.removed.stream().map(entry -> entry.path + ":" + entry.filename).
+                             collect(Collectors.toSet()),
+                     "Deleted entries and the old location of the moved entry should be removed");
+        assertEquals(3, index.size(), "Only the listed entries should remain");
+        assertEquals("/r", index.get("moved").path, "The moved entry should have the new path");
+        assertEquals(0, index.snapshot("/other/", 0, false).count(), "The old folder should be empty");
+
+        FolderDiff repeated = index.applyListing(new FolderListing("/r", entries, Collections.emptySet(), 200));
+        assertEquals(3, repeated.unchanged, "All entries should be unchanged when the listing is repeated");
+        assertTrue(repeated.added.isEmpty(), "Nothing should be added when the listing is repeated");
+        assertTrue(repeated.removed.isEmpty(), "Nothing should be removed when the listing is repeated");
+    }
+}
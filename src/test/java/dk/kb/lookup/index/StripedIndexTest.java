@@ -0,0 +1,205 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripedIndexTest {
+
+    @Test
+    void testConcurrentUpdates() throws Exception {
+        StripedIndex index = new StripedIndex(5, CompactIndex::new);
+        assertEquals(8, index.getStripeCount(), "The stripe count should be rounded up to a power of 2");
+
+        final int threads = 4;
+        final int perThread = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (int t = 0 ; t < threads ; t++) {
+                final int thread = t;
+                jobs.add(executor.submit(() -> {
+                    List<FileEntry> batch = new ArrayList<>();
+                    for (int i = 0 ; i < perThread ; i++) {
+                        batch.add(new FileEntry("/thread_" + thread, "file_" + thread + "_" + i, i));
+                        if (batch.size() == 100) {
+                            index.putAll(batch);
+                            batch.clear();
+                        }
+                    }
+                    index.putAll(batch);
+                    for (int i = 0 ; i < perThread ; i += 2) {
+                        index.remove("file_" + thread + "_" + i);
+                    }
+                }));
+                jobs.add(executor.submit(() -> { // Concurrent readers
+                    for (int i = 0 ; i < 10 ; i++) {
+                        index.stream().forEach(entry -> assertNotNull(entry.filename, "Entries should be complete"));
+                    }
+                }));
+            }
+            for (Future<?> job: jobs) {
+                job.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(threads*perThread/2, index.size(), "The index should have the expected size");
+        assertEquals(perThread/2, index.touchFolder("/thread_0", perThread),
+                     "Touching a folder should cover all stripes");
+        long[] touched = index.touchFolders(Arrays.asList("/thread_1", "/nonexisting"), 0);
+        assertEquals(perThread/2, touched[0], "Touching multiple folders should count per folder");
+        assertEquals(0, touched[1], "Touching a non-existing folder should not update any entries");
+        assertEquals((threads-1)*perThread/2, index.purge(perThread, path -> true),
+                     "Purge should remove all untouched entries");
+    }
+
+    @Test
+    void testStreamDoesNotBlockWriters() throws Exception {
+        StripedIndex index = new StripedIndex(4, MapIndex::new);
+        for (int i = 0 ; i < 1000 ; i++) {
+            index.put(new FileEntry("/foo", "file_" + i, i));
+        }
+        try (Stream<FileEntry> entries = index.stream()) {
+            Iterator<FileEntry> iterator = entries.iterator();
+            assertTrue(iterator.hasNext(), "The stream should deliver entries");
+            iterator.next(); // The stream is now active and a stripe has been snapshotted
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                executor.submit(() -> {
+                    for (int i = 0 ; i < 1000 ; i++) {
+                        index.put(new FileEntry("/bar", "new_" + i, i));
+                    }
+                    index.purge(Long.MAX_VALUE, path -> path.equals("/foo"));
+                }).get(10, TimeUnit.SECONDS);
+            } finally {
+                executor.shutdownNow();
+            }
+            int remaining = 0;
+            while (iterator.hasNext()) {
+                iterator.next();
+                remaining++;
+            }
+            assertTrue(remaining > 0, "The stream should still deliver entries after modifications");
+        }
+        assertEquals(1000, index.size(), "Only the new entries should remain");
+    }
+
+    @Test
+    void testParallelSnapshot() {
+        StripedIndex index = new StripedIndex(8, MapIndex::new);
+        for (int i = 0 ; i < 10_000 ; i++) {
+            index.put(new FileEntry(i % 2 == 0 ? "/even" : "/odd", "file_" + i, i));
+        }
+        ForkJoinPool pool = new ForkJoinPool(2); // Fewer threads than stripes
+        try {
+            Set<String> sequential = index.snapshot("/even", 100, false).
+                    filter(entry -> entry.filename.endsWith("8")).
+                    map(FileEntry::getFullpath).
+                    collect(Collectors.toSet());
+            Set<String> parallel;
+            try (Stream<FileEntry> entries = index.snapshot(
+                    "/even", 100, false, entry -> entry.filename.endsWith("8"), Long.MAX_VALUE, pool)) {
+                parallel = entries.map(FileEntry::getFullpath).collect(Collectors.toSet());
+            }
+            assertFalse(sequential.isEmpty(), "There should be matches");
+            assertEquals(sequential, parallel,
+                         "Parallel filtering should give the same entries as sequential filtering");
+
+            List<FileEntry> ordered;
+            try (Stream<FileEntry> entries = index.snapshot(
+                    "", 0, true, entry -> entry.filename.endsWith("3"), Long.MAX_VALUE, pool)) {
+                ordered = entries.collect(Collectors.toList());
+            }
+            assertEquals(1000, ordered.size(), "All matches should be delivered for ordered");
+            for (int i = 1 ; i < ordered.size() ; i++) {
+                assertTrue(ordered.get(i-1).lastSeen <= ordered.get(i).lastSeen,
+                           "The parallel ordered entries should be in lastSeen order");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testOrderedWalk() {
+        for (StripedIndex index: new StripedIndex[]{new StripedIndex(4, MapIndex::new),
+                                                    new StripedIndex(4, CompactIndex::new)}) {
+            // Large groups sharing lastSeen, spanning several chunks, and more entries than the prefix limit
+            int entries = StripedIndex.ORDERED_PREFIX_LIMIT + 20_000;
+            for (int i = 0 ; i < entries ; i++) {
+                index.put(new FileEntry(i % 2 == 0 ? "/even" : "/odd", "file_" + i, i / 5000));
+            }
+            for (String prefix: new String[]{"", "/", "/even", "/odd/file_1"}) {
+                List<String> expected = index.stream().
+                        filter(entry -> entry.getFullpath().startsWith(prefix) && entry.lastSeen >= 3).
+                        sorted(FileIndex.ORDER).
+                        map(FileEntry::getFullpath).
+                        collect(Collectors.toList());
+                List<String> actual = index.snapshot(prefix, 3, true).
+                        map(FileEntry::getFullpath).
+                        collect(Collectors.toList());
+                assertEquals(expected, actual,
+                             "The ordered walk for prefix '" + prefix + "' should give the sorted entries for " + index);
+            }
+
+            Iterator<FileEntry> walk = index.snapshot("", 0, true).iterator();
+            assertEquals("file_0", walk.next().filename, "The first entry should be delivered for " + index);
+            index.put(new FileEntry("/late", "late", entries)); // Added after the walk started
+            FileEntry last = null;
+            while (walk.hasNext()) {
+                last = walk.next();
+            }
+            assertEquals("late", last.filename, "The stripes should be walked lazily for " + index);
+        }
+    }
+
+    @Test
+    void testParallelSnapshotEarlyTermination() throws Exception {
+        StripedIndex index = new StripedIndex(4, MapIndex::new);
+        for (int i = 0 ; i < ParallelQuery.BATCH_SIZE * ParallelQuery.QUEUE_BATCHES * 8 ; i++) {
+            index.put(new FileEntry("/foo", "file_" + i, i));
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            try (Stream<FileEntry> entries = index.snapshot("", 0, false, entry -> true, 10, pool)) {
+                assertEquals(10, entries.limit(10).count(), "The limited parallel stream should deliver max entries");
+            }
+            try (Stream<FileEntry> entries = index.snapshot("", 0, true, entry -> true, Long.MAX_VALUE, pool)) {
+                assertEquals(5, entries.limit(5).count(), "An ordered stream should deliver entries before closing");
+            } // The tasks are now waiting for room in their queues and should stop when the stream is closed
+            assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS), "The tasks should stop when the stream is closed");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.lookup.index;
+
+import dk.kb.lookup.FileEntry;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    @Test
+    void testReplay() throws IOException {
+        Path folder = Files.createTempDirectory("file-lookup-wal");
+        try {
+            Path base = folder.resolve("index.wal");
+            try (WriteAheadLog wal = new WriteAheadLog(base)) {
+                wal.logAdded(Arrays.asList(new FileEntry("/r", "a", 10), new FileEntry("/r", "b", 20),
+                                           new FileEntry("/\u00e6\u00f8\u00e5", "\u00e6\u00f8\u00e5.txt", 30)));
+                wal.logRemoved(Collections.singletonList(new FileEntry("/r", "a", 40)));
+                wal.logAdded(Collections.singletonList(new FileEntry("/s", "b", 50)));
+            }
+
+            MapIndex index = new MapIndex();
+            index.put(new FileEntry("/r", "a", 5)); // From the snapshot
+            assertEquals(5, WriteAheadLog.replay(base, index), "All changes should be replayed");
+            assertEquals(2, index.size(), "The index should hold the expected number of entries");
+            assertNull(index.get("a"), "The removed entry should not be present");
+            assertEquals("/s", index.get("b").path, "The last change for a filename should win");
+            assertEquals(50, index.get("b").lastSeen, "lastSeen should be replayed");
+            assertEquals("/\u00e6\u00f8\u00e5", index.get("\u00e6\u00f8\u00e5.txt").path,
+                         "Non-ASCII paths should be replayed");
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    void testIncompleteRecord() throws IOException {
+        Path folder = Files.createTempDirectory("file-lookup-wal");
+        try {
+            Path base = folder.resolve("index.wal");
+            try (WriteAheadLog wal = new WriteAheadLog(base)) {
+                wal.logAdded(Collections.singletonList(new FileEntry("/r", "a", 10)));
+            }
+            // Simulate a crash during the write of a record
+            Files.write(WriteAheadLog.getFile(base, 0), new byte[]{0, 0, 0, 50, 1, 2, 3},
+                        StandardOpenOption.APPEND);
+            assertEquals(1, WriteAheadLog.replay(base, new MapIndex()),
+                         "The incomplete record should be ignored");
+
+            try (WriteAheadLog wal = new WriteAheadLog(base)) {
+                wal.logAdded(Collections.singletonList(new FileEntry("/r", "b", 20)));
+            }
+            MapIndex index = new MapIndex();
+            assertEquals(2, WriteAheadLog.replay(base, index),
+                         "Changes appended after reopening should replace the incomplete record");
+            assertNotNull(index.get("b"), "The entry logged after reopening should be replayed");
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    void testRotation() throws IOException {
+        Path folder = Files.createTempDirectory("file-lookup-wal");
+        try {
+            Path base = folder.resolve("index.wal");
+            try (WriteAheadLog wal = new WriteAheadLog(base)) {
+                wal.logAdded(Collections.singletonList(new FileEntry("/r", "old", 10)));
+                long generation = wal.rotate();
+                wal.logAdded(Collections.singletonList(new FileEntry("/r", "new", 20)));
+                assertEquals(2, WriteAheadLog.getGenerations(base).size(), "There should be 2 generations");
+
+                assertEquals(1, wal.deleteBefore(generation), "The old generation should be deleted");
+                MapIndex index = new MapIndex();
+                assertEquals(1, WriteAheadLog.replay(base, index), "Only the new generation should be replayed");
+                assertNotNull(index.get("new"), "The change in the new generation should be replayed");
+            }
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    void testConcurrentAppends() throws Exception {
+        Path folder = Files.createTempDirectory("file-lookup-wal");
+        try {
+            Path base = folder.resolve("index.wal");
+            final int threads = 8;
+            final int appends = 50;
+            try (WriteAheadLog wal = new WriteAheadLog(base)) {
+                List<Thread> appenders = new ArrayList<>();
+                List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+                for (int t = 0 ; t < threads ; t++) {
+                    final int thread = t;
+                    appenders.add(new Thread(() -> {
+                        try {
+                            for (int i = 0 ; i < appends ; i++) {
+                                wal.logAdded(Collections.singletonList(new FileEntry("/r", thread + "_" + i, i)));
+                            }
+                        } catch (IOException e) {
+                            failures.add(e);
+                        }
+                    }));
+                }
+                appenders.forEach(Thread::start);
+                for (Thread appender: appenders) {
+                    appender.join(10000);
+                }
+                assertTrue(failures.isEmpty(), "There should be no failures but got " + failures);
+            }
+            MapIndex index = new MapIndex();
+            assertEquals(threads*appends, WriteAheadLog.replay(base, index),
+                         "All changes from all threads should be replayed");
+            assertEquals(threads*appends, index.size(), "All entries should be present");
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    void testFailedWrite() throws IOException {
+        Path folder = Files.createTempDirectory("file-lookup-wal");
+        try {
+            Path base = folder.resolve("index.wal");
+            AtomicBoolean fail = new AtomicBoolean(false);
+            try (WriteAheadLog wal = new WriteAheadLog(base) {
+                @Override
+                long write(FileChannel target, List<ByteBuffer> records) throws IOException {
+                    if (fail.get()) {
+                        target.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 50, 1})); // Partial record
+                        throw new IllegalStateException("Expected failure");
+                    }
+                    return super.write(target, records);
+                }
+            }) {
+                wal.logAdded(Collections.singletonList(new FileEntry("/r", "a", 10)));
+                fail.set(true);
+                assertThrows(IOException.class,
+                             () -> wal.logAdded(Collections.singletonList(new FileEntry("/r", "failed", 20))),
+                             "A RuntimeException during write should be reported as an IOException");
+                fail.set(false);
+                wal.logAdded(Collections.singletonList(new FileEntry("/r", "b", 30)));
+            }
+            MapIndex index = new MapIndex();
+            assertEquals(2, WriteAheadLog.replay(base, index),
+                         "The changes before and after the failed write should be replayed");
+            assertNull(index.get("failed"), "The failed change should not be replayed");
+            assertNotNull(index.get("b"), "The change after the failed write should be replayed");
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+}